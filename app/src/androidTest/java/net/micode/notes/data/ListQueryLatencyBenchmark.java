@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteListColumns;
+import net.micode.notes.data.NotesDatabaseHelper.PragmaProfile;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency of the folder list query while a bulk write, shaped like the chunked writes of
+ * the gtask sync, runs on another thread. The rollback journal profile is measured first
+ * as the reference, the readers there wait for every write transaction to finish
+ */
+@RunWith(AndroidJUnit4.class)
+public class ListQueryLatencyBenchmark {
+    private static final String TAG = "ListQueryLatency";
+
+    private static final String DB_NAME = "list_query_benchmark.db";
+
+    private static final int LISTED_NOTES = 500;
+
+    private static final int WRITE_BATCHES = 40;
+
+    private static final int NOTES_PER_BATCH = 200;
+
+    /**
+     * Same columns as the note list adapter
+     */
+    private static final String[] PROJECTION = new String[] {
+        NoteColumns.ID,
+        NoteColumns.ALERTED_DATE,
+        NoteColumns.BG_COLOR_ID,
+        NoteColumns.CREATED_DATE,
+        NoteColumns.HAS_ATTACHMENT,
+        NoteColumns.MODIFIED_DATE,
+        NoteColumns.NOTES_COUNT,
+        NoteColumns.PARENT_ID,
+        NoteColumns.PREVIEW,
+        NoteColumns.TYPE,
+        NoteColumns.WIDGET_ID,
+        NoteColumns.WIDGET_TYPE,
+        NoteListColumns.CALL_PHONE_NUMBER,
+    };
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @Test
+    public void listQueryDuringBulkWrite() throws Exception {
+        long[] rollback = measure(new PragmaProfile(false, 2048,
+                PragmaProfile.SYNCHRONOUS_FULL, 0));
+        long[] wal = measure(NotesDatabaseHelper.DEFAULT_PRAGMA_PROFILE);
+
+        Bundle results = new Bundle();
+        report(results, "rollback", rollback);
+        report(results, "wal", wal);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    /**
+     * @return the sorted latencies of the list queries in nanoseconds
+     */
+    private long[] measure(PragmaProfile profile) throws InterruptedException {
+        mContext.deleteDatabase(DB_NAME);
+        NotesDatabaseHelper helper = new NotesDatabaseHelper(mContext, DB_NAME, profile);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < LISTED_NOTES; i++) {
+                    insertNote(db, Notes.ID_ROOT_FOLDER, i);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            final long folderId = insertFolder(db);
+
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    for (int batch = 0; batch < WRITE_BATCHES; batch++) {
+                        db.beginTransaction();
+                        try {
+                            for (int i = 0; i < NOTES_PER_BATCH; i++) {
+                                insertNote(db, folderId, batch * NOTES_PER_BATCH + i);
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                    }
+                }
+            }, "BulkWriter");
+
+            long[] latencies = new long[64];
+            int count = 0;
+            // the query of the root folder as the provider runs it for the note list
+            String selection = NotesProvider.FOLDER_SELECTION
+                    + NotesProvider.parseSelection(Notes.ROOT_FOLDER_NOTES_SELECTION);
+            String root = String.valueOf(Notes.ID_ROOT_FOLDER);
+            String[] args = new String[] { root, root };
+            writer.start();
+            while (writer.isAlive()) {
+                long start = System.nanoTime();
+                Cursor c = db.query(TABLE.NOTE_LIST_VIEW, PROJECTION, selection, args, null,
+                        null, Notes.FOLDER_NOTES_SORT_ORDER);
+                try {
+                    // the window is filled lazily, walk to the end to read every row
+                    c.moveToLast();
+                } finally {
+                    c.close();
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - start;
+            }
+            writer.join();
+
+            assertTrue("no list query finished during the bulk write", count > 0);
+            latencies = Arrays.copyOf(latencies, count);
+            Arrays.sort(latencies);
+            return latencies;
+        } finally {
+            helper.close();
+            mContext.deleteDatabase(DB_NAME);
+        }
+    }
+
+    private static long insertFolder(SQLiteDatabase db) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.SNIPPET, "bulk");
+        return db.insert(TABLE.NOTE, null, values);
+    }
+
+    private static void insertNote(SQLiteDatabase db, long folderId, int index) {
+        String content = "note " + index + " written by the list query benchmark";
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, folderId);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.SNIPPET, content);
+        values.put(NoteColumns.MODIFIED_DATE, index);
+        long noteId = db.insert(TABLE.NOTE, null, values);
+
+        values.clear();
+        values.put(DataColumns.NOTE_ID, noteId);
+        values.put(DataColumns.MIME_TYPE, DataConstants.NOTE);
+        values.put(DataColumns.CONTENT, content);
+        db.insert(TABLE.DATA, null, values);
+    }
+
+    private static void report(Bundle results, String name, long[] latencies) {
+        long p50 = latencies[latencies.length / 2] / 1000;
+        long p95 = latencies[(int) (latencies.length * 0.95)] / 1000;
+        long max = latencies[latencies.length - 1] / 1000;
+        results.putLong(name + "_p50_us", p50);
+        results.putLong(name + "_p95_us", p95);
+        results.putLong(name + "_max_us", max);
+        Log.i(TAG, name + ": " + latencies.length + " queries, p50 " + p50 + "us, p95 " + p95
+                + "us, max " + max + "us");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Statements per second of the note updates of the provider, the way they were issued
+ * through SQLiteDatabase before {@link StatementCache} against the cached statements.
+ * Every round runs in one transaction, so the numbers are dominated by compiling and
+ * binding. Inserts are not cached and not measured here
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatementThroughputBenchmark {
+    private static final String TAG = "StatementThroughput";
+
+    private static final String DB_NAME = "statement_benchmark.db";
+
+    private static final int STATEMENTS = 5000;
+
+    private static final int ROUNDS = 5;
+
+    private static final String INCREASE_NOTE_VERSION = NoteColumns.VERSION + "="
+            + NoteColumns.VERSION + "+1";
+
+    private Context mContext;
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContext.deleteDatabase(DB_NAME);
+        mHelper = new NotesDatabaseHelper(mContext, DB_NAME,
+                NotesDatabaseHelper.DEFAULT_PRAGMA_PROFILE);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void noteWrites() {
+        StatementCache cache = new StatementCache(mDb);
+        long firstId = insertNotes();
+        // warm up both paths once before measuring
+        updateNotes(null, firstId);
+        updateNotes(cache, firstId);
+
+        long uncached = 0;
+        long cached = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            uncached += updateNotes(null, firstId);
+            cached += updateNotes(cache, firstId);
+        }
+        cache.close();
+
+        Bundle results = new Bundle();
+        report(results, "update_uncached", STATEMENTS * ROUNDS, uncached);
+        report(results, "update_cached", STATEMENTS * ROUNDS, cached);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    /**
+     * @return the id of the first inserted note
+     */
+    private long insertNotes() {
+        long firstId = -1;
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < STATEMENTS; i++) {
+                ContentValues values = new ContentValues();
+                values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+                values.put(NoteColumns.SNIPPET, "note " + i);
+                long id = mDb.insert(TABLE.NOTE, null, values);
+                if (firstId == -1) {
+                    firstId = id;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return firstId;
+    }
+
+    /**
+     * Update the snippet of every note as the provider does for a note uri
+     * @return the elapsed nanoseconds
+     */
+    private long updateNotes(StatementCache cache, long firstId) {
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < STATEMENTS; i++) {
+                ContentValues values = new ContentValues();
+                values.put(NoteColumns.SNIPPET, "edited " + i);
+                String[] args = new String[] { String.valueOf(firstId + i) };
+                if (cache == null) {
+                    // the provider used to bump the version by a separate statement and put
+                    // the id into the sql, so neither statement hit the connection's cache
+                    mDb.execSQL("UPDATE " + TABLE.NOTE + " SET " + INCREASE_NOTE_VERSION
+                            + " WHERE " + NoteColumns.ID + "=" + args[0]);
+                    mDb.update(TABLE.NOTE, values, NoteColumns.ID + "=" + args[0], null);
+                } else {
+                    cache.update(TABLE.NOTE, INCREASE_NOTE_VERSION, values,
+                            NoteColumns.ID + "=?", args);
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(Bundle results, String name, int statements, long nanos) {
+        long perSecond = statements * 1000000000L / Math.max(nanos, 1);
+        results.putLong(name + "_per_second", perSecond);
+        Log.i(TAG, name + ": " + statements + " statements in " + nanos / 1000000 + "ms, "
+                + perSecond + "/s");
+    }
+}
@@ -21,9 +21,13 @@ import android.database.Cursor;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 
 // 本文件处理联系人相关信息
 public class Contact {
@@ -39,6 +43,11 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";
 
+    /**
+     * 一次批量查询的号码数上限
+     */
+    private static final int MAX_NUMBERS_PER_QUERY = 20;
+
     /***
      *  获取联系人
      * @param context 提供的提示信息
@@ -46,12 +55,15 @@ public class Contact {
      * @return 返回联系人的名字
      */
     public static String getContact(Context context, String phoneNumber) {
-        if(sContactCache == null) {
-            sContactCache = new HashMap<String, String>();
-        }
+        synchronized (Contact.class) {
+            if (sContactCache == null) {
+                sContactCache = new HashMap<String, String>();
+            }
 
-        if(sContactCache.containsKey(phoneNumber)) {
-            return sContactCache.get(phoneNumber);
+            if (sContactCache.containsKey(phoneNumber)) {
+                String name = sContactCache.get(phoneNumber);
+                return TextUtils.isEmpty(name) ? null : name;
+            }
         }
 
         String selection = CALLER_ID_SELECTION.replace("+",
@@ -66,7 +78,7 @@ public class Contact {
         if (cursor != null && cursor.moveToFirst()) {
             try {
                 String name = cursor.getString(0);
-                sContactCache.put(phoneNumber, name);
+                putContact(phoneNumber, name);
                 return name;
             } catch (IndexOutOfBoundsException e) {
                 Log.e(TAG, " Cursor get string error " + e.toString());
@@ -80,4 +92,79 @@ public class Contact {
         }
 
     }
+
+    /***
+     *  只从缓存中获取联系人，不查询数据库
+     * @param phoneNumber 联系人的电话号码
+     * @return 联系人的名字；没有匹配的联系人时返回空字符串；尚未查询过时返回null
+     */
+    public static synchronized String getCachedContact(String phoneNumber) {
+        if (sContactCache == null) {
+            return null;
+        }
+        return sContactCache.get(phoneNumber);
+    }
+
+    /***
+     *  批量查询一组号码的联系人并存入缓存，每次查询合并多个号码，没有匹配的号码也会被缓存
+     *  需要在后台线程中调用
+     * @param context 提供的提示信息
+     * @param phoneNumbers 联系人的电话号码
+     */
+    public static void resolveContacts(Context context, Collection<String> phoneNumbers) {
+        ArrayList<String> numbers = new ArrayList<String>();
+        for (String phoneNumber : phoneNumbers) {
+            if (!TextUtils.isEmpty(phoneNumber) && getCachedContact(phoneNumber) == null) {
+                numbers.add(phoneNumber);
+            }
+        }
+
+        for (int start = 0; start < numbers.size(); start += MAX_NUMBERS_PER_QUERY) {
+            List<String> chunk = numbers.subList(start,
+                    Math.min(start + MAX_NUMBERS_PER_QUERY, numbers.size()));
+            StringBuilder selection = new StringBuilder();
+            for (String phoneNumber : chunk) {
+                if (selection.length() > 0) {
+                    selection.append(" OR ");
+                }
+                selection.append('(').append(CALLER_ID_SELECTION.replace("+",
+                        PhoneNumberUtils.toCallerIDMinMatch(phoneNumber))).append(')');
+            }
+
+            HashMap<String, String> names = new HashMap<String, String>();
+            Cursor cursor = context.getContentResolver().query(
+                    Data.CONTENT_URI,
+                    new String [] { Phone.NUMBER, Phone.DISPLAY_NAME },
+                    selection.toString(),
+                    chunk.toArray(new String[chunk.size()]),
+                    null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        String number = cursor.getString(0);
+                        for (String phoneNumber : chunk) {
+                            if (!names.containsKey(phoneNumber)
+                                    && PhoneNumberUtils.compare(phoneNumber, number)) {
+                                names.put(phoneNumber, cursor.getString(1));
+                            }
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            for (String phoneNumber : chunk) {
+                String name = names.get(phoneNumber);
+                putContact(phoneNumber, name != null ? name : "");
+            }
+        }
+    }
+
+    private static synchronized void putContact(String phoneNumber, String name) {
+        if (sContactCache == null) {
+            sContactCache = new HashMap<String, String>();
+        }
+        sContactCache.put(phoneNumber, name);
+    }
 }
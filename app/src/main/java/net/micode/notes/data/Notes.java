@@ -72,6 +72,205 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to query the notes and folders of a folder, append the id of the folder. The
+     * observers of it are only notified when the content of the folder has changed
+     */
+    public static final Uri CONTENT_FOLDER_URI = Uri.parse("content://" + AUTHORITY + "/folder");
+
+    /**
+     * Selection of the note list of a folder with {@link #CONTENT_FOLDER_URI}, the only
+     * argument is the id of the folder
+     */
+    public static final String FOLDER_NOTES_SELECTION = NoteColumns.PARENT_ID + "=?";
+
+    /**
+     * Selection of the note list of root folder, system folders are children of the root
+     * folder, keeping parent_id as the outer condition lets the query use the parent id
+     * index without sorting
+     */
+    public static final String ROOT_FOLDER_NOTES_SELECTION = NoteColumns.PARENT_ID + "=? AND ("
+            + NoteColumns.TYPE + "<>" + TYPE_SYSTEM + " OR ("
+            + NoteColumns.ID + "=" + ID_CALL_RECORD_FOLDER + " AND "
+            + NoteColumns.NOTES_COUNT + ">0))";
+
+    /**
+     * Folders first, then the recently modified notes
+     */
+    public static final String FOLDER_NOTES_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * Provider method to collect change notifications for a while before dispatching them,
+     * used by sync to avoid refreshing the observers for every note. It only applies to the
+     * writes of the calling thread, the writes of other threads are notified at once
+     * <P> Extras: {@link #EXTRA_NOTIFY_DEBOUNCE} </P>
+     */
+    public static final String METHOD_SET_NOTIFY_DEBOUNCE = "set_notify_debounce";
+
+    /**
+     * The debounce window in milliseconds, 0 to dispatch the notifications at once
+     * <P> Type: long </P>
+     */
+    public static final String EXTRA_NOTIFY_DEBOUNCE = "notify_debounce";
+
+    /**
+     * Uri to query the change journal of notes and datas ordered by {@link ChangeColumns#SEQ},
+     * set {@link #PARAM_SINCE} to get only the changes after a sequence number. It is not
+     * notified itself, observe {@link #CONTENT_NOTE_URI} and {@link #CONTENT_DATA_URI} instead
+     */
+    public static final Uri CONTENT_CHANGES_URI = Uri.parse("content://" + AUTHORITY + "/changes");
+
+    /**
+     * Query parameter of {@link #CONTENT_CHANGES_URI}, the last sequence number the caller
+     * has processed
+     */
+    public static final String PARAM_SINCE = "since";
+
+    /**
+     * Query parameter of {@link #CONTENT_CHANGES_URI}, the max number of changes to return
+     */
+    public static final String PARAM_LIMIT = "limit";
+
+    /**
+     * Provider method to get the range of the change journal
+     * <P> Result: {@link #EXTRA_CHANGE_SEQ}, {@link #EXTRA_OLDEST_CHANGE_SEQ} </P>
+     */
+    public static final String METHOD_GET_CHANGE_SEQ = "get_change_seq";
+
+    /**
+     * Provider method to delete the changes of the journal which have been processed by
+     * all consumers
+     * <P> Extras: {@link #EXTRA_CHANGE_SEQ}, the changes up to it are deleted </P>
+     * <P> Result: same as {@link #METHOD_GET_CHANGE_SEQ} </P>
+     */
+    public static final String METHOD_COMPACT_CHANGES = "compact_changes";
+
+    /**
+     * The latest sequence number of the change journal, 0 if nothing has been recorded
+     * <P> Type: long </P>
+     */
+    public static final String EXTRA_CHANGE_SEQ = "change_seq";
+
+    /**
+     * The oldest sequence number still kept by the change journal, a consumer whose last
+     * processed sequence number is less than it minus 1 has missed changes and must rescan
+     * <P> Type: long </P>
+     */
+    public static final String EXTRA_OLDEST_CHANGE_SEQ = "oldest_change_seq";
+
+    /**
+     * Provider method to delete notes and folders by id in one call, the notes of a deleted
+     * folder are deleted by triggers. System folders are never deleted
+     * <P> Extras: {@link #EXTRA_NOTE_IDS} </P>
+     * <P> Result: {@link #EXTRA_COUNT}, {@link #EXTRA_WIDGET_IDS}, {@link #EXTRA_WIDGET_TYPES} </P>
+     */
+    public static final String METHOD_DELETE_NOTES = "delete_notes";
+
+    /**
+     * Provider method to move notes and folders by id to a folder in one call, the origin
+     * parent of each note is recorded and the notes are marked as local modified
+     * <P> Extras: {@link #EXTRA_NOTE_IDS}, {@link #EXTRA_FOLDER_ID} </P>
+     * <P> Result: same as {@link #METHOD_DELETE_NOTES} </P>
+     */
+    public static final String METHOD_MOVE_NOTES = "move_notes";
+
+    /**
+     * Ids of the notes and folders to handle
+     * <P> Type: long[] </P>
+     */
+    public static final String EXTRA_NOTE_IDS = "note_ids";
+
+    /**
+     * The destination folder
+     * <P> Type: long </P>
+     */
+    public static final String EXTRA_FOLDER_ID = "folder_id";
+
+    /**
+     * The number of rows affected
+     * <P> Type: int </P>
+     */
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * The widgets showing the affected notes, including the notes of the affected folders,
+     * {@link #EXTRA_WIDGET_TYPES} holds the type of the widget at the same index
+     * <P> Type: int[] </P>
+     */
+    public static final String EXTRA_WIDGET_IDS = "widget_ids";
+
+    /**
+     * <P> Type: int[] </P>
+     */
+    public static final String EXTRA_WIDGET_TYPES = "widget_types";
+
+    /**
+     * Provider method to read the checkpoint left by an unfinished gtask sync, the result
+     * is empty if there is none
+     * <P> Result: {@link #EXTRA_SYNC_ACCOUNT}, {@link #EXTRA_SYNC_SAVED_DATE},
+     * {@link #EXTRA_NOTE_IDS}, {@link #EXTRA_NOTE_STATES} </P>
+     */
+    public static final String METHOD_GET_SYNC_CHECKPOINT = "get_sync_checkpoint";
+
+    /**
+     * Provider method to save the checkpoint of a gtask sync in one transaction. The
+     * states of the given notes are merged into the saved ones,
+     * {@link #SYNC_NOTE_NONE} removes the state of a note
+     * <P> Extras: {@link #EXTRA_SYNC_ACCOUNT}, {@link #EXTRA_NOTE_IDS},
+     * {@link #EXTRA_NOTE_STATES} </P>
+     */
+    public static final String METHOD_SAVE_SYNC_CHECKPOINT = "save_sync_checkpoint";
+
+    /**
+     * Provider method to delete the checkpoint of gtask sync
+     */
+    public static final String METHOD_CLEAR_SYNC_CHECKPOINT = "clear_sync_checkpoint";
+
+    /**
+     * The account the checkpoint belongs to
+     * <P> Type: String </P>
+     */
+    public static final String EXTRA_SYNC_ACCOUNT = "sync_account";
+
+    /**
+     * When the checkpoint was saved last time
+     * <P> Type: long </P>
+     */
+    public static final String EXTRA_SYNC_SAVED_DATE = "sync_saved_date";
+
+    /**
+     * The sync state of the note at the same index of {@link #EXTRA_NOTE_IDS}, one of
+     * {@link #SYNC_NOTE_NONE}, {@link #SYNC_NOTE_SETTLED} and {@link #SYNC_NOTE_PENDING}
+     * <P> Type: int[] </P>
+     */
+    public static final String EXTRA_NOTE_STATES = "note_states";
+
+    /**
+     * Following are the sync states of a note in the checkpoint. A settled note has been
+     * written to the remote by a committed batch, its local sync id is stale until the
+     * sync finishes. A pending note has been marked as synced locally while its remote
+     * update is not confirmed, it has to be marked as local modified again
+     */
+    public static final int SYNC_NOTE_NONE    = 0;
+    public static final int SYNC_NOTE_SETTLED = 1;
+    public static final int SYNC_NOTE_PENDING = 2;
+
+    /**
+     * Following are the values of {@link ChangeColumns#TARGET}
+     */
+    public static final int CHANGE_TARGET_NOTE = 0;
+    public static final int CHANGE_TARGET_DATA = 1;
+
+    /**
+     * Following are the values of {@link ChangeColumns#OPERATION}, moving a note to
+     * another folder is recorded as {@link #CHANGE_MOVE} instead of {@link #CHANGE_UPDATE}
+     */
+    public static final int CHANGE_INSERT = 0;
+    public static final int CHANGE_UPDATE = 1;
+    public static final int CHANGE_MOVE   = 2;
+    public static final int CHANGE_DELETE = 3;
+
     /**
      * 定义DataColumns的常量,用于后面创建数据库的表头。主要是定义存储便签数据内容
      */
@@ -179,6 +378,13 @@ public class Notes {
          * <P> Type : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * Leading part of the snippet to show in list, widget and search, without the marks
+         * of check list. Folder's preview is its name
+         * <P> Type : TEXT </P>
+         */
+        public static final String PREVIEW = "preview";
     }
 
     public interface DataColumns {
@@ -255,6 +461,69 @@ public class Notes {
         public static final String DATA5 = "data5";
     }
 
+    /**
+     * Columns of the rows from {@link #CONTENT_FOLDER_URI} besides the {@link NoteColumns},
+     * the call note's phone number is joined to the row so the list does not query it again
+     */
+    public interface NoteListColumns {
+        /**
+         * Phone number of call note, empty for other notes
+         * <P> Type: TEXT </P>
+         */
+        public static final String CALL_PHONE_NUMBER = "call_phone_number";
+    }
+
+    /**
+     * Columns of the change journal, one row is appended for each insert, update, move
+     * or delete of the note and data tables
+     */
+    public interface ChangeColumns {
+        /**
+         * Monotonic sequence number of the change, never reused after compaction
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String SEQ = "seq";
+
+        /**
+         * Table of the changed row, {@link Notes#CHANGE_TARGET_NOTE} or
+         * {@link Notes#CHANGE_TARGET_DATA}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String TARGET = "target";
+
+        /**
+         * The id of the changed row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ROW_ID = "row_id";
+
+        /**
+         * The parent folder of the changed note, or the note of the changed data. For
+         * deletions it is the value before the row has been deleted
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String OWNER_ID = "owner_id";
+
+        /**
+         * The parent folder of the moved note before the move, 0 for other changes
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ORIGIN_OWNER_ID = "origin_owner_id";
+
+        /**
+         * One of {@link Notes#CHANGE_INSERT}, {@link Notes#CHANGE_UPDATE},
+         * {@link Notes#CHANGE_MOVE} and {@link Notes#CHANGE_DELETE}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String OPERATION = "operation";
+
+        /**
+         * Time of the change
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String CHANGED_DATE = "changed_date";
+    }
+
     public static final class TextNote implements DataColumns {
         /**
          * Mode to indicate the text in check list mode or not
@@ -264,6 +533,13 @@ public class Notes {
 
         public static final int MODE_CHECK_LIST = 1;
 
+        /**
+         * Marks of the checked and unchecked items in check list mode
+         */
+        public static final String TAG_CHECKED = String.valueOf('\u221A');
+
+        public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/text_note";
 
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/text_note";
@@ -18,31 +18,105 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.ChangeColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteListColumns;
 
 
 //用于存储Notes的数据，以及根据数据更改Notes结构体的变量
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 12;
 
     public interface TABLE {
         public static final String NOTE = "note";
 
         public static final String DATA = "data";
+
+        public static final String NOTE_FTS = "note_fts";
+
+        public static final String NOTE_LIST_VIEW = "note_list";
+
+        public static final String CHANGE_LOG = "change_log";
+
+        public static final String SYNC_STATE = "sync_state";
+
+        public static final String SYNC_NOTE_STATE = "sync_note_state";
     }
 
     private static final String TAG = "NotesDatabaseHelper";
 
+    /**
+     * Columns of {@link TABLE#SYNC_STATE}, one row for every value of the sync checkpoint
+     */
+    public static final String SYNC_STATE_NAME = "name";
+
+    public static final String SYNC_STATE_VALUE = "value";
+
+    /**
+     * Columns of {@link TABLE#SYNC_NOTE_STATE}, the state is one of the
+     * {@link Notes#SYNC_NOTE_SETTLED} values
+     */
+    public static final String SYNC_NOTE_ID = "note_id";
+
+    public static final String SYNC_NOTE_STATE = "state";
+
     private static NotesDatabaseHelper mInstance;
 
+    /**
+     * Tunable PRAGMA values applied to the database when it is opened
+     */
+    public static class PragmaProfile {
+        public static final int SYNCHRONOUS_OFF    = 0;
+        public static final int SYNCHRONOUS_NORMAL = 1;
+        public static final int SYNCHRONOUS_FULL   = 2;
+
+        /**
+         * Use write-ahead logging, readers then get their own connections from the pool and
+         * are no longer blocked by a writer such as the gtask sync
+         */
+        public final boolean walEnabled;
+
+        /**
+         * Page cache size of the connection in KiB
+         */
+        public final int cacheSizeKb;
+
+        /**
+         * One of {@link #SYNCHRONOUS_OFF}, {@link #SYNCHRONOUS_NORMAL} and
+         * {@link #SYNCHRONOUS_FULL}, NORMAL is durable enough in WAL mode
+         */
+        public final int synchronous;
+
+        /**
+         * Bytes of the database file to memory map, 0 to disable
+         */
+        public final long mmapSize;
+
+        public PragmaProfile(boolean walEnabled, int cacheSizeKb, int synchronous, long mmapSize) {
+            this.walEnabled = walEnabled;
+            this.cacheSizeKb = cacheSizeKb;
+            this.synchronous = synchronous;
+            this.mmapSize = mmapSize;
+        }
+    }
+
+    public static final PragmaProfile DEFAULT_PRAGMA_PROFILE = new PragmaProfile(true, 2048,
+            PragmaProfile.SYNCHRONOUS_NORMAL, 0);
+
+    private final PragmaProfile mPragmaProfile;
+
     private static final String CREATE_NOTE_TABLE_SQL =
         "CREATE TABLE " + TABLE.NOTE + "(" +
             NoteColumns.ID + " INTEGER PRIMARY KEY," +
@@ -61,7 +135,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.PREVIEW + " TEXT NOT NULL DEFAULT ''" +
         ")";
 
     private static final String CREATE_DATA_TABLE_SQL =
@@ -83,6 +158,55 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
         TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
+    /**
+     * Serves the note list of a folder, which is filtered by parent id and ordered
+     * by type and modified date, without sorting in a temporary b-tree
+     */
+    private static final String CREATE_NOTE_PARENT_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_parent_id_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + "," +
+        NoteColumns.MODIFIED_DATE + ");";
+
+    /**
+     * Serves the selections of gtask sync, which are filtered by type first
+     */
+    private static final String CREATE_NOTE_TYPE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_type_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.TYPE + "," + NoteColumns.PARENT_ID + "," +
+        NoteColumns.LOCAL_MODIFIED + ");";
+
+    /**
+     * Serves the incremental gtask sync, which only visits the locally modified rows
+     */
+    private static final String CREATE_NOTE_LOCAL_MODIFIED_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_local_modified_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.LOCAL_MODIFIED + "," + NoteColumns.TYPE + ");";
+
+    /**
+     * Rows of the note list, the call note's phone number is selected by the data index
+     * only for the notes in call record folder
+     */
+    private static final String CREATE_NOTE_LIST_VIEW_SQL =
+        "CREATE VIEW " + TABLE.NOTE_LIST_VIEW + " AS SELECT " + TABLE.NOTE + ".*," +
+            " CASE WHEN " + NoteColumns.PARENT_ID + "=" + Notes.ID_CALL_RECORD_FOLDER +
+            "  THEN IFNULL((SELECT " + CallNote.PHONE_NUMBER + " FROM " + TABLE.DATA +
+            "   WHERE " + CallNote.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID +
+            "   AND " + CallNote.MIME_TYPE + "='" + DataConstants.CALL_NOTE + "' LIMIT 1),'')" +
+            "  ELSE '' END AS " + NoteListColumns.CALL_PHONE_NUMBER +
+        " FROM " + TABLE.NOTE;
+
+    /**
+     * Full-text index over the snippet of notes, the docid of each row is the
+     * {@link NoteColumns#ID} of the indexed note. The index reads the text from the note
+     * table instead of keeping its own copy, so the triggers below must remove a row from
+     * the index before the snippet is changed or deleted
+     */
+    private static final String CREATE_NOTE_FTS_TABLE_SQL =
+        "CREATE VIRTUAL TABLE " + TABLE.NOTE_FTS + " USING fts4(" +
+            "content=\"" + TABLE.NOTE + "\"," +
+            NoteColumns.SNIPPET +
+        ")";
+
     /**
      * Increase folder's note count when move note to the folder
      */
@@ -172,6 +296,228 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
         " END";
 
+    /**
+     * Add note's snippet to the search index when insert new note
+     */
+    private static final String NOTE_INSERT_FTS_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER insert_fts_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + NoteColumns.SNIPPET + ")" +
+        "   VALUES (new." + NoteColumns.ID + ",new." + NoteColumns.SNIPPET + ");" +
+        " END";
+
+    /**
+     * Remove the old snippet from the search index before it is changed, the index
+     * looks up the words to remove in the note table. The snippet of note is updated
+     * by the update_note_content_on_* triggers of data table
+     */
+    private static final String NOTE_DELETE_FTS_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER delete_fts_on_update " +
+        " BEFORE UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Add the new snippet to the search index after it has been changed
+     */
+    private static final String NOTE_INSERT_FTS_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER insert_fts_on_update " +
+        " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + NoteColumns.SNIPPET + ")" +
+        "   VALUES (new." + NoteColumns.ID + ",new." + NoteColumns.SNIPPET + ");" +
+        " END";
+
+    /**
+     * Remove note from the search index before note is deleted
+     */
+    private static final String NOTE_DELETE_FTS_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER delete_fts_on_delete " +
+        " BEFORE DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Max length of {@link NoteColumns#PREVIEW}, which is enough for the list item and
+     * the 4x widget
+     */
+    private static final int PREVIEW_MAX_LENGTH = 256;
+
+    /**
+     * Update note's preview when insert new note, a new note is usually inserted with an
+     * empty snippet and gets its content from the data table later
+     */
+    private static final String NOTE_UPDATE_PREVIEW_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER update_preview_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.SNIPPET + "<>''" +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.PREVIEW + "=" + previewOf("new.") +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Update note's preview when note's snippet has changed
+     */
+    private static final String NOTE_UPDATE_PREVIEW_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_preview_on_update " +
+        " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.PREVIEW + "=" + previewOf("new.") +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Append-only journal of the changes of note and data tables, AUTOINCREMENT keeps
+     * the sequence numbers monotonic after the old changes have been compacted
+     */
+    private static final String CREATE_CHANGE_LOG_TABLE_SQL =
+        "CREATE TABLE " + TABLE.CHANGE_LOG + "(" +
+            ChangeColumns.SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            ChangeColumns.TARGET + " INTEGER NOT NULL," +
+            ChangeColumns.ROW_ID + " INTEGER NOT NULL," +
+            ChangeColumns.OWNER_ID + " INTEGER NOT NULL DEFAULT 0," +
+            ChangeColumns.ORIGIN_OWNER_ID + " INTEGER NOT NULL DEFAULT 0," +
+            ChangeColumns.OPERATION + " INTEGER NOT NULL," +
+            ChangeColumns.CHANGED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)" +
+        ")";
+
+    /**
+     * Checkpoint of an unfinished gtask sync, it is not part of the notes and has no
+     * triggers, so saving it is not recorded by the change journal
+     */
+    private static final String CREATE_SYNC_STATE_TABLE_SQL =
+        "CREATE TABLE " + TABLE.SYNC_STATE + "(" +
+            SYNC_STATE_NAME + " TEXT PRIMARY KEY," +
+            SYNC_STATE_VALUE + " TEXT" +
+        ")";
+
+    private static final String CREATE_SYNC_NOTE_STATE_TABLE_SQL =
+        "CREATE TABLE " + TABLE.SYNC_NOTE_STATE + "(" +
+            SYNC_NOTE_ID + " INTEGER PRIMARY KEY," +
+            SYNC_NOTE_STATE + " INTEGER NOT NULL" +
+        ")";
+
+    /**
+     * Record the insert of note
+     */
+    private static final String NOTE_LOG_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER note_log_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " BEGIN" +
+        logChange(Notes.CHANGE_TARGET_NOTE, "new." + NoteColumns.ID,
+                "new." + NoteColumns.PARENT_ID, "0", Notes.CHANGE_INSERT) +
+        " END";
+
+    /**
+     * Record the update of note which stays in the same folder, the update of preview
+     * alone is skipped since it always follows the update of snippet
+     */
+    private static final String NOTE_LOG_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER note_log_on_update " +
+        " AFTER UPDATE ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.PARENT_ID + "=old." + NoteColumns.PARENT_ID +
+        "  AND (new." + NoteColumns.PREVIEW + "=old." + NoteColumns.PREVIEW +
+        "  OR new." + NoteColumns.SNIPPET + "<>old." + NoteColumns.SNIPPET + ")" +
+        " BEGIN" +
+        logChange(Notes.CHANGE_TARGET_NOTE, "new." + NoteColumns.ID,
+                "new." + NoteColumns.PARENT_ID, "0", Notes.CHANGE_UPDATE) +
+        " END";
+
+    /**
+     * Record the move of note to another folder
+     */
+    private static final String NOTE_LOG_ON_MOVE_TRIGGER =
+        "CREATE TRIGGER note_log_on_move " +
+        " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.PARENT_ID + "<>old." + NoteColumns.PARENT_ID +
+        " BEGIN" +
+        logChange(Notes.CHANGE_TARGET_NOTE, "new." + NoteColumns.ID,
+                "new." + NoteColumns.PARENT_ID, "old." + NoteColumns.PARENT_ID,
+                Notes.CHANGE_MOVE) +
+        " END";
+
+    /**
+     * Record the delete of note
+     */
+    private static final String NOTE_LOG_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER note_log_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        logChange(Notes.CHANGE_TARGET_NOTE, "old." + NoteColumns.ID,
+                "old." + NoteColumns.PARENT_ID, "0", Notes.CHANGE_DELETE) +
+        " END";
+
+    /**
+     * Record the insert of data
+     */
+    private static final String DATA_LOG_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER data_log_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " BEGIN" +
+        logChange(Notes.CHANGE_TARGET_DATA, "new." + DataColumns.ID,
+                "new." + DataColumns.NOTE_ID, "0", Notes.CHANGE_INSERT) +
+        " END";
+
+    /**
+     * Record the update of data
+     */
+    private static final String DATA_LOG_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER data_log_on_update " +
+        " AFTER UPDATE ON " + TABLE.DATA +
+        " BEGIN" +
+        logChange(Notes.CHANGE_TARGET_DATA, "new." + DataColumns.ID,
+                "new." + DataColumns.NOTE_ID, "0", Notes.CHANGE_UPDATE) +
+        " END";
+
+    /**
+     * Record the delete of data
+     */
+    private static final String DATA_LOG_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER data_log_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " BEGIN" +
+        logChange(Notes.CHANGE_TARGET_DATA, "old." + DataColumns.ID,
+                "old." + DataColumns.NOTE_ID, "0", Notes.CHANGE_DELETE) +
+        " END";
+
+    /**
+     * The journal keeps at most this many changes when its consumers do not compact it,
+     * for example when gtask sync is not set up
+     */
+    static final int CHANGE_LOG_MAX_ROWS = 10000;
+
+    /**
+     * Drop the changes beyond {@link #CHANGE_LOG_MAX_ROWS} once every 1000 changes, a
+     * consumer which has fallen that far behind sees it by the oldest sequence number
+     * and rescans
+     */
+    private static final String CHANGE_LOG_TRIM_TRIGGER =
+        "CREATE TRIGGER change_log_trim " +
+        " AFTER INSERT ON " + TABLE.CHANGE_LOG +
+        " WHEN new." + ChangeColumns.SEQ + " % 1000=0" +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.CHANGE_LOG +
+        "   WHERE " + ChangeColumns.SEQ + "<=new." + ChangeColumns.SEQ + "-" +
+        CHANGE_LOG_MAX_ROWS + ";" +
+        " END";
+
+    private static String logChange(int target, String rowId, String ownerId,
+            String originOwnerId, int operation) {
+        return "  INSERT INTO " + TABLE.CHANGE_LOG + "(" + ChangeColumns.TARGET + "," +
+            ChangeColumns.ROW_ID + "," + ChangeColumns.OWNER_ID + "," +
+            ChangeColumns.ORIGIN_OWNER_ID + "," + ChangeColumns.OPERATION + ")" +
+            "   VALUES (" + target + "," + rowId + "," + ownerId + "," + originOwnerId + "," +
+            operation + ");";
+    }
+
     /**
      * Delete datas belong to note which has been deleted
      */
@@ -195,11 +541,13 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " END";
 
     /**
-     * Move notes belong to folder which has been moved to trash folder
+     * Move notes belong to folder which has been moved to trash folder, only a change of
+     * parent id can move the folder, the updates of other columns such as the preview do
+     * not fire it
      */
     private static final String FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER =
         "CREATE TRIGGER folder_move_notes_on_trash " +
-        " AFTER UPDATE ON " + TABLE.NOTE +
+        " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
         " WHEN new." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
@@ -208,12 +556,26 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " END";
 
     public NotesDatabaseHelper(Context context) {
-        super(context, DB_NAME, null, DB_VERSION);
+        this(context, DB_NAME, DEFAULT_PRAGMA_PROFILE);
+    }
+
+    /**
+     * Open the notes schema in the given file with the given PRAGMA profile, the profile
+     * is fixed for the lifetime of the helper since the journal mode has to be chosen
+     * before the first connection is opened
+     */
+    NotesDatabaseHelper(Context context, String name, PragmaProfile profile) {
+        super(context, name, null, DB_VERSION);
+        mPragmaProfile = profile;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(profile.walEnabled);
+        }
     }
 
     public void createNoteTable(SQLiteDatabase db) {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
         reCreateNoteTableTriggers(db);
+        createNoteTableIndexes(db);
         createSystemFolder(db);
         Log.d(TAG, "note table has been created");
     }
@@ -226,6 +588,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
         db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL("DROP TRIGGER IF EXISTS update_preview_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_preview_on_update");
 
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
         db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
@@ -234,6 +598,27 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
         db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+        db.execSQL(NOTE_UPDATE_PREVIEW_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_UPDATE_PREVIEW_ON_UPDATE_TRIGGER);
+    }
+
+    /**
+     * The preview of note is the leading part of its snippet without the marks of check
+     * list, folder's preview is its name
+     * @param row "new." in trigger, or empty to use the columns of the updated row
+     */
+    private static String previewOf(String row) {
+        return "CASE WHEN " + row + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+            " THEN SUBSTR(REPLACE(REPLACE(" + row + NoteColumns.SNIPPET +
+            ",'" + Notes.TextNote.TAG_CHECKED + "',''),'" + Notes.TextNote.TAG_UNCHECKED + "','')" +
+            ",1," + PREVIEW_MAX_LENGTH + ")" +
+            " ELSE " + row + NoteColumns.SNIPPET + " END";
+    }
+
+    private void createNoteTableIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_TYPE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_LOCAL_MODIFIED_INDEX_SQL);
     }
 
     private void createSystemFolder(SQLiteDatabase db) {
@@ -288,6 +673,69 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
     }
 
+    public void createNoteListView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + TABLE.NOTE_LIST_VIEW);
+        db.execSQL(CREATE_NOTE_LIST_VIEW_SQL);
+        Log.d(TAG, "note list view has been created");
+    }
+
+    public void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.NOTE_FTS);
+        db.execSQL(CREATE_NOTE_FTS_TABLE_SQL);
+        reCreateSearchIndexTriggers(db);
+        // index every row of the note table, the search selects the normal notes
+        db.execSQL("INSERT INTO " + TABLE.NOTE_FTS + "(" + TABLE.NOTE_FTS + ") VALUES('rebuild')");
+        Log.d(TAG, "search index has been created");
+    }
+
+    public void createChangeLog(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.CHANGE_LOG);
+        db.execSQL(CREATE_CHANGE_LOG_TABLE_SQL);
+        reCreateChangeLogTriggers(db);
+        Log.d(TAG, "change log has been created");
+    }
+
+    public void createSyncCheckpoint(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.SYNC_STATE);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.SYNC_NOTE_STATE);
+        db.execSQL(CREATE_SYNC_STATE_TABLE_SQL);
+        db.execSQL(CREATE_SYNC_NOTE_STATE_TABLE_SQL);
+        Log.d(TAG, "sync checkpoint tables have been created");
+    }
+
+    private void reCreateChangeLogTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS note_log_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS note_log_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS note_log_on_move");
+        db.execSQL("DROP TRIGGER IF EXISTS note_log_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS data_log_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS data_log_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS data_log_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS change_log_trim");
+
+        db.execSQL(NOTE_LOG_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_LOG_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_LOG_ON_MOVE_TRIGGER);
+        db.execSQL(NOTE_LOG_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_LOG_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_LOG_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_LOG_ON_DELETE_TRIGGER);
+        db.execSQL(CHANGE_LOG_TRIM_TRIGGER);
+    }
+
+    private void reCreateSearchIndexTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS delete_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS delete_fts_on_delete");
+
+        db.execSQL(NOTE_INSERT_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_DELETE_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_INSERT_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_DELETE_FTS_ON_DELETE_TRIGGER);
+    }
+
     static synchronized NotesDatabaseHelper getInstance(Context context) {
         if (mInstance == null) {
             mInstance = new NotesDatabaseHelper(context);
@@ -299,11 +747,61 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createSearchIndex(db);
+        createNoteListView(db);
+        createChangeLog(db);
+        createSyncCheckpoint(db);
+    }
+
+    /**
+     * Called before onCreate and onUpgrade on Jelly Bean and above, the journal mode has
+     * already been chosen by the helper at this point
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        applyPragmaProfile(db, mPragmaProfile);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                // onConfigure is not called before Jelly Bean
+                if (mPragmaProfile.walEnabled && !db.enableWriteAheadLogging()) {
+                    Log.w(TAG, "Write-ahead logging is not available for " + getDatabaseName());
+                }
+                applyPragmaProfile(db, mPragmaProfile);
+            }
+        }
+    }
+
+    /**
+     * The connection pool of the framework is only enabled in WAL mode, it keeps the primary
+     * connection for writing and opens the reader connections on demand. The pool does not
+     * call back when a reader connection is opened, so the page cache and mmap settings
+     * only affect the primary connection, i.e. the writes of the provider and the sync.
+     * The list readers benefit from WAL itself, they no longer wait for a writer
+     */
+    private void applyPragmaProfile(SQLiteDatabase db, PragmaProfile profile) {
+        db.execSQL("PRAGMA synchronous=" + profile.synchronous);
+        // negative value means the size is in KiB instead of pages
+        db.execSQL("PRAGMA cache_size=-" + profile.cacheSizeKb);
+        // mmap_size returns the new value, so the statement has to be stepped by a query
+        try {
+            DatabaseUtils.longForQuery(db, "PRAGMA mmap_size=" + profile.mmapSize, null);
+        } catch (SQLiteDoneException e) {
+            // sqlite is built without mmap support and returns no row
+            Log.w(TAG, "mmap is not available for " + getDatabaseName());
+        }
+        Log.d(TAG, "pragma profile has been applied");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         boolean reCreateTriggers = false;
+        boolean reCreateSearchIndex = false;
         boolean skipV2 = false;
 
         if (oldVersion == 1) {
@@ -323,9 +821,58 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            reCreateSearchIndex = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 10) {
+            upgradeToV11(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 11) {
+            upgradeToV12(db);
+            reCreateTriggers = true;
+            reCreateSearchIndex = true;
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
+            reCreateChangeLogTriggers(db);
+        }
+
+        if (reCreateSearchIndex) {
+            // version 5 adds the search index, version 12 rebuilds it as an external
+            // content table which no longer keeps a copy of every snippet
+            createSearchIndex(db);
         }
 
         if (oldVersion != newVersion) {
@@ -360,4 +907,44 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        // add indexes for the note list and gtask sync queries
+        createNoteTableIndexes(db);
+    }
+
+    private void upgradeToV7(SQLiteDatabase db) {
+        // add a column for preview and fill it for the existing notes in the transaction
+        // of the upgrade, the notes are not shown before the database has been opened
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.PREVIEW
+                + " TEXT NOT NULL DEFAULT ''");
+        reCreateNoteTableTriggers(db);
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.PREVIEW + "=" + previewOf(""));
+    }
+
+    private void upgradeToV8(SQLiteDatabase db) {
+        // add the view of note list which joins the call note's data
+        createNoteListView(db);
+    }
+
+    private void upgradeToV9(SQLiteDatabase db) {
+        // add the change journal, it starts empty so consumers rescan once
+        createChangeLog(db);
+    }
+
+    private void upgradeToV10(SQLiteDatabase db) {
+        // add the tables of the gtask sync checkpoint
+        createSyncCheckpoint(db);
+    }
+
+    private void upgradeToV11(SQLiteDatabase db) {
+        // add the index of locally modified notes for the incremental gtask sync
+        db.execSQL(CREATE_NOTE_LOCAL_MODIFIED_INDEX_SQL);
+    }
+
+    private void upgradeToV12(SQLiteDatabase db) {
+        // the list view no longer selects the call date which the list does not show
+        createNoteListView(db);
+        // the change journal gets its trim trigger with the other triggers
+    }
 }
@@ -18,21 +18,35 @@ package net.micode.notes.data;
 
 
 import android.app.SearchManager;
+import android.appwidget.AppWidgetManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Notes.ChangeColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.tool.LongHashSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 
 
 /**
@@ -49,6 +63,8 @@ public class NotesProvider extends ContentProvider {
 
     private NotesDatabaseHelper mHelper;
 
+    private StatementCache mStatementCache;
+
     private static final String TAG = "NotesProvider";
 
     private static final int URI_NOTE            = 1;
@@ -59,38 +75,131 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
 
+    private static final int URI_FOLDER          = 7;
+
+    private static final int URI_CHANGES         = 8;
+
+    /**
+     * A batch gives other writers a chance to get the database after this many operations
+     */
+    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
+
+    /**
+     * Every update of note increases its version in the same statement
+     */
+    private static final String INCREASE_NOTE_VERSION = NoteColumns.VERSION + "="
+            + NoteColumns.VERSION + "+1";
+
+    private static final long SLEEP_AFTER_YIELD_DELAY = 0;
+
+    /**
+     * Ids bound to one statement of the bulk methods, below the limit of sqlite variables
+     */
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
+    /**
+     * Notifications of the batch of current thread, dispatched when the batch has been
+     * committed, null if the thread is not in a batch
+     */
+    private final ThreadLocal<NotifyBatch> mNotifyBatch = new ThreadLocal<NotifyBatch>();
+
+    /**
+     * More uris than this are coalesced to the uri of their table before dispatching
+     */
+    private static final int MAX_NOTIFY_URIS = 32;
+
+    /**
+     * Uris waiting for the debounce window, guarded by itself
+     */
+    private final HashSet<Uri> mPendingNotifyUris = new HashSet<Uri>();
+
+    /**
+     * Debounce window of the thread which has set it, the notifications of other threads,
+     * such as the edits of the user during a sync, are dispatched at once
+     */
+    private final ThreadLocal<Long> mNotifyDebounce = new ThreadLocal<Long>();
+
+    private static class NotifyBatch {
+        final HashSet<Uri> uris = new HashSet<Uri>();
+
+        /**
+         * Notes whose content has changed, their folders are looked up together when
+         * the batch ends
+         */
+        final LongHashSet changedNoteIds = new LongHashSet();
+    }
+
+    private Handler mHandler;
+
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatcher.addURI(Notes.AUTHORITY, "note", URI_NOTE);
         mMatcher.addURI(Notes.AUTHORITY, "note/#", URI_NOTE_ITEM);
         mMatcher.addURI(Notes.AUTHORITY, "data", URI_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "data/#", URI_DATA_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "folder/#", URI_FOLDER);
+        mMatcher.addURI(Notes.AUTHORITY, "changes", URI_CHANGES);
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
     }
 
+    /**
+     * Selection of {@link Notes#CONTENT_FOLDER_URI}, the argument is the id of the uri
+     */
+    static final String FOLDER_SELECTION = NoteColumns.PARENT_ID + "=?";
+
     /**
      * x'0A' represents the '\n' character in sqlite. For title and content in the search result,
      * we will trim '\n' and white space in order to show more information.
      */
     private static final String NOTES_SEARCH_PROJECTION = NoteColumns.ID + ","
         + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
-        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+        + "TRIM(REPLACE(" + NoteColumns.PREVIEW + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
+        + "TRIM(REPLACE(" + NoteColumns.PREVIEW + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
         + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
         + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 
-    private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+    /**
+     * Default number of rows returned by the search, SearchManager could pass a smaller one
+     * with {@link SearchManager#SUGGEST_PARAMETER_LIMIT}
+     */
+    private static final int SEARCH_RESULT_LIMIT = 50;
+
+    /**
+     * offsets() returns four integers for every matched term, counting the separators gives
+     * the number of hits of the note, which is used to rank the result
+     */
+    private static final String NOTES_SEARCH_HITS = "(LENGTH(offsets(" + TABLE.NOTE_FTS + "))"
+        + " - LENGTH(REPLACE(offsets(" + TABLE.NOTE_FTS + "), ' ', '')) + 1) / 4";
+
+    private static final String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+        + " FROM " + TABLE.NOTE_FTS + " JOIN " + TABLE.NOTE
+        + " ON " + TABLE.NOTE + "." + NoteColumns.ID + "=" + TABLE.NOTE_FTS + ".docid"
+        + " WHERE " + TABLE.NOTE_FTS + " MATCH ?"
+        + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " ORDER BY " + NOTES_SEARCH_HITS + " DESC,"
+        + TABLE.NOTE + "." + NoteColumns.MODIFIED_DATE + " DESC"
+        + " LIMIT ";
+
+    /**
+     * The tokenizer of the search index does not split words without white space, such as
+     * chinese, so these patterns are still matched as substring of the snippet
+     */
+    private static final String NOTES_SNIPPET_LIKE_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
         + " FROM " + TABLE.NOTE
         + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
         + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
-        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " ORDER BY " + NoteColumns.MODIFIED_DATE + " DESC"
+        + " LIMIT ";
 
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());
+        mHandler = new Handler(Looper.getMainLooper());
         return true;
     }
 
@@ -107,8 +216,15 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArgs(id, selectionArgs), null, null,
+                        sortOrder);
+                break;
+            case URI_FOLDER:
+                id = uri.getPathSegments().get(1);
+                c = db.query(TABLE.NOTE_LIST_VIEW, projection, FOLDER_SELECTION
+                        + parseSelection(selection), prependArgs(id, selectionArgs), null, null,
+                        sortOrder);
                 break;
             case URI_DATA:
                 c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
@@ -116,8 +232,17 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=?"
+                        + parseSelection(selection), prependArgs(id, selectionArgs), null, null,
+                        sortOrder);
+                break;
+            case URI_CHANGES:
+                // the journal is only read forward from the last processed sequence number
+                String since = uri.getQueryParameter(Notes.PARAM_SINCE);
+                c = db.query(TABLE.CHANGE_LOG, projection, ChangeColumns.SEQ + ">?"
+                        + parseSelection(selection),
+                        prependArgs(TextUtils.isEmpty(since) ? "0" : since, selectionArgs),
+                        null, null, ChangeColumns.SEQ, uri.getQueryParameter(Notes.PARAM_LIMIT));
                 break;
             case URI_SEARCH:
             case URI_SEARCH_SUGGEST:
@@ -139,10 +264,17 @@ public class NotesProvider extends ContentProvider {
                     return null;
                 }
 
+                int limit = getSearchLimit(uri);
                 try {
-                    searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    String matchString = buildMatchString(searchString);
+                    if (matchString != null) {
+                        c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY + limit,
+                                new String[] { matchString });
+                    } else {
+                        searchString = String.format("%%%s%%", searchString);
+                        c = db.rawQuery(NOTES_SNIPPET_LIKE_QUERY + limit,
+                                new String[] { searchString });
+                    }
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
                 }
@@ -177,14 +309,18 @@ public class NotesProvider extends ContentProvider {
         }
         // Notify the note uri
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            if (dataId > 0) {
+                notifyNoteChanged(db, noteId);
+            } else {
+                Long parentId = values.getAsLong(NoteColumns.PARENT_ID);
+                notifyNoteMoved(noteId, null,
+                        parentId != null ? parentId : (long) Notes.ID_ROOT_FOLDER);
+            }
         }
 
         // Notify the data uri
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -194,12 +330,14 @@ public class NotesProvider extends ContentProvider {
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         int count = 0;
         String id = null;
-        SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean deleteData = false;
+        StatementCache statements = getStatementCache();
+        SQLiteDatabase db = statements.getDatabase();
+        long noteId = 0;
+        Long parentId = null;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
-                count = db.delete(TABLE.NOTE, selection, selectionArgs);
+                count = statements.delete(TABLE.NOTE, selection, selectionArgs);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
@@ -207,31 +345,44 @@ public class NotesProvider extends ContentProvider {
                  * ID that smaller than 0 is system folder which is not allowed to
                  * trash
                  */
-                long noteId = Long.valueOf(id);
+                noteId = Long.valueOf(id);
                 if (noteId <= 0) {
                     break;
                 }
-                count = db.delete(TABLE.NOTE,
-                        NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                parentId = queryParentId(db, noteId);
+                count = statements.delete(TABLE.NOTE,
+                        NoteColumns.ID + "=?" + parseSelection(selection),
+                        prependArgs(id, selectionArgs));
                 break;
             case URI_DATA:
-                count = db.delete(TABLE.DATA, selection, selectionArgs);
-                deleteData = true;
+                count = statements.delete(TABLE.DATA, selection, selectionArgs);
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.delete(TABLE.DATA,
-                        DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
-                deleteData = true;
+                Long dataNoteId = queryNoteIdOfData(db, Long.valueOf(id));
+                count = statements.delete(TABLE.DATA,
+                        DataColumns.ID + "=?" + parseSelection(selection),
+                        prependArgs(id, selectionArgs));
+                if (dataNoteId != null) {
+                    noteId = dataNoteId;
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (count > 0) {
-            if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+            notifyChange(uri);
+            switch (mMatcher.match(uri)) {
+                case URI_NOTE_ITEM:
+                    notifyNoteMoved(noteId, parentId, null);
+                    break;
+                case URI_DATA_ITEM:
+                    notifyNoteChanged(db, noteId);
+                    break;
+                default:
+                    notifyAllNotesChanged();
+                    break;
             }
-            getContext().getContentResolver().notifyChange(uri, null);
         }
         return count;
     }
@@ -240,69 +391,638 @@ public class NotesProvider extends ContentProvider {
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         int count = 0;
         String id = null;
-        SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean updateData = false;
+        StatementCache statements = getStatementCache();
+        SQLiteDatabase db = statements.getDatabase();
+        long noteId = 0;
+        Long oldParentId = null;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                count = statements.update(TABLE.NOTE, INCREASE_NOTE_VERSION, values, selection,
+                        selectionArgs);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                noteId = Long.valueOf(id);
+                if (values.containsKey(NoteColumns.PARENT_ID)) {
+                    oldParentId = queryParentId(db, noteId);
+                }
+                count = statements.update(TABLE.NOTE, INCREASE_NOTE_VERSION, values,
+                        NoteColumns.ID + "=?" + parseSelection(selection),
+                        prependArgs(id, selectionArgs));
                 break;
             case URI_DATA:
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
-                updateData = true;
+                count = statements.update(TABLE.DATA, null, values, selection, selectionArgs);
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
-                updateData = true;
+                count = statements.update(TABLE.DATA, null, values,
+                        DataColumns.ID + "=?" + parseSelection(selection),
+                        prependArgs(id, selectionArgs));
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         if (count > 0) {
-            if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+            notifyChange(uri);
+            switch (mMatcher.match(uri)) {
+                case URI_NOTE_ITEM:
+                    if (values.containsKey(NoteColumns.PARENT_ID)) {
+                        notifyNoteMoved(noteId, oldParentId,
+                                values.getAsLong(NoteColumns.PARENT_ID));
+                    } else {
+                        notifyNoteChanged(db, noteId);
+                    }
+                    break;
+                case URI_DATA_ITEM:
+                    Long dataNoteId = queryNoteIdOfData(db, Long.valueOf(id));
+                    if (dataNoteId != null) {
+                        notifyNoteChanged(db, dataNoteId);
+                    }
+                    break;
+                default:
+                    notifyAllNotesChanged();
+                    break;
             }
-            getContext().getContentResolver().notifyChange(uri, null);
         }
         return count;
     }
 
-    private String parseSelection(String selection) {
-        return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+    /**
+     * Set the delay to collect the notifications of the calling thread before dispatching
+     * them, 0 means the observers are notified at once. Get the range of the change
+     * journal, or delete the changes which have been processed. Read, save or clear the
+     * checkpoint of gtask sync
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_SET_NOTIFY_DEBOUNCE.equals(method)) {
+            setNotifyDebounce(extras != null ? extras.getLong(Notes.EXTRA_NOTIFY_DEBOUNCE) : 0);
+            return null;
+        } else if (Notes.METHOD_GET_CHANGE_SEQ.equals(method)) {
+            return getChangeSeq(mHelper.getReadableDatabase());
+        } else if (Notes.METHOD_COMPACT_CHANGES.equals(method)) {
+            long seq = extras != null ? extras.getLong(Notes.EXTRA_CHANGE_SEQ) : 0;
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            int count = db.delete(TABLE.CHANGE_LOG, ChangeColumns.SEQ + "<=?",
+                    new String[] { String.valueOf(seq) });
+            Log.d(TAG, count + " changes have been compacted");
+            return getChangeSeq(db);
+        } else if (Notes.METHOD_DELETE_NOTES.equals(method)) {
+            return bulkUpdateNotes(extras != null ? extras.getLongArray(Notes.EXTRA_NOTE_IDS)
+                    : null, null);
+        } else if (Notes.METHOD_MOVE_NOTES.equals(method)) {
+            if (extras == null || !extras.containsKey(Notes.EXTRA_FOLDER_ID)) {
+                throw new IllegalArgumentException("Missing destination folder");
+            }
+            return bulkUpdateNotes(extras.getLongArray(Notes.EXTRA_NOTE_IDS),
+                    extras.getLong(Notes.EXTRA_FOLDER_ID));
+        } else if (Notes.METHOD_GET_SYNC_CHECKPOINT.equals(method)) {
+            return getSyncCheckpoint(mHelper.getReadableDatabase());
+        } else if (Notes.METHOD_SAVE_SYNC_CHECKPOINT.equals(method)) {
+            if (extras == null || extras.getString(Notes.EXTRA_SYNC_ACCOUNT) == null) {
+                throw new IllegalArgumentException("Missing sync account");
+            }
+            saveSyncCheckpoint(mHelper.getWritableDatabase(), extras);
+            return null;
+        } else if (Notes.METHOD_CLEAR_SYNC_CHECKPOINT.equals(method)) {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.delete(TABLE.SYNC_STATE, null, null);
+                db.delete(TABLE.SYNC_NOTE_STATE, null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return null;
+        }
+        return super.call(method, arg, extras);
     }
 
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
-        StringBuilder sql = new StringBuilder(120);
-        sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
-        sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
+    private Bundle getSyncCheckpoint(SQLiteDatabase db) {
+        Bundle result = new Bundle();
+        Cursor c = db.query(TABLE.SYNC_STATE, new String[] {
+                NotesDatabaseHelper.SYNC_STATE_NAME, NotesDatabaseHelper.SYNC_STATE_VALUE
+        }, null, null, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    if (Notes.EXTRA_SYNC_SAVED_DATE.equals(c.getString(0))) {
+                        result.putLong(Notes.EXTRA_SYNC_SAVED_DATE, c.getLong(1));
+                    } else {
+                        result.putString(c.getString(0), c.getString(1));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (!result.containsKey(Notes.EXTRA_SYNC_ACCOUNT)) {
+            return new Bundle();
+        }
 
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
+        c = db.query(TABLE.SYNC_NOTE_STATE, new String[] {
+                NotesDatabaseHelper.SYNC_NOTE_ID, NotesDatabaseHelper.SYNC_NOTE_STATE
+        }, null, null, null, null, null);
+        long[] ids = new long[0];
+        int[] states = new int[0];
+        if (c != null) {
+            try {
+                ids = new long[c.getCount()];
+                states = new int[ids.length];
+                for (int i = 0; c.moveToNext() && i < ids.length; i++) {
+                    ids[i] = c.getLong(0);
+                    states[i] = c.getInt(1);
+                }
+            } finally {
+                c.close();
+            }
         }
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
+        result.putLongArray(Notes.EXTRA_NOTE_IDS, ids);
+        result.putIntArray(Notes.EXTRA_NOTE_STATES, states);
+        return result;
+    }
+
+    private void saveSyncCheckpoint(SQLiteDatabase db, Bundle extras) {
+        long[] ids = extras.getLongArray(Notes.EXTRA_NOTE_IDS);
+        int[] states = extras.getIntArray(Notes.EXTRA_NOTE_STATES);
+        if (ids != null && (states == null || states.length != ids.length)) {
+            throw new IllegalArgumentException("Note states don't match the note ids");
         }
-        if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
+
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(NotesDatabaseHelper.SYNC_STATE_NAME, Notes.EXTRA_SYNC_ACCOUNT);
+            values.put(NotesDatabaseHelper.SYNC_STATE_VALUE,
+                    extras.getString(Notes.EXTRA_SYNC_ACCOUNT));
+            db.replace(TABLE.SYNC_STATE, null, values);
+            values.put(NotesDatabaseHelper.SYNC_STATE_NAME, Notes.EXTRA_SYNC_SAVED_DATE);
+            values.put(NotesDatabaseHelper.SYNC_STATE_VALUE, System.currentTimeMillis());
+            db.replace(TABLE.SYNC_STATE, null, values);
+
+            if (ids != null && ids.length > 0) {
+                SQLiteStatement replace = db.compileStatement("INSERT OR REPLACE INTO "
+                        + TABLE.SYNC_NOTE_STATE + "(" + NotesDatabaseHelper.SYNC_NOTE_ID + ","
+                        + NotesDatabaseHelper.SYNC_NOTE_STATE + ") VALUES(?,?)");
+                SQLiteStatement delete = db.compileStatement("DELETE FROM "
+                        + TABLE.SYNC_NOTE_STATE + " WHERE " + NotesDatabaseHelper.SYNC_NOTE_ID
+                        + "=?");
+                try {
+                    for (int i = 0; i < ids.length; i++) {
+                        if (states[i] == Notes.SYNC_NOTE_NONE) {
+                            delete.bindLong(1, ids[i]);
+                            delete.executeUpdateDelete();
+                        } else {
+                            replace.bindLong(1, ids[i]);
+                            replace.bindLong(2, states[i]);
+                            replace.executeInsert();
+                        }
+                    }
+                } finally {
+                    replace.close();
+                    delete.close();
+                }
             }
-            sql.append(selectString);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
+    }
+
+    /**
+     * Delete the notes, or move them to the folder if it is not null, with one statement
+     * for every {@link #MAX_IDS_PER_STATEMENT} ids in one transaction. The widgets of the
+     * notes and of the notes in the folders are collected before the change
+     */
+    private Bundle bulkUpdateNotes(long[] ids, Long folderId) {
+        ArrayList<Integer> widgetIds = new ArrayList<Integer>();
+        ArrayList<Integer> widgetTypes = new ArrayList<Integer>();
+        int count = 0;
+        if (ids != null && ids.length > 0) {
+            StatementCache statements = getStatementCache();
+            SQLiteDatabase db = statements.getDatabase();
+            ContentValues values = null;
+            if (folderId != null) {
+                values = new ContentValues();
+                values.put(NoteColumns.PARENT_ID, folderId);
+                values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            }
+            beginBatch(db);
+            try {
+                for (int start = 0; start < ids.length; start += MAX_IDS_PER_STATEMENT) {
+                    int end = Math.min(start + MAX_IDS_PER_STATEMENT, ids.length);
+                    String[] args = new String[end - start];
+                    StringBuilder in = new StringBuilder(args.length * 2 + 2);
+                    in.append('(');
+                    for (int i = start; i < end; i++) {
+                        args[i - start] = String.valueOf(ids[i]);
+                        in.append(i > start ? ",?" : "?");
+                    }
+                    in.append(')');
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+                    queryWidgets(db, in.toString(), args, widgetIds, widgetTypes);
+                    // ID that smaller than 0 is system folder which is not allowed to change
+                    String where = NoteColumns.ID + " IN " + in + " AND " + NoteColumns.ID + ">0";
+                    if (folderId == null) {
+                        count += statements.delete(TABLE.NOTE, where, args);
+                    } else {
+                        count += statements.update(TABLE.NOTE, INCREASE_NOTE_VERSION + ","
+                                + NoteColumns.ORIGIN_PARENT_ID + "=" + NoteColumns.PARENT_ID,
+                                values, where, args);
+                    }
+                    db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+                }
+                db.setTransactionSuccessful();
+                if (count > 0) {
+                    notifyAllNotesChanged();
+                }
+            } finally {
+                endBatch(db);
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(Notes.EXTRA_COUNT, count);
+        int[] resultIds = new int[widgetIds.size()];
+        int[] resultTypes = new int[widgetTypes.size()];
+        for (int i = 0; i < resultIds.length; i++) {
+            resultIds[i] = widgetIds.get(i);
+            resultTypes[i] = widgetTypes.get(i);
+        }
+        result.putIntArray(Notes.EXTRA_WIDGET_IDS, resultIds);
+        result.putIntArray(Notes.EXTRA_WIDGET_TYPES, resultTypes);
+        return result;
+    }
+
+    private void queryWidgets(SQLiteDatabase db, String in, String[] args,
+            ArrayList<Integer> widgetIds, ArrayList<Integer> widgetTypes) {
+        String[] selectionArgs = new String[args.length * 2];
+        System.arraycopy(args, 0, selectionArgs, 0, args.length);
+        System.arraycopy(args, 0, selectionArgs, args.length, args.length);
+        Cursor c = db.query(TABLE.NOTE,
+                new String[] { NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE },
+                "(" + NoteColumns.ID + " IN " + in + " OR " + NoteColumns.PARENT_ID + " IN " + in
+                        + ") AND " + NoteColumns.WIDGET_ID + "<>"
+                        + AppWidgetManager.INVALID_APPWIDGET_ID + " AND "
+                        + NoteColumns.WIDGET_TYPE + "<>" + Notes.TYPE_WIDGET_INVALIDE,
+                selectionArgs, null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                widgetIds.add(c.getInt(0));
+                widgetTypes.add(c.getInt(1));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * The latest sequence number is read from sqlite_sequence, so it is still known after
+     * all the changes have been compacted
+     */
+    private Bundle getChangeSeq(SQLiteDatabase db) {
+        Bundle result = new Bundle();
+        Long latest = queryLong(db, "SELECT seq FROM sqlite_sequence WHERE name=?",
+                TABLE.CHANGE_LOG);
+        Long oldest = queryLong(db, "SELECT MIN(" + ChangeColumns.SEQ + ") FROM "
+                + TABLE.CHANGE_LOG, null);
+        long latestSeq = latest != null ? latest : 0;
+        result.putLong(Notes.EXTRA_CHANGE_SEQ, latestSeq);
+        result.putLong(Notes.EXTRA_OLDEST_CHANGE_SEQ,
+                oldest != null ? oldest : latestSeq + 1);
+        return result;
+    }
+
+    /**
+     * Apply all the operations in one transaction, the observers are notified once
+     * after the transaction has been committed
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        beginBatch(db);
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            int opsSinceYield = 0;
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && (operation.isYieldAllowed()
+                        || opsSinceYield >= MAX_OPERATIONS_PER_YIELD_POINT)) {
+                    db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+                    opsSinceYield = 0;
+                }
+                results[i] = operation.apply(this, results, i);
+                opsSinceYield++;
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            endBatch(db);
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int match = mMatcher.match(uri);
+        if (match != URI_NOTE && match != URI_DATA) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        beginBatch(db);
+        int count = 0;
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0 && i % MAX_OPERATIONS_PER_YIELD_POINT == 0) {
+                    db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+                }
+                if (ContentUris.parseId(insert(uri, values[i])) > 0) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            endBatch(db);
+        }
+        return count;
+    }
+
+    private void beginBatch(SQLiteDatabase db) {
+        db.beginTransaction();
+        mNotifyBatch.set(new NotifyBatch());
+    }
+
+    /**
+     * Operations before a yield point have been committed even if the batch fails later,
+     * so the collected uris are always notified
+     */
+    private void endBatch(SQLiteDatabase db) {
+        NotifyBatch batch = mNotifyBatch.get();
+        mNotifyBatch.set(null);
+        db.endTransaction();
+        if (!batch.changedNoteIds.isEmpty()) {
+            for (long parentId : queryParentIds(db, batch.changedNoteIds.toArray()).toArray()) {
+                batch.uris.add(ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, parentId));
+            }
+        }
+        for (Uri uri : coalesceUris(batch.uris)) {
+            dispatchChange(uri);
+        }
+    }
+
+    /**
+     * The list of the folder shows the snippet of the note, so the folder is notified
+     * along with the note. In a batch the folders of all changed notes are looked up by
+     * one query when the batch ends
+     */
+    private void notifyNoteChanged(SQLiteDatabase db, long noteId) {
+        notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+        NotifyBatch batch = mNotifyBatch.get();
+        if (batch != null) {
+            batch.changedNoteIds.add(noteId);
+            return;
+        }
+        Long parentId = queryParentId(db, noteId);
+        if (parentId != null) {
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, parentId));
+        }
+    }
+
+    /**
+     * Notify a note which has been inserted, moved or deleted. The notes count of the
+     * source and destination folders are changed, which are shown in the root folder
+     */
+    private void notifyNoteMoved(long noteId, Long fromParentId, Long toParentId) {
+        notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+        // the notes of a folder are moved or deleted together with it by triggers
+        notifyChange(ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, noteId));
+        if (fromParentId != null) {
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, fromParentId));
+        }
+        if (toParentId != null) {
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, toParentId));
+        }
+        notifyChange(ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, Notes.ID_ROOT_FOLDER));
+    }
+
+    /**
+     * The changed notes are unknown when the operation is done by selection
+     */
+    private void notifyAllNotesChanged() {
+        notifyChange(Notes.CONTENT_NOTE_URI);
+        notifyChange(Notes.CONTENT_FOLDER_URI);
+    }
+
+    /**
+     * Notify the observers of uri, in a batch the notifications are collected and
+     * dispatched once after the transaction has been committed
+     */
+    private void notifyChange(Uri uri) {
+        NotifyBatch batch = mNotifyBatch.get();
+        if (batch != null) {
+            batch.uris.add(uri);
+        } else {
+            dispatchChange(uri);
+        }
+    }
+
+    private void dispatchChange(Uri uri) {
+        Long debounce = mNotifyDebounce.get();
+        if (debounce != null) {
+            synchronized (mPendingNotifyUris) {
+                if (mPendingNotifyUris.isEmpty()) {
+                    mHandler.postDelayed(mFlushPendingNotify, debounce);
+                }
+                mPendingNotifyUris.add(uri);
+            }
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    private final Runnable mFlushPendingNotify = new Runnable() {
+        public void run() {
+            flushPendingNotify();
+        }
+    };
+
+    private void flushPendingNotify() {
+        HashSet<Uri> uris;
+        synchronized (mPendingNotifyUris) {
+            mHandler.removeCallbacks(mFlushPendingNotify);
+            uris = new HashSet<Uri>(mPendingNotifyUris);
+            mPendingNotifyUris.clear();
+        }
+        for (Uri uri : coalesceUris(uris)) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private void setNotifyDebounce(long debounce) {
+        if (debounce > 0) {
+            mNotifyDebounce.set(debounce);
+        } else {
+            mNotifyDebounce.remove();
+            flushPendingNotify();
+        }
+    }
+
+    /**
+     * Too many uris are replaced by the uri of their table, notifying a uri also
+     * notifies the observers of its descendants
+     */
+    private Collection<Uri> coalesceUris(HashSet<Uri> uris) {
+        if (uris.size() <= MAX_NOTIFY_URIS) {
+            return uris;
+        }
+
+        HashSet<Uri> result = new HashSet<Uri>();
+        for (Uri uri : uris) {
+            switch (mMatcher.match(uri)) {
+                case URI_NOTE_ITEM:
+                    result.add(Notes.CONTENT_NOTE_URI);
+                    break;
+                case URI_DATA_ITEM:
+                    result.add(Notes.CONTENT_DATA_URI);
+                    break;
+                case URI_FOLDER:
+                    result.add(Notes.CONTENT_FOLDER_URI);
+                    break;
+                default:
+                    result.add(uri);
+                    break;
+            }
+        }
+        return result;
+    }
+
+    private Long queryParentId(SQLiteDatabase db, long noteId) {
+        return queryLong(db, "SELECT " + NoteColumns.PARENT_ID + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.ID + "=?", String.valueOf(noteId));
+    }
+
+    /**
+     * The distinct parent ids of the notes, with one statement for every
+     * {@link #MAX_IDS_PER_STATEMENT} ids
+     */
+    private LongHashSet queryParentIds(SQLiteDatabase db, long[] noteIds) {
+        LongHashSet parentIds = new LongHashSet();
+        for (int start = 0; start < noteIds.length; start += MAX_IDS_PER_STATEMENT) {
+            int end = Math.min(start + MAX_IDS_PER_STATEMENT, noteIds.length);
+            String[] args = new String[end - start];
+            StringBuilder in = new StringBuilder(args.length * 2 + 2);
+            in.append('(');
+            for (int i = start; i < end; i++) {
+                args[i - start] = String.valueOf(noteIds[i]);
+                in.append(i > start ? ",?" : "?");
+            }
+            in.append(')');
+            Cursor c = db.rawQuery("SELECT DISTINCT " + NoteColumns.PARENT_ID + " FROM "
+                    + TABLE.NOTE + " WHERE " + NoteColumns.ID + " IN " + in, args);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    parentIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return parentIds;
+    }
+
+    private Long queryNoteIdOfData(SQLiteDatabase db, long dataId) {
+        return queryLong(db, "SELECT " + DataColumns.NOTE_ID + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.ID + "=?", String.valueOf(dataId));
+    }
+
+    private Long queryLong(SQLiteDatabase db, String sql, String arg) {
+        Cursor c = db.rawQuery(sql, arg != null ? new String[] { arg } : null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private int getSearchLimit(Uri uri) {
+        String limit = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        if (!TextUtils.isEmpty(limit)) {
+            try {
+                int value = Integer.parseInt(limit);
+                if (value > 0 && value < SEARCH_RESULT_LIMIT) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Wrong search limit:" + limit);
+            }
+        }
+        return SEARCH_RESULT_LIMIT;
+    }
+
+    /**
+     * Turn the user input into a prefix query of the search index, every word should
+     * appear in the note. Return null if the input could not be handled by the index
+     */
+    private String buildMatchString(String searchString) {
+        StringBuilder match = new StringBuilder();
+        for (String word : searchString.trim().split("\\s+")) {
+            word = word.replace("\"", "");
+            if (word.length() == 0) {
+                continue;
+            }
+            for (int i = 0; i < word.length(); i++) {
+                if (word.charAt(i) > 0x7f) {
+                    return null;
+                }
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(word).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    static String parseSelection(String selection) {
+        return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+    }
+
+    private String[] prependArgs(String id, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return new String[] { id };
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = id;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }
+
+    /**
+     * The statements are compiled on the connection of the database, a new cache is
+     * created if the helper has reopened the database
+     */
+    private synchronized StatementCache getStatementCache() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (mStatementCache == null || mStatementCache.getDatabase() != db) {
+            if (mStatementCache != null) {
+                mStatementCache.close();
+            }
+            mStatementCache = new StatementCache(db);
+        }
+        return mStatementCache;
     }
 
     @Override
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Cache of compiled statements of one database connection, the statements are keyed by
+ * their sql text, so the sql should only contain '?' placeholders instead of values.
+ * A statement is taken out of the cache while it is executing, the lock of the cache is
+ * never held when waiting for the connection of the database. Inserts are not cached,
+ * SQLiteDatabase#insert is faster for them
+ */
+class StatementCache {
+    static final int MAX_CACHED_STATEMENTS = 32;
+
+    private final SQLiteDatabase mDb;
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    private boolean mClosed;
+
+    public StatementCache(SQLiteDatabase db) {
+        mDb = db;
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(MAX_CACHED_STATEMENTS, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > MAX_CACHED_STATEMENTS) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public SQLiteDatabase getDatabase() {
+        return mDb;
+    }
+
+    /**
+     * Update the rows matching where with values, the extra assignments are put before
+     * the values so a column of values overrides them
+     * @return the number of rows affected
+     */
+    public int update(String table, String extraAssignments, ContentValues values,
+            String where, String[] whereArgs) {
+        StringBuilder sql = new StringBuilder(152);
+        ArrayList<Object> args = new ArrayList<Object>(values.size());
+        sql.append("UPDATE ").append(table).append(" SET ");
+        if (extraAssignments != null) {
+            sql.append(extraAssignments);
+        }
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            if (args.size() > 0 || extraAssignments != null) {
+                sql.append(',');
+            }
+            sql.append(entry.getKey()).append("=?");
+            args.add(entry.getValue());
+        }
+        if (where != null && where.length() > 0) {
+            sql.append(" WHERE ").append(where);
+        }
+        SQLiteStatement statement = null;
+        try {
+            statement = acquire(sql.toString(), args, whereArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(sql.toString(), statement);
+        }
+    }
+
+    /**
+     * Delete the rows matching where
+     * @return the number of rows affected
+     */
+    public int delete(String table, String where, String[] whereArgs) {
+        String sql = "DELETE FROM " + table;
+        if (where != null && where.length() > 0) {
+            sql += " WHERE " + where;
+        }
+        SQLiteStatement statement = null;
+        try {
+            statement = acquire(sql, null, whereArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(sql, statement);
+        }
+    }
+
+    /**
+     * @return the number of idle statements kept by the cache
+     */
+    int size() {
+        synchronized (mStatements) {
+            return mStatements.size();
+        }
+    }
+
+    /**
+     * @return whether an idle statement of sql is kept by the cache
+     */
+    boolean contains(String sql) {
+        synchronized (mStatements) {
+            return mStatements.containsKey(sql);
+        }
+    }
+
+    public void close() {
+        synchronized (mStatements) {
+            for (SQLiteStatement statement : mStatements.values()) {
+                statement.close();
+            }
+            mStatements.clear();
+            mClosed = true;
+        }
+    }
+
+    /**
+     * Take the statement of sql out of the cache, or compile a new one if it is absent
+     * or being used by another thread, then bind the arguments to it. The statement is
+     * closed if the arguments could not be bound, since the caller never gets it back
+     */
+    private SQLiteStatement acquire(String sql, ArrayList<Object> args, String[] stringArgs) {
+        SQLiteStatement statement;
+        synchronized (mStatements) {
+            statement = mStatements.remove(sql);
+        }
+        if (statement == null) {
+            statement = mDb.compileStatement(sql);
+        }
+
+        try {
+            int index = 1;
+            if (args != null) {
+                for (Object arg : args) {
+                    DatabaseUtils.bindObjectToProgram(statement, index++, arg);
+                }
+            }
+            if (stringArgs != null) {
+                for (String arg : stringArgs) {
+                    if (arg == null) {
+                        statement.bindNull(index++);
+                    } else {
+                        statement.bindString(index++, arg);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            statement.close();
+            throw e;
+        }
+        return statement;
+    }
+
+    private void release(String sql, SQLiteStatement statement) {
+        if (statement == null) {
+            return;
+        }
+        statement.clearBindings();
+        synchronized (mStatements) {
+            if (mClosed) {
+                statement.close();
+                return;
+            }
+            SQLiteStatement old = mStatements.put(sql, statement);
+            if (old != null) {
+                old.close();
+            }
+        }
+    }
+}
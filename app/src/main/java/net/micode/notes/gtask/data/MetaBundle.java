@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//标注该文件遵循 Apache 2.0 开源许可
+package net.micode.notes.gtask.data;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 元数据包，把多个便签的元数据放在元数据列表的一个任务中，便签内容的格式为
+ * {"meta_bundle":{gid:元数据, ...}}，每个元数据与单独的MetaData中的内容相同。
+ * 服务器对任务内容的长度有限制，一个包中元数据的总长度不超过MAX_LENGTH，单个元数据放不进
+ * 空包的大便签仍使用单独的MetaData
+ * <p>
+ * 这个格式是单向的：之前的版本不认识元数据包，只能按任务名恢复便签的文字，丢失背景色、
+ * 提醒等其他内容，并且在修改便签时重新写入单独的元数据，下一次完整同步又会把它迁移回包中。
+ * 同一账号的所有设备都升级之后才不会来回迁移，也不支持降级到之前的版本
+ */
+public class MetaBundle extends Task {
+
+    private final static String TAG = MetaBundle.class.getSimpleName();
+
+    /**
+     * 包的最大长度，服务器对任务内容的长度有限制，留出余量
+     */
+    public static final int MAX_LENGTH = 8000;
+
+    /**
+     * {"meta_bundle":{}}的长度
+     */
+    private static final int EMPTY_LENGTH = GTaskStringUtils.META_HEAD_BUNDLE.length() + 7;
+
+    /**
+     * 便签的gid到其元数据的映射，按加入的顺序保存
+     */
+    private final LinkedHashMap<String, String> mMetas;
+
+    /**
+     * 按当前内容写出的便签内容的长度
+     */
+    private int mLength;
+
+    /**
+     * 内容在读取或上次写出之后是否被修改过
+     */
+    private boolean mDirty;
+
+    public MetaBundle() {
+        super();
+        mMetas = new LinkedHashMap<String, String>();
+        mLength = EMPTY_LENGTH;
+        mDirty = false;
+        setName(GTaskStringUtils.META_BUNDLE_NAME);
+    }
+
+    /**
+     * 获取便签的元数据
+     * @param gid 便签的gid
+     * @return 元数据的json字符串，不在包中时返回null
+     */
+    public String getMeta(String gid) {
+        return mMetas.get(gid);
+    }
+
+    /**
+     * 放入或替换便签的元数据，替换后超过最大长度时不修改
+     * @param gid 便签的gid
+     * @param meta 元数据的json字符串
+     * @return 是否放入
+     */
+    public boolean putMeta(String gid, String meta) {
+        String old = mMetas.get(gid);
+        if (meta.equals(old)) {
+            return true;
+        }
+        int length = mLength + meta.length();
+        if (old != null) {
+            length -= old.length();
+        } else {
+            length += entryLength(gid, "");
+        }
+        if (length > MAX_LENGTH) {
+            return false;
+        }
+        mMetas.put(gid, meta);
+        mLength = length;
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * 移除便签的元数据
+     * @param gid 便签的gid
+     * @return 包中是否有这个便签
+     */
+    public boolean removeMeta(String gid) {
+        String old = mMetas.remove(gid);
+        if (old == null) {
+            return false;
+        }
+        mLength -= entryLength(gid, old);
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * 包中还能否放入一个元数据
+     * @param gid 便签的gid
+     * @param meta 元数据的json字符串
+     * @return boolean
+     */
+    public boolean canHold(String gid, String meta) {
+        return mLength + entryLength(gid, meta) <= MAX_LENGTH;
+    }
+
+    /**
+     * 获取包中所有便签的gid
+     * @return ArrayList
+     */
+    public ArrayList<String> getRelatedGids() {
+        return new ArrayList<String>(mMetas.keySet());
+    }
+
+    public boolean isEmpty() {
+        return mMetas.isEmpty();
+    }
+
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * 把元数据写入便签内容，在发送更新或创建动作之前调用
+     */
+    public void pack() {
+        StringBuilder sb = new StringBuilder(mLength);
+        sb.append("{").append(JSONObject.quote(GTaskStringUtils.META_HEAD_BUNDLE)).append(":{");
+        boolean first = true;
+        for (Map.Entry<String, String> entry : mMetas.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(JSONObject.quote(entry.getKey())).append(':').append(entry.getValue());
+        }
+        sb.append("}}");
+        setNotes(sb.toString());
+        mDirty = false;
+    }
+
+    @Override
+    public boolean isWorthSaving() {
+        return getNotes() != null;
+    }
+
+    /**
+     * 使用远端记录设置包的内容
+     * @param node RemoteNode
+     */
+    @Override
+    public void setContentByRemoteNode(RemoteNode node) {
+        super.setContentByRemoteNode(node);
+        unpack();
+    }
+
+    @Override
+    public void setContentByRemoteJSON(JSONObject js) {
+        super.setContentByRemoteJSON(js);
+        unpack();
+    }
+
+    /**
+     * 从便签内容中解析出每个便签的元数据，gid与任务的gid共用同一个字符串对象
+     */
+    private void unpack() {
+        mMetas.clear();
+        mLength = EMPTY_LENGTH;
+        mDirty = false;
+        if (getNotes() == null) {
+            return;
+        }
+        try {
+            JSONObject metas = new JSONObject(getNotes().trim())
+                    .getJSONObject(GTaskStringUtils.META_HEAD_BUNDLE);
+            Iterator<String> keys = metas.keys();
+            while (keys.hasNext()) {
+                String gid = keys.next();
+                String meta = metas.getJSONObject(gid).toString();
+                mMetas.put(gid.intern(), meta);
+                mLength += entryLength(gid, meta);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "failed to unpack meta bundle");
+            mMetas.clear();
+            mLength = EMPTY_LENGTH;
+        }
+    }
+
+    /**
+     * 一个元数据在包中占的长度，包括引号、冒号和分隔的逗号
+     */
+    private static int entryLength(String gid, String meta) {
+        return JSONObject.quote(gid).length() + 2 + meta.length();
+    }
+
+    @Override
+    public void setContentByLocalJSON(JSONObject js) {
+        // this function should not be called
+        throw new IllegalAccessError("MetaBundle:setContentByLocalJSON should not be called");
+    }
+
+    @Override
+    public JSONObject getLocalJSONFromContent() {
+        throw new IllegalAccessError("MetaBundle:getLocalJSONFromContent should not be called");
+    }
+
+    @Override
+    public int getSyncAction(Cursor c) {
+        throw new IllegalAccessError("MetaBundle:getSyncAction should not be called");
+    }
+}
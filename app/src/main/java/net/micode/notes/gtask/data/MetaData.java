@@ -89,11 +89,28 @@ public class MetaData extends Task {
     @Override
     public void setContentByRemoteJSON(JSONObject js) {
         super.setContentByRemoteJSON(js);
+        parseRelatedGid();
+    }
+
+    /**
+     * 使用远端记录设置元数据内容
+     * @param node RemoteNode
+     */
+    @Override
+    public void setContentByRemoteNode(RemoteNode node) {
+        super.setContentByRemoteNode(node);
+        parseRelatedGid();
+    }
+
+    /**
+     * 从便签内容中解析出关联的gid，与任务的gid共用同一个字符串对象
+     */
+    private void parseRelatedGid() {
         if (getNotes() != null) {
             try {
                 // 创建新json对象metaInfo，调用trim方法去掉getNotes方法的返回值的首尾空格
                 JSONObject metaInfo = new JSONObject(getNotes().trim());
-                mRelatedGid = metaInfo.getString(GTaskStringUtils.META_HEAD_GTASK_ID);
+                mRelatedGid = metaInfo.getString(GTaskStringUtils.META_HEAD_GTASK_ID).intern();
             } catch (JSONException e) {
                 // 若出现异常，打印日志信息，并将mRelatedGid置空
                 Log.w(TAG, "failed to get related gid");
@@ -119,6 +119,25 @@ public abstract class Node {
      */
     public abstract void setContentByRemoteJSON(JSONObject js);
 
+    /**
+     * 通过流式解码得到的远端记录设置内容，默认只设置任务列表也有的id、修改时间和名字
+     * @param node RemoteNode
+     */
+    public void setContentByRemoteNode(RemoteNode node) {
+        if (node == null) {
+            return;
+        }
+        if (node.getGid() != null) {
+            setGid(node.getGid());
+        }
+        if (node.hasLastModified()) {
+            setLastModified(node.getLastModified());
+        }
+        if (node.hasName()) {
+            setName(node.getName());
+        }
+    }
+
     /**
      * 创建相应对象进行本地操作
      * @param js JSONObject
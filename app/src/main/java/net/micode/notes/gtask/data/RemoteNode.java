@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+/**
+ * 从服务器响应中直接解码出的节点记录，只保存同步需要的字段，gid已被intern，
+ * 避免为每个任务保留一棵JSONObject树
+ */
+public class RemoteNode {
+    private static final int HAS_NAME = 1;
+
+    private static final int HAS_NOTES = 1 << 1;
+
+    private static final int HAS_LAST_MODIFIED = 1 << 2;
+
+    private static final int HAS_DELETED = 1 << 3;
+
+    private static final int HAS_COMPLETED = 1 << 4;
+
+    /**
+     * 响应中出现过的字段
+     */
+    private int mFields;
+
+    private String mGid;
+
+    private String mName;
+
+    private String mNotes;
+
+    private long mLastModified;
+
+    private boolean mDeleted;
+
+    private boolean mCompleted;
+
+    public void setGid(String gid) {
+        mGid = gid;
+    }
+
+    public void setName(String name) {
+        mName = name;
+        mFields |= HAS_NAME;
+    }
+
+    public void setNotes(String notes) {
+        mNotes = notes;
+        mFields |= HAS_NOTES;
+    }
+
+    public void setLastModified(long lastModified) {
+        mLastModified = lastModified;
+        mFields |= HAS_LAST_MODIFIED;
+    }
+
+    public void setDeleted(boolean deleted) {
+        mDeleted = deleted;
+        mFields |= HAS_DELETED;
+    }
+
+    public void setCompleted(boolean completed) {
+        mCompleted = completed;
+        mFields |= HAS_COMPLETED;
+    }
+
+    public String getGid() {
+        return mGid;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getNotes() {
+        return mNotes;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    public boolean getDeleted() {
+        return mDeleted;
+    }
+
+    public boolean getCompleted() {
+        return mCompleted;
+    }
+
+    public boolean hasName() {
+        return (mFields & HAS_NAME) != 0;
+    }
+
+    public boolean hasNotes() {
+        return (mFields & HAS_NOTES) != 0;
+    }
+
+    public boolean hasLastModified() {
+        return (mFields & HAS_LAST_MODIFIED) != 0;
+    }
+
+    public boolean hasDeleted() {
+        return (mFields & HAS_DELETED) != 0;
+    }
+
+    public boolean hasCompleted() {
+        return (mFields & HAS_COMPLETED) != 0;
+    }
+}
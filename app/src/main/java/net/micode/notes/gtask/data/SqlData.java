@@ -16,6 +16,8 @@
 
 package net.micode.notes.gtask.data;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -239,6 +241,62 @@ public class SqlData {
         mIsCreate = false;
     }
 
+    /**
+     * 把修改加入写会话，与所属便签一起提交
+     * @param session SqlWriteSession
+     * @param noteId 所属便签的id，便签也在本批中新建时为INVALID_ID
+     * @param noteIndex 新建便签的插入操作在本批中的位置，便签已经存在时为-1
+     * @param validateVersion boolean
+     * @param version long
+     */
+    void commit(SqlWriteSession session, long noteId, int noteIndex, boolean validateVersion,
+            long version) {
+        if (mIsCreate) {
+            if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
+                mDiffDataValues.remove(DataColumns.ID);
+            }
+
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_DATA_URI).withValues(mDiffDataValues);
+            if (noteIndex >= 0) {
+                // 新建便签的id在提交时才知道，通过反向引用得到
+                builder.withValueBackReference(DataColumns.NOTE_ID, noteIndex);
+            } else {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
+            }
+            session.add(builder.build(), new SqlWriteSession.ResultHandler() {
+                public void onResult(ContentProviderResult result) {
+                    try {
+                        mDataId = Long.valueOf(result.uri.getPathSegments().get(1));
+                    } catch (NumberFormatException e) {
+                        Log.e(TAG, "Get note id error :" + e.toString());
+                        throw new ActionFailureException("create note failed");
+                    }
+                }
+            });
+        } else if (mDiffDataValues.size() > 0) {
+            ContentProviderOperation.Builder builder = ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId))
+                    .withValues(mDiffDataValues);
+            if (validateVersion) {
+                builder.withSelection(" ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                        + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
+                        String.valueOf(noteId), String.valueOf(version)
+                });
+            }
+            session.add(builder.build(), new SqlWriteSession.ResultHandler() {
+                public void onResult(ContentProviderResult result) {
+                    if (result.count == null || result.count == 0) {
+                        Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                    }
+                }
+            });
+        }
+
+        mDiffDataValues.clear();
+        mIsCreate = false;
+    }
+
     /**
      * 获取当前id
      * @return long
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.tool.LongHashMap;
+import net.micode.notes.tool.LongHashSet;
+
+import java.util.ArrayList;
+
+/**
+ * 同步期间批量加载便签数据的加载器。用一次按note_id排序的查询读出一批便签的所有数据行，
+ * 构造SqlNote时直接取用，不再为每个便签查询一次data表
+ */
+public class SqlDataLoader {
+    private static final String TAG = SqlDataLoader.class.getSimpleName();
+
+    /**
+     * 在SqlData的列之后加上所属便签的id，SqlData仍按原来的列号读取
+     */
+    private static final String[] PROJECTION_DATA_WITH_NOTE = new String[] {
+            DataColumns.ID, DataColumns.MIME_TYPE, DataColumns.CONTENT, DataColumns.DATA1,
+            DataColumns.DATA3, DataColumns.NOTE_ID
+    };
+
+    private static final int NOTE_ID_COLUMN = 5;
+
+    private Context mContext;
+
+    private boolean mLoaded;
+
+    /**
+     * 便签id到其数据行的映射，没有数据的便签不在其中
+     */
+    private LongHashMap<ArrayList<SqlData>> mDataMap;
+
+    /**
+     * 已经被取走数据的便签
+     */
+    private LongHashSet mTakenIds;
+
+    public SqlDataLoader(Context context) {
+        mContext = context;
+        mLoaded = false;
+        mDataMap = new LongHashMap<ArrayList<SqlData>>();
+        mTakenIds = new LongHashSet();
+    }
+
+    /**
+     * data表上的查询条件，选出满足便签条件的所有便签的数据行
+     * @param noteSelection note表上的查询条件
+     */
+    public static String buildPreloadSelection(String noteSelection) {
+        return DataColumns.NOTE_ID + " IN (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                + " WHERE " + noteSelection + ")";
+    }
+
+    /**
+     * 加载满足条件的所有便签的数据行
+     * @param noteSelection note表上的查询条件
+     * @param noteSelectionArgs 查询条件的参数
+     */
+    public void preload(String noteSelection, String[] noteSelectionArgs) {
+        mDataMap.clear();
+        mTakenIds.clear();
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
+                    PROJECTION_DATA_WITH_NOTE, buildPreloadSelection(noteSelection),
+                    noteSelectionArgs,
+                    DataColumns.NOTE_ID + "," + DataColumns.ID);
+            if (c == null) {
+                Log.w(TAG, "preload: cursor = null");
+                return;
+            }
+            // 同一个便签的数据行是连续的，只在便签变化时查找映射
+            long noteId = 0;
+            ArrayList<SqlData> dataList = null;
+            while (c.moveToNext()) {
+                if (dataList == null || c.getLong(NOTE_ID_COLUMN) != noteId) {
+                    noteId = c.getLong(NOTE_ID_COLUMN);
+                    dataList = new ArrayList<SqlData>();
+                    mDataMap.put(noteId, dataList);
+                }
+                dataList.add(new SqlData(mContext, c));
+            }
+            mLoaded = true;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * 取走一个便签预先加载的数据行，每个便签只能取一次，便签需要满足加载时的条件
+     * @param noteId long
+     * @return 数据行，还没有加载或已经被取过时返回null，需要由调用者自己查询
+     */
+    public ArrayList<SqlData> take(long noteId) {
+        if (!mLoaded || !mTakenIds.add(noteId)) {
+            return null;
+        }
+        ArrayList<SqlData> dataList = mDataMap.remove(noteId);
+        return dataList != null ? dataList : new ArrayList<SqlData>();
+    }
+}
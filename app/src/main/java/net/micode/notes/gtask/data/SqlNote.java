@@ -17,6 +17,8 @@
 package net.micode.notes.gtask.data;
 
 import android.appwidget.AppWidgetManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -170,13 +172,31 @@ public class SqlNote {
      * @param c Cursor
      */
     public SqlNote(Context context, Cursor c) {
+        this(context, c, null);
+    }
+
+    /**
+     * 构造方法，数据行优先从同步期间预先加载的结果中取，取不到时再查询
+     * @param context Context
+     * @param c Cursor
+     * @param loader SqlDataLoader，可以为null
+     */
+    public SqlNote(Context context, Cursor c, SqlDataLoader loader) {
         mContext = context;
         mContentResolver = context.getContentResolver();
         mIsCreate = false;
         loadFromCursor(c);
         mDataList = new ArrayList<SqlData>();
         if (mType == Notes.TYPE_NOTE) {
-            loadDataContent();
+            ArrayList<SqlData> dataList = loader != null ? loader.take(mId) : null;
+            if (dataList == null) {
+                loadDataContent();
+            } else {
+                if (dataList.isEmpty()) {
+                    Log.w(TAG, "it seems that the note has not data");
+                }
+                mDataList = dataList;
+            }
         }
         mDiffNoteValues = new ContentValues();
     }
@@ -548,10 +568,20 @@ public class SqlNote {
     }
 
     /**
-     * commit函数用于把当前造作所做的修改保存到数据库
+     * commit函数用于把当前造作所做的修改保存到数据库，保存后重新读取便签和数据
      * @param validateVersion boolean
      */
     public void commit(boolean validateVersion) {
+        commit(validateVersion, true);
+    }
+
+    /**
+     * 把修改保存到数据库。内存中的版本号和修改同步递增，之后只需要再次提交时可以不重新读取，
+     * 但触发器对摘要等列的修改不会反映到内存中
+     * @param validateVersion boolean
+     * @param reload 保存后是否重新读取便签和数据
+     */
+    public void commit(boolean validateVersion, boolean reload) {
         if (mIsCreate) {
             /*如果是一个无效的id并且还含有这个id，就将它移除*/
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
@@ -616,9 +646,11 @@ public class SqlNote {
 
         // refresh local info
         /*通过 cursor 从当前 id 处加载数据*/
-        loadFromCursor(mId);
-        if (mType == Notes.TYPE_NOTE) {
-            loadDataContent();
+        if (reload) {
+            loadFromCursor(mId);
+            if (mType == Notes.TYPE_NOTE) {
+                loadDataContent();
+            }
         }
 
         /*清空，回到初始化状态*/
@@ -626,4 +658,82 @@ public class SqlNote {
         /*重置*/
         mIsCreate = false;
     }
+
+    /**
+     * 把修改加入写会话，不立即写入数据库，提交后也不重新读取。新建便签的id在会话提交后才被设置，
+     * 需要id的工作应放在会话提交完成的回调中。同一个便签的多次提交按加入的顺序执行，
+     * 版本号在内存中同步递增，带版本检查的更新与立即写入时的条件相同
+     * @param validateVersion boolean
+     * @param session SqlWriteSession
+     */
+    public void commit(boolean validateVersion, SqlWriteSession session) {
+        if (!mIsCreate && mId == INVALID_ID) {
+            // 之前新建的便签还没有提交，先提交收集的操作以获得它的id
+            session.applyOperations();
+        }
+
+        if (mIsCreate) {
+            if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
+                mDiffNoteValues.remove(NoteColumns.ID);
+            }
+
+            int noteIndex = session.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(mDiffNoteValues).build(), new SqlWriteSession.ResultHandler() {
+                        public void onResult(ContentProviderResult result) {
+                            try {
+                                mId = Long.valueOf(result.uri.getPathSegments().get(1));
+                            } catch (NumberFormatException e) {
+                                Log.e(TAG, "Get note id error :" + e.toString());
+                                throw new ActionFailureException("create note failed");
+                            }
+                            if (mId == 0) {
+                                throw new IllegalStateException("Create thread id failed");
+                            }
+                        }
+                    });
+            mId = INVALID_ID;
+
+            if (mType == Notes.TYPE_NOTE) {
+                for (SqlData sqlData : mDataList) {
+                    sqlData.commit(session, INVALID_ID, noteIndex, false, -1);
+                }
+            }
+        } else {
+            if (mId <= 0 && mId != Notes.ID_ROOT_FOLDER && mId != Notes.ID_CALL_RECORD_FOLDER) {
+                Log.e(TAG, "No such note");
+                throw new IllegalStateException("Try to update note with invalid id");
+            }
+            if (mDiffNoteValues.size() > 0) {
+                mVersion ++;
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(Notes.CONTENT_NOTE_URI).withValues(mDiffNoteValues);
+                if (!validateVersion) {
+                    builder.withSelection("(" + NoteColumns.ID + "=?)", new String[] {
+                        String.valueOf(mId)
+                    });
+                } else {
+                    builder.withSelection("(" + NoteColumns.ID + "=?) AND ("
+                            + NoteColumns.VERSION + "<=?)", new String[] {
+                                    String.valueOf(mId), String.valueOf(mVersion)
+                    });
+                }
+                session.add(builder.build(), new SqlWriteSession.ResultHandler() {
+                    public void onResult(ContentProviderResult result) {
+                        if (result.count == null || result.count == 0) {
+                            Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                        }
+                    }
+                });
+            }
+
+            if (mType == Notes.TYPE_NOTE) {
+                for (SqlData sqlData : mDataList) {
+                    sqlData.commit(session, mId, -1, validateVersion, mVersion);
+                }
+            }
+        }
+
+        mDiffNoteValues.clear();
+        mIsCreate = false;
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+
+import java.util.ArrayList;
+
+/**
+ * 同步期间的本地写会话。收集便签和数据的插入、更新操作，按批在一个事务中提交，每批只发出一次变化通知，
+ * 新便签的数据行通过反向引用得到便签的id。提交后才能得到的id由结果回调设置，依赖这些id的工作放在提交完成的回调中
+ */
+public class SqlWriteSession {
+    private static final String TAG = SqlWriteSession.class.getSimpleName();
+
+    /**
+     * 每批操作数的上限，一个便签和它的数据行总是在同一批中提交
+     */
+    private static final int MAX_OPERATIONS_PER_BATCH = 200;
+
+    /**
+     * 一个操作执行后的回调，用来设置新插入行的id或检查更新的行数
+     */
+    interface ResultHandler {
+        void onResult(ContentProviderResult result);
+    }
+
+    /**
+     * 一批操作提交完成后的回调
+     */
+    public interface OnCommittedListener {
+        void onCommitted() throws NetworkFailureException;
+    }
+
+    private ContentResolver mContentResolver;
+
+    private ArrayList<ContentProviderOperation> mOperations;
+
+    /**
+     * 与mOperations一一对应，不需要回调的操作为null
+     */
+    private ArrayList<ResultHandler> mHandlers;
+
+    private ArrayList<OnCommittedListener> mListeners;
+
+    private boolean mFlushing;
+
+    public SqlWriteSession(ContentResolver resolver) {
+        mContentResolver = resolver;
+        mOperations = new ArrayList<ContentProviderOperation>();
+        mHandlers = new ArrayList<ResultHandler>();
+        mListeners = new ArrayList<OnCommittedListener>();
+        mFlushing = false;
+    }
+
+    /**
+     * 加入一个操作
+     * @return 操作在本批中的位置，用于之后的操作反向引用它的结果
+     */
+    int add(ContentProviderOperation operation, ResultHandler handler) {
+        mOperations.add(operation);
+        mHandlers.add(handler);
+        return mOperations.size() - 1;
+    }
+
+    /**
+     * 加入一个提交完成的回调，在当前收集的操作提交后调用
+     * @param listener OnCommittedListener
+     */
+    public void addListener(OnCommittedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * 是否还有没有提交的操作或回调
+     * @return boolean
+     */
+    public boolean hasPending() {
+        return !mOperations.isEmpty() || !mListeners.isEmpty();
+    }
+
+    /**
+     * 等待提交的操作是否已达到一批的上限
+     */
+    public boolean isFull() {
+        return mOperations.size() >= MAX_OPERATIONS_PER_BATCH;
+    }
+
+    /**
+     * 收集的操作达到上限时提交，需要在一个便签的操作全部加入后调用
+     * @throws NetworkFailureException 回调中的网络错误
+     */
+    public void flushIfFull() throws NetworkFailureException {
+        if (isFull()) {
+            flush();
+        }
+    }
+
+    /**
+     * 提交所有收集的操作并调用回调，回调中加入的操作也在返回前提交
+     * @throws NetworkFailureException 回调中的网络错误
+     */
+    public void flush() throws NetworkFailureException {
+        // 回调中再次调用时由外层的循环提交
+        if (mFlushing) {
+            return;
+        }
+        mFlushing = true;
+        try {
+            while (hasPending()) {
+                applyOperations();
+                ArrayList<OnCommittedListener> listeners = mListeners;
+                mListeners = new ArrayList<OnCommittedListener>();
+                for (OnCommittedListener listener : listeners) {
+                    listener.onCommitted();
+                }
+            }
+        } finally {
+            mFlushing = false;
+        }
+    }
+
+    /**
+     * 只提交收集的操作而丢弃回调，用于同步失败时保存已经完成的本地修改
+     */
+    public void applyPending() {
+        mListeners.clear();
+        applyOperations();
+    }
+
+    /**
+     * 提交收集的操作，回调留到flush时调用
+     */
+    void applyOperations() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        ArrayList<ContentProviderOperation> operations = mOperations;
+        ArrayList<ResultHandler> handlers = mHandlers;
+        mOperations = new ArrayList<ContentProviderOperation>();
+        mHandlers = new ArrayList<ResultHandler>();
+
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("failed to apply local writes");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("failed to apply local writes");
+        }
+        for (int i = 0; i < results.length; i++) {
+            ResultHandler handler = handlers.get(i);
+            if (handler != null) {
+                handler.onResult(results[i]);
+            }
+        }
+    }
+}
@@ -52,9 +52,19 @@ public class Task extends Node {
     private String mNotes;
 
     /**
-     * 元数据信息
+     * 元数据信息，以字符串保存，需要时才解析成JSONObject
      */
-    private JSONObject mMetaInfo;
+    private String mMetaInfo;
+
+    /**
+     * 元数据中是否有便签信息
+     */
+    private boolean mHasMetaNote;
+
+    /**
+     * 元数据中便签的id，没有时为null
+     */
+    private Long mMetaNoteId;
 
     /**
      * .对应的优先兄弟类Task的指针
@@ -76,6 +86,8 @@ public class Task extends Node {
         mPriorSibling = null;
         mParent = null;
         mMetaInfo = null;
+        mHasMetaNote = false;
+        mMetaNoteId = null;
     }
 
     /**
@@ -127,8 +139,8 @@ public class Task extends Node {
             js.put(GTaskStringUtils.GTASK_JSON_LIST_ID, mParent.getGid());
 
             // prior_sibling_id
-            /*如果存在有高优先级的任务*/
-            if (mPriorSibling != null) {
+            /*如果存在有高优先级的任务，且它已经有gid（还在队列中的任务由index定位）*/
+            if (mPriorSibling != null && mPriorSibling.getGid() != null) {
                 /*将其存入优先ID序列中*/
                 js.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, mPriorSibling.getGid());
             }
@@ -225,6 +237,32 @@ public class Task extends Node {
         }
     }
 
+    /**
+     * 通过远端记录获取任务内容
+     * @param node RemoteNode
+     */
+    @Override
+    public void setContentByRemoteNode(RemoteNode node) {
+        if (node != null) {
+            super.setContentByRemoteNode(node);
+
+            // notes
+            if (node.hasNotes()) {
+                setNotes(node.getNotes());
+            }
+
+            // deleted
+            if (node.hasDeleted()) {
+                setDeleted(node.getDeleted());
+            }
+
+            // completed
+            if (node.hasCompleted()) {
+                setCompleted(node.getCompleted());
+            }
+        }
+    }
+
     /**
      * 通过本地的JSONObject获取内容
      * @param js JSONObject
@@ -290,8 +328,9 @@ public class Task extends Node {
             } else {
                 // synced task
                 /*完成同步工作*/
-                JSONObject note = mMetaInfo.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
-                JSONArray dataArray = mMetaInfo.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
+                JSONObject metaInfo = new JSONObject(mMetaInfo);
+                JSONObject note = metaInfo.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+                JSONArray dataArray = metaInfo.getJSONArray(GTaskStringUtils.META_HEAD_DATA);
 
                 /*遍历 dataArray 查找与数据库中DataConstants.NOTE 记录信息一致的 data*/
                 for (int i = 0; i < dataArray.length(); i++) {
@@ -303,7 +342,7 @@ public class Task extends Node {
                 }
 
                 note.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
-                return mMetaInfo;
+                return metaInfo;
             }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -317,12 +356,30 @@ public class Task extends Node {
      * @param metaData MetaData
      */
     public void setMetaInfo(MetaData metaData) {
-        if (metaData != null && metaData.getNotes() != null) {
+        if (metaData != null) {
+            setMetaInfo(metaData.getNotes());
+        }
+    }
+
+    /**
+     * 设置元数据信息，元数据可以来自单独的MetaData，也可以来自MetaBundle
+     * @param meta 元数据的json字符串
+     */
+    public void setMetaInfo(String meta) {
+        if (meta != null) {
             try {
-                mMetaInfo = new JSONObject(metaData.getNotes());
+                // 只在这里解析一次，取出判断同步动作需要的便签id
+                JSONObject metaInfo = new JSONObject(meta);
+                JSONObject note = metaInfo.optJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+                mHasMetaNote = note != null;
+                mMetaNoteId = note != null && note.has(NoteColumns.ID)
+                        ? note.getLong(NoteColumns.ID) : null;
+                mMetaInfo = meta;
             } catch (JSONException e) {
                 Log.w(TAG, e.toString());
                 mMetaInfo = null;
+                mHasMetaNote = false;
+                mMetaNoteId = null;
             }
         }
     }
@@ -335,23 +392,18 @@ public class Task extends Node {
     @Override
     public int getSyncAction(Cursor c) {
         try {
-            JSONObject noteInfo = null;
-            if (mMetaInfo != null && mMetaInfo.has(GTaskStringUtils.META_HEAD_NOTE)) {
-                noteInfo = mMetaInfo.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
-            }
-
-            if (noteInfo == null) {
+            if (mMetaInfo == null || !mHasMetaNote) {
                 Log.w(TAG, "it seems that note meta has been deleted");
                 return SYNC_ACTION_UPDATE_REMOTE;
             }
 
-            if (!noteInfo.has(NoteColumns.ID)) {
+            if (mMetaNoteId == null) {
                 Log.w(TAG, "remote note id seems to be deleted");
                 return SYNC_ACTION_UPDATE_LOCAL;
             }
 
             // validate the note id now
-            if (c.getLong(SqlNote.ID_COLUMN) != noteInfo.getLong(NoteColumns.ID)) {
+            if (c.getLong(SqlNote.ID_COLUMN) != mMetaNoteId) {
                 Log.w(TAG, "note id doesn't match");
                 return SYNC_ACTION_UPDATE_LOCAL;
             }
@@ -412,6 +464,19 @@ public class Task extends Node {
         this.mPriorSibling = priorSibling;
     }
 
+    /**
+     * 设置gid，任务已经在任务列表中时同时更新列表的gid索引
+     * @param gid String
+     */
+    @Override
+    public void setGid(String gid) {
+        String oldGid = getGid();
+        super.setGid(gid);
+        if (mParent != null) {
+            mParent.onChildGidChanged(this, oldGid);
+        }
+    }
+
     public void setParent(TaskList parent) {
         this.mParent = parent;
     }
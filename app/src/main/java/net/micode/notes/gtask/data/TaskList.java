@@ -28,6 +28,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 
 /**
@@ -45,16 +46,23 @@ public class TaskList extends Node {
     private int mIndex;
 
     /**
-     * 类中主要的保存数据的单元，用来实现一个以Task为元素的ArrayList
+     * 类中主要的保存数据的单元，按顺序保存子任务，按位置和按任务的查找都是O(log n)
      */
-    private ArrayList<Task> mChildren;
+    private TaskSequence mChildren;
+
+    /**
+     * gid到子任务的索引，没有gid的子任务不在其中。新建的任务在创建动作提交后才有gid，
+     * 子任务的gid改变时由Task.setGid调用onChildGidChanged更新索引
+     */
+    private HashMap<String, Task> mChildrenByGid;
 
     /**
      * 构造方法，调用父类构造方法，同时初始化自身特有元素
      */
     public TaskList() {
         super();
-        mChildren = new ArrayList<Task>();
+        mChildren = new TaskSequence();
+        mChildrenByGid = new HashMap<String, Task>();
         mIndex = 1;
     }
 
@@ -300,18 +308,12 @@ public class TaskList extends Node {
      * @return boolean
      */
     public boolean addChildTask(Task task) {
-        boolean ret = false;
         // 任务非空且任务表中不存在该任务
-        if (task != null && !mChildren.contains(task)) {
-            ret = mChildren.add(task);
-            if (ret) {
-                // need to set prior sibling and parent
-                task.setPriorSibling(mChildren.isEmpty() ? null : mChildren
-                        .get(mChildren.size() - 1));
-                task.setParent(this);
-            }
+        if (task == null || mChildren.contains(task)) {
+            return false;
         }
-        return ret;
+        insertChildTask(task, mChildren.size());
+        return true;
     }
 
     /**
@@ -326,53 +328,49 @@ public class TaskList extends Node {
             return false;
         }
 
-        int pos = mChildren.indexOf(task);
-        if (task != null && pos == -1) {
-            mChildren.add(index, task);
-
-            // update the task list
-            Task preTask = null;
-            Task afterTask = null;
-            if (index != 0) {
-                preTask = mChildren.get(index - 1);
-            }
-            if (index != mChildren.size() - 1) {
-                afterTask = mChildren.get(index + 1);
-            }
-
-            task.setPriorSibling(preTask);
-            if (afterTask != null) {
-                afterTask.setPriorSibling(task);
-            }
+        if (task != null && !mChildren.contains(task)) {
+            insertChildTask(task, index);
         }
 
         return true;
     }
 
+    /**
+     * 插入任务并更新它和后一个任务的prior sibling
+     */
+    private void insertChildTask(Task task, int index) {
+        mChildren.add(index, task);
+        indexChildTask(task);
+
+        // update the task list
+        task.setPriorSibling(index == 0 ? null : mChildren.get(index - 1));
+        if (index != mChildren.size() - 1) {
+            mChildren.get(index + 1).setPriorSibling(task);
+        }
+        task.setParent(this);
+    }
+
     /**
      * 删除任务表中的子任务
      * @param task Task
      * @return boolean
      */
     public boolean removeChildTask(Task task) {
-        boolean ret = false;
-        int index = mChildren.indexOf(task);
-        if (index != -1) {
-            ret = mChildren.remove(task);
-
-            if (ret) {
-                // reset prior sibling and parent
-                task.setPriorSibling(null);
-                task.setParent(null);
-
-                // update the task list
-                if (index != mChildren.size()) {
-                    mChildren.get(index).setPriorSibling(
-                            index == 0 ? null : mChildren.get(index - 1));
-                }
-            }
+        int index = mChildren.remove(task);
+        if (index == -1) {
+            return false;
         }
-        return ret;
+        unindexChildTask(task);
+
+        // reset prior sibling and parent
+        task.setPriorSibling(null);
+        task.setParent(null);
+
+        // update the task list
+        if (index != mChildren.size()) {
+            mChildren.get(index).setPriorSibling(index == 0 ? null : mChildren.get(index - 1));
+        }
+        return true;
     }
 
     /**
@@ -400,19 +398,42 @@ public class TaskList extends Node {
         return (removeChildTask(task) && addChildTask(task, index));
     }
 
+    private void indexChildTask(Task task) {
+        String gid = task.getGid();
+        if (gid != null) {
+            mChildrenByGid.put(gid, task);
+        }
+    }
+
+    private void unindexChildTask(Task task) {
+        String gid = task.getGid();
+        if (gid != null && mChildrenByGid.get(gid) == task) {
+            mChildrenByGid.remove(gid);
+        }
+    }
+
+    /**
+     * 子任务的gid改变后更新索引
+     * @param task 子任务
+     * @param oldGid 改变前的gid，可以为null
+     */
+    void onChildGidChanged(Task task, String oldGid) {
+        if (oldGid != null && mChildrenByGid.get(oldGid) == task) {
+            mChildrenByGid.remove(oldGid);
+        }
+        indexChildTask(task);
+    }
+
     /**
      * 按gid寻找Task
      * @param gid String
      * @return Task
      */
     public Task findChildTaskByGid(String gid) {
-        for (int i = 0; i < mChildren.size(); i++) {
-            Task t = mChildren.get(i);
-            if (t.getGid().equals(gid)) {
-                return t;
-            }
+        if (gid == null) {
+            return null;
         }
-        return null;
+        return mChildrenByGid.get(gid);
     }
 
     /**
@@ -443,20 +464,15 @@ public class TaskList extends Node {
      * @return Task
      */
     public Task getChilTaskByGid(String gid) {
-        for (Task task : mChildren) {
-            if (task.getGid().equals(gid)) {
-                return task;
-            }
-        }
-        return null;
+        return findChildTaskByGid(gid);
     }
 
     /**
-     * 获取子任务列表
+     * 获取子任务列表，返回的是按顺序复制出的新列表，修改它不会影响当前TaskList
      * @return ArrayList<Task>
      */
     public ArrayList<Task> getChildTaskList() {
-        return this.mChildren;
+        return mChildren.toList();
     }
 
     /**
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+
+/**
+ * 有序的子任务序列，用带子树大小的隐式treap保存，按位置取任务、求任务的位置、在任意位置
+ * 插入和删除都是O(log n)，每个任务对应的树节点保存在IdentityHashMap中
+ */
+final class TaskSequence {
+    /**
+     * 树节点，size为以该节点为根的子树的节点数，parent用于从节点向上求位置
+     */
+    private static final class Entry {
+        final Task task;
+
+        final int priority;
+
+        Entry left;
+
+        Entry right;
+
+        Entry parent;
+
+        int size = 1;
+
+        Entry(Task task, int priority) {
+            this.task = task;
+            this.priority = priority;
+        }
+    }
+
+    private final IdentityHashMap<Task, Entry> mEntries = new IdentityHashMap<Task, Entry>();
+
+    private final Random mRandom = new Random();
+
+    private Entry mRoot;
+
+    /**
+     * split的结果，分别为前k个节点和其余节点组成的树
+     */
+    private Entry mSplitLeft;
+
+    private Entry mSplitRight;
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public boolean contains(Task task) {
+        return mEntries.containsKey(task);
+    }
+
+    /**
+     * 获取指定位置的任务，index必须在[0, size)之内
+     */
+    public Task get(int index) {
+        Entry e = mRoot;
+        while (e != null) {
+            int leftSize = size(e.left);
+            if (index < leftSize) {
+                e = e.left;
+            } else if (index == leftSize) {
+                return e.task;
+            } else {
+                index -= leftSize + 1;
+                e = e.right;
+            }
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * 获取任务的位置，任务不在序列中时返回-1
+     */
+    public int indexOf(Task task) {
+        Entry e = mEntries.get(task);
+        if (e == null) {
+            return -1;
+        }
+        int index = size(e.left);
+        while (e.parent != null) {
+            if (e == e.parent.right) {
+                index += size(e.parent.left) + 1;
+            }
+            e = e.parent;
+        }
+        return index;
+    }
+
+    /**
+     * 在index位置插入任务，index必须在[0, size]之内且任务不在序列中
+     */
+    public void add(int index, Task task) {
+        Entry entry = new Entry(task, mRandom.nextInt());
+        mEntries.put(task, entry);
+        split(mRoot, index);
+        Entry right = mSplitRight;
+        setRoot(merge(merge(mSplitLeft, entry), right));
+    }
+
+    /**
+     * 删除任务
+     * @return 任务删除前的位置，任务不在序列中时返回-1
+     */
+    public int remove(Task task) {
+        int index = indexOf(task);
+        if (index == -1) {
+            return -1;
+        }
+        mEntries.remove(task);
+        split(mRoot, index);
+        Entry left = mSplitLeft;
+        split(mSplitRight, 1);
+        setRoot(merge(left, mSplitRight));
+        return index;
+    }
+
+    /**
+     * 按顺序复制出所有任务
+     */
+    public ArrayList<Task> toList() {
+        ArrayList<Task> list = new ArrayList<Task>(size());
+        // 用显式的栈做中序遍历
+        ArrayList<Entry> stack = new ArrayList<Entry>();
+        Entry e = mRoot;
+        while (e != null || !stack.isEmpty()) {
+            while (e != null) {
+                stack.add(e);
+                e = e.left;
+            }
+            e = stack.remove(stack.size() - 1);
+            list.add(e.task);
+            e = e.right;
+        }
+        return list;
+    }
+
+    /**
+     * 检查树的结构：子树大小、parent指针、堆序以及IdentityHashMap与树中节点一致，用于测试
+     * @throws IllegalStateException 结构被破坏
+     */
+    void checkInvariants() {
+        if (mRoot != null && mRoot.parent != null) {
+            throw new IllegalStateException("root has a parent");
+        }
+        if (checkSubtree(mRoot) != mEntries.size()) {
+            throw new IllegalStateException("tree size differs from the entry map");
+        }
+    }
+
+    private int checkSubtree(Entry e) {
+        if (e == null) {
+            return 0;
+        }
+        if (mEntries.get(e.task) != e) {
+            throw new IllegalStateException("entry is not mapped from its task");
+        }
+        for (Entry child : new Entry[] { e.left, e.right }) {
+            if (child != null && (child.parent != e || child.priority > e.priority)) {
+                throw new IllegalStateException("broken parent link or heap order");
+            }
+        }
+        int size = 1 + checkSubtree(e.left) + checkSubtree(e.right);
+        if (size != e.size) {
+            throw new IllegalStateException("stale subtree size");
+        }
+        return size;
+    }
+
+    private void setRoot(Entry root) {
+        mRoot = root;
+        if (root != null) {
+            root.parent = null;
+        }
+    }
+
+    /**
+     * 把t分成前k个节点和其余节点两棵树，结果存入mSplitLeft和mSplitRight
+     */
+    private void split(Entry t, int k) {
+        if (t == null) {
+            mSplitLeft = null;
+            mSplitRight = null;
+            return;
+        }
+        int leftSize = size(t.left);
+        if (k <= leftSize) {
+            split(t.left, k);
+            t.left = mSplitRight;
+            update(t);
+            mSplitRight = t;
+        } else {
+            split(t.right, k - leftSize - 1);
+            t.right = mSplitLeft;
+            update(t);
+            mSplitLeft = t;
+        }
+    }
+
+    /**
+     * 合并两棵树，a中的节点都排在b之前
+     */
+    private Entry merge(Entry a, Entry b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private static void update(Entry e) {
+        e.size = 1 + size(e.left) + size(e.right);
+        if (e.left != null) {
+            e.left.parent = e;
+        }
+        if (e.right != null) {
+            e.right.parent = e;
+        }
+    }
+
+    private static int size(Entry e) {
+        return e == null ? 0 : e.size;
+    }
+}
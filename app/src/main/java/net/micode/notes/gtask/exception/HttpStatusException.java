@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.exception;
+
+import java.io.IOException;
+
+/**
+ * 服务器返回了错误的http状态，保存状态码用来判断是否可以重试
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 5361927384710263408L;
+
+    private final int mStatus;
+
+    /**
+     * 构造方法
+     */
+    public HttpStatusException(int status) {
+        super("unexpected http status " + status);
+        mStatus = status;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.exception;
+
+import java.io.IOException;
+
+/**
+ * 传输层发现服务器拒绝了当前会话，例如返回401、403或把请求重定向到登录页面，需要重新登录
+ */
+public class SessionRejectedException extends IOException {
+    private static final long serialVersionUID = -3260870418367012743L;
+
+    /**
+     * 构造方法
+     */
+    public SessionRejectedException(String paramString) {
+        super(paramString);
+    }
+}
@@ -20,45 +20,36 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
 import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.RemoteNode;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.gtask.exception.SessionRejectedException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class GTaskClient {
@@ -87,7 +78,42 @@ public class GTaskClient {
      */
     private static GTaskClient mInstance = null;
 
-    private DefaultHttpClient mHttpClient;
+    /**
+     * 一个请求中的最大动作数
+     */
+    private static final int MAX_ACTIONS_PER_POST = 10;
+
+    /**
+     * 保存的会话最多使用7天，之前被服务器拒绝时会提前重新登录
+     */
+    private static final long MAX_SESSION_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * 保存会话的私有存储，其中的cookie相当于账号的凭据，res/xml中的备份规则把它排除在备份之外
+     */
+    private static final String SESSION_PREFERENCE_NAME = "gtask_session";
+
+    private static final String SESSION_ACCOUNT = "account";
+
+    private static final String SESSION_GET_URL = "get_url";
+
+    private static final String SESSION_POST_URL = "post_url";
+
+    private static final String SESSION_CLIENT_VERSION = "client_version";
+
+    private static final String SESSION_COOKIES = "cookies";
+
+    private static final String SESSION_EXPIRY = "expiry";
+
+    /**
+     * 所有请求经过的传输层，登录时没有设置则使用默认的UrlConnectionTransport
+     */
+    private GTaskTransport mTransport;
+
+    /**
+     * 请求因为暂时性的网络错误失败时的重试策略
+     */
+    private volatile RetryPolicy mRetryPolicy;
 
     private String mGetUrl;
 
@@ -95,29 +121,52 @@ public class GTaskClient {
 
     private long mClientVersion;
 
-    private boolean mLoggedin;
+    private volatile boolean mLoggedin;
+
+    /**
+     * 当前会话的过期时间，过期后需要重新登录
+     */
+    private long mSessionExpiry;
+
+    /**
+     * 每次登录或恢复会话时加一，用来判断被拒绝的请求是否已经由其他线程重新登录过
+     */
+    private volatile int mSessionGeneration;
 
-    private long mLastLoginTime;
+    /**
+     * 请求被拒绝时用来重新登录。单例存活到进程结束，所以只保存Application Context，
+     * 不持有发起同步的Activity
+     */
+    private Context mLoginContext;
 
-    private int mActionId;
+    /**
+     * 多个线程同时获取任务列表时也需要得到唯一的actionID
+     */
+    private final AtomicInteger mActionId;
 
     private Account mAccount;
 
-    private JSONArray mUpdateArray;
+    /**
+     * 默认的动作队列，动作满一个请求时自动提交
+     */
+    private final ActionQueue mQueue;
 
     /**
      * 无参构造方法。初始化操作
      */
     private GTaskClient() {
-        mHttpClient = null;
+        mTransport = null;
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
         mLoggedin = false;
-        mLastLoginTime = 0;
-        mActionId = 1;
+        mSessionExpiry = 0;
+        mSessionGeneration = 0;
+        mLoginContext = null;
+        mActionId = new AtomicInteger(1);
         mAccount = null;
-        mUpdateArray = null;
+        mQueue = new ActionQueue(true);
+        mRetryPolicy = new RetryPolicy();
     }
 
     /**
@@ -132,17 +181,15 @@ public class GTaskClient {
     }
 
     /**
-     * 用来实现登录操作的函数，传入的参数是一个Activity
+     * 用来实现登录操作的函数，传入的参数是一个Activity。进程中没有登录过时先恢复上次保存的会话，
+     * 会话是否仍然有效在第一次请求时才知道，请求被拒绝时再用Application Context重新登录
      * @param activity Activity
      * @return boolean
      */
     public boolean login(Activity activity) {
-        // we suppose that the cookie would expire after 5 minutes
-        // then we need to re-login
-        // 时间间隔为1000ns * 60 * 5 = 5min 即间隔5分钟时间
-        final long interval = 1000 * 60 * 5;
-        // 判断距离上次登录的时间间隔，若超过5分钟，则重置登录状态
-        if (mLastLoginTime + interval < System.currentTimeMillis()) {
+        mLoginContext = activity.getApplicationContext();
+        // 会话过期后需要重新登录
+        if (mSessionExpiry < System.currentTimeMillis()) {
             mLoggedin = false;
         }
 
@@ -162,16 +209,31 @@ public class GTaskClient {
             return true;
         }
 
-        // 更新登录时间为系统当前时间
-        mLastLoginTime = System.currentTimeMillis();
+        if (restoreSession(activity)) {
+            Log.d(TAG, "session restored");
+            mLoggedin = true;
+            return true;
+        }
+
+        return loginAccount(activity);
+    }
+
+    /**
+     * 登录Google账号和gtask，成功后保存会话
+     * @param context 前台登录时为Activity，重新登录时为Application Context
+     * @return boolean
+     */
+    private synchronized boolean loginAccount(Context context) {
+        mLoggedin = false;
         // 获取登录令牌，判断是否登入google账号
-        String authToken = loginGoogleAccount(activity, false);
+        String authToken = loginGoogleAccount(context, false);
         // 如果登录失败，显示login google account failed
         if (authToken == null) {
             Log.e(TAG, "login google account failed");
             return false;
         }
 
+        boolean loggedin = false;
         // login with custom domain if necessary
         // 在谷歌账号登录成功的情况下再登录gtask账号
         if (!(mAccount.name.toLowerCase().endsWith("gmail.com") || mAccount.name.toLowerCase()
@@ -188,38 +250,121 @@ public class GTaskClient {
             mPostUrl = url.toString() + "r/ig";
 
             // 成功登入
-            if (tryToLoginGtask(activity, authToken)) {
-                mLoggedin = true;
-            }
+            loggedin = tryToLoginGtask(context, authToken);
         }
 
         // try to login with google official url
         //  若前面的尝试失败，则尝试使用官方的域名登录
-        if (!mLoggedin) {
+        if (!loggedin) {
             mGetUrl = GTASK_GET_URL;
             mPostUrl = GTASK_POST_URL;
-            if (!tryToLoginGtask(activity, authToken)) {
+            if (!tryToLoginGtask(context, authToken)) {
                 return false;
             }
         }
 
+        saveSession(context);
+        mSessionGeneration++;
         mLoggedin = true;
         return true;
     }
 
     /**
-     * 用以具体实现登录Google账号的方法，方法返回账号令牌
-     * AccountManager：账户管理器，辅助管理账户
-     * @param activity Activity
-     * @param invalidateToken boolean
-     * @return String
+     * 请求被服务器拒绝后重新登录。多个线程同时被拒绝时只有第一个线程重新登录，
+     * 其他线程等它完成后直接使用新的会话
+     * @param generation 发送被拒绝的请求时的会话代数
+     * @return 是否有可用的新会话
      */
-    private String loginGoogleAccount(Activity activity, boolean invalidateToken) {
-        String authToken;
-        // 给用户提供注册账号用的接口
-        AccountManager accountManager = AccountManager.get(activity);
+    private synchronized boolean reloginIfRejected(int generation) {
+        if (generation != mSessionGeneration) {
+            return mLoggedin;
+        }
+        Log.w(TAG, "session is rejected by server, login again");
+        if (mLoginContext == null) {
+            return false;
+        }
+        return loginAccount(mLoginContext);
+    }
+
+    /**
+     * 恢复上次保存的会话，账号不同、会话过期或者cookie都已经过期时返回false
+     * @param context Context
+     * @return boolean
+     */
+    private synchronized boolean restoreSession(Context context) {
+        SharedPreferences session = context.getSharedPreferences(SESSION_PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        String accountName = NotesPreferenceActivity.getSyncAccountName(context);
+        String cookies = session.getString(SESSION_COOKIES, null);
+        long expiry = session.getLong(SESSION_EXPIRY, 0);
+        if (cookies == null || expiry <= System.currentTimeMillis()
+                || !TextUtils.equals(accountName, session.getString(SESSION_ACCOUNT, null))) {
+            return false;
+        }
+
+        Account account = findSyncAccount(context);
+        if (account == null) {
+            return false;
+        }
+
+        GTaskTransport transport = getTransport();
+        transport.importCookies(cookies);
+        if (!transport.hasCookie("GTL")) {
+            Log.d(TAG, "the saved session has no auth cookie");
+            return false;
+        }
+
+        mAccount = account;
+        mGetUrl = session.getString(SESSION_GET_URL, GTASK_GET_URL);
+        mPostUrl = session.getString(SESSION_POST_URL, GTASK_POST_URL);
+        mClientVersion = session.getLong(SESSION_CLIENT_VERSION, -1);
+        mSessionExpiry = Math.min(expiry, transport.getCookieExpiry());
+        mSessionGeneration++;
+        return true;
+    }
+
+    /**
+     * 登录成功后把cookie和客户端版本保存到私有存储中，会话在最早过期的cookie过期时失效
+     * @param context Context
+     */
+    private void saveSession(Context context) {
+        GTaskTransport transport = getTransport();
+        mSessionExpiry = Math.min(System.currentTimeMillis() + MAX_SESSION_AGE,
+                transport.getCookieExpiry());
+        String cookies = transport.exportCookies();
+        if (cookies == null) {
+            clearSession(context);
+            return;
+        }
+
+        SharedPreferences.Editor editor = context.getSharedPreferences(SESSION_PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit();
+        editor.putString(SESSION_ACCOUNT, mAccount.name);
+        editor.putString(SESSION_GET_URL, mGetUrl);
+        editor.putString(SESSION_POST_URL, mPostUrl);
+        editor.putLong(SESSION_CLIENT_VERSION, mClientVersion);
+        editor.putString(SESSION_COOKIES, cookies);
+        editor.putLong(SESSION_EXPIRY, mSessionExpiry);
+        editor.commit();
+    }
+
+    /**
+     * 清除保存的会话，同步账号改变或被移除时调用
+     * @param context Context
+     */
+    public static void clearSession(Context context) {
+        context.getSharedPreferences(SESSION_PREFERENCE_NAME, Context.MODE_PRIVATE).edit()
+                .clear().commit();
+    }
+
+    /**
+     * 在系统账号中找到设置中的同步账号
+     * @param context Context
+     * @return Account，没有时返回null
+     */
+    private Account findSyncAccount(Context context) {
         // 将所有以com.google结尾的账号存入accounts数组中
-        Account[] accounts = accountManager.getAccountsByType("com.google");
+        Account[] accounts = AccountManager.get(context).getAccountsByType("com.google");
 
         // 如果没有这样的账号，输出日志信息“无有效的google账户”
         if (accounts.length == 0) {
@@ -227,26 +372,44 @@ public class GTaskClient {
             return null;
         }
 
-        String accountName = NotesPreferenceActivity.getSyncAccountName(activity);
-        Account account = null;
+        String accountName = NotesPreferenceActivity.getSyncAccountName(context);
         // 如果找到了合适的用户名，就将其记录下来，下次自动登录，否则返回登录失败
         for (Account a : accounts) {
             if (a.name.equals(accountName)) {
-                account = a;
-                break;
+                return a;
             }
         }
-        if (account != null) {
-            mAccount = account;
-        } else {
-            Log.e(TAG, "unable to get an account with the same name in the settings");
+        Log.e(TAG, "unable to get an account with the same name in the settings");
+        return null;
+    }
+
+    /**
+     * 用以具体实现登录Google账号的方法，方法返回账号令牌
+     * AccountManager：账户管理器，辅助管理账户
+     * @param context 为Activity时可以弹出授权界面，否则需要用户授权时直接失败
+     * @param invalidateToken boolean
+     * @return String
+     */
+    private String loginGoogleAccount(Context context, boolean invalidateToken) {
+        String authToken;
+        // 给用户提供注册账号用的接口
+        AccountManager accountManager = AccountManager.get(context);
+        Account account = findSyncAccount(context);
+        if (account == null) {
             return null;
         }
+        mAccount = account;
 
         // get the token now
         // 从账户中获取目标账户的令牌
-        AccountManagerFuture<Bundle> accountManagerFuture = accountManager.getAuthToken(account,
-                "goanna_mobile", null, activity, null, null);
+        AccountManagerFuture<Bundle> accountManagerFuture;
+        if (context instanceof Activity) {
+            accountManagerFuture = accountManager.getAuthToken(account, "goanna_mobile", null,
+                    (Activity) context, null, null);
+        } else {
+            accountManagerFuture = accountManager.getAuthToken(account, "goanna_mobile", null,
+                    false, null, null);
+        }
         try {
             // bundle是一个key-value对，这里获取目标账户的最终结果集
             Bundle authTokenBundle = accountManagerFuture.getResult();
@@ -255,7 +418,7 @@ public class GTaskClient {
             // 如果是非法的令牌，那么废除这个账号，取消登录状态
             if (invalidateToken) {
                 accountManager.invalidateAuthToken("com.google", authToken);
-                loginGoogleAccount(activity, false);
+                loginGoogleAccount(context, false);
             }
         } catch (Exception e) {
             Log.e(TAG, "get auth token failed");
@@ -266,12 +429,12 @@ public class GTaskClient {
     }
 
     // 用于判断令牌对于登陆gtask账号是否有效
-    private boolean tryToLoginGtask(Activity activity, String authToken) {
+    private boolean tryToLoginGtask(Context context, String authToken) {
         if (!loginGtask(authToken)) {
             // maybe the auth token is out of date, now let's invalidate the
             // token and try again
             // 删除过一个无效的authToken，申请一个新的后再次尝试登陆
-            authToken = loginGoogleAccount(activity, true);
+            authToken = loginGoogleAccount(context, true);
             if (authToken == null) {
                 Log.e(TAG, "login google account failed");
                 return false;
@@ -287,62 +450,26 @@ public class GTaskClient {
 
     // 登录gtask的实现函数，根据令牌判断是否登陆成功
     private boolean loginGtask(String authToken) {
-        // 连接超时为10000毫秒，即10秒
-        int timeoutConnection = 10000;
-        //  端口超时的值为15秒
-        int timeoutSocket = 15000;
-        // 申请一个httpParameters参数类的对象
-        HttpParams httpParameters = new BasicHttpParams();
-        // 设置连接超时的时间
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        // 设置端口超时的时间
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        // 新建一个默认客户端
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        // 为cookie申请存储对象
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        // 设置本地cookie
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        // 设置http协议1.1中的一个header属性Expect 100 Continue
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        // 重新登录时丢弃之前的cookie，保持复用的连接
+        GTaskTransport transport = getTransport();
+        transport.open();
 
         // login gtask
+        Reader in = null;
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
-            HttpGet httpGet = new HttpGet(loginUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            in = transport.get(loginUrl);
 
             // get the cookie now
-            // 获取cookie值
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
-            boolean hasAuthCookie = false;
-            // 遍历cookies集合中的每个Cookie对象，如果有一个Cookie对
-            // 象的名中含有GTL，hasAuthCookie被赋True
-            for (Cookie cookie : cookies) {
-                if (cookie.getName().contains("GTL")) {
-                    hasAuthCookie = true;
-                }
-            }
-            if (!hasAuthCookie) {
+            // 登录后的cookie中应该有名字含有GTL的
+            if (!transport.hasCookie("GTL")) {
                 Log.w(TAG, "it seems that there is no auth cookie");
             }
 
             // get the client version
-            // 获取客户端版本
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            // 设置客户端版本
-            JSONObject js = new JSONObject(jsString);
-            mClientVersion = js.getLong("v");
-        } catch (JSONException e) {
+            // 从页面中读出客户端版本，不需要读完整个页面
+            mClientVersion = GTaskJsonCodec.readClientVersion(in);
+        } catch (MalformedJsonException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             return false;
@@ -350,6 +477,8 @@ public class GTaskClient {
             // simply catch all exceptions
             Log.e(TAG, "httpget gtask_url failed");
             return false;
+        } finally {
+            closeQuietly(in);
         }
 
         return true;
@@ -357,194 +486,223 @@ public class GTaskClient {
 
     // 获取actionID然后加一
     private int getActionId() {
-        return mActionId++;
+        return mActionId.getAndIncrement();
     }
 
     /**
-     * 创建一个用来保存URL的httppost对象
-     * @return HttpPost
+     * 设置请求使用的传输层，在登录之前调用，之前的传输层会被关闭
+     * @param transport GTaskTransport
      */
-    private HttpPost createHttpPost() {
-        HttpPost httpPost = new HttpPost(mPostUrl);
-        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
-        httpPost.setHeader("AT", "1");
-        return httpPost;
+    public synchronized void setTransport(GTaskTransport transport) {
+        if (mTransport != null && mTransport != transport) {
+            mTransport.close();
+        }
+        mTransport = transport;
+        mLoggedin = false;
     }
 
     /**
-     * 获取服务器响应的数据，主要通过方法getContentEncoding来获取网上资源，返回这些资源
-     * @param entity
-     * @return String
-     * @throws IOException IOException
+     * 设置请求失败时的重试策略
+     * @param retryPolicy RetryPolicy
      */
-    private String getResponseContent(HttpEntity entity) throws IOException {
-        String contentEncoding = null;
-        // 如果获取的内容编码不为空，给内容编码赋值，显示encoding：内容编码
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = entity.getContentEncoding().getValue();
-            Log.d(TAG, "encoding: " + contentEncoding);
-        }
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
 
-        // HTTP定义了一些标准的内容编码类型，并允许用扩展的形式添加更多的编码。
-        InputStream input = entity.getContent();
-        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
-        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
-            Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
-        }
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
 
-        // 完成将字节流数据内容进行存储的功能
-        try {
-            InputStreamReader isr = new InputStreamReader(input);
-            BufferedReader br = new BufferedReader(isr);
-            StringBuilder sb = new StringBuilder();
-
-            while (true) {
-                String buff = br.readLine();
-                if (buff == null) {
-                    return sb.toString();
-                }
-                sb = sb.append(buff);
-            }
-        } finally {
-            input.close();
+    private synchronized GTaskTransport getTransport() {
+        if (mTransport == null) {
+            mTransport = new UrlConnectionTransport();
         }
+        return mTransport;
+    }
+
+    /**
+     * 边读边解码响应内容的解析器
+     */
+    private interface ResponseParser<T> {
+        T parse(Reader in) throws IOException;
+    }
+
+    /**
+     * 请求可能已经被服务器执行但响应丢失时，在重发前去掉不能重复执行的动作
+     */
+    private interface ReplayHandler {
+        /**
+         * @param actionList 上次发送的动作列表
+         * @return 需要重发的动作列表，都已经执行过时返回null
+         * @throws NetworkFailureException 有不能确定是否执行过的动作，不能重发时
+         */
+        JSONArray onReplay(JSONArray actionList) throws NetworkFailureException;
     }
 
+    private static final ResponseParser<ArrayList<RemoteNode>> TASKS_PARSER =
+            new ResponseParser<ArrayList<RemoteNode>>() {
+                public ArrayList<RemoteNode> parse(Reader in) throws IOException {
+                    return GTaskJsonCodec.readTasks(in);
+                }
+            };
+
+    private static final ResponseParser<ArrayList<GTaskJsonCodec.NewId>> NEW_IDS_PARSER =
+            new ResponseParser<ArrayList<GTaskJsonCodec.NewId>>() {
+                public ArrayList<GTaskJsonCodec.NewId> parse(Reader in) throws IOException {
+                    return GTaskJsonCodec.readNewIds(in);
+                }
+            };
+
     /**
-     * 利用JSON发送请求，返回获取的内容
-     * @param js JSONObject
-     * @return JSONObject
+     * 发送动作列表，用parser边读边解码响应。暂时性的网络错误按重试策略重发同一个动作列表，
+     * 动作的action_id不变；更新、移动和删除动作重复执行的结果相同，响应中断前已经返回结果的
+     * 创建动作由replay在重发前去掉
+     * @param actionList JSONArray
+     * @param parser ResponseParser
+     * @param replay 动作列表中有创建动作时用来去掉已经执行过的动作，可以为null
+     * @return 解码的结果，所有动作在失败前都已经执行过时返回null
      * @throws NetworkFailureException NetworkFailureException
      */
-    private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+    private <T> T postRequest(JSONArray actionList, ResponseParser<T> parser,
+            ReplayHandler replay) throws NetworkFailureException {
         // 未登录，输出提示信息
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
-        // 实例化一个httpPost的对象用来向服务器传输数据，发送在js里请求的内容
-        HttpPost httpPost = createHttpPost();
-        try {
-            // LinkedList 类：是一个继承于AbstractSequentialList的双向链表
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
-            list.add(new BasicNameValuePair("r", js.toString()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
-
-            // execute the post
-            // 执行发布的请求
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
-
-        } catch (ClientProtocolException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("postRequest failed");
-        } catch (IOException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("postRequest failed");
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("unable to convert response content to jsonobject");
-        } catch (Exception e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("error occurs when posting request");
+        // 请求内容以表单的形式放在参数r中
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
+        headers.put("AT", "1");
+        RetryPolicy retryPolicy = mRetryPolicy;
+        boolean relogin = false;
+        int attempt = 0;
+        while (true) {
+            int generation = mSessionGeneration;
+            Reader in = null;
+            try {
+                byte[] body = GTaskJsonCodec.encodeRequest(actionList, mClientVersion);
+
+                // execute the post
+                // 执行发布的请求
+                in = getTransport().post(mPostUrl, headers, body);
+                return parser.parse(in);
+            } catch (SessionRejectedException e) {
+                // 被拒绝的请求没有被服务器执行，重新登录后再发送一次
+                Log.w(TAG, e.toString());
+                if (relogin || !reloginIfRejected(generation)) {
+                    throw new NetworkFailureException("postRequest: session rejected");
+                }
+                relogin = true;
+            } catch (MalformedJsonException e) {
+                Log.e(TAG, e.toString());
+                e.printStackTrace();
+                throw new ActionFailureException("unable to convert response content to jsonobject");
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                attempt++;
+                if (!retryPolicy.retry(e, attempt)) {
+                    e.printStackTrace();
+                    throw new NetworkFailureException("postRequest failed", e);
+                }
+                if (replay != null && RetryPolicy.mayHaveBeenApplied(e)) {
+                    actionList = replay.onReplay(actionList);
+                    if (actionList == null) {
+                        return null;
+                    }
+                }
+                Log.w(TAG, "retry postRequest, attempt " + (attempt + 1));
+            } catch (Exception e) {
+                Log.e(TAG, e.toString());
+                e.printStackTrace();
+                throw new ActionFailureException("error occurs when posting request");
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    private static void closeQuietly(Reader in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(TAG, "failed to close response: " + e.toString());
+            }
         }
     }
 
     /**
-     * 创建单个任务，通过json获取TASK中的内容并创建对应的jsPost，通过postRequest方法获取任务的返回信息，使用setGid方法设置task的new_id
-     * @param task Task
-     * @throws NetworkFailureException NetworkFailureException
+     * 节点创建完成的回调，在包含创建动作的请求返回并设置了gid之后调用
      */
-    public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+    public interface OnCreatedListener {
+        void onCreated(Node node) throws NetworkFailureException;
+    }
 
-            // action_list
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    /**
+     * 获取默认的动作队列
+     * @return ActionQueue
+     */
+    public ActionQueue getActionQueue() {
+        return mQueue;
+    }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    /**
+     * 新建一个不自动提交的动作队列。不同的队列可以在不同的线程中同时发送，一个队列中的动作
+     * 仍按加入的顺序发送
+     * @return ActionQueue
+     */
+    public ActionQueue newActionQueue() {
+        return new ActionQueue(false);
+    }
 
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+    /**
+     * 创建单个任务。创建动作和其他动作一起进入动作队列，gid在队列提交后才被设置
+     * @param task Task
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    public void createTask(Task task) throws NetworkFailureException {
+        mQueue.createTask(task, null);
+    }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
-        }
+    /**
+     * 创建单个任务，任务的gid被设置后调用listener
+     * @param task Task
+     * @param listener OnCreatedListener
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    public void createTask(Task task, OnCreatedListener listener)
+            throws NetworkFailureException {
+        mQueue.createTask(task, listener);
     }
 
     /**
-     * 创建任务列表
+     * 创建任务列表。创建动作进入动作队列，需要立即使用gid时调用commitUpdate
      * @param tasklist TaskList
      * @throws NetworkFailureException NetworkFailureException
      */
     public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+        mQueue.createTaskList(tasklist, null);
+    }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
-        }
+    /**
+     * 创建任务列表，任务列表的gid被设置后调用listener
+     * @param tasklist TaskList
+     * @param listener OnCreatedListener
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    public void createTaskList(TaskList tasklist, OnCreatedListener listener)
+            throws NetworkFailureException {
+        mQueue.createTaskList(tasklist, listener);
     }
 
     /**
-     * 提交更新数据，还是利用JSON
+     * 提交默认动作队列中的所有动作
      * @throws NetworkFailureException NetworkFailureException
      */
     public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) {
-            try {
-                JSONObject jsPost = new JSONObject();
-
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
-
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-                // post操作
-                postRequest(jsPost);
-                mUpdateArray = null;
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
-                e.printStackTrace();
-                throw new ActionFailureException("commit update: handing jsonobject failed");
-            }
-        }
+        mQueue.commitUpdate();
     }
 
     /**
@@ -553,24 +711,11 @@ public class GTaskClient {
      * @throws NetworkFailureException NetworkFailureException
      */
     public void addUpdateNode(Node node) throws NetworkFailureException {
-        if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            // 提交后更新
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
-            }
-
-            if (mUpdateArray == null) {
-                mUpdateArray = new JSONArray();
-            }
-            // 将更新节点加入列表
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
-        }
+        mQueue.addUpdateNode(node);
     }
 
     /**
-     * 移动一个任务，通过getGid获取task所属的Id，通过JSONObject和postRequest实现
+     * 移动一个任务，移动动作进入动作队列，与之前的动作按顺序提交
      * @param task Task
      * @param preParent TaskList
      * @param curParent TaskList
@@ -578,130 +723,448 @@ public class GTaskClient {
      */
     public void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        commitUpdate();
-        // 操作列表
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-            JSONObject action = new JSONObject();
+        mQueue.moveTask(task, preParent, curParent);
+    }
 
-            // action_list
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
-                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
-            action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
-            if (preParent == curParent && task.getPriorSibling() != null) {
-                // put prioring_sibing_id only if moving within the tasklist and
-                // it is not the first one
-                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getPriorSibling());
+    /**
+     * 删除节点操作，删除动作进入动作队列
+     * @param node Node
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    public void deleteNode(Node node) throws NetworkFailureException {
+        mQueue.deleteNode(node);
+    }
+
+    /**
+     * 动作队列，创建、更新、移动和删除动作按加入的顺序提交，每个请求最多包含
+     * MAX_ACTIONS_PER_POST个动作。创建动作返回的new_id按action_id设置到对应的节点上
+     */
+    public class ActionQueue {
+        /**
+         * 为true时动作满一个请求就提交，否则只在调用commitUpdate或post时提交
+         */
+        private final boolean mAutoCommit;
+
+        /**
+         * 还没有发送的请求，每个请求最多包含MAX_ACTIONS_PER_POST个动作
+         */
+        private final LinkedList<PendingPost> mPosts;
+
+        /**
+         * 已经发送并设置了gid，还没有调用回调的创建动作
+         */
+        private final ArrayList<PendingCreate> mCreated;
+
+        private ActionQueue(boolean autoCommit) {
+            mAutoCommit = autoCommit;
+            mPosts = new LinkedList<PendingPost>();
+            mCreated = new ArrayList<PendingCreate>();
+        }
+
+        /**
+         * 创建单个任务，任务的gid被设置后调用listener
+         * @param task Task
+         * @param listener OnCreatedListener
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        public synchronized void createTask(Task task, OnCreatedListener listener)
+                throws NetworkFailureException {
+            // the create action refers to the list by gid, a prior sibling that is still
+            // pending is left out of the action and the index of the task places it instead
+            flushIfPending(task.getParent());
+            queueAction(task.getCreateAction(getActionId()), task, listener);
+        }
+
+        /**
+         * 创建任务列表，任务列表的gid被设置后调用listener
+         * @param tasklist TaskList
+         * @param listener OnCreatedListener
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        public synchronized void createTaskList(TaskList tasklist, OnCreatedListener listener)
+                throws NetworkFailureException {
+            queueAction(tasklist.getCreateAction(getActionId()), tasklist, listener);
+        }
+
+        /**
+         * 提交队列中的所有动作并调用创建完成的回调，回调中加入的动作也在返回前被提交
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        public synchronized void commitUpdate() throws NetworkFailureException {
+            do {
+                post();
+                dispatchCreated();
+            } while (!mPosts.isEmpty());
+        }
+
+        /**
+         * 按顺序发送队列中的所有请求，但不调用创建完成的回调，可以在工作线程中调用。
+         * 请求失败时之前的请求创建的节点仍然等待回调
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        public synchronized void post() throws NetworkFailureException {
+            while (!mPosts.isEmpty()) {
+                final PendingPost pending = mPosts.peek();
+                ResponseParser<ArrayList<GTaskJsonCodec.NewId>> parser = NEW_IDS_PARSER;
+                ReplayHandler replay = null;
+                if (!pending.creates.isEmpty()) {
+                    parser = new ResponseParser<ArrayList<GTaskJsonCodec.NewId>>() {
+                        public ArrayList<GTaskJsonCodec.NewId> parse(Reader in)
+                                throws IOException {
+                            pending.returned.clear();
+                            return GTaskJsonCodec.readNewIds(in, pending.returned);
+                        }
+                    };
+                    replay = new ReplayHandler() {
+                        public JSONArray onReplay(JSONArray actionList)
+                                throws NetworkFailureException {
+                            return adoptReturned(pending);
+                        }
+                    };
+                }
+                // post操作
+                ArrayList<GTaskJsonCodec.NewId> newIds = postRequest(pending.actions,
+                        parser, replay);
+                mPosts.poll();
+                if (!pending.creates.isEmpty()) {
+                    setNewIds(newIds, pending.creates);
+                    mCreated.addAll(pending.creates.values());
+                }
             }
-            action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
-            action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
-            if (preParent != curParent) {
-                // put the dest_list only if moving between tasklists
-                action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
+        }
+
+        /**
+         * 调用已经发送的创建动作的回调，回调中加入的动作留在队列中
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        public synchronized void dispatchCreated() throws NetworkFailureException {
+            ArrayList<PendingCreate> created = new ArrayList<PendingCreate>(mCreated);
+            mCreated.clear();
+            for (PendingCreate create : created) {
+                if (create.listener != null) {
+                    create.listener.onCreated(create.node);
+                }
             }
-            actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+        }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+        /**
+         * 队列中是否还有没有发送的动作
+         * @return boolean
+         */
+        public synchronized boolean hasPendingUpdate() {
+            return !mPosts.isEmpty();
+        }
 
-            postRequest(jsPost);
+        /**
+         * 清空队列
+         */
+        public synchronized void reset() {
+            mPosts.clear();
+            mCreated.clear();
+        }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("move task: handing jsonobject failed");
+        /**
+         * 包含创建动作的请求可能已经被服务器执行时，只采用响应中断前已经读到的结果：按action_id
+         * 设置gid并从请求中去掉这些创建动作。还有没读到结果的创建动作时不再重发，服务器可能已经
+         * 执行过，重发会多出一个相同的任务，也不能把内容相同的已有任务当成自己的，这时请求失败，
+         * 本地节点保持没有gid
+         * @param pending 失败的请求
+         * @return 需要重发的动作列表，都已经执行过时返回null
+         * @throws NetworkFailureException 有创建动作没有读到结果时
+         */
+        private JSONArray adoptReturned(PendingPost pending) throws NetworkFailureException {
+            HashSet<Integer> adoptedActions = new HashSet<Integer>();
+            for (GTaskJsonCodec.NewId newId : pending.returned) {
+                PendingCreate create = pending.creates.remove(newId.actionId);
+                if (create != null) {
+                    Log.d(TAG, "node has been created before the failure: " + newId.gid);
+                    create.node.setGid(newId.gid);
+                    adoptedActions.add(newId.actionId);
+                    mCreated.add(create);
+                }
+            }
+            pending.returned.clear();
+            if (!adoptedActions.isEmpty()) {
+                JSONArray actions = new JSONArray();
+                for (int i = 0; i < pending.actions.length(); i++) {
+                    JSONObject action = pending.actions.optJSONObject(i);
+                    if (!adoptedActions.contains(
+                            action.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID))) {
+                        actions.put(action);
+                    }
+                }
+                pending.actions = actions;
+            }
+            if (!pending.creates.isEmpty()) {
+                // 整个请求不再发送，其中其他动作的节点仍是本地修改过的，下次同步再上传
+                mPosts.remove(pending);
+                throw new NetworkFailureException("no result of " + pending.creates.size()
+                        + " create actions which may have been applied");
+            }
+            return pending.actions.length() > 0 ? pending.actions : null;
+        }
+
+        /**
+         * 把请求结果中的new_id设置到对应的节点上，结果中没有action_id时按创建动作的顺序对应
+         * @param newIds 响应中的新gid
+         * @param creates 本次请求中的创建动作
+         */
+        private void setNewIds(ArrayList<GTaskJsonCodec.NewId> newIds,
+                LinkedHashMap<Integer, PendingCreate> creates) {
+            if (newIds == null) {
+                newIds = new ArrayList<GTaskJsonCodec.NewId>();
+            }
+            LinkedList<PendingCreate> unresolved = new LinkedList<PendingCreate>(
+                    creates.values());
+            for (GTaskJsonCodec.NewId newId : newIds) {
+                PendingCreate create = creates.get(newId.actionId);
+                if (create == null || !unresolved.contains(create)) {
+                    create = unresolved.peek();
+                }
+                if (create != null) {
+                    create.node.setGid(newId.gid);
+                    unresolved.remove(create);
+                }
+            }
+            if (!unresolved.isEmpty()) {
+                throw new ActionFailureException("create node: no new id returned");
+            }
+        }
+
+        /**
+         * 把动作加入队列，自动提交的队列满一个请求时先提交，否则开始一个新的请求
+         * @param action JSONObject
+         * @param created 创建动作对应的节点，其他动作为null
+         * @param listener OnCreatedListener
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        private void queueAction(JSONObject action, Node created, OnCreatedListener listener)
+                throws NetworkFailureException {
+            // too many update items may result in an error
+            // set max to 10 items
+            PendingPost pending = mPosts.peekLast();
+            if (pending != null && pending.actions.length() >= MAX_ACTIONS_PER_POST) {
+                if (mAutoCommit) {
+                    commitUpdate();
+                }
+                pending = mPosts.peekLast();
+                if (pending != null && pending.actions.length() >= MAX_ACTIONS_PER_POST) {
+                    pending = null;
+                }
+            }
+
+            if (pending == null) {
+                pending = new PendingPost();
+                mPosts.add(pending);
+            }
+            pending.actions.put(action);
+            if (created != null) {
+                try {
+                    pending.creates.put(action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID),
+                            new PendingCreate(created, listener));
+                } catch (JSONException e) {
+                    Log.e(TAG, e.toString());
+                    throw new ActionFailureException("create node: no action id");
+                }
+            }
+        }
+
+        /**
+         * 若动作引用的节点还在等待创建，先提交队列以获得它们的gid
+         * @param nodes 动作引用的节点
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        private void flushIfPending(Node... nodes) throws NetworkFailureException {
+            for (Node node : nodes) {
+                if (node != null && node.getGid() == null) {
+                    for (PendingPost pending : mPosts) {
+                        for (PendingCreate create : pending.creates.values()) {
+                            if (create.node == node) {
+                                commitUpdate();
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * 添加更新注意事项
+         * @param node Node
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        public synchronized void addUpdateNode(Node node) throws NetworkFailureException {
+            if (node != null) {
+                flushIfPending(node);
+                // 将更新节点加入列表
+                queueAction(node.getUpdateAction(getActionId()), null, null);
+            }
+        }
+
+        /**
+         * 移动一个任务，移动动作进入动作队列，与之前的动作按顺序提交
+         * @param task Task
+         * @param preParent TaskList
+         * @param curParent TaskList
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        public synchronized void moveTask(Task task, TaskList preParent, TaskList curParent)
+                throws NetworkFailureException {
+            flushIfPending(task, task.getPriorSibling(), preParent, curParent);
+            // 操作列表
+            try {
+                JSONObject action = new JSONObject();
+
+                // action_list
+                action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                        GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
+                action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
+                action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
+                if (preParent == curParent && task.getPriorSibling() != null) {
+                    // put prioring_sibing_id only if moving within the tasklist and
+                    // it is not the first one
+                    action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+                            task.getPriorSibling().getGid());
+                }
+                action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
+                action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
+                if (preParent != curParent) {
+                    // put the dest_list only if moving between tasklists
+                    action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
+                }
+                queueAction(action, null, null);
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                e.printStackTrace();
+                throw new ActionFailureException("move task: handing jsonobject failed");
+            }
+        }
+
+        /**
+         * 删除节点操作，删除动作进入动作队列
+         * @param node Node
+         * @throws NetworkFailureException NetworkFailureException
+         */
+        public synchronized void deleteNode(Node node) throws NetworkFailureException {
+            flushIfPending(node);
+            // action_list
+            node.setDeleted(true);
+            queueAction(node.getUpdateAction(getActionId()), null, null);
         }
     }
 
     /**
-     * 删除节点操作
-     * @param node Node
-     * @throws NetworkFailureException NetworkFailureException
+     * 一个还没有发送的请求
      */
-    public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate();
-        // 新建jsPost，把除了node的其他节点都放入jsPost，并提交
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+    private static class PendingPost {
+        /**
+         * 请求中的动作，重发前会去掉已经执行过的创建动作
+         */
+        JSONArray actions = new JSONArray();
 
-            // action_list
-            node.setDeleted(true);
-            actionList.put(node.getUpdateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+        /**
+         * 请求中创建动作的action_id到节点的映射
+         */
+        final LinkedHashMap<Integer, PendingCreate> creates =
+                new LinkedHashMap<Integer, PendingCreate>();
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+        /**
+         * 本次发送已经解码的创建结果，响应读到一半失败时用来确认哪些创建动作已经执行
+         */
+        final ArrayList<GTaskJsonCodec.NewId> returned = new ArrayList<GTaskJsonCodec.NewId>();
+    }
 
-            postRequest(jsPost);
-            mUpdateArray = null;
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("delete node: handing jsonobject failed");
+    /**
+     * 队列中等待返回gid的创建动作
+     */
+    private static class PendingCreate {
+        final Node node;
+
+        final OnCreatedListener listener;
+
+        PendingCreate(Node node, OnCreatedListener listener) {
+            this.node = node;
+            this.listener = listener;
         }
     }
 
     /**
-     * 获取任务列表，首先通过getURI在网上获取数据，在截取所需部分内容返回
-     * @return JSONArray
+     * 获取任务列表，从页面中找到任务数据的开始位置后边读边解码
+     * @return 按服务器顺序排列的任务列表
      * @throws NetworkFailureException NetworkFailureException
      */
-    public JSONArray getTaskLists() throws NetworkFailureException {
+    public ArrayList<RemoteNode> getTaskLists() throws NetworkFailureException {
         // 如果没有登录则显示请先登录，抛出一个异常
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
-        // 使用url实例化一个获取对象
-        try {
-            HttpGet httpGet = new HttpGet(mGetUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
-
-            // get the task list
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
+        RetryPolicy retryPolicy = mRetryPolicy;
+        boolean relogin = false;
+        int attempt = 0;
+        while (true) {
+            int generation = mSessionGeneration;
+            Reader in = null;
+            try {
+                // get the task list
+                in = getTransport().get(mGetUrl);
+                return GTaskJsonCodec.readTaskLists(in);
+            } catch (SessionRejectedException e) {
+                Log.w(TAG, e.toString());
+                if (relogin || !reloginIfRejected(generation)) {
+                    throw new NetworkFailureException("gettasklists: session rejected");
+                }
+                relogin = true;
+            } catch (MalformedJsonException e) {
+                // 会话失效时服务器返回登录页面，页面中找不到任务数据，重新登录后再获取一次
+                Log.e(TAG, e.toString());
+                if (relogin || !reloginIfRejected(generation)) {
+                    e.printStackTrace();
+                    throw new ActionFailureException("get task lists: handing jasonobject failed");
+                }
+                relogin = true;
+            } catch (IOException e) {
+                // 获取任务列表不改变服务器的数据，可以直接重试
+                Log.e(TAG, e.toString());
+                attempt++;
+                if (!retryPolicy.retry(e, attempt)) {
+                    e.printStackTrace();
+                    throw new NetworkFailureException("gettasklists: httpget failed", e);
+                }
+                Log.w(TAG, "retry gettasklists, attempt " + (attempt + 1));
+            } catch (RuntimeException e) {
+                Log.e(TAG, e.toString());
+                e.printStackTrace();
+                throw new ActionFailureException("get task lists: handing jasonobject failed");
+            } finally {
+                closeQuietly(in);
             }
-            JSONObject js = new JSONObject(jsString);
-            return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
-        } catch (ClientProtocolException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("gettasklists: httpget failed");
-        } catch (IOException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("gettasklists: httpget failed");
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("get task lists: handing jasonobject failed");
         }
     }
 
     /**
      * 对于已经获取的任务列表，可以通过其id来获取到
      * @param listGid String
-     * @return JSONArray
+     * @return 任务列表中的任务
      * @throws NetworkFailureException NetworkFailureException
      */
-    public JSONArray getTaskList(String listGid) throws NetworkFailureException {
+    public ArrayList<RemoteNode> getTaskList(String listGid) throws NetworkFailureException {
         commitUpdate();
+        return fetchTaskList(listGid);
+    }
+
+    /**
+     * 获取任务列表中的任务，与getTaskList不同的是不提交等待中的更新，可以被多个线程同时调用
+     * @param listGid String
+     * @return 任务列表中的任务
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    public ArrayList<RemoteNode> fetchTaskList(String listGid) throws NetworkFailureException {
         // 设置为传入的listGid
+        JSONArray actionList = new JSONArray();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
             JSONObject action = new JSONObject();
 
             // action_list
@@ -711,18 +1174,12 @@ public class GTaskClient {
             action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listGid);
             action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
             actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            JSONObject jsResponse = postRequest(jsPost);
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("get task list: handing jsonobject failed");
         }
+        return postRequest(actionList, TASKS_PARSER, null);
     }
 
     // 获得同步账户
@@ -730,8 +1187,16 @@ public class GTaskClient {
         return mAccount;
     }
 
+    /**
+     * 动作队列中是否还有没有提交的动作
+     * @return boolean
+     */
+    public boolean hasPendingUpdate() {
+        return mQueue.hasPendingUpdate();
+    }
+
     // 重置更新内容
     public void resetUpdateArray() {
-        mUpdateArray = null;
+        mQueue.reset();
     }
 }
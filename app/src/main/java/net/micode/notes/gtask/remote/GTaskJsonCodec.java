@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.MalformedJsonException;
+
+import net.micode.notes.gtask.data.RemoteNode;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+
+/**
+ * GTask请求和响应的流式编解码。响应边读边解码成RemoteNode，不再生成整个响应的字符串和JSONObject树；
+ * 请求直接以表单编码写成字节，不再经过完整的json字符串和url编码后的字符串
+ */
+final class GTaskJsonCodec {
+    /**
+     * 页面中任务数据开始的标记
+     */
+    private static final String SETUP_BEGIN = "_setup(";
+
+    /**
+     * 创建动作返回的新gid
+     */
+    static class NewId {
+        /**
+         * 对应的action_id，响应中没有时为-1
+         */
+        final int actionId;
+
+        final String gid;
+
+        NewId(int actionId, String gid) {
+            this.actionId = actionId;
+            this.gid = gid;
+        }
+    }
+
+    private GTaskJsonCodec() {
+    }
+
+    /**
+     * 从登录后的页面中读取客户端版本
+     * @param in 页面内容
+     * @return 客户端版本
+     * @throws IOException 读取失败或内容中没有版本
+     */
+    static long readClientVersion(Reader in) throws IOException {
+        JsonReader reader = openSetup(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("v".equals(reader.nextName())) {
+                return reader.nextLong();
+            }
+            reader.skipValue();
+        }
+        throw new MalformedJsonException("no client version in page");
+    }
+
+    /**
+     * 从页面中读取所有任务列表
+     * @param in 页面内容
+     * @return 按页面中的顺序排列的任务列表
+     * @throws IOException 读取失败或内容格式错误
+     */
+    static ArrayList<RemoteNode> readTaskLists(Reader in) throws IOException {
+        JsonReader reader = openSetup(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"t".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (GTaskStringUtils.GTASK_JSON_LISTS.equals(reader.nextName())) {
+                    ArrayList<RemoteNode> lists = readNodes(reader);
+                    for (RemoteNode list : lists) {
+                        if (list.getName() == null) {
+                            throw new MalformedJsonException("task list without name");
+                        }
+                    }
+                    return lists;
+                }
+                reader.skipValue();
+            }
+            reader.endObject();
+        }
+        throw new MalformedJsonException("no task lists in page");
+    }
+
+    /**
+     * 读取获取任务列表中所有任务的响应
+     * @param in 响应内容
+     * @return 按响应中的顺序排列的任务
+     * @throws IOException 读取失败或内容格式错误
+     */
+    static ArrayList<RemoteNode> readTasks(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (GTaskStringUtils.GTASK_JSON_TASKS.equals(reader.nextName())) {
+                return readNodes(reader);
+            }
+            reader.skipValue();
+        }
+        throw new MalformedJsonException("no tasks in response");
+    }
+
+    /**
+     * 读取提交动作的响应中创建动作返回的新gid
+     * @param in 响应内容
+     * @return 按响应中的顺序排列的新gid
+     * @throws IOException 读取失败或内容格式错误
+     */
+    static ArrayList<NewId> readNewIds(Reader in) throws IOException {
+        return readNewIds(in, new ArrayList<NewId>());
+    }
+
+    /**
+     * 读取提交动作的响应中创建动作返回的新gid，每解码一个结果就加入newIds，读取失败时newIds中
+     * 保留失败前已经完整解码的结果
+     * @param in 响应内容
+     * @param newIds 保存结果的列表
+     * @return newIds
+     * @throws IOException 读取失败或内容格式错误
+     */
+    static ArrayList<NewId> readNewIds(Reader in, ArrayList<NewId> newIds) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!GTaskStringUtils.GTASK_JSON_RESULTS.equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                int actionId = -1;
+                String gid = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.skipValue();
+                    } else if (GTaskStringUtils.GTASK_JSON_ACTION_ID.equals(name)) {
+                        actionId = reader.nextInt();
+                    } else if (GTaskStringUtils.GTASK_JSON_NEW_ID.equals(name)) {
+                        gid = reader.nextString().intern();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (gid != null) {
+                    newIds.add(new NewId(actionId, gid));
+                }
+            }
+            reader.endArray();
+            return newIds;
+        }
+        throw new MalformedJsonException("no results in response");
+    }
+
+    /**
+     * 把动作列表编码成表单形式的请求内容r=...
+     * @param actionList 动作列表
+     * @param clientVersion 客户端版本
+     * @return UTF-8编码的请求内容
+     * @throws IOException 编码失败
+     */
+    static byte[] encodeRequest(JSONArray actionList, long clientVersion) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256 + actionList.length() * 256);
+        out.write('r');
+        out.write('=');
+        JsonWriter writer = new JsonWriter(new FormEncodingWriter(out));
+        writer.beginObject();
+        // action_list
+        writer.name(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+        writeValue(writer, actionList);
+        // client_version
+        writer.name(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION).value(clientVersion);
+        writer.endObject();
+        writer.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * 跳过页面内容直到任务数据开始的位置，标记中没有重复的前缀，匹配失败时只需要重新比较当前字符
+     */
+    private static JsonReader openSetup(Reader in) throws IOException {
+        int matched = 0;
+        while (matched < SETUP_BEGIN.length()) {
+            int c = in.read();
+            if (c == -1) {
+                throw new MalformedJsonException("no setup data in page");
+            }
+            if (c == SETUP_BEGIN.charAt(matched)) {
+                matched++;
+            } else {
+                matched = c == SETUP_BEGIN.charAt(0) ? 1 : 0;
+            }
+        }
+        // 页面中的数据是脚本，和JSONObject一样宽松地解析
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static ArrayList<RemoteNode> readNodes(JsonReader reader) throws IOException {
+        ArrayList<RemoteNode> nodes = new ArrayList<RemoteNode>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            RemoteNode node = readNode(reader);
+            if (node.getGid() == null) {
+                throw new MalformedJsonException("node without id");
+            }
+            nodes.add(node);
+        }
+        reader.endArray();
+        return nodes;
+    }
+
+    private static RemoteNode readNode(JsonReader reader) throws IOException {
+        RemoteNode node = new RemoteNode();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (GTaskStringUtils.GTASK_JSON_ID.equals(name)) {
+                node.setGid(reader.nextString().intern());
+            } else if (GTaskStringUtils.GTASK_JSON_NAME.equals(name)) {
+                node.setName(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_NOTES.equals(name)) {
+                node.setNotes(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_LAST_MODIFIED.equals(name)) {
+                node.setLastModified(reader.nextLong());
+            } else if (GTaskStringUtils.GTASK_JSON_DELETED.equals(name)) {
+                node.setDeleted(reader.nextBoolean());
+            } else if (GTaskStringUtils.GTASK_JSON_COMPLETED.equals(name)) {
+                node.setCompleted(reader.nextBoolean());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return node;
+    }
+
+    /**
+     * 把动作中的值写入writer，动作本身很小，仍由各个节点生成JSONObject
+     */
+    private static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            writer.nullValue();
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writer.beginObject();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writer.name(key);
+                writeValue(writer, object.opt(key));
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writer.beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(writer, array.opt(i));
+            }
+            writer.endArray();
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    /**
+     * 以application/x-www-form-urlencoded的规则把字符编码成UTF-8字节，与URLEncoder的结果相同
+     */
+    private static class FormEncodingWriter extends Writer {
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+        private final ByteArrayOutputStream mOut;
+
+        /**
+         * 等待低位代理字符的高位代理字符，没有时为0
+         */
+        private char mHighSurrogate;
+
+        FormEncodingWriter(ByteArrayOutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                write(buffer[i]);
+            }
+        }
+
+        @Override
+        public void write(int c) {
+            char ch = (char) c;
+            if (mHighSurrogate != 0) {
+                char high = mHighSurrogate;
+                mHighSurrogate = 0;
+                if (Character.isLowSurrogate(ch)) {
+                    writeCodePoint(Character.toCodePoint(high, ch));
+                    return;
+                }
+                writeCodePoint('?');
+            }
+            if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+                    || ch == '.' || ch == '-' || ch == '*' || ch == '_') {
+                mOut.write(ch);
+            } else if (ch == ' ') {
+                mOut.write('+');
+            } else if (Character.isHighSurrogate(ch)) {
+                mHighSurrogate = ch;
+            } else if (Character.isLowSurrogate(ch)) {
+                writeCodePoint('?');
+            } else {
+                writeCodePoint(ch);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            if (mHighSurrogate != 0) {
+                mHighSurrogate = 0;
+                writeCodePoint('?');
+            }
+        }
+
+        private void writeCodePoint(int codePoint) {
+            if (codePoint < 0x80) {
+                writeEscaped(codePoint);
+            } else if (codePoint < 0x800) {
+                writeEscaped(0xc0 | (codePoint >> 6));
+                writeEscaped(0x80 | (codePoint & 0x3f));
+            } else if (codePoint < 0x10000) {
+                writeEscaped(0xe0 | (codePoint >> 12));
+                writeEscaped(0x80 | ((codePoint >> 6) & 0x3f));
+                writeEscaped(0x80 | (codePoint & 0x3f));
+            } else {
+                writeEscaped(0xf0 | (codePoint >> 18));
+                writeEscaped(0x80 | ((codePoint >> 12) & 0x3f));
+                writeEscaped(0x80 | ((codePoint >> 6) & 0x3f));
+                writeEscaped(0x80 | (codePoint & 0x3f));
+            }
+        }
+
+        private void writeEscaped(int b) {
+            mOut.write('%');
+            mOut.write(HEX[(b >> 4) & 0xf]);
+            mOut.write(HEX[b & 0xf]);
+        }
+    }
+}
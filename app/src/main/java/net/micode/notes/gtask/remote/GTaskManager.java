@@ -17,35 +17,53 @@
 package net.micode.notes.gtask.remote;
 
 import android.app.Activity;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.Bundle;
+import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.data.MetaBundle;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.RemoteNode;
+import net.micode.notes.gtask.data.SqlDataLoader;
 import net.micode.notes.gtask.data.SqlNote;
+import net.micode.notes.gtask.data.SqlWriteSession;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.tool.LongHashMap;
+import net.micode.notes.tool.LongHashSet;
+import net.micode.notes.tool.StringLongHashMap;
+import net.micode.notes.ui.NotesPreferenceActivity;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -67,6 +85,76 @@ public class GTaskManager {
 
     public static final int STATE_SYNC_CANCELLED = 4;
 
+    /**
+     * 同步期间合并本地数据变化通知的时间窗口(毫秒)
+     */
+    private static final long SYNC_NOTIFY_DEBOUNCE = 1000;
+
+    /**
+     * 并发获取任务列表时的最大线程数
+     */
+    private static final int MAX_FETCH_THREADS = 4;
+
+    /**
+     * 查不到gid对应的便签id或同步id时返回的值，便签id和修改时间都不会取到它
+     */
+    private static final long NO_ID = Long.MIN_VALUE;
+
+    /**
+     * 有同步动作的节点数达到这个值时提交一批并保存检查点
+     */
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    /**
+     * 距上次完整同步超过这个时间(毫秒)时进行完整同步，否则进行增量同步
+     */
+    private static final long FULL_SYNC_INTERVAL = 24 * 60 * 60 * 1000L;
+
+    /**
+     * 一次查询中按gid查找便签的最大个数
+     */
+    private static final int MAX_GID_ARGS = 500;
+
+    /**
+     * 同步在note表上使用的查询条件，QueryPlanTest检查它们都能使用索引。
+     * 回收站中除系统文件夹外的节点
+     */
+    public static final String SELECTION_TRASH_NODES = "(type<>? AND parent_id=?)";
+
+    /**
+     * 回收站之外的某一类节点
+     */
+    public static final String SELECTION_OUTSIDE_TRASH = "(type=? AND parent_id<>?)";
+
+    /**
+     * 回收站之外的文件夹，加上根文件夹和通话记录文件夹
+     */
+    public static final String SELECTION_LOCAL_FOLDERS = SELECTION_OUTSIDE_TRASH
+            + " OR _id=? OR _id=?";
+
+    /**
+     * 本地修改过的便签和回收站中的便签
+     */
+    public static final String SELECTION_DIRTY_NOTES =
+            "(local_modified=1 AND type=?) OR (type=? AND parent_id=?)";
+
+    /**
+     * 回收站之外本地修改过的便签
+     */
+    public static final String SELECTION_MODIFIED_NOTES =
+            "(local_modified=1 AND type=? AND parent_id<>?)";
+
+    /**
+     * 若干文件夹中的便签，用文件夹个数的"?"格式化
+     */
+    public static final String SELECTION_NOTES_IN_FOLDERS = "(type=? AND parent_id IN (%s))";
+
+    /**
+     * 需要刷新同步id的便签和文件夹，用type IN代替type<>系统类型才能使用type索引
+     */
+    public static final String SELECTION_REFRESH_SYNC_ID =
+            "(type IN (?,?) AND parent_id<>?) OR _id=? OR _id=?";
+
     private static GTaskManager mInstance = null;
 
     /**
@@ -88,13 +176,123 @@ public class GTaskManager {
 
     private HashMap<String, MetaData> mMetaHashMap;
 
+    /**
+     * 元数据列表中的元数据包，以及便签的gid到包含其元数据的包的映射。放不进包的大便签和
+     * 还没有迁移的便签仍使用mMetaHashMap中单独的元数据
+     */
+    private ArrayList<MetaBundle> mMetaBundles;
+
+    private HashMap<String, MetaBundle> mBundleHashMap;
+
+    /**
+     * 已经放入元数据包的单独元数据，在包写入远端之后删除
+     */
+    private ArrayList<MetaData> mRetiredMetas;
+
+    /**
+     * 远端存在的便签任务的gid，包括获取到的任务和本次同步中写入了元数据的任务。规划时
+     * mGTaskHashMap中处理过的节点会被移除，迁移元数据时用它判断便签在远端是否还存在
+     */
+    private HashSet<String> mRemoteTaskGids;
+
     private TaskList mMetaList;
 
-    private HashSet<Long> mLocalDeleteIdMap;
+    /**
+     * 以下三个集合的元素数与便签数同级，使用不装箱的开放寻址实现以减少同步时的内存占用
+     */
+    private LongHashSet mLocalDeleteIdMap;
 
-    private HashMap<String, Long> mGidToNid;
+    private StringLongHashMap mGidToNid;
 
-    private HashMap<Long, String> mNidToGid;
+    private LongHashMap<String> mNidToGid;
+
+    /**
+     * 本次同步中有任务被创建、更新或移入的任务列表的gid，同步结束后只需重新下载这些列表
+     */
+    private HashSet<String> mTouchedListGids;
+
+    /**
+     * 是否并发获取任务列表，为false时按顺序逐个获取
+     */
+    private boolean mConcurrentFetch;
+
+    /**
+     * 规划已有便签的同步动作时预先加载的数据行，其他时候为null
+     */
+    private SqlDataLoader mDataLoader;
+
+    /**
+     * 同步期间对本地便签的写入，按批在事务中提交
+     */
+    private SqlWriteSession mWriteSession;
+
+    /**
+     * 本次同步的检查点，登录之后才创建
+     */
+    private SyncCheckpoint mCheckpoint;
+
+    /**
+     * 上次保存检查点之后有同步动作的节点数
+     */
+    private int mNodesSinceCheckpoint;
+
+    /**
+     * 本次同步中有同步动作的节点数
+     */
+    private int mSyncedNodeCount;
+
+    /**
+     * 下一次同步是否必须是完整同步
+     */
+    private boolean mFullSyncRequested;
+
+    /**
+     * 本次同步是否为增量同步。增量同步只获取有变化的任务列表，只访问本地修改过的便签和
+     * 已获取的列表中的便签
+     */
+    private boolean mIncremental;
+
+    /**
+     * 同步开始时本地变更日志的最新序号，同步完成后保存，下次同步据此判断本地是否有变化
+     */
+    private long mStartChangeSeq;
+
+    /**
+     * 同步开始时获取的任务列表
+     */
+    private ArrayList<RemoteNode> mRemoteLists;
+
+    /**
+     * 已经获取了其中任务的任务列表的gid，完整同步时是所有列表
+     */
+    private HashSet<String> mLoadedListGids;
+
+    /**
+     * 本地修改过的或在回收站中的便签的gid，增量同步时这些节点必须已经获取
+     */
+    private HashSet<String> mDirtyGids;
+
+    /**
+     * 分道执行时各任务列表的动作队列，其他时候为null
+     */
+    private LinkedHashMap<TaskList, GTaskClient.ActionQueue> mLanes;
+
+    /**
+     * 最近一次同步得出的计划
+     */
+    private volatile SyncPlan mLastPlan;
+
+    /**
+     * 本次同步计划中的动作数
+     */
+    private int mPlanSize;
+
+    /**
+     * 为true时同步只得出计划，不执行其中的动作
+     */
+    private boolean mDryRun;
+
+    private GTaskASyncTask mAsyncTask;
 
     /**
      * 无参构造方法
@@ -105,10 +303,19 @@ public class GTaskManager {
         mGTaskListHashMap = new HashMap<String, TaskList>();
         mGTaskHashMap = new HashMap<String, Node>();
         mMetaHashMap = new HashMap<String, MetaData>();
+        mMetaBundles = new ArrayList<MetaBundle>();
+        mBundleHashMap = new HashMap<String, MetaBundle>();
+        mRetiredMetas = new ArrayList<MetaData>();
+        mRemoteTaskGids = new HashSet<String>();
         mMetaList = null;
-        mLocalDeleteIdMap = new HashSet<Long>();
-        mGidToNid = new HashMap<String, Long>();
-        mNidToGid = new HashMap<Long, String>();
+        mLocalDeleteIdMap = new LongHashSet();
+        mGidToNid = new StringLongHashMap();
+        mNidToGid = new LongHashMap<String>();
+        mTouchedListGids = new HashSet<String>();
+        mConcurrentFetch = true;
+        mFullSyncRequested = false;
+        mLoadedListGids = new HashSet<String>();
+        mDirtyGids = new HashSet<String>();
     }
 
     /**
@@ -131,6 +338,38 @@ public class GTaskManager {
         mActivity = activity;
     }
 
+    /**
+     * 设置是否并发获取任务列表和分道执行同步动作，出现问题时可以退回到按顺序执行
+     * @param concurrent boolean
+     */
+    public synchronized void setConcurrentFetch(boolean concurrent) {
+        mConcurrentFetch = concurrent;
+    }
+
+    /**
+     * 设置试运行，在同步开始前设置。试运行登录并得出同步计划后就结束，不执行其中的动作，
+     * 计划可以通过getLastPlan查看
+     * @param dryRun boolean
+     */
+    public synchronized void setDryRun(boolean dryRun) {
+        mDryRun = dryRun;
+    }
+
+    /**
+     * 获取最近一次同步得出的计划，还没有得出计划时返回null
+     * @return SyncPlan
+     */
+    public synchronized SyncPlan getLastPlan() {
+        return mLastPlan;
+    }
+
+    /**
+     * 要求下一次同步进行完整同步
+     */
+    public synchronized void requestFullSync() {
+        mFullSyncRequested = true;
+    }
+
     /**
      * 同步的总控制，包括同步前设置环境，进行同步，处理异常，同步结束清空缓存
      * @param context Context
@@ -146,19 +385,48 @@ public class GTaskManager {
         // 对GTaskManager的参数进行设置
         mContext = context;
         mContentResolver = mContext.getContentResolver();
+        mAsyncTask = asyncTask;
         mSyncing = true;
         mCancelled = false;
         mGTaskListHashMap.clear();
         mGTaskHashMap.clear();
         mMetaHashMap.clear();
+        mMetaBundles.clear();
+        mBundleHashMap.clear();
+        mRetiredMetas.clear();
+        mRemoteTaskGids.clear();
         mLocalDeleteIdMap.clear();
         mGidToNid.clear();
         mNidToGid.clear();
+        mTouchedListGids.clear();
+        mLoadedListGids.clear();
+        mDirtyGids.clear();
+        mRemoteLists = null;
+        mWriteSession = new SqlWriteSession(mContentResolver);
+        mCheckpoint = null;
+        mNodesSinceCheckpoint = 0;
+        mSyncedNodeCount = 0;
+        mPlanSize = 0;
+        // 定期或按要求进行完整同步，其余时候只同步有变化的部分
+        long lastFullSync = NotesPreferenceActivity.getLastFullSyncTime(mContext);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            mIncremental = !mFullSyncRequested && lastFullSync > 0
+                    && now - lastFullSync < FULL_SYNC_INTERVAL;
+            mFullSyncRequested = false;
+        }
+        setNotifyDebounce(SYNC_NOTIFY_DEBOUNCE);
+        boolean finished = false;
 
         try {
+            // 在同步写入本地之前记下变更日志的位置，同步期间用户的编辑都排在它之后
+            mStartChangeSeq = getChangeSeq().getLong(Notes.EXTRA_CHANGE_SEQ);
+
             // 实例化一个GTask用户对象
             GTaskClient client = GTaskClient.getInstance();
             client.resetUpdateArray();
+            // 每次同步重新计算等待重试的时间预算
+            client.getRetryPolicy().startSync();
 
             // login google task
             // 若此时未取消同步操作，进行登录操作，尝试登录到google task
@@ -168,6 +436,13 @@ public class GTaskManager {
                 }
             }
 
+            // 从上次未完成的同步留下的检查点继续
+            if (!mCancelled) {
+                mCheckpoint = new SyncCheckpoint(mContentResolver,
+                        client.getSyncAccount().name);
+                mCheckpoint.load();
+            }
+
             // get the task list from google
             // 从谷歌获取任务列表
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
@@ -178,6 +453,15 @@ public class GTaskManager {
             // 进行同步操作
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
             syncContent();
+            finished = !mCancelled;
+            if (finished && !mIncremental && !mDryRun) {
+                NotesPreferenceActivity.setLastFullSyncTime(mContext, now);
+            }
+            if (finished && !mDryRun) {
+                // 同步是变更日志唯一的读者，已经处理过的变化不再保留
+                NotesPreferenceActivity.setLastSyncChangeSeq(mContext, mStartChangeSeq);
+                compactChanges(mStartChangeSeq);
+            }
         } catch (NetworkFailureException e) {
             Log.e(TAG, e.toString());
             return STATE_NETWORK_ERROR;
@@ -189,13 +473,41 @@ public class GTaskManager {
             e.printStackTrace();
             return STATE_INTERNAL_ERROR;
         } finally {
+            // 同步没有完成时先记录远端更新未确认的便签，下次同步从检查点继续
+            try {
+                if (mCheckpoint != null && !finished) {
+                    mCheckpoint.savePending();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, e.toString());
+            }
+            // 同步失败时仍然保存已经完成的本地修改，特别是已经在远端创建的节点的gid
+            try {
+                mWriteSession.applyPending();
+                if (mCheckpoint != null && finished && !mDryRun) {
+                    mCheckpoint.clear();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, e.toString());
+            }
+            mCheckpoint = null;
             // 在同步操作结束之后，更新GTaskManager的属性
             mGTaskListHashMap.clear();
             mGTaskHashMap.clear();
             mMetaHashMap.clear();
+            mMetaBundles.clear();
+            mBundleHashMap.clear();
+            mRetiredMetas.clear();
+            mRemoteTaskGids.clear();
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mTouchedListGids.clear();
+            mLoadedListGids.clear();
+            mDirtyGids.clear();
+            mRemoteLists = null;
+            mAsyncTask = null;
+            setNotifyDebounce(0);
             mSyncing = false;
         }
 
@@ -203,7 +515,44 @@ public class GTaskManager {
     }
 
     /**
-     * 初始化GTask列表，将google上的JSONTaskList转为本地任务列表
+     * 设置本地数据变化通知的合并窗口，为0时立即发送所有等待中的通知。窗口只对调用它的
+     * 同步线程的写入有效，用户在同步期间的编辑仍然立即通知
+     * @param debounce 毫秒
+     */
+    private void setNotifyDebounce(long debounce) {
+        Bundle extras = new Bundle();
+        extras.putLong(Notes.EXTRA_NOTIFY_DEBOUNCE, debounce);
+        mContentResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_SET_NOTIFY_DEBOUNCE, null,
+                extras);
+    }
+
+    /**
+     * 获取本地变更日志的范围
+     * @return 含有最新序号和最早保留序号的Bundle
+     */
+    private Bundle getChangeSeq() {
+        Bundle result = mContentResolver.call(Notes.CONTENT_NOTE_URI,
+                Notes.METHOD_GET_CHANGE_SEQ, null, null);
+        if (result == null) {
+            throw new ActionFailureException("failed to get the change sequence");
+        }
+        return result;
+    }
+
+    /**
+     * 删除变更日志中不晚于seq的变化
+     * @param seq 已经处理过的最新序号
+     */
+    private void compactChanges(long seq) {
+        Bundle extras = new Bundle();
+        extras.putLong(Notes.EXTRA_CHANGE_SEQ, seq);
+        mContentResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_COMPACT_CHANGES, null,
+                extras);
+    }
+
+    /**
+     * 初始化GTask列表，将google上流式解码得到的任务列表转为本地任务列表。增量同步时所有列表
+     * 节点都会建立，但只获取有变化的列表和本地修改过的便签所在列表中的任务
      * @throws NetworkFailureException NetworkFailureException
      */
     private void initGTaskList() throws NetworkFailureException {
@@ -212,103 +561,336 @@ public class GTaskManager {
         }
         // 实例化一个GTask用户对象
         GTaskClient client = GTaskClient.getInstance();
-        try {
-            JSONArray jsTaskLists = client.getTaskLists();
-
-            // init meta list first
-            mMetaList = null;
-            // 对获取到任务列表中的每一个元素进行操作
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                // 如果name等于字符串"[MIUI_Notes]"+"METADATA"
-                if (name
-                        .equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
-                    mMetaList = new TaskList();
-                    mMetaList.setContentByRemoteJSON(object);
-
-                    // load meta data
-                    // 获取元数据
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    // 把jsMetas里的每一个有识别码的metaData都放到哈希表中
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
+        ArrayList<RemoteNode> remoteLists = client.getTaskLists();
+        mRemoteLists = remoteLists;
+
+        // 先找出元数据列表和所有便签文件夹对应的任务列表，再一起获取其中的任务
+        RemoteNode metaRemote = null;
+        ArrayList<RemoteNode> folderRemotes = new ArrayList<RemoteNode>();
+        for (RemoteNode remote : remoteLists) {
+            String name = remote.getName();
+
+            // 如果name等于字符串"[MIUI_Notes]"+"METADATA"
+            if (name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
+                metaRemote = remote;
+            } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                folderRemotes.add(remote);
+            }
+        }
+
+        ArrayList<String> fetchGids = new ArrayList<String>();
+        boolean hasDirty;
+        if (mIncremental) {
+            hasDirty = selectChangedLists(folderRemotes, fetchGids);
+        } else {
+            hasDirty = true;
+            for (RemoteNode remote : folderRemotes) {
+                fetchGids.add(remote.getGid());
+            }
+        }
+        // 没有列表要获取也没有本地修改时不会用到元数据
+        boolean loadMeta = metaRemote != null && (hasDirty || !fetchGids.isEmpty());
+        if (loadMeta) {
+            fetchGids.add(0, metaRemote.getGid());
+        }
+        HashMap<String, ArrayList<RemoteNode>> remoteTaskMap = fetchTaskLists(fetchGids);
+
+        // init meta list first
+        mMetaList = null;
+        if (metaRemote != null) {
+            mMetaList = new TaskList();
+            mMetaList.setContentByRemoteNode(metaRemote);
+
+            // load meta data
+            // 把每一个有识别码的metaData都放到哈希表中
+            if (loadMeta) {
+                for (RemoteNode remote : remoteTaskMap.get(metaRemote.getGid())) {
+                    if (GTaskStringUtils.META_BUNDLE_NAME.equals(remote.getName())) {
+                        MetaBundle bundle = new MetaBundle();
+                        bundle.setContentByRemoteNode(remote);
+                        if (bundle.isWorthSaving()) {
+                            mMetaList.addChildTask(bundle);
+                            addMetaBundle(bundle);
+                        }
+                        continue;
+                    }
+                    MetaData metaData = new MetaData();
+                    metaData.setContentByRemoteNode(remote);
+                    if (metaData.isWorthSaving()) {
+                        mMetaList.addChildTask(metaData);
+                        if (metaData.getGid() != null) {
+                            mMetaHashMap.put(metaData.getRelatedGid(), metaData);
                         }
                     }
                 }
+                resolveLegacyMeta();
             }
+        }
 
-            // create meta list if not existed
-            // 若元数据列表不存在则创建一个
-            if (mMetaList == null) {
-                // 创建一个新的任务列表
-                mMetaList = new TaskList();
-                mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                        + GTaskStringUtils.FOLDER_META);
+        // create meta list if not existed
+        // 若元数据列表不存在则创建一个
+        if (mMetaList == null) {
+            // 创建一个新的任务列表
+            mMetaList = new TaskList();
+            mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + GTaskStringUtils.FOLDER_META);
+            // 试运行不写入远端
+            if (!mDryRun) {
                 GTaskClient.getInstance().createTaskList(mMetaList);
             }
+        }
 
-            // init task list
-            // 初始化任务列表
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                // 获取列表中每一个节点的属性
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                + GTaskStringUtils.FOLDER_META)) {
-                    TaskList tasklist = new TaskList();
-                    // 对任务列表的内容进行设置
-                    tasklist.setContentByRemoteJSON(object);
-                    mGTaskListHashMap.put(gid, tasklist);
-                    mGTaskHashMap.put(gid, tasklist);
-
-                    // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        // 获取当前任务的gid
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        // 设置任务内容
-                        task.setContentByRemoteJSON(object);
-                        // 判断该任务有无价值保存
-                        if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
-                            tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
+        // init task list
+        for (RemoteNode listRemote : folderRemotes) {
+            String gid = listRemote.getGid();
+            TaskList tasklist = new TaskList();
+            // 对任务列表的内容进行设置
+            tasklist.setContentByRemoteNode(listRemote);
+            mGTaskListHashMap.put(gid, tasklist);
+            mGTaskHashMap.put(gid, tasklist);
+        }
+        addRemoteTasks(folderRemotes, remoteTaskMap);
+
+        // 本地修改过的便签的节点不在已获取的列表中时，可能是在远端被删除，也可能是被移到了
+        // 没有获取的列表中，只有获取所有列表才能区分，这时改为完整同步
+        if (mIncremental && !mCancelled) {
+            for (String gid : mDirtyGids) {
+                if (!mGTaskHashMap.containsKey(gid)) {
+                    Log.d(TAG, "modified note " + gid + " is not fetched, fall back to full sync");
+                    ArrayList<String> restGids = new ArrayList<String>();
+                    for (RemoteNode remote : folderRemotes) {
+                        if (!mLoadedListGids.contains(remote.getGid())) {
+                            restGids.add(remote.getGid());
                         }
                     }
+                    addRemoteTasks(folderRemotes, fetchTaskLists(restGids));
+                    mIncremental = false;
+                    break;
                 }
             }
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("initGTaskList: handing JSONObject failed");
         }
     }
 
     /**
-     * 实现内容同步的操作
-     * @throws NetworkFailureException NetworkFailureException
+     * 把获取到的任务加入对应的任务列表
+     * @param folderRemotes 便签文件夹对应的任务列表
+     * @param remoteTaskMap 任务列表的gid到其中任务的映射
      */
-    private void syncContent() throws NetworkFailureException {
-        int syncType;
+    private void addRemoteTasks(ArrayList<RemoteNode> folderRemotes,
+            HashMap<String, ArrayList<RemoteNode>> remoteTaskMap) {
+        // 按照服务器返回的列表顺序合并，与获取的先后无关
+        for (RemoteNode listRemote : folderRemotes) {
+            String gid = listRemote.getGid();
+            ArrayList<RemoteNode> remoteTasks = remoteTaskMap.get(gid);
+            if (remoteTasks == null) {
+                continue;
+            }
+            TaskList tasklist = mGTaskListHashMap.get(gid);
+            mLoadedListGids.add(gid);
+
+            // load tasks
+            for (RemoteNode remote : remoteTasks) {
+                Task task = new Task();
+                // 设置任务内容
+                task.setContentByRemoteNode(remote);
+                // 判断该任务有无价值保存
+                if (task.isWorthSaving()) {
+                    task.setMetaInfo(getMetaInfo(remote.getGid()));
+                    tasklist.addChildTask(task);
+                    mGTaskHashMap.put(remote.getGid(), task);
+                    if (!remote.getDeleted()) {
+                        mRemoteTaskGids.add(remote.getGid());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 选出增量同步要获取的任务列表：修改时间与本地文件夹的同步id不同的列表，以及本地修改过的
+     * 或在回收站中的便签所在的列表。文件夹的同步id在上次同步结束时写为对应列表的修改时间，
+     * 作为列表的水位
+     * @param folderRemotes 便签文件夹对应的任务列表
+     * @param fetchGids 输出要获取的任务列表的gid，按服务器返回的顺序
+     * @return 是否有本地修改过的或在回收站中的便签
+     */
+    private boolean selectChangedLists(ArrayList<RemoteNode> folderRemotes,
+            ArrayList<String> fetchGids) {
+        StringLongHashMap watermarks = new StringLongHashMap();
+        LongHashMap<String> folderGids = new LongHashMap<String>();
         Cursor c = null;
-        String gid;
-        Node node;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.ID, NoteColumns.GTASK_ID, NoteColumns.SYNC_ID
+            }, SELECTION_LOCAL_FOLDERS, new String[] {
+                    String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER),
+                    String.valueOf(Notes.ID_ROOT_FOLDER),
+                    String.valueOf(Notes.ID_CALL_RECORD_FOLDER)
+            }, null);
+            if (c == null) {
+                throw new ActionFailureException("failed to query local folders");
+            }
+            while (c.moveToNext()) {
+                String gid = c.getString(1);
+                if (gid.length() > 0) {
+                    watermarks.put(gid, c.getLong(2));
+                    folderGids.put(c.getLong(0), gid);
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        HashSet<String> selected = new HashSet<String>();
+        for (RemoteNode remote : folderRemotes) {
+            if (watermarks.get(remote.getGid(), NO_ID) != remote.getLastModified()) {
+                selected.add(remote.getGid());
+            }
+        }
 
+        // 上次完成的同步之后变更日志没有新的变化时，本地没有要上传的修改，不用再查询
+        boolean hasDirty = false;
+        long lastSeq = NotesPreferenceActivity.getLastSyncChangeSeq(mContext);
+        if (lastSeq > 0 && lastSeq == mStartChangeSeq) {
+            Log.d(TAG, "no local change since change " + lastSeq);
+        } else {
+            hasDirty = selectDirtyNotes(folderGids, selected);
+        }
+
+        for (RemoteNode remote : folderRemotes) {
+            if (selected.contains(remote.getGid())) {
+                fetchGids.add(remote.getGid());
+            }
+        }
+        Log.d(TAG, "incremental sync fetches " + fetchGids.size() + " of "
+                + folderRemotes.size() + " lists");
+        return hasDirty;
+    }
+
+    /**
+     * 找出本地修改过的和在回收站中的便签，记下它们的gid并选中它们所在的任务列表
+     * @param folderGids 本地文件夹的id到gid的映射
+     * @param selected 输出要获取的任务列表的gid
+     * @return 是否有这样的便签
+     */
+    private boolean selectDirtyNotes(LongHashMap<String> folderGids, HashSet<String> selected) {
+        // 本地修改过的便签只通过local_modified的索引和回收站的父id找出，不扫描所有便签
+        boolean hasDirty = false;
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.GTASK_ID, NoteColumns.PARENT_ID, NoteColumns.ORIGIN_PARENT_ID
+            }, SELECTION_DIRTY_NOTES, new String[] {
+                    String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.TYPE_NOTE),
+                    String.valueOf(Notes.ID_TRASH_FOLER)
+            }, null);
+            if (c == null) {
+                throw new ActionFailureException("failed to query local modified notes");
+            }
+            while (c.moveToNext()) {
+                hasDirty = true;
+                String gid = c.getString(0);
+                if (gid.length() > 0) {
+                    mDirtyGids.add(gid);
+                }
+                // 移动过的便签在新旧两个列表中都要能找到
+                for (int i = 1; i <= 2; i++) {
+                    String listGid = folderGids.get(c.getLong(i));
+                    if (listGid != null) {
+                        selected.add(listGid);
+                    }
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return hasDirty;
+    }
+
+    /**
+     * 获取多个任务列表中的任务。并发模式下先提交等待中的更新，再用有限的线程同时获取
+     * @param gids 任务列表的gid
+     * @return 任务列表的gid到其中任务的映射
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private HashMap<String, ArrayList<RemoteNode>> fetchTaskLists(ArrayList<String> gids)
+            throws NetworkFailureException {
+        HashMap<String, ArrayList<RemoteNode>> result = new HashMap<String, ArrayList<RemoteNode>>();
+        final GTaskClient client = GTaskClient.getInstance();
+        if (!mConcurrentFetch || gids.size() <= 1) {
+            for (String gid : gids) {
+                result.put(gid, client.getTaskList(gid));
+            }
+            return result;
+        }
+
+        client.commitUpdate();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_FETCH_THREADS,
+                gids.size()));
+        try {
+            ArrayList<Future<ArrayList<RemoteNode>>> futures =
+                    new ArrayList<Future<ArrayList<RemoteNode>>>();
+            for (final String gid : gids) {
+                futures.add(executor.submit(new Callable<ArrayList<RemoteNode>>() {
+                    public ArrayList<RemoteNode> call() throws NetworkFailureException {
+                        return client.fetchTaskList(gid);
+                    }
+                }));
+            }
+            for (int i = 0; i < gids.size(); i++) {
+                if (mCancelled) {
+                    break;
+                }
+                result.put(gids.get(i), getFutureResult(futures.get(i)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (mCancelled) {
+            // 取消同步时保证调用者拿到的每个列表都不为空
+            for (String gid : gids) {
+                if (!result.containsKey(gid)) {
+                    result.put(gid, new ArrayList<RemoteNode>());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 等待一个工作线程中的请求完成，工作线程中的异常原样抛出
+     * @param future Future
+     * @return 请求的结果
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private <T> T getFutureResult(Future<T> future) throws NetworkFailureException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkFailureException("task list request interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ActionFailureException("task list request failed: " + cause);
+        }
+    }
+
+    /**
+     * 实现内容同步的操作。先得出所有节点的同步计划，再按阶段执行：回收站中便签的远端删除、
+     * 文件夹、已有便签、远端新增任务的本地添加
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void syncContent() throws NetworkFailureException {
         // 初始化本地删除列表
         mLocalDeleteIdMap.clear();
 
@@ -316,11 +898,68 @@ public class GTaskManager {
             return;
         }
 
+        SyncPlan plan = planSync();
+        mLastPlan = plan;
+        Log.d(TAG, "sync plan: " + plan);
+        // 试运行只得出计划，不写入本地和远端
+        if (mCancelled || mDryRun) {
+            return;
+        }
+
+        mPlanSize = plan.size();
+        executeStage(plan.getStage(SyncPlan.STAGE_TRASH), true);
+
+        // sync folder first
+        // 先对文件夹进行同步，便签同步需要文件夹的本地id和gid
+        executeStage(plan.getStage(SyncPlan.STAGE_FOLDER), false);
+        if (!mCancelled) {
+            checkpoint();
+        }
+
+        // 对已经存在与数据库的便签进行同步
+        executeStage(plan.getStage(SyncPlan.STAGE_NOTE), true);
+
+        // 在本地增加远端新增的节点
+        executeStage(plan.getStage(SyncPlan.STAGE_ADD_LOCAL), false);
+
+        // mCancelled can be set by another thread, so we neet to check one by
+        // one
+        // clear local delete table
+        // 终止标识有可能被其他进程改变，因此需要一个个进行检查
+        if (!mCancelled) {
+            if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
+                throw new ActionFailureException("failed to batch-delete local deleted notes");
+            }
+        }
+
+        // 完整同步时把单独的元数据迁移到元数据包中
+        if (!mCancelled && !mIncremental) {
+            migrateLegacyMeta();
+        }
+
+        // refresh local sync id
+        // 更新同步表
+        if (!mCancelled) {
+            checkpoint();
+            refreshLocalSyncId();
+        }
+
+    }
+
+    /**
+     * 规划阶段，根据本地便签的Cursor和远端的节点表得出每个节点的同步动作。这里只匹配gid和
+     * 本地id，不写入本地和远端
+     * @return SyncPlan
+     */
+    private SyncPlan planSync() {
+        SyncPlan plan = new SyncPlan();
+        Cursor c = null;
+
         // for local deleted note
         try {
             // 定位要删除的节点位置
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id=?)", new String[] {
+                    SELECTION_TRASH_NODES, new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, null);
             // 若获取到的待删除便签不为空，则进行同步操作
@@ -328,16 +967,17 @@ public class GTaskManager {
                 // 通过while用指针遍历所有结点
                 while (c.moveToNext()) {
                     // 获取待删除便签的gid
-                    gid = c.getString(SqlNote.GTASK_ID_COLUMN);
+                    String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
                     // 获取待删除便签的节点
-                    node = mGTaskHashMap.get(gid);
-                    // 节点非空则从哈希表里删除，并进行同步操作
+                    Node node = mGTaskHashMap.get(gid);
+                    // 节点非空则从哈希表里删除，并删除远端的节点
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
-                        doContentSync(Node.SYNC_ACTION_DEL_REMOTE, node, c);
+                        plan.add(SyncPlan.STAGE_TRASH, newAction(Node.SYNC_ACTION_DEL_REMOTE,
+                                node, c));
                     }
 
-                    // 在本地删除记录中添加这一项记录
+                    // 在本地删除记录中添加这一项记录，同步结束时一起删除
                     mLocalDeleteIdMap.add(c.getLong(SqlNote.ID_COLUMN));
                 }
             } else {
@@ -351,96 +991,189 @@ public class GTaskManager {
         }
 
         // sync folder first
-        // 先对文件夹进行同步
-        syncFolder();
+        // 先对文件夹进行规划
+        planFolders(plan);
 
         // for note existing in database
-        // 对已经存在与数据库的节点进行同步
+        // 对已经存在与数据库的节点进行规划
         try {
-            // 使c指针指向待操作的便签位置
+            String selection;
+            String[] selectionArgs;
+            if (mIncremental) {
+                // 增量同步只访问已获取的列表对应文件夹中的便签和本地修改过的便签，两个条件
+                // 分别使用type和local_modified的索引
+                ArrayList<String> args = new ArrayList<String>();
+                StringBuilder folderIds = new StringBuilder();
+                for (String listGid : mLoadedListGids) {
+                    long folderId = mGidToNid.get(listGid, NO_ID);
+                    if (folderId != NO_ID) {
+                        folderIds.append(folderIds.length() == 0 ? "?" : ",?");
+                        args.add(String.valueOf(folderId));
+                    }
+                }
+                selection = SELECTION_MODIFIED_NOTES;
+                args.add(0, String.valueOf(Notes.TYPE_NOTE));
+                args.add(1, String.valueOf(Notes.ID_TRASH_FOLER));
+                if (folderIds.length() > 0) {
+                    selection += " OR " + String.format(SELECTION_NOTES_IN_FOLDERS, folderIds);
+                    args.add(2, String.valueOf(Notes.TYPE_NOTE));
+                }
+                selectionArgs = args.toArray(new String[args.size()]);
+            } else {
+                selection = SELECTION_OUTSIDE_TRASH;
+                selectionArgs = new String[] {
+                        String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+                };
+            }
+            // 用一次查询加载这些便签的所有数据行
+            mDataLoader = new SqlDataLoader(mContext);
+            mDataLoader.preload(selection, selectionArgs);
+            // 使c指针指向待操作的便签位置，结果都是便签，按type排序会使增量同步的OR查询
+            // 使用临时b树排序
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
-                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    selection, selectionArgs, null);
             if (c != null) {
                 while (c.moveToNext()) {
-                    // 获取待操作的便签的gid
-                    gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    // 获取待操作的便签的节点
-                    node = mGTaskHashMap.get(gid);
-                    // 若结点不为空，将其对应的google id从映射表中移除，然后建立google id到节点id的映射（通过hashmap）、gid和nid之间的映射表
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
-                        mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
-                        syncType = node.getSyncAction(c);
-                    } else {
-                        // 若本地增加了内容，则远程也要增加内容
-                        if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
-                            // local add
-                            syncType = Node.SYNC_ACTION_ADD_REMOTE;
-                        } else {
-                            // remote delete
-                            syncType = Node.SYNC_ACTION_DEL_LOCAL;
-                        }
-                    }
-                    // 进行同步操作
-                    doContentSync(syncType, node, c);
+                    planExistingNote(plan, SyncPlan.STAGE_NOTE, c);
                 }
             } else {
                 Log.w(TAG, "failed to query existing note in database");
             }
 
         } finally {
+            mDataLoader = null;
             if (c != null) {
                 c.close();
                 c = null;
             }
         }
 
+        // 增量同步时，在远端被移入已获取列表的任务对应的本地便签可能在没有访问的文件夹中，
+        // 先按gid找出这些便签，避免在本地重复添加
+        if (mIncremental) {
+            planMovedNotes(plan);
+        }
+
         // go through remaining items
-        // 扫描剩下的项目，逐个进行同步
+        // 扫描剩下的项目，在本地增加这些节点
         Iterator<Map.Entry<String, Node>> iter = mGTaskHashMap.entrySet().iterator();
         // 迭代
         while (iter.hasNext()) {
             Map.Entry<String, Node> entry = iter.next();
-            node = entry.getValue();
-            // 在本地增加这些节点
-            doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
+            plan.add(SyncPlan.STAGE_ADD_LOCAL, newAction(Node.SYNC_ACTION_ADD_LOCAL,
+                    entry.getValue(), null));
         }
+        return plan;
+    }
 
-        // mCancelled can be set by another thread, so we neet to check one by
-        // one
-        // clear local delete table
-        // 终止标识有可能被其他进程改变，因此需要一个个进行检查
-        if (!mCancelled) {
-            if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
-                throw new ActionFailureException("failed to batch-delete local deleted notes");
+    /**
+     * 新建一个同步动作，需要读写便签内容的动作在这里从Cursor读出本地便签
+     * @param syncType int
+     * @param node Node
+     * @param c 指向本地便签的Cursor，远端新增的节点为null
+     * @return SyncPlan.Action
+     */
+    private SyncPlan.Action newAction(int syncType, Node node, Cursor c) {
+        if (c == null) {
+            return new SyncPlan.Action(syncType, node, 0, null, 0, null);
+        }
+        SqlNote sqlNote = null;
+        switch (syncType) {
+            case Node.SYNC_ACTION_ADD_REMOTE:
+            case Node.SYNC_ACTION_UPDATE_LOCAL:
+            case Node.SYNC_ACTION_UPDATE_REMOTE:
+            case Node.SYNC_ACTION_UPDATE_CONFLICT:
+                sqlNote = new SqlNote(mContext, c, mDataLoader);
+                break;
+            default:
+                break;
+        }
+        return new SyncPlan.Action(syncType, node, c.getLong(SqlNote.ID_COLUMN),
+                c.getString(SqlNote.GTASK_ID_COLUMN), c.getLong(SqlNote.PARENT_ID_COLUMN),
+                sqlNote);
+    }
+
+    /**
+     * 规划一个已经存在于数据库的便签或文件夹的同步动作
+     * @param plan SyncPlan
+     * @param stage 执行阶段
+     * @param c 指向便签的Cursor
+     */
+    private void planExistingNote(SyncPlan plan, int stage, Cursor c) {
+        int syncType;
+        // 获取待操作的便签的gid
+        String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
+        // 获取待操作的便签的节点
+        Node node = mGTaskHashMap.get(gid);
+        // 若结点不为空，将其对应的google id从映射表中移除，然后建立google id到节点id的映射（通过hashmap）、gid和nid之间的映射表
+        if (node != null) {
+            mGTaskHashMap.remove(gid);
+            mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
+            mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
+            syncType = getSyncAction(node, c);
+        } else {
+            // 若本地增加了内容，则远程也要增加内容
+            if (gid.trim().length() == 0) {
+                // local add
+                syncType = Node.SYNC_ACTION_ADD_REMOTE;
+            } else {
+                // remote delete
+                syncType = Node.SYNC_ACTION_DEL_LOCAL;
             }
         }
+        if (syncType != Node.SYNC_ACTION_NONE) {
+            plan.add(stage, newAction(syncType, node, c));
+        }
+    }
 
-        // refresh local sync id
-        // 更新同步表
-        if (!mCancelled) {
-            GTaskClient.getInstance().commitUpdate();
-            refreshLocalSyncId();
+    /**
+     * 增量同步时，按gid找出剩下的任务中已经存在于本地的便签并规划它们的同步动作
+     * @param plan SyncPlan
+     */
+    private void planMovedNotes(SyncPlan plan) {
+        ArrayList<String> gids = new ArrayList<String>();
+        for (Map.Entry<String, Node> entry : mGTaskHashMap.entrySet()) {
+            if (entry.getValue() instanceof Task) {
+                gids.add(entry.getKey());
+            }
         }
 
+        for (int start = 0; start < gids.size(); start += MAX_GID_ARGS) {
+            int end = Math.min(start + MAX_GID_ARGS, gids.size());
+            StringBuilder selection = new StringBuilder("type=? AND parent_id<>? AND gtask_id IN (");
+            String[] selectionArgs = new String[end - start + 2];
+            selectionArgs[0] = String.valueOf(Notes.TYPE_NOTE);
+            selectionArgs[1] = String.valueOf(Notes.ID_TRASH_FOLER);
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionArgs[i - start + 2] = gids.get(i);
+            }
+            selection.append(')');
+
+            Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                    selection.toString(), selectionArgs, null);
+            if (c == null) {
+                Log.w(TAG, "failed to query moved notes");
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    planExistingNote(plan, SyncPlan.STAGE_NOTE, c);
+                }
+            } finally {
+                c.close();
+            }
+        }
     }
 
     /**
-     * 对文件夹进行同步，具体操作与之前的同步操作一致
-     * @throws NetworkFailureException NetworkFailureException
+     * 对文件夹的同步动作进行规划，具体操作与之前的规划一致
+     * @param plan SyncPlan
      */
-    private void syncFolder() throws NetworkFailureException {
+    private void planFolders(SyncPlan plan) {
         Cursor c = null;
         String gid;
         Node node;
-        int syncType;
-
-        if (mCancelled) {
-            return;
-        }
 
         // for root folder
         try {
@@ -454,15 +1187,17 @@ public class GTaskManager {
                 // 获取gid所代表的节点
                 if (node != null) {
                     mGTaskHashMap.remove(gid);
-                    mGidToNid.put(gid, (long) Notes.ID_ROOT_FOLDER);
-                    mNidToGid.put((long) Notes.ID_ROOT_FOLDER, gid);
+                    mGidToNid.put(gid, Notes.ID_ROOT_FOLDER);
+                    mNidToGid.put(Notes.ID_ROOT_FOLDER, gid);
                     // for system folder, only update remote name if necessary
                     if (!node.getName().equals(
                             GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_DEFAULT)) {
-                        doContentSync(Node.SYNC_ACTION_UPDATE_REMOTE, node, c);
+                        plan.add(SyncPlan.STAGE_FOLDER, newAction(
+                                Node.SYNC_ACTION_UPDATE_REMOTE, node, c));
                     }
                 } else {
-                    doContentSync(Node.SYNC_ACTION_ADD_REMOTE, node, c);
+                    plan.add(SyncPlan.STAGE_FOLDER, newAction(Node.SYNC_ACTION_ADD_REMOTE,
+                            node, c));
                 }
             } else {
                 Log.w(TAG, "failed to query root folder");
@@ -487,17 +1222,19 @@ public class GTaskManager {
                     node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, (long) Notes.ID_CALL_RECORD_FOLDER);
-                        mNidToGid.put((long) Notes.ID_CALL_RECORD_FOLDER, gid);
+                        mGidToNid.put(gid, Notes.ID_CALL_RECORD_FOLDER);
+                        mNidToGid.put(Notes.ID_CALL_RECORD_FOLDER, gid);
                         // for system folder, only update remote name if
                         // necessary
                         if (!node.getName().equals(
                                 GTaskStringUtils.MIUI_FOLDER_PREFFIX
                                         + GTaskStringUtils.FOLDER_CALL_NOTE)) {
-                            doContentSync(Node.SYNC_ACTION_UPDATE_REMOTE, node, c);
+                            plan.add(SyncPlan.STAGE_FOLDER, newAction(
+                                    Node.SYNC_ACTION_UPDATE_REMOTE, node, c));
                         }
                     } else {
-                        doContentSync(Node.SYNC_ACTION_ADD_REMOTE, node, c);
+                        plan.add(SyncPlan.STAGE_FOLDER, newAction(Node.SYNC_ACTION_ADD_REMOTE,
+                                node, c));
                     }
                 }
             } else {
@@ -511,33 +1248,15 @@ public class GTaskManager {
         }
 
         // for local existing folders
-        // 同步已经存在的文件夹
+        // 规划已经存在的文件夹
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+                    SELECTION_OUTSIDE_TRASH, new String[] {
                             String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
             if (c != null) {
                 while (c.moveToNext()) {
-                    gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    node = mGTaskHashMap.get(gid);
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
-                        mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
-                        syncType = node.getSyncAction(c);
-                    } else {
-                        if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
-                            // local add
-                            // 远程添加
-                            syncType = Node.SYNC_ACTION_ADD_REMOTE;
-                        } else {
-                            // remote delete
-                            // 本地删除
-                            syncType = Node.SYNC_ACTION_DEL_LOCAL;
-                        }
-                    }
-                    doContentSync(syncType, node, c);
+                    planExistingNote(plan, SyncPlan.STAGE_FOLDER, c);
                 }
             } else {
                 Log.w(TAG, "failed to query existing folder");
@@ -559,68 +1278,268 @@ public class GTaskManager {
             node = entry.getValue();
             if (mGTaskHashMap.containsKey(gid)) {
                 mGTaskHashMap.remove(gid);
-                doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
+                plan.add(SyncPlan.STAGE_FOLDER, newAction(Node.SYNC_ACTION_ADD_LOCAL, node,
+                        null));
             }
         }
+    }
 
-        // 如果没有取消，在GTsk的客户端进行实例的提交更新
-        if (!mCancelled) {
-            GTaskClient.getInstance().commitUpdate();
+    /**
+     * 执行一个阶段的动作。不分道时在当前线程中逐个执行，每CHECKPOINT_INTERVAL个动作保存一次
+     * 检查点。分道时每次取出一批动作，先在当前线程中依次完成本地部分，并把远端动作放入所属任务
+     * 列表的队列，再同时发送各个队列；跨列表的移动涉及两个列表，在各队列发送完之后按顺序执行
+     * @param actions 阶段中的动作
+     * @param lanes 是否按任务列表分道执行
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void executeStage(ArrayList<SyncPlan.Action> actions, boolean lanes)
+            throws NetworkFailureException {
+        int index = 0;
+        while (index < actions.size() && !mCancelled) {
+            if (!lanes || !mConcurrentFetch) {
+                performAction(actions.get(index++));
+                // 一个节点的本地写入都已加入会话，可以在这里分批提交。本地写入只随远端动作一起
+                // 提交，清除本地修改标记的写入不会先于对应的远端更新生效
+                if (++mNodesSinceCheckpoint >= CHECKPOINT_INTERVAL || mWriteSession.isFull()) {
+                    checkpoint();
+                    publishExecuted();
+                }
+                continue;
+            }
+
+            ArrayList<SyncPlan.Action> moves = new ArrayList<SyncPlan.Action>();
+            mLanes = new LinkedHashMap<TaskList, GTaskClient.ActionQueue>();
+            try {
+                int count = 0;
+                while (index < actions.size() && count < CHECKPOINT_INTERVAL
+                        && !mWriteSession.isFull() && !mCancelled) {
+                    SyncPlan.Action action = actions.get(index++);
+                    count++;
+                    if (isCrossListMove(action)) {
+                        moves.add(action);
+                    } else {
+                        performAction(action);
+                    }
+                }
+                postLanes();
+            } finally {
+                mLanes = null;
+            }
+            for (SyncPlan.Action action : moves) {
+                performAction(action);
+            }
+            if (!mCancelled) {
+                checkpoint();
+                publishExecuted();
+            }
+        }
+    }
+
+    /**
+     * 判断动作是否会把任务移到另一个任务列表
+     * @param action SyncPlan.Action
+     * @return boolean
+     */
+    private boolean isCrossListMove(SyncPlan.Action action) {
+        if ((action.type != Node.SYNC_ACTION_UPDATE_REMOTE
+                && action.type != Node.SYNC_ACTION_UPDATE_CONFLICT)
+                || !(action.node instanceof Task)) {
+            return false;
+        }
+        TaskList parent = ((Task) action.node).getParent();
+        return parent == null || parent.getGid() == null
+                || !parent.getGid().equals(mNidToGid.get(action.parentId));
+    }
+
+    /**
+     * 同时发送各个任务列表的动作队列，都发送完之后在当前线程中调用创建完成的回调，回调中加入的
+     * 动作在下一轮发送。某个队列发送失败时，其他队列已经创建的节点仍先完成回调再抛出异常，
+     * 它们的gid会写入本地，下次同步不会重复创建
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void postLanes() throws NetworkFailureException {
+        while (!mCancelled) {
+            ArrayList<GTaskClient.ActionQueue> queues = new ArrayList<GTaskClient.ActionQueue>();
+            for (GTaskClient.ActionQueue queue : mLanes.values()) {
+                if (queue.hasPendingUpdate()) {
+                    queues.add(queue);
+                }
+            }
+            if (queues.isEmpty()) {
+                return;
+            }
+
+            Exception failure = null;
+            if (queues.size() == 1) {
+                try {
+                    queues.get(0).post();
+                } catch (NetworkFailureException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                        MAX_FETCH_THREADS, queues.size()));
+                try {
+                    ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+                    for (final GTaskClient.ActionQueue queue : queues) {
+                        futures.add(executor.submit(new Callable<Void>() {
+                            public Void call() throws NetworkFailureException {
+                                queue.post();
+                                return null;
+                            }
+                        }));
+                    }
+                    for (Future<Void> future : futures) {
+                        try {
+                            getFutureResult(future);
+                        } catch (NetworkFailureException e) {
+                            failure = failure != null ? failure : e;
+                        } catch (RuntimeException e) {
+                            failure = failure != null ? failure : e;
+                        }
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            // 回调会修改节点表和本地的写会话，只在当前线程中按队列的顺序调用
+            for (GTaskClient.ActionQueue queue : queues) {
+                queue.dispatchCreated();
+            }
+            if (failure instanceof NetworkFailureException) {
+                throw (NetworkFailureException) failure;
+            } else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+        }
+    }
+
+    /**
+     * 获取节点的动作所在的队列。分道执行时每个任务列表有自己的队列，元数据在元数据列表的队列中，
+     * 其他时候都使用默认队列
+     * @param node Node
+     * @return GTaskClient.ActionQueue
+     */
+    private GTaskClient.ActionQueue queueFor(Node node) {
+        if (mLanes == null || !(node instanceof Task) || ((Task) node).getParent() == null) {
+            return GTaskClient.getInstance().getActionQueue();
+        }
+        TaskList list = ((Task) node).getParent();
+        GTaskClient.ActionQueue queue = mLanes.get(list);
+        if (queue == null) {
+            queue = GTaskClient.getInstance().newActionQueue();
+            mLanes.put(list, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * 报告已经执行的动作数
+     */
+    private void publishExecuted() {
+        if (mAsyncTask != null && mPlanSize > 0) {
+            mAsyncTask.publishProgess(mContext.getString(R.string.sync_progress_executing,
+                    mSyncedNodeCount, mPlanSize));
+        }
+    }
+
+    /**
+     * 提交远端的动作队列和本地的写会话。本地写入完成的回调会加入远端动作，远端创建完成的回调
+     * 会加入本地写入，两者交替提交直到都为空
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void commitPending() throws NetworkFailureException {
+        GTaskClient client = GTaskClient.getInstance();
+        do {
+            flushMetaBundles();
+            client.commitUpdate();
+            // 元数据包已经写入，可以删除迁移前单独的元数据
+            deleteRetiredMeta();
+            mWriteSession.flush();
+        } while (client.hasPendingUpdate() || hasDirtyMetaBundle());
+    }
+
+    /**
+     * 提交当前批的远端动作和本地写入，再保存检查点。远端动作先于本地写入提交，进程在两者之间
+     * 退出时便签仍是本地修改状态，下次同步会重新写入远端
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void checkpoint() throws NetworkFailureException {
+        commitPending();
+        mCheckpoint.commitBatch();
+        mNodesSinceCheckpoint = 0;
+    }
+
+    /**
+     * 获取节点的同步动作。之前未完成的同步已写入远端的便签，同步id要到同步结束时才刷新，
+     * 没有新的本地修改时不需要再把远端的内容拉回本地
+     * @param node Node
+     * @param c Cursor
+     * @return int
+     */
+    private int getSyncAction(Node node, Cursor c) {
+        int syncType = node.getSyncAction(c);
+        if (syncType == Node.SYNC_ACTION_UPDATE_LOCAL
+                && c.getInt(SqlNote.LOCAL_MODIFIED_COLUMN) == 0
+                && mCheckpoint.isSettled(c.getLong(SqlNote.ID_COLUMN))) {
+            return Node.SYNC_ACTION_NONE;
         }
+        return syncType;
     }
 
-    // 内容同步，同步同步类型、节点以及数据库指针
-    private void doContentSync(int syncType, Node node, Cursor c) throws NetworkFailureException {
+    /**
+     * 执行一个同步动作
+     * @param action SyncPlan.Action
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void performAction(SyncPlan.Action action) throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
 
-        MetaData meta;
         // 根据不同的同步类型来选择不同的操作
-        switch (syncType) {
+        switch (action.type) {
             case Node.SYNC_ACTION_ADD_LOCAL:
                 // 本地添加
-                addLocalNode(node);
+                addLocalNode(action.node);
                 break;
             case Node.SYNC_ACTION_ADD_REMOTE:
-                addRemoteNode(node, c);
+                addRemoteNode(action.sqlNote);
+                mCheckpoint.onPushed(action.noteId, false);
                 break;
             // 远程删除
             case Node.SYNC_ACTION_DEL_LOCAL:
-                meta = mMetaHashMap.get(c.getString(SqlNote.GTASK_ID_COLUMN));
-                if (meta != null) {
-                    GTaskClient.getInstance().deleteNode(meta);
-                }
-                mLocalDeleteIdMap.add(c.getLong(SqlNote.ID_COLUMN));
+                removeRemoteMeta(action.gid);
+                mLocalDeleteIdMap.add(action.noteId);
                 break;
             // 删除远程数据
             case Node.SYNC_ACTION_DEL_REMOTE:
-                meta = mMetaHashMap.get(node.getGid());
-                if (meta != null) {
-                    GTaskClient.getInstance().deleteNode(meta);
-                }
-                GTaskClient.getInstance().deleteNode(node);
+                removeRemoteMeta(action.node.getGid());
+                queueFor(action.node).deleteNode(action.node);
                 break;
             // 更新本地数据
             case Node.SYNC_ACTION_UPDATE_LOCAL:
-                updateLocalNode(node, c);
+                updateLocalNode(action.node, action.sqlNote);
                 break;
             // 更新本地数据
             case Node.SYNC_ACTION_UPDATE_REMOTE:
-                updateRemoteNode(node, c);
+                updateRemoteNode(action.node, action.sqlNote);
+                mCheckpoint.onPushed(action.noteId, true);
                 break;
             // 同步出错
             case Node.SYNC_ACTION_UPDATE_CONFLICT:
                 // merging both modifications maybe a good idea
                 // right now just use local update simply
-                updateRemoteNode(node, c);
-                break;
-            case Node.SYNC_ACTION_NONE:
+                updateRemoteNode(action.node, action.sqlNote);
+                mCheckpoint.onPushed(action.noteId, true);
                 break;
-            case Node.SYNC_ACTION_ERROR:
             default:
                 throw new ActionFailureException("unkown sync action type");
         }
+        mSyncedNodeCount++;
     }
 
     /**
@@ -628,12 +1547,12 @@ public class GTaskManager {
      * @param node Node
      * @throws NetworkFailureException NetworkFailureException
      */
-    private void addLocalNode(Node node) throws NetworkFailureException {
+    private void addLocalNode(final Node node) throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
 
-        SqlNote sqlNote;
+        final SqlNote sqlNote;
         // 若待增添节点为任务列表中的节点，进一步操作
         if (node instanceof TaskList) {
             // 在根目录中增加节点
@@ -692,74 +1611,81 @@ public class GTaskManager {
             sqlNote.setContent(js);
 
             // 找到父任务的ID号，并作为sqlNote的父任务的ID，没有父任务则报错
-            Long parentId = mGidToNid.get(((Task) node).getParent().getGid());
-            if (parentId == null) {
+            long parentId = mGidToNid.get(((Task) node).getParent().getGid(), NO_ID);
+            if (parentId == NO_ID) {
                 Log.e(TAG, "cannot find task's parent id locally");
                 throw new ActionFailureException("cannot add local node");
             }
-            sqlNote.setParentId(parentId.longValue());
+            sqlNote.setParentId(parentId);
         }
 
         // create the local node
+        // 远端的修改时间已知，直接写入同步id，中断后再次同步时不会被当作远端修改
         sqlNote.setGtaskId(node.getGid());
-        sqlNote.commit(false);
-
-        // update gid-nid mapping
-        mGidToNid.put(node.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), node.getGid());
-
-        // update meta
-        updateRemoteMeta(node.getGid(), sqlNote);
+        sqlNote.setSyncId(node.getLastModified());
+        sqlNote.commit(false, mWriteSession);
+
+        // 便签的id在写会话提交后才能得到
+        mWriteSession.addListener(new SqlWriteSession.OnCommittedListener() {
+            public void onCommitted() throws NetworkFailureException {
+                // update gid-nid mapping
+                mGidToNid.put(node.getGid(), sqlNote.getId());
+                mNidToGid.put(sqlNote.getId(), node.getGid());
+
+                // update meta
+                updateRemoteMeta(node.getGid(), sqlNote);
+            }
+        });
     }
 
     /**
-     * 更新本地节点，两个传入参数，一个是待更新的节点，一个是指向待增加位置的指针
+     * 更新本地节点，两个传入参数，一个是待更新的节点，一个是规划时读出的本地便签
      * @param node Node
-     * @param c Cursor
+     * @param sqlNote SqlNote
      * @throws NetworkFailureException NetworkFailureException
      */
-    private void updateLocalNode(Node node, Cursor c) throws NetworkFailureException {
+    private void updateLocalNode(final Node node, final SqlNote sqlNote)
+            throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
 
-        // 新建一个sql节点并将内容存储进Node中
-        SqlNote sqlNote;
         // update the note locally
-        sqlNote = new SqlNote(mContext, c);
         // 利用待更新节点中的内容对数据库节点进行设置
         sqlNote.setContent(node.getLocalJSONFromContent());
 
         // 设置父任务的ID，通过判断node是不是Task的实例
-        Long parentId = (node instanceof Task) ? mGidToNid.get(((Task) node).getParent().getGid())
-                : new Long(Notes.ID_ROOT_FOLDER);
+        long parentId = (node instanceof Task) ? mGidToNid.get(((Task) node).getParent().getGid(),
+                NO_ID) : Notes.ID_ROOT_FOLDER;
         // 当不能找到该任务上一级的id时报错
-        if (parentId == null) {
+        if (parentId == NO_ID) {
             Log.e(TAG, "cannot find task's parent id locally");
             throw new ActionFailureException("cannot update local node");
         }
         // 设置该任务节点上一级的id
-        sqlNote.setParentId(parentId.longValue());
-        sqlNote.commit(true);
+        sqlNote.setParentId(parentId);
+        sqlNote.setSyncId(node.getLastModified());
+        sqlNote.commit(true, mWriteSession);
 
         // update meta info
-        // 更新远程的节点信息
-        updateRemoteMeta(node.getGid(), sqlNote);
+        // 新加入的数据行的id在写会话提交后才能得到，之后再更新远程的节点信息
+        mWriteSession.addListener(new SqlWriteSession.OnCommittedListener() {
+            public void onCommitted() throws NetworkFailureException {
+                updateRemoteMeta(node.getGid(), sqlNote);
+            }
+        });
     }
 
     /**
-     * 添加远程结点，参数node是要添加远程结点的本地结点，c是数据库的指针
-     * @param node Node
-     * @param c Cursor
+     * 添加远程结点，参数sqlNote是规划时读出的要添加到远程的本地便签
+     * @param sqlNote SqlNote
      * @throws NetworkFailureException NetworkFailureException
      */
-    private void addRemoteNode(Node node, Cursor c) throws NetworkFailureException {
+    private void addRemoteNode(final SqlNote sqlNote) throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
 
-        // 新建一个sql节点并将内容存储进Node中
-        SqlNote sqlNote = new SqlNote(mContext, c);
         Node n;
 
         // update remotely
@@ -775,11 +1701,17 @@ public class GTaskManager {
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task);
 
-            GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
-
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            // the task is created with the next batch of actions, the local note and the
+            // meta are updated after the gid has been returned
+            queueFor(task).createTask(task, new GTaskClient.OnCreatedListener() {
+                public void onCreated(Node node) throws NetworkFailureException {
+                    // add meta
+                    updateRemoteMeta(node.getGid(), sqlNote);
+                    onRemoteNodeAdded(node, sqlNote);
+                }
+            });
+            mTouchedListGids.add(parentGid);
+            return;
         } else {
             TaskList tasklist = null;
 
@@ -816,17 +1748,30 @@ public class GTaskManager {
                 tasklist = new TaskList();
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
                 GTaskClient.getInstance().createTaskList(tasklist);
+                // the notes of the folder need the gid of the list at once
+                GTaskClient.getInstance().commitUpdate();
                 mGTaskListHashMap.put(tasklist.getGid(), tasklist);
+                // 新建的列表没有其他任务，相当于已经获取
+                mLoadedListGids.add(tasklist.getGid());
             }
             n = (Node) tasklist;
         }
+        onRemoteNodeAdded(n, sqlNote);
+    }
 
+    /**
+     * 远程结点创建后，把gid写入本地便签并更新gid与nid的映射
+     * @param n Node
+     * @param sqlNote SqlNote
+     */
+    private void onRemoteNodeAdded(Node n, SqlNote sqlNote) {
         // update local note
         // 进行本地节点的更新
+        // 两次提交在写会话中按顺序执行，第二次的版本检查使用第一次递增后的版本
         sqlNote.setGtaskId(n.getGid());
-        sqlNote.commit(false);
+        sqlNote.commit(false, mWriteSession);
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        sqlNote.commit(true, mWriteSession);
 
         // gid-id mapping
         // 进行gid与nid映射关系的更新
@@ -835,22 +1780,20 @@ public class GTaskManager {
     }
 
     /**
-     * 更新远程结点，参数node是要更新的结点，c是数据库的指针
+     * 更新远程结点，参数node是要更新的结点，sqlNote是规划时读出的本地便签
      * @param node Node
-     * @param c Cursor
+     * @param sqlNote SqlNote
      * @throws NetworkFailureException NetworkFailureException
      */
-    private void updateRemoteNode(Node node, Cursor c) throws NetworkFailureException {
+    private void updateRemoteNode(Node node, SqlNote sqlNote) throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c);
-
         // update remotely
         // 远程更新
         node.setContentByLocalJSON(sqlNote.getContent());
-        GTaskClient.getInstance().addUpdateNode(node);
+        queueFor(node).addUpdateNode(node);
 
         // update meta
         // 更新元数据
@@ -868,19 +1811,21 @@ public class GTaskManager {
                 throw new ActionFailureException("cannot update remote task");
             }
             TaskList curParentList = mGTaskListHashMap.get(curParentGid);
+            mTouchedListGids.add(curParentGid);
 
             // 若两个上一级任务列表不一致，进行任务的移动，从之前的任务列表中移动到该列表中
             if (preParentList != curParentList) {
                 preParentList.removeChildTask(task);
                 curParentList.addChildTask(task);
-                GTaskClient.getInstance().moveTask(task, preParentList, curParentList);
+                // 跨列表的移动不分道，在默认队列中按顺序执行
+                queueFor(task).moveTask(task, preParentList, curParentList);
             }
         }
 
         // clear local modified flag
         // 清除本地修改标记
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        sqlNote.commit(true, mWriteSession);
     }
 
     /**
@@ -892,61 +1837,329 @@ public class GTaskManager {
     private void updateRemoteMeta(String gid, SqlNote sqlNote) throws NetworkFailureException {
         // 判断节点类型是否符合，类型符合时才进行更新操作
         if (sqlNote != null && sqlNote.isNoteType()) {
+            mRemoteTaskGids.add(gid);
+            // 元数据先放入元数据包，包在下一个检查点统一写入远端
             MetaData metaData = mMetaHashMap.get(gid);
+            String meta = buildMeta(gid, sqlNote.getContent());
+            if (meta != null && putBundledMeta(gid, meta)) {
+                if (metaData != null) {
+                    mMetaHashMap.remove(gid);
+                    mRetiredMetas.add(metaData);
+                }
+                return;
+            }
+
+            // 放不进元数据包的大便签仍使用单独的元数据
             // 若元数据组为空，则创建一个新的元数据组
             if (metaData != null) {
                 metaData.setMeta(gid, sqlNote.getContent());
-                GTaskClient.getInstance().addUpdateNode(metaData);
+                queueFor(metaData).addUpdateNode(metaData);
                 // 若元数据组不为空，则进行更新
             } else {
                 metaData = new MetaData();
                 metaData.setMeta(gid, sqlNote.getContent());
                 mMetaList.addChildTask(metaData);
                 mMetaHashMap.put(gid, metaData);
-                GTaskClient.getInstance().createTask(metaData);
+                queueFor(metaData).createTask(metaData, null);
+            }
+        }
+    }
+
+    /**
+     * 生成便签的元数据，与MetaData.setMeta写入的内容相同
+     * @param gid 便签的gid
+     * @param content 便签的本地内容
+     * @return 元数据的json字符串，失败时返回null
+     */
+    private static String buildMeta(String gid, JSONObject content) {
+        if (content == null) {
+            return null;
+        }
+        try {
+            content.put(GTaskStringUtils.META_HEAD_GTASK_ID, gid);
+        } catch (JSONException e) {
+            Log.e(TAG, "failed to put related gid");
+            return null;
+        }
+        return content.toString();
+    }
+
+    /**
+     * 获取便签的元数据，元数据包中的优先
+     * @param gid 便签的gid
+     * @return 元数据的json字符串，没有时返回null
+     */
+    private String getMetaInfo(String gid) {
+        MetaBundle bundle = mBundleHashMap.get(gid);
+        if (bundle != null) {
+            return bundle.getMeta(gid);
+        }
+        MetaData metaData = mMetaHashMap.get(gid);
+        return metaData != null ? metaData.getNotes() : null;
+    }
+
+    /**
+     * 登记从远端读取的元数据包。迁移中断时一个便签可能出现在两个包中，只保留先读到的
+     * @param bundle MetaBundle
+     */
+    private void addMetaBundle(MetaBundle bundle) {
+        mMetaBundles.add(bundle);
+        for (String gid : bundle.getRelatedGids()) {
+            if (mBundleHashMap.containsKey(gid)) {
+                bundle.removeMeta(gid);
+            } else {
+                mBundleHashMap.put(gid, bundle);
+            }
+        }
+    }
+
+    /**
+     * 便签同时有单独的元数据和包中的元数据时，以修改时间较新的为准。单独的元数据较新说明
+     * 它是旧版本的客户端写入的，先从包中移除，迁移时再放回包中
+     */
+    private void resolveLegacyMeta() {
+        for (Map.Entry<String, MetaData> entry : mMetaHashMap.entrySet()) {
+            MetaBundle bundle = mBundleHashMap.get(entry.getKey());
+            if (bundle != null
+                    && entry.getValue().getLastModified() > bundle.getLastModified()) {
+                bundle.removeMeta(entry.getKey());
+                mBundleHashMap.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * 把便签的元数据放入元数据包，优先放入原来的包，放不下时依次选择已经要重写的包、
+     * 还有空间的包，最后新建一个包，这样只有少数包需要重写
+     * @param gid 便签的gid
+     * @param meta 元数据的json字符串
+     * @return 元数据太大放不进任何包时返回false
+     */
+    private boolean putBundledMeta(String gid, String meta) {
+        MetaBundle bundle = mBundleHashMap.get(gid);
+        if (bundle != null) {
+            if (bundle.putMeta(gid, meta)) {
+                return true;
+            }
+            bundle.removeMeta(gid);
+            mBundleHashMap.remove(gid);
+        }
+
+        MetaBundle clean = null;
+        for (MetaBundle b : mMetaBundles) {
+            if (b.canHold(gid, meta)) {
+                if (b.isDirty()) {
+                    bundle = b;
+                    break;
+                }
+                if (clean == null) {
+                    clean = b;
+                }
+            }
+        }
+        if (bundle == null) {
+            bundle = clean;
+        }
+        if (bundle == null) {
+            bundle = new MetaBundle();
+            if (!bundle.canHold(gid, meta)) {
+                return false;
+            }
+            mMetaList.addChildTask(bundle);
+            mMetaBundles.add(bundle);
+        }
+        bundle.putMeta(gid, meta);
+        mBundleHashMap.put(gid, bundle);
+        return true;
+    }
+
+    /**
+     * 删除便签的元数据，包中的元数据在下一个检查点随包一起写入
+     * @param gid 便签的gid
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void removeRemoteMeta(String gid) throws NetworkFailureException {
+        MetaBundle bundle = mBundleHashMap.remove(gid);
+        if (bundle != null) {
+            bundle.removeMeta(gid);
+        }
+        MetaData meta = mMetaHashMap.remove(gid);
+        if (meta != null) {
+            queueFor(meta).deleteNode(meta);
+        }
+    }
+
+    /**
+     * 把修改过的元数据包加入动作队列：新的包被创建，空的包被删除，其余的包整体更新
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void flushMetaBundles() throws NetworkFailureException {
+        Iterator<MetaBundle> iter = mMetaBundles.iterator();
+        while (iter.hasNext()) {
+            MetaBundle bundle = iter.next();
+            if (!bundle.isDirty()) {
+                continue;
+            }
+            bundle.pack();
+            if (bundle.isEmpty()) {
+                if (bundle.getGid() != null) {
+                    queueFor(bundle).deleteNode(bundle);
+                }
+                mMetaList.removeChildTask(bundle);
+                iter.remove();
+            } else if (bundle.getGid() == null) {
+                queueFor(bundle).createTask(bundle, null);
+            } else {
+                queueFor(bundle).addUpdateNode(bundle);
+            }
+        }
+    }
+
+    /**
+     * 是否有还没有写入远端的元数据包
+     * @return boolean
+     */
+    private boolean hasDirtyMetaBundle() {
+        for (MetaBundle bundle : mMetaBundles) {
+            if (bundle.isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 删除已经迁移到元数据包中的单独元数据，包含它的包还没有写入远端时留到下一次
+     * @throws NetworkFailureException NetworkFailureException
+     */
+    private void deleteRetiredMeta() throws NetworkFailureException {
+        Iterator<MetaData> iter = mRetiredMetas.iterator();
+        while (iter.hasNext()) {
+            MetaData meta = iter.next();
+            MetaBundle bundle = mBundleHashMap.get(meta.getRelatedGid());
+            if (bundle != null && (bundle.isDirty() || bundle.getGid() == null)) {
+                continue;
+            }
+            if (meta.getGid() != null) {
+                queueFor(meta).deleteNode(meta);
+            }
+            iter.remove();
+        }
+    }
+
+    /**
+     * 完整同步时把剩下的单独元数据迁移到元数据包中。所有任务列表都已获取，对应的便签在远端
+     * 已经不存在的元数据直接删除，已经在包中的以包为准，放不进包的大便签保留单独的元数据
+     */
+    private void migrateLegacyMeta() {
+        Iterator<Map.Entry<String, MetaData>> iter = mMetaHashMap.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, MetaData> entry = iter.next();
+            String gid = entry.getKey();
+            MetaData metaData = entry.getValue();
+            if (gid == null || metaData.getNotes() == null) {
+                continue;
+            }
+            if (!mRemoteTaskGids.contains(gid) || mBundleHashMap.containsKey(gid)
+                    || putBundledMeta(gid, metaData.getNotes())) {
+                iter.remove();
+                mRetiredMetas.add(metaData);
             }
         }
     }
 
     /**
-     * 刷新本地便签id，从远程同步
+     * 刷新本地便签id，从远程同步。任务列表的修改时间通过一次请求获取，只有本次同步中写入过的
+     * 任务列表才重新下载，其余任务的修改时间沿用同步开始时下载的内容，所有同步id在一个批处理中写入。
+     * 增量同步时没有获取的列表及其中的便签保持原来的同步id，也就是原来的水位
      * @throws NetworkFailureException NetworkFailureException
      */
     private void refreshLocalSyncId() throws NetworkFailureException {
         if (mCancelled) {
             return;
         }
+        // 没有获取任何列表也没有同步动作时，所有同步id都没有变化
+        if (mIncremental && mLoadedListGids.isEmpty() && mSyncedNodeCount == 0) {
+            return;
+        }
 
-        // get the latest gtask list
-        // 获取最新的gtask列表
-        mGTaskHashMap.clear();
-        mGTaskListHashMap.clear();
-        mMetaHashMap.clear();
-        initGTaskList();
+        // get the latest last modified time of the touched nodes
+        // 获取最新的远程修改时间，没有同步动作时远端没有被写入，沿用同步开始时获取的任务列表
+        StringLongHashMap lastModified = new StringLongHashMap(mGidToNid.size());
+        GTaskClient client = GTaskClient.getInstance();
+        ArrayList<RemoteNode> remoteLists = mSyncedNodeCount == 0 && mRemoteLists != null
+                ? mRemoteLists : client.getTaskLists();
+        ArrayList<String> fetchGids = new ArrayList<String>();
+        for (RemoteNode remote : remoteLists) {
+            if (mTouchedListGids.contains(remote.getGid())) {
+                fetchGids.add(remote.getGid());
+            }
+        }
+        HashMap<String, ArrayList<RemoteNode>> remoteTaskMap = fetchTaskLists(fetchGids);
+        if (mCancelled) {
+            return;
+        }
+
+        for (RemoteNode remote : remoteLists) {
+            String gid = remote.getGid();
+            String name = remote.getName();
+            if (!name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
+                    || name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                            + GTaskStringUtils.FOLDER_META)) {
+                continue;
+            }
+
+            if (mIncremental && !mLoadedListGids.contains(gid)) {
+                continue;
+            }
+            lastModified.put(gid, remote.getLastModified());
 
+            if (remoteTaskMap.containsKey(gid)) {
+                for (RemoteNode remoteTask : remoteTaskMap.get(gid)) {
+                    lastModified.put(remoteTask.getGid(), remoteTask.getLastModified());
+                }
+            } else if (mGTaskListHashMap.containsKey(gid)) {
+                for (Task task : mGTaskListHashMap.get(gid).getChildTaskList()) {
+                    lastModified.put(task.getGid(), task.getLastModified());
+                }
+            }
+        }
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
         Cursor c = null;
         try {
-            // 使指针指向列表中需要更新的任务
+            // 使指针指向列表中需要更新的任务，根文件夹和通话记录文件夹的同步id是增量同步的水位。
+            // 更新与顺序无关所以不排序
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id<>?)", new String[] {
-                            String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    SELECTION_REFRESH_SYNC_ID, new String[] {
+                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.TYPE_FOLDER),
+                            String.valueOf(Notes.ID_TRASH_FOLER),
+                            String.valueOf(Notes.ID_ROOT_FOLDER),
+                            String.valueOf(Notes.ID_CALL_RECORD_FOLDER)
+                    }, null);
             if (c != null) {
-                // 用迭代器不断从GTask的哈希表中删除node节点，设置新的content和新的resolcer并更新
+                // 只更新同步id有变化的便签
                 while (c.moveToNext()) {
                     String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    Node node = mGTaskHashMap.get(gid);
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        ContentValues values = new ContentValues();
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
-                    } else {
+                    long syncId = lastModified.get(gid, NO_ID);
+                    if (syncId == NO_ID) {
+                        if (mIncremental && !isInLoadedList(c)) {
+                            continue;
+                        }
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
                                 "some local items don't have gid after sync");
                     }
+                    if (syncId != c.getLong(SqlNote.SYNC_ID_COLUMN)) {
+                        // 通话记录文件夹的id为负数，匹配不了note/#，所以用selection指定id
+                        operationList.add(ContentProviderOperation
+                                .newUpdate(Notes.CONTENT_NOTE_URI)
+                                .withValue(NoteColumns.SYNC_ID, syncId)
+                                .withSelection("(" + NoteColumns.ID + "=?)", new String[] {
+                                    String.valueOf(c.getLong(SqlNote.ID_COLUMN))
+                                })
+                                .build());
+                    }
                 }
             } else {
                 Log.w(TAG, "failed to query local note to refresh sync id");
@@ -957,6 +2170,33 @@ public class GTaskManager {
                 c = null;
             }
         }
+
+        if (operationList.size() > 0) {
+            try {
+                mContentResolver.applyBatch(Notes.AUTHORITY, operationList);
+            } catch (RemoteException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("failed to refresh local sync id");
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, e.toString());
+                throw new ActionFailureException("failed to refresh local sync id");
+            }
+        }
+    }
+
+    /**
+     * 判断文件夹对应的任务列表，或便签所在文件夹对应的任务列表是否已经获取
+     * @param c 指向便签的Cursor
+     * @return boolean
+     */
+    private boolean isInLoadedList(Cursor c) {
+        String listGid;
+        if (c.getInt(SqlNote.TYPE_COLUMN) != Notes.TYPE_NOTE) {
+            listGid = c.getString(SqlNote.GTASK_ID_COLUMN);
+        } else {
+            listGid = mNidToGid.get(c.getLong(SqlNote.PARENT_ID_COLUMN));
+        }
+        return listGid != null && mLoadedListGids.contains(listGid);
     }
 
     /**
@@ -972,5 +2212,7 @@ public class GTaskManager {
      */
     public void cancelSync() {
         mCancelled = true;
+        // 不再等待失败请求的重试
+        GTaskClient.getInstance().getRetryPolicy().cancel();
     }
 }
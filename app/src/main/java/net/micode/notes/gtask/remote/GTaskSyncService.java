@@ -160,11 +160,23 @@ public class GTaskSyncService extends Service {
     }
 
     /**
-     * 开始同步
+     * 开始同步，是否完整同步由GTaskManager按上次完整同步的时间决定
      * @param activity Activity
      */
     public static void startSync(Activity activity) {
+        startSync(activity, false);
+    }
+
+    /**
+     * 开始同步
+     * @param activity Activity
+     * @param fullSync 为true时不论上次完整同步的时间都进行完整同步
+     */
+    public static void startSync(Activity activity, boolean fullSync) {
         GTaskManager.getInstance().setActivityContext(activity);
+        if (fullSync) {
+            GTaskManager.getInstance().requestFullSync();
+        }
         Intent intent = new Intent(activity, GTaskSyncService.class);
         intent.putExtra(GTaskSyncService.ACTION_STRING_NAME, GTaskSyncService.ACTION_START_SYNC);
         activity.startService(intent);
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+
+/**
+ * GTaskClient与服务器之间的传输层，负责发送请求、保存会话的cookie并返回解码后的响应内容。
+ * 响应以Reader的形式返回，调用者边读边解析，读完后必须关闭。实现需要支持多个线程同时发送请求
+ */
+public interface GTaskTransport {
+
+    /**
+     * 开始一个新的会话，丢弃之前的cookie，每次登录时调用
+     */
+    void open();
+
+    /**
+     * 发送GET请求
+     * @param url String
+     * @return 响应内容，需要由调用者关闭
+     * @throws IOException 网络错误或服务器返回错误状态，会话被拒绝时为SessionRejectedException
+     */
+    Reader get(String url) throws IOException;
+
+    /**
+     * 发送POST请求
+     * @param url String
+     * @param headers 请求头，可以为null
+     * @param body 已编码的请求内容
+     * @return 响应内容，需要由调用者关闭
+     * @throws IOException 网络错误或服务器返回错误状态，会话被拒绝时为SessionRejectedException
+     */
+    Reader post(String url, Map<String, String> headers, byte[] body) throws IOException;
+
+    /**
+     * 当前会话中是否有名字包含namePart的cookie
+     * @param namePart String
+     * @return boolean
+     */
+    boolean hasCookie(String namePart);
+
+    /**
+     * 导出当前会话的cookie，用于在进程重启后恢复会话。每个cookie的过期时间按它在最近一次
+     * 登录或恢复时创建来计算，所以应在登录后立即导出
+     * @return 导出的cookie，没有可以导出的cookie时返回null
+     */
+    String exportCookies();
+
+    /**
+     * 用exportCookies导出的cookie开始一个新的会话，已经过期的cookie被丢弃
+     * @param cookies String
+     */
+    void importCookies(String cookies);
+
+    /**
+     * 当前会话中最早过期的cookie的过期时间
+     * @return 毫秒时间，没有会过期的cookie时返回Long.MAX_VALUE
+     */
+    long getCookieExpiry();
+
+    /**
+     * 释放连接等资源
+     */
+    void close();
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 进程内的传输层，请求直接交给替身服务器处理，不经过网络。用于在没有Google服务器的情况下
+ * 测量和回归测试同步的吞吐量，同时统计请求数、发送的字节数和收到的字符数
+ */
+public class LocalTransport implements GTaskTransport {
+
+    /**
+     * 进程内的替身服务器，需要支持多个线程同时调用
+     */
+    public interface Server {
+        /**
+         * 处理GET请求
+         * @param url String
+         * @return 响应内容
+         * @throws IOException 模拟网络错误
+         */
+        String onGet(String url) throws IOException;
+
+        /**
+         * 处理POST请求
+         * @param url String
+         * @param headers 请求头，可以为null
+         * @param body 解码后的请求内容
+         * @return 响应内容
+         * @throws IOException 模拟网络错误
+         */
+        String onPost(String url, Map<String, String> headers, String body) throws IOException;
+
+        /**
+         * 替身服务器登录后设置的cookie中是否有名字包含namePart的
+         * @param namePart String
+         * @return boolean
+         */
+        boolean hasCookie(String namePart);
+    }
+
+    private final Server mServer;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    private final AtomicLong mSentBytes = new AtomicLong();
+
+    private final AtomicLong mReceivedChars = new AtomicLong();
+
+    public LocalTransport(Server server) {
+        mServer = server;
+    }
+
+    public void open() {
+    }
+
+    public Reader get(String url) throws IOException {
+        mRequestCount.incrementAndGet();
+        return received(mServer.onGet(url));
+    }
+
+    public Reader post(String url, Map<String, String> headers, byte[] body) throws IOException {
+        mRequestCount.incrementAndGet();
+        mSentBytes.addAndGet(body.length);
+        return received(mServer.onPost(url, headers, new String(body, "UTF-8")));
+    }
+
+    public boolean hasCookie(String namePart) {
+        return mServer.hasCookie(namePart);
+    }
+
+    /**
+     * 替身服务器自己管理会话，没有可以导出的cookie
+     */
+    public String exportCookies() {
+        return null;
+    }
+
+    public void importCookies(String cookies) {
+    }
+
+    public long getCookieExpiry() {
+        return Long.MAX_VALUE;
+    }
+
+    public void close() {
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getSentBytes() {
+        return mSentBytes.get();
+    }
+
+    public long getReceivedChars() {
+        return mReceivedChars.get();
+    }
+
+    /**
+     * 清空统计数据
+     */
+    public void resetStats() {
+        mRequestCount.set(0);
+        mSentBytes.set(0);
+        mReceivedChars.set(0);
+    }
+
+    private Reader received(String content) throws IOException {
+        if (content == null) {
+            throw new IOException("no response from server");
+        }
+        mReceivedChars.addAndGet(content.length());
+        return new StringReader(content);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.MalformedJsonException;
+
+import net.micode.notes.gtask.exception.HttpStatusException;
+import net.micode.notes.gtask.exception.SessionRejectedException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+
+/**
+ * 请求的重试策略。暂时性的网络错误按带随机抖动的指数退避重试，每次同步中等待重试的总时间
+ * 不超过预算，预算用完后错误直接结束同步。可以被多个线程同时使用
+ */
+public class RetryPolicy {
+    /**
+     * 默认每个请求最多尝试4次
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    /**
+     * 默认第一次重试前最多等待0.5秒，之后每次翻倍
+     */
+    public static final long DEFAULT_BASE_DELAY = 500;
+
+    /**
+     * 默认每次重试前最多等待8秒
+     */
+    public static final long DEFAULT_MAX_DELAY = 8000;
+
+    /**
+     * 默认每次同步最多花60秒等待重试
+     */
+    public static final long DEFAULT_SYNC_BUDGET = 60000;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mMaxAttempts;
+
+    private final long mBaseDelay;
+
+    private final long mMaxDelay;
+
+    private final long mSyncBudget;
+
+    private final Random mRandom = new Random();
+
+    /**
+     * 本次同步中已经等待的时间
+     */
+    private long mWaited;
+
+    private boolean mCancelled;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_SYNC_BUDGET);
+    }
+
+    /**
+     * @param maxAttempts 每个请求最多尝试的次数，为1时不重试
+     * @param baseDelay 第一次重试前最多等待的时间(毫秒)
+     * @param maxDelay 每次重试前最多等待的时间(毫秒)
+     * @param syncBudget 每次同步中等待重试的总时间(毫秒)
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, long syncBudget) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mSyncBudget = syncBudget;
+    }
+
+    /**
+     * 开始一次新的同步，重新计算等待的预算
+     */
+    public synchronized void startSync() {
+        mWaited = 0;
+        mCancelled = false;
+    }
+
+    /**
+     * 取消同步，正在等待重试的线程立即返回并且不再重试
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * 请求失败后决定是否重试，需要重试时在返回前等待退避的时间
+     * @param e 请求失败的异常
+     * @param attempt 已经尝试的次数
+     * @return 是否重试
+     */
+    public boolean retry(IOException e, int attempt) {
+        if (attempt >= mMaxAttempts || !isTransient(e)) {
+            return false;
+        }
+
+        long delay = nextDelay(attempt);
+        synchronized (this) {
+            if (mCancelled || mWaited + delay > mSyncBudget) {
+                return false;
+            }
+            mWaited += delay;
+            long end = System.currentTimeMillis() + delay;
+            try {
+                for (long left = delay; left > 0 && !mCancelled;
+                        left = end - System.currentTimeMillis()) {
+                    wait(left);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return !mCancelled;
+        }
+    }
+
+    /**
+     * 第attempt次失败后重试前等待的时间，在[0, min(maxDelay, baseDelay * 2^(attempt-1)))
+     * 之间均匀分布。full jitter，多个分道同时失败时不会在同一时间重试
+     * @param attempt 已经尝试的次数
+     * @return 毫秒
+     */
+    long nextDelay(int attempt) {
+        long ceiling = Math.min(mMaxDelay, mBaseDelay << Math.min(attempt - 1, 16));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * 错误是否是暂时性的，重试可能成功。证书错误、协议错误、会话被拒绝、无法解析的响应和
+     * 除了超时、限流和服务器错误以外的http状态不会因为重试而改变
+     * @param e IOException
+     * @return boolean
+     */
+    public static boolean isTransient(IOException e) {
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).getStatus();
+            return status >= 500 || status == HTTP_TOO_MANY_REQUESTS
+                    || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+        }
+        return !(e instanceof SessionRejectedException
+                || e instanceof MalformedJsonException
+                || e instanceof SSLHandshakeException
+                || e instanceof SSLPeerUnverifiedException
+                || e instanceof MalformedURLException
+                || e instanceof ProtocolException);
+    }
+
+    /**
+     * 失败的请求是否可能已经被服务器执行。连接没有建立或者服务器拒绝处理时请求一定没有
+     * 被执行，其他错误发生时请求可能已经被执行，只是响应丢失了
+     * @param e IOException
+     * @return boolean
+     */
+    public static boolean mayHaveBeenApplied(IOException e) {
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).getStatus();
+            return status != HTTP_TOO_MANY_REQUESTS
+                    && status != HttpURLConnection.HTTP_UNAVAILABLE;
+        }
+        return !(e instanceof ConnectException
+                || e instanceof UnknownHostException
+                || e instanceof NoRouteToHostException);
+    }
+}
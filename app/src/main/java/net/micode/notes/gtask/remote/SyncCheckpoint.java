@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Bundle;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.tool.LongHashSet;
+
+
+/**
+ * 未完成同步的检查点，保存在本地数据库中。同步按批提交远端动作和本地写入，每批完成后记录其中写入
+ * 过远端的便签，这些便签的同步id要到同步结束时才刷新，再次同步时不必把远端的内容拉回本地。
+ * 同步失败时记录本地已清除修改标记、远端更新却没有确认的便签，再次同步前重新标记为本地修改
+ */
+class SyncCheckpoint {
+    private static final String TAG = SyncCheckpoint.class.getSimpleName();
+
+    /**
+     * 已提交便签的记录只在这段时间内有效(毫秒)，之后远端可能已被其他设备修改，需要完整地比较一次
+     */
+    private static final long MAX_SETTLED_AGE = 60 * 60 * 1000;
+
+    /**
+     * 重新标记本地修改时每条语句包含的id数
+     */
+    private static final int MAX_IDS_PER_UPDATE = 500;
+
+    private ContentResolver mContentResolver;
+
+    private String mAccount;
+
+    /**
+     * 之前未完成的同步中已提交的便签
+     */
+    private LongHashSet mSettledIds;
+
+    /**
+     * 当前批中写入远端的便签
+     */
+    private LongHashSet mBatchSettledIds;
+
+    /**
+     * 当前批中本地已清除修改标记而远端更新还没有确认的便签
+     */
+    private LongHashSet mBatchPendingIds;
+
+    SyncCheckpoint(ContentResolver resolver, String account) {
+        mContentResolver = resolver;
+        mAccount = account;
+        mSettledIds = new LongHashSet();
+        mBatchSettledIds = new LongHashSet();
+        mBatchPendingIds = new LongHashSet();
+    }
+
+    /**
+     * 读取上次同步留下的检查点，把未确认的便签重新标记为本地修改。其他账户的或过期的记录被丢弃
+     */
+    void load() {
+        mSettledIds.clear();
+        Bundle state = mContentResolver.call(Notes.CONTENT_NOTE_URI,
+                Notes.METHOD_GET_SYNC_CHECKPOINT, null, null);
+        if (state == null || !state.containsKey(Notes.EXTRA_SYNC_ACCOUNT)) {
+            return;
+        }
+        if (!mAccount.equals(state.getString(Notes.EXTRA_SYNC_ACCOUNT))) {
+            Log.d(TAG, "drop the checkpoint of another account");
+            clear();
+            return;
+        }
+
+        long[] ids = state.getLongArray(Notes.EXTRA_NOTE_IDS);
+        int[] states = state.getIntArray(Notes.EXTRA_NOTE_STATES);
+        LongHashSet pendingIds = new LongHashSet();
+        for (int i = 0; ids != null && i < ids.length; i++) {
+            if (states[i] == Notes.SYNC_NOTE_PENDING) {
+                pendingIds.add(ids[i]);
+            } else if (states[i] == Notes.SYNC_NOTE_SETTLED) {
+                mSettledIds.add(ids[i]);
+            }
+        }
+        markLocalModified(pendingIds.toArray());
+
+        long age = System.currentTimeMillis() - state.getLong(Notes.EXTRA_SYNC_SAVED_DATE);
+        if (age < 0 || age > MAX_SETTLED_AGE) {
+            Log.d(TAG, "the checkpoint is too old, sync all notes again");
+            mSettledIds.clear();
+            clear();
+        } else {
+            if (!pendingIds.isEmpty()) {
+                save(pendingIds, Notes.SYNC_NOTE_NONE);
+            }
+            Log.d(TAG, "resume sync with " + mSettledIds.size() + " settled notes, "
+                    + pendingIds.size() + " notes are marked as modified again");
+        }
+    }
+
+    /**
+     * 便签是否已被之前未完成的同步写入远端
+     */
+    boolean isSettled(long noteId) {
+        return mSettledIds.contains(noteId);
+    }
+
+    /**
+     * 记录当前批中写入远端的便签
+     * @param pending 本地的修改标记是否在远端确认之前就会清除
+     */
+    void onPushed(long noteId, boolean pending) {
+        mBatchSettledIds.add(noteId);
+        if (pending) {
+            mBatchPendingIds.add(noteId);
+        }
+    }
+
+    /**
+     * 当前批的远端动作和本地写入都已提交，保存其中写入远端的便签
+     */
+    void commitBatch() {
+        if (!mBatchSettledIds.isEmpty()) {
+            save(mBatchSettledIds, Notes.SYNC_NOTE_SETTLED);
+        }
+        mBatchSettledIds.clear();
+        mBatchPendingIds.clear();
+    }
+
+    /**
+     * 同步失败时保存当前批中没有确认的便签，已提交的批之前已经保存
+     */
+    void savePending() {
+        if (!mBatchPendingIds.isEmpty()) {
+            save(mBatchPendingIds, Notes.SYNC_NOTE_PENDING);
+        }
+        mBatchSettledIds.clear();
+        mBatchPendingIds.clear();
+    }
+
+    /**
+     * 同步完成，删除检查点
+     */
+    void clear() {
+        mContentResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_CLEAR_SYNC_CHECKPOINT,
+                null, null);
+    }
+
+    private void save(LongHashSet noteIds, int noteState) {
+        long[] ids = noteIds.toArray();
+        int[] states = new int[ids.length];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = noteState;
+        }
+        Bundle extras = new Bundle();
+        extras.putString(Notes.EXTRA_SYNC_ACCOUNT, mAccount);
+        extras.putLongArray(Notes.EXTRA_NOTE_IDS, ids);
+        extras.putIntArray(Notes.EXTRA_NOTE_STATES, states);
+        mContentResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_SAVE_SYNC_CHECKPOINT, null,
+                extras);
+    }
+
+    private void markLocalModified(long[] ids) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_UPDATE) {
+            int end = Math.min(start + MAX_IDS_PER_UPDATE, ids.length);
+            String[] args = new String[end - start];
+            StringBuilder selection = new StringBuilder(args.length * 2 + 16);
+            selection.append(NoteColumns.ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                args[i - start] = String.valueOf(ids[i]);
+                selection.append(i > start ? ",?" : "?");
+            }
+            selection.append(')');
+            mContentResolver.update(Notes.CONTENT_NOTE_URI, values, selection.toString(), args);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.SqlNote;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+
+
+/**
+ * 同步计划。规划阶段根据本地便签的Cursor和远端的节点表得出每个节点的同步动作，执行阶段再按
+ * 阶段依次执行。计划在执行前就可以查看各类动作的数量，用于试运行和显示进度
+ */
+public class SyncPlan {
+    /**
+     * 执行阶段：回收站中便签的远端删除、文件夹、已有便签、远端新增任务的本地添加。
+     * 便签的动作要用到文件夹的本地id和gid，所以文件夹阶段执行完才执行便签阶段
+     */
+    static final int STAGE_TRASH = 0;
+
+    static final int STAGE_FOLDER = 1;
+
+    static final int STAGE_NOTE = 2;
+
+    static final int STAGE_ADD_LOCAL = 3;
+
+    private static final int STAGE_COUNT = 4;
+
+    private static final String[] ACTION_NAMES = {
+            "none", "add_remote", "add_local", "del_remote", "del_local", "update_remote",
+            "update_local", "update_conflict"
+    };
+
+    /**
+     * 一个节点的同步动作。规划时从Cursor中读出执行需要的内容，执行时不再访问Cursor
+     */
+    static class Action {
+        final int type;
+
+        final Node node;
+
+        /**
+         * 本地便签的id，远端新增的节点为0
+         */
+        final long noteId;
+
+        /**
+         * 本地便签的gid，远端新增的节点为null
+         */
+        final String gid;
+
+        /**
+         * 本地便签的父文件夹id，远端新增的节点为0
+         */
+        final long parentId;
+
+        /**
+         * 需要读写便签内容的动作使用的本地便签，其他动作为null
+         */
+        final SqlNote sqlNote;
+
+        Action(int type, Node node, long noteId, String gid, long parentId, SqlNote sqlNote) {
+            this.type = type;
+            this.node = node;
+            this.noteId = noteId;
+            this.gid = gid;
+            this.parentId = parentId;
+            this.sqlNote = sqlNote;
+        }
+    }
+
+    private final ArrayList<ArrayList<Action>> mStages;
+
+    private final int[] mCounts;
+
+    SyncPlan() {
+        mStages = new ArrayList<ArrayList<Action>>(STAGE_COUNT);
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages.add(new ArrayList<Action>());
+        }
+        mCounts = new int[ACTION_NAMES.length];
+    }
+
+    /**
+     * 把一个动作加入阶段的末尾，同一阶段的动作按加入的顺序执行
+     * @param stage 执行阶段
+     * @param action Action
+     */
+    void add(int stage, Action action) {
+        if (action.type <= Node.SYNC_ACTION_NONE || action.type >= ACTION_NAMES.length) {
+            throw new ActionFailureException("unkown sync action type");
+        }
+        mStages.get(stage).add(action);
+        mCounts[action.type]++;
+    }
+
+    ArrayList<Action> getStage(int stage) {
+        return mStages.get(stage);
+    }
+
+    /**
+     * 获取计划中某一类动作的数量
+     * @param actionType Node中的SYNC_ACTION_*
+     * @return int
+     */
+    public int getCount(int actionType) {
+        return actionType >= 0 && actionType < mCounts.length ? mCounts[actionType] : 0;
+    }
+
+    /**
+     * 获取计划中的动作总数
+     * @return int
+     */
+    public int size() {
+        int size = 0;
+        for (ArrayList<Action> stage : mStages) {
+            size += stage.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SyncPlan{");
+        for (int i = Node.SYNC_ACTION_NONE + 1; i < ACTION_NAMES.length; i++) {
+            if (i > Node.SYNC_ACTION_NONE + 1) {
+                sb.append(", ");
+            }
+            sb.append(ACTION_NAMES[i]).append('=').append(mCounts[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import net.micode.notes.gtask.exception.HttpStatusException;
+import net.micode.notes.gtask.exception.SessionRejectedException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * 基于HttpURLConnection的默认传输层。系统会复用keep-alive的连接，响应内容以gzip压缩传输，
+ * 请求内容的压缩需要服务器支持，默认关闭。cookie保存在自己的CookieManager中，不影响进程中的其他连接
+ */
+public class UrlConnectionTransport implements GTaskTransport {
+    private static final String TAG = UrlConnectionTransport.class.getSimpleName();
+
+    /**
+     * 默认的连接超时时间为10秒
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    /**
+     * 默认的读取超时时间为15秒
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 15000;
+
+    /**
+     * 登录时跟随重定向的最大次数
+     */
+    private static final int MAX_REDIRECTS = 5;
+
+    private static final String COOKIE_NAME = "name";
+
+    private static final String COOKIE_VALUE = "value";
+
+    private static final String COOKIE_DOMAIN = "domain";
+
+    private static final String COOKIE_PATH = "path";
+
+    private static final String COOKIE_SECURE = "secure";
+
+    private static final String COOKIE_VERSION = "version";
+
+    private static final String COOKIE_EXPIRES = "expires";
+
+    private final int mConnectTimeout;
+
+    private final int mReadTimeout;
+
+    private final boolean mCompressRequest;
+
+    private volatile CookieManager mCookieManager;
+
+    public UrlConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, false);
+    }
+
+    /**
+     * @param connectTimeout 连接超时时间(毫秒)
+     * @param readTimeout 读取超时时间(毫秒)
+     * @param compressRequest 是否以gzip压缩请求内容
+     */
+    public UrlConnectionTransport(int connectTimeout, int readTimeout, boolean compressRequest) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+        mCompressRequest = compressRequest;
+        mCookieManager = new CookieManager();
+    }
+
+    public void open() {
+        mCookieManager = new CookieManager();
+    }
+
+    /**
+     * 重定向由自己跟随，这样每一跳响应中的cookie都能被保存
+     */
+    public Reader get(String url) throws IOException {
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            HttpURLConnection connection = openConnection(url);
+            connection.setRequestMethod("GET");
+            String location = execute(connection, null);
+            if (location == null) {
+                return openContent(connection);
+            }
+            url = new URL(connection.getURL(), location).toString();
+        }
+        throw new ProtocolException("too many redirects");
+    }
+
+    public Reader post(String url, Map<String, String> headers, byte[] body) throws IOException {
+        HttpURLConnection connection = openConnection(url);
+        connection.setRequestMethod("POST");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+
+        byte[] content = body;
+        if (mCompressRequest) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2);
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(content);
+            gzip.close();
+            content = bytes.toByteArray();
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(content.length);
+        if (execute(connection, content) != null) {
+            // 会话失效时服务器把请求重定向到登录页面
+            throw new SessionRejectedException("unexpected redirect of post");
+        }
+        return openContent(connection);
+    }
+
+    public boolean hasCookie(String namePart) {
+        for (HttpCookie cookie : mCookieManager.getCookieStore().getCookies()) {
+            if (cookie.getName().contains(namePart)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 每个cookie导出为一个json对象，expires是按maxAge换算的过期时间，会话cookie为0
+     */
+    public String exportCookies() {
+        List<HttpCookie> cookies = mCookieManager.getCookieStore().getCookies();
+        if (cookies.isEmpty()) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        JSONArray array = new JSONArray();
+        try {
+            for (HttpCookie cookie : cookies) {
+                JSONObject js = new JSONObject();
+                js.put(COOKIE_NAME, cookie.getName());
+                js.put(COOKIE_VALUE, cookie.getValue());
+                if (cookie.getDomain() != null) {
+                    js.put(COOKIE_DOMAIN, cookie.getDomain());
+                }
+                if (cookie.getPath() != null) {
+                    js.put(COOKIE_PATH, cookie.getPath());
+                }
+                js.put(COOKIE_SECURE, cookie.getSecure());
+                js.put(COOKIE_VERSION, cookie.getVersion());
+                js.put(COOKIE_EXPIRES, cookie.getMaxAge() < 0 ? 0
+                        : now + cookie.getMaxAge() * 1000);
+                array.put(js);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            return null;
+        }
+        return array.toString();
+    }
+
+    public void importCookies(String cookies) {
+        CookieManager cookieManager = new CookieManager();
+        long now = System.currentTimeMillis();
+        try {
+            JSONArray array = new JSONArray(cookies);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject js = array.getJSONObject(i);
+                long expires = js.optLong(COOKIE_EXPIRES, 0);
+                if (expires != 0 && expires <= now) {
+                    continue;
+                }
+                HttpCookie cookie = new HttpCookie(js.getString(COOKIE_NAME),
+                        js.getString(COOKIE_VALUE));
+                if (js.has(COOKIE_DOMAIN)) {
+                    cookie.setDomain(js.getString(COOKIE_DOMAIN));
+                }
+                if (js.has(COOKIE_PATH)) {
+                    cookie.setPath(js.getString(COOKIE_PATH));
+                }
+                cookie.setSecure(js.optBoolean(COOKIE_SECURE));
+                cookie.setVersion(js.optInt(COOKIE_VERSION));
+                cookie.setMaxAge(expires == 0 ? -1 : (expires - now) / 1000);
+                cookieManager.getCookieStore().add(toCookieUri(cookie), cookie);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "fail to import cookies: " + e.toString());
+        }
+        mCookieManager = cookieManager;
+    }
+
+    public long getCookieExpiry() {
+        long now = System.currentTimeMillis();
+        long expiry = Long.MAX_VALUE;
+        for (HttpCookie cookie : mCookieManager.getCookieStore().getCookies()) {
+            if (cookie.getMaxAge() >= 0) {
+                expiry = Math.min(expiry, now + cookie.getMaxAge() * 1000);
+            }
+        }
+        return expiry;
+    }
+
+    public void close() {
+        mCookieManager = new CookieManager();
+    }
+
+    private HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+        connection.setUseCaches(false);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        return connection;
+    }
+
+    /**
+     * 带上会话的cookie发送请求并保存响应的cookie
+     * @return 重定向的地址，成功时返回null，之后需要读完全部响应内容，读完的连接才能被复用
+     */
+    private String execute(HttpURLConnection connection, byte[] content) throws IOException {
+        URI uri = toUri(connection.getURL());
+        CookieManager cookieManager = mCookieManager;
+        Map<String, List<String>> cookies = cookieManager.get(uri,
+                connection.getRequestProperties());
+        for (Map.Entry<String, List<String>> entry : cookies.entrySet()) {
+            for (String value : entry.getValue()) {
+                connection.addRequestProperty(entry.getKey(), value);
+            }
+        }
+
+        try {
+            if (content != null) {
+                OutputStream output = connection.getOutputStream();
+                try {
+                    output.write(content);
+                } finally {
+                    output.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            cookieManager.put(uri, connection.getHeaderFields());
+            if (status >= HttpURLConnection.HTTP_OK && status < HttpURLConnection.HTTP_MULT_CHOICE) {
+                return null;
+            }
+            String location = connection.getHeaderField("Location");
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                error.close();
+            }
+            if (location != null && status >= HttpURLConnection.HTTP_MULT_CHOICE
+                    && status < HttpURLConnection.HTTP_BAD_REQUEST) {
+                // 只在登录时发生，不读取重定向的内容，直接释放连接
+                connection.disconnect();
+                return location;
+            }
+            if (status == HttpURLConnection.HTTP_UNAUTHORIZED
+                    || status == HttpURLConnection.HTTP_FORBIDDEN) {
+                throw new SessionRejectedException("session rejected with http status " + status);
+            }
+            throw new HttpStatusException(status);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * 打开解压后的响应内容，连接在Reader读完并关闭后回到连接池
+     */
+    private Reader openContent(HttpURLConnection connection) throws IOException {
+        String contentEncoding = connection.getContentEncoding();
+        InputStream input = connection.getInputStream();
+        if (contentEncoding != null) {
+            Log.d(TAG, "encoding: " + contentEncoding);
+            if (contentEncoding.equalsIgnoreCase("gzip")) {
+                input = new GZIPInputStream(input);
+            } else if (contentEncoding.equalsIgnoreCase("deflate")) {
+                // http的deflate是带zlib头的格式，不是原始的deflate数据
+                input = new InflaterInputStream(input);
+            }
+        }
+
+        return new BufferedReader(new InputStreamReader(input, "UTF-8"));
+    }
+
+    /**
+     * 导入的cookie按它的域名保存
+     */
+    private static URI toCookieUri(HttpCookie cookie) {
+        String domain = cookie.getDomain();
+        if (domain == null) {
+            return null;
+        }
+        if (domain.startsWith(".")) {
+            domain = domain.substring(1);
+        }
+        try {
+            return new URI("https", domain, "/", null);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static URI toUri(URL url) throws IOException {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException("bad url " + url);
+        }
+    }
+}
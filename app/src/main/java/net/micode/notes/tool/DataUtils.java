@@ -16,14 +16,11 @@
 
 package net.micode.notes.tool;
 
-import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.os.RemoteException;
+import android.os.Bundle;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -31,7 +28,7 @@ import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 
 
@@ -43,6 +40,15 @@ import java.util.HashSet;
 public class DataUtils {
     public static final String TAG = "DataUtils";
     public static boolean batchDeleteNotes(ContentResolver resolver, HashSet<Long> ids) {
+        return batchDeleteNotes(resolver, ids, null);
+    }
+
+    /**
+     * 批量删除便签，所有id通过一次provider调用删除
+     * @param widgets 不为空时存入受影响的桌面widget，包括被删除文件夹中的便签
+     */
+    public static boolean batchDeleteNotes(ContentResolver resolver, HashSet<Long> ids,
+            HashSet<AppWidgetAttribute> widgets) {
         if (ids == null) {
             Log.d(TAG, "the ids is null");
             return true;
@@ -51,30 +57,36 @@ public class DataUtils {
             Log.d(TAG, "no id is in the hashset");
             return true;
         }
+        return deleteNotes(resolver, toArray(ids), widgets);
+    }
 
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-        for (long id : ids) {
-            if(id == Notes.ID_ROOT_FOLDER) {
-                Log.e(TAG, "Don't delete system folder root");
-                continue;
-            }
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newDelete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
-            operationList.add(builder.build());
+    /**
+     * 批量删除便签，用于同步时以LongHashSet收集的待删除id
+     */
+    public static boolean batchDeleteNotes(ContentResolver resolver, LongHashSet ids) {
+        if (ids == null) {
+            Log.d(TAG, "the ids is null");
+            return true;
         }
-        try {
-            ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);
-            if (results == null || results.length == 0 || results[0] == null) {
-                Log.d(TAG, "delete notes failed, ids:" + ids.toString());
-                return false;
-            }
+        if (ids.isEmpty()) {
+            Log.d(TAG, "no id is in the hashset");
             return true;
-        } catch (RemoteException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
         }
-        return false;
+        return deleteNotes(resolver, ids.toArray(), null);
+    }
+
+    private static boolean deleteNotes(ContentResolver resolver, long[] ids,
+            HashSet<AppWidgetAttribute> widgets) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(Notes.EXTRA_NOTE_IDS, ids);
+        Bundle result = resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_DELETE_NOTES, null,
+                extras);
+        if (result == null || result.getInt(Notes.EXTRA_COUNT) == 0) {
+            Log.d(TAG, "delete notes failed, ids:" + Arrays.toString(ids));
+            return false;
+        }
+        collectWidgets(result, widgets);
+        return true;
     }
 
     public static void moveNoteToFoler(ContentResolver resolver, long id, long srcFolderId, long desFolderId) {
@@ -87,33 +99,57 @@ public class DataUtils {
 
     public static boolean batchMoveToFolder(ContentResolver resolver, HashSet<Long> ids,
             long folderId) {
+        return batchMoveToFolder(resolver, ids, folderId, null);
+    }
+
+    /**
+     * 批量移动便签至文件夹，所有id通过一次provider调用移动，与moveNoteToFoler一样记录原文件夹
+     * @param widgets 不为空时存入受影响的桌面widget，包括被移动文件夹中的便签
+     */
+    public static boolean batchMoveToFolder(ContentResolver resolver, HashSet<Long> ids,
+            long folderId, HashSet<AppWidgetAttribute> widgets) {
         if (ids == null) {
             Log.d(TAG, "the ids is null");
             return true;
         }
 
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        Bundle extras = new Bundle();
+        extras.putLongArray(Notes.EXTRA_NOTE_IDS, toArray(ids));
+        extras.putLong(Notes.EXTRA_FOLDER_ID, folderId);
+        Bundle result = resolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_MOVE_NOTES, null,
+                extras);
+        if (result == null || (ids.size() > 0 && result.getInt(Notes.EXTRA_COUNT) == 0)) {
+            Log.d(TAG, "move notes failed, ids:" + ids.toString());
+            return false;
+        }
+        collectWidgets(result, widgets);
+        return true;
+    }
+
+    private static long[] toArray(HashSet<Long> ids) {
+        long[] array = new long[ids.size()];
+        int i = 0;
         for (long id : ids) {
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
-            builder.withValue(NoteColumns.PARENT_ID, folderId);
-            builder.withValue(NoteColumns.LOCAL_MODIFIED, 1);
-            operationList.add(builder.build());
+            array[i++] = id;
         }
+        return array;
+    }
 
-        try {
-            ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);
-            if (results == null || results.length == 0 || results[0] == null) {
-                Log.d(TAG, "delete notes failed, ids:" + ids.toString());
-                return false;
-            }
-            return true;
-        } catch (RemoteException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+    private static void collectWidgets(Bundle result, HashSet<AppWidgetAttribute> widgets) {
+        if (widgets == null) {
+            return;
+        }
+        int[] widgetIds = result.getIntArray(Notes.EXTRA_WIDGET_IDS);
+        int[] widgetTypes = result.getIntArray(Notes.EXTRA_WIDGET_TYPES);
+        if (widgetIds == null || widgetTypes == null) {
+            return;
+        }
+        for (int i = 0; i < widgetIds.length && i < widgetTypes.length; i++) {
+            AppWidgetAttribute widget = new AppWidgetAttribute();
+            widget.widgetId = widgetIds[i];
+            widget.widgetType = widgetTypes[i];
+            widgets.add(widget);
         }
-        return false;
     }
 
     /**
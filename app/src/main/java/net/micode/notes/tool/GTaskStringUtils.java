@@ -108,6 +108,10 @@ public class GTaskStringUtils {
 
     public final static String META_HEAD_DATA = "meta_data";
 
+    public final static String META_HEAD_BUNDLE = "meta_bundle";
+
     public final static String META_NOTE_NAME = "[META INFO] DON'T UPDATE AND DELETE";
 
+    public final static String META_BUNDLE_NAME = "[META BUNDLE] DON'T UPDATE AND DELETE";
+
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.micode.notes.tool;
+
+import java.util.Arrays;
+
+
+/**
+ * 以long为键的开放寻址哈希表，线性探测，删除时回移后续的键值对。值不能为null，
+ * null的值槽即表示空槽，所以任何long都可以作为键
+ */
+public class LongHashMap<V> {
+    private long[] mKeys;
+
+    private Object[] mValues;
+
+    private int mMask;
+
+    private int mResizeAt;
+
+    private int mSize;
+
+    public LongHashMap() {
+        this(8);
+    }
+
+    /**
+     * @param expectedSize 预计的键值对个数，达到这个个数之前不需要扩容
+     */
+    public LongHashMap(int expectedSize) {
+        allocate(LongHashSet.capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return key对应的值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = slot(key);
+        Object v;
+        while ((v = mValues[i]) != null) {
+            if (mKeys[i] == key) {
+                return (V) v;
+            }
+            i = (i + 1) & mMask;
+        }
+        return null;
+    }
+
+    /**
+     * @return key原来对应的值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null value for key " + key);
+        }
+        int i = slot(key);
+        Object v;
+        while ((v = mValues[i]) != null) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return (V) v;
+            }
+            i = (i + 1) & mMask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        if (++mSize >= mResizeAt) {
+            rehash(mKeys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return key原来对应的值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        Object v;
+        while ((v = mValues[i]) != null) {
+            if (mKeys[i] == key) {
+                mSize--;
+                shiftEntries(i);
+                return (V) v;
+            }
+            i = (i + 1) & mMask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /**
+     * 删除gap处的键值对后，把探测链上可以前移的键值对移到空位上
+     */
+    private void shiftEntries(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mMask;
+            Object v = mValues[i];
+            if (v == null) {
+                mValues[gap] = null;
+                return;
+            }
+            long k = mKeys[i];
+            if (((i - slot(k)) & mMask) >= ((i - gap) & mMask)) {
+                mKeys[gap] = k;
+                mValues[gap] = v;
+                gap = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        allocate(capacity);
+        for (int j = 0; j < keys.length; j++) {
+            if (values[j] != null) {
+                int i = slot(keys[j]);
+                while (mValues[i] != null) {
+                    i = (i + 1) & mMask;
+                }
+                mKeys[i] = keys[j];
+                mValues[i] = values[j];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+        mResizeAt = capacity / 4 * 3;
+    }
+
+    private int slot(long key) {
+        return mix(key) & mMask;
+    }
+
+    /**
+     * 打散long的各位，避免连续的便签id落到相邻的槽里形成长的探测链
+     */
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.micode.notes.tool;
+
+import java.util.Arrays;
+
+
+/**
+ * 以long为元素的开放寻址哈希集合，线性探测，删除时回移后续元素，不装箱也不为每个元素创建对象。
+ * Long.MIN_VALUE用来标记空槽，它本身作为元素时单独记录
+ */
+public class LongHashSet {
+    private static final long FREE = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+
+    private int mMask;
+
+    private int mResizeAt;
+
+    private int mSize;
+
+    private boolean mHasFreeKey;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize 预计的元素个数，达到这个个数之前不需要扩容
+     */
+    public LongHashSet(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long key) {
+        if (key == FREE) {
+            return mHasFreeKey;
+        }
+        int i = slot(key);
+        long k;
+        while ((k = mKeys[i]) != FREE) {
+            if (k == key) {
+                return true;
+            }
+            i = (i + 1) & mMask;
+        }
+        return false;
+    }
+
+    /**
+     * @return 集合中原来没有key时返回true
+     */
+    public boolean add(long key) {
+        if (key == FREE) {
+            if (mHasFreeKey) {
+                return false;
+            }
+            mHasFreeKey = true;
+            mSize++;
+            return true;
+        }
+        int i = slot(key);
+        long k;
+        while ((k = mKeys[i]) != FREE) {
+            if (k == key) {
+                return false;
+            }
+            i = (i + 1) & mMask;
+        }
+        mKeys[i] = key;
+        if (++mSize >= mResizeAt) {
+            rehash(mKeys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return 集合中原来有key时返回true
+     */
+    public boolean remove(long key) {
+        if (key == FREE) {
+            if (!mHasFreeKey) {
+                return false;
+            }
+            mHasFreeKey = false;
+            mSize--;
+            return true;
+        }
+        int i = slot(key);
+        long k;
+        while ((k = mKeys[i]) != key) {
+            if (k == FREE) {
+                return false;
+            }
+            i = (i + 1) & mMask;
+        }
+        mSize--;
+        shiftKeys(i);
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, FREE);
+        mHasFreeKey = false;
+        mSize = 0;
+    }
+
+    /**
+     * 复制出所有元素，顺序不确定
+     */
+    public long[] toArray() {
+        long[] array = new long[mSize];
+        int n = 0;
+        if (mHasFreeKey) {
+            array[n++] = FREE;
+        }
+        for (long k : mKeys) {
+            if (k != FREE) {
+                array[n++] = k;
+            }
+        }
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    /**
+     * 删除gap处的元素后，把探测链上可以前移的元素移到空位上，保证查找不会提前遇到空槽
+     */
+    private void shiftKeys(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mMask;
+            long k = mKeys[i];
+            if (k == FREE) {
+                mKeys[gap] = FREE;
+                return;
+            }
+            if (((i - slot(k)) & mMask) >= ((i - gap) & mMask)) {
+                mKeys[gap] = k;
+                gap = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        allocate(capacity);
+        for (long k : keys) {
+            if (k != FREE) {
+                int i = slot(k);
+                while (mKeys[i] != FREE) {
+                    i = (i + 1) & mMask;
+                }
+                mKeys[i] = k;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, FREE);
+        mMask = capacity - 1;
+        mResizeAt = capacity / 4 * 3;
+    }
+
+    private int slot(long key) {
+        return LongHashMap.mix(key) & mMask;
+    }
+
+    /**
+     * 装载因子为0.75时能容纳expectedSize个元素的最小的2的幂
+     */
+    static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 4 * 3 <= expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
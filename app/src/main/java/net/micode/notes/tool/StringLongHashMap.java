@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.micode.notes.tool;
+
+import java.util.Arrays;
+
+
+/**
+ * 以字符串为键、long为值的开放寻址哈希表，用作同步时gid到便签id等的对照表。
+ * 键和值分别存在两个数组中，不为每个键值对创建Entry和Long对象。键不能为null
+ */
+public class StringLongHashMap {
+    private String[] mKeys;
+
+    private long[] mValues;
+
+    private int mMask;
+
+    private int mResizeAt;
+
+    private int mSize;
+
+    public StringLongHashMap() {
+        this(8);
+    }
+
+    /**
+     * @param expectedSize 预计的键值对个数，达到这个个数之前不需要扩容
+     */
+    public StringLongHashMap(int expectedSize) {
+        allocate(LongHashSet.capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @return key对应的值，不存在时返回defaultValue
+     */
+    public long get(String key, long defaultValue) {
+        int i = find(key);
+        return i >= 0 ? mValues[i] : defaultValue;
+    }
+
+    public void put(String key, long value) {
+        if (key == null) {
+            throw new NullPointerException("null key");
+        }
+        int i = slot(key);
+        String k;
+        while ((k = mKeys[i]) != null) {
+            if (k.equals(key)) {
+                mValues[i] = value;
+                return;
+            }
+            i = (i + 1) & mMask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        if (++mSize >= mResizeAt) {
+            rehash(mKeys.length * 2);
+        }
+    }
+
+    /**
+     * @return 原来有key时返回true
+     */
+    public boolean remove(String key) {
+        int i = find(key);
+        if (i < 0) {
+            return false;
+        }
+        mSize--;
+        shiftEntries(i);
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, null);
+        mSize = 0;
+    }
+
+    private int find(String key) {
+        if (key == null) {
+            return -1;
+        }
+        int i = slot(key);
+        String k;
+        while ((k = mKeys[i]) != null) {
+            if (k.equals(key)) {
+                return i;
+            }
+            i = (i + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * 删除gap处的键值对后，把探测链上可以前移的键值对移到空位上
+     */
+    private void shiftEntries(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mMask;
+            String k = mKeys[i];
+            if (k == null) {
+                mKeys[gap] = null;
+                return;
+            }
+            if (((i - slot(k)) & mMask) >= ((i - gap) & mMask)) {
+                mKeys[gap] = k;
+                mValues[gap] = mValues[i];
+                gap = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        String[] keys = mKeys;
+        long[] values = mValues;
+        allocate(capacity);
+        for (int j = 0; j < keys.length; j++) {
+            if (keys[j] != null) {
+                int i = slot(keys[j]);
+                while (mKeys[i] != null) {
+                    i = (i + 1) & mMask;
+                }
+                mKeys[i] = keys[j];
+                mValues[i] = values[j];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new String[capacity];
+        mValues = new long[capacity];
+        mMask = capacity - 1;
+        mResizeAt = capacity / 4 * 3;
+    }
+
+    private int slot(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mMask;
+    }
+}
@@ -23,7 +23,7 @@ import android.text.TextUtils;
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.tool.DataUtils;
+import net.micode.notes.data.Notes.NoteListColumns;
 
 
 public class NoteItemData {
@@ -36,10 +36,11 @@ public class NoteItemData {
         NoteColumns.MODIFIED_DATE,
         NoteColumns.NOTES_COUNT,
         NoteColumns.PARENT_ID,
-        NoteColumns.SNIPPET,
+        NoteColumns.PREVIEW,
         NoteColumns.TYPE,
         NoteColumns.WIDGET_ID,
         NoteColumns.WIDGET_TYPE,
+        NoteListColumns.CALL_PHONE_NUMBER,
     };
 
     //定义和标记常量
@@ -51,10 +52,11 @@ public class NoteItemData {
     private static final int MODIFIED_DATE_COLUMN         = 5;
     private static final int NOTES_COUNT_COLUMN           = 6;
     private static final int PARENT_ID_COLUMN             = 7;
-    private static final int SNIPPET_COLUMN               = 8;
+    private static final int PREVIEW_COLUMN               = 8;
     private static final int TYPE_COLUMN                  = 9;
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    private static final int CALL_PHONE_NUMBER_COLUMN     = 12;
 
     //定义数据
     private long mId;
@@ -71,6 +73,7 @@ public class NoteItemData {
     private int mWidgetType;
     private String mName;
     private String mPhoneNumber;
+    private boolean mNameResolved;
 
     private boolean mIsLastItem;
     private boolean mIsFirstItem;
@@ -89,22 +92,26 @@ public class NoteItemData {
         mModifiedDate = cursor.getLong(MODIFIED_DATE_COLUMN);
         mNotesCount = cursor.getInt(NOTES_COUNT_COLUMN);
         mParentId = cursor.getLong(PARENT_ID_COLUMN);
-        mSnippet = cursor.getString(SNIPPET_COLUMN);
-        mSnippet = mSnippet.replace(NoteEditActivity.TAG_CHECKED, "").replace(
-                NoteEditActivity.TAG_UNCHECKED, "");
+        // the marks of check list have been removed from preview when it is written
+        mSnippet = cursor.getString(PREVIEW_COLUMN);
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
 
-        //初始化电话号信息
+        //初始化电话号信息，号码已由列表视图联合查询得到
         mPhoneNumber = "";
+        mNameResolved = true;
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
-            mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
+            mPhoneNumber = cursor.getString(CALL_PHONE_NUMBER_COLUMN);
             if (!TextUtils.isEmpty(mPhoneNumber)) {
-                mName = Contact.getContact(context, mPhoneNumber);
-                if (mName == null) {
+                //只读取缓存，未查询过的号码由NotesListAdapter批量查询后再刷新
+                mName = Contact.getCachedContact(mPhoneNumber);
+                mNameResolved = (mName != null);
+                if (TextUtils.isEmpty(mName)) {
                     mName = mPhoneNumber;
                 }
+            } else {
+                mPhoneNumber = "";
             }
         }
 
@@ -168,6 +175,15 @@ public class NoteItemData {
         return mName;
     }
 
+    //联系人名字是否已查询过，未查询过时getCallName返回的是电话号码
+    public boolean isCallNameResolved() {
+        return mNameResolved;
+    }
+
+    public String getPhoneNumber() {
+        return mPhoneNumber;
+    }
+
     public boolean isFirst() {
         return mIsFirstItem;
     }
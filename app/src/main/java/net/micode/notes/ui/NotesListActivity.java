@@ -22,6 +22,7 @@ import android.app.Dialog;
 import android.appwidget.AppWidgetManager;
 import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -130,13 +131,6 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
  
     private NoteItemData mFocusNoteDataItem;
  
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
- 
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
-            + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
-            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
- 
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
  
@@ -432,12 +426,13 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     };
  
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
-                : NORMAL_SELECTION;
+        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER)
+                ? Notes.ROOT_FOLDER_NOTES_SELECTION : Notes.FOLDER_NOTES_SELECTION;
         mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
+                ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, mCurrentFolderId),
+                NoteItemData.PROJECTION, selection, new String[] {
                     String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+                }, Notes.FOLDER_NOTES_SORT_ORDER);
     }
  
     private final class BackgroundQueryHandler extends AsyncQueryHandler {
@@ -495,11 +490,12 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     private void batchDelete() {
         new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
             protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
-                HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
+                // the widgets of the notes are collected by the provider in the same call
+                HashSet<AppWidgetAttribute> widgets = new HashSet<AppWidgetAttribute>();
                 if (!isSyncMode()) {
                     // if not synced, delete notes directly
                     if (DataUtils.batchDeleteNotes(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds())) {
+                            .getSelectedItemIds(), widgets)) {
                     } else {
                         Log.e(TAG, "Delete notes error, should not happens");
                     }
@@ -507,7 +503,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     // in sync mode, we'll move the deleted note into the trash
                     // folder
                     if (!DataUtils.batchMoveToFolder(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds(), Notes.ID_TRASH_FOLER)) {
+                            .getSelectedItemIds(), Notes.ID_TRASH_FOLER, widgets)) {
                         Log.e(TAG, "Move notes to trash folder error, should not happens");
                     }
                 }
@@ -537,14 +533,14 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
  
         HashSet<Long> ids = new HashSet<Long>();
         ids.add(folderId);
-        HashSet<AppWidgetAttribute> widgets = DataUtils.getFolderNoteWidget(mContentResolver,
-                folderId);
+        // the widgets of the notes in the folder are collected by the provider
+        HashSet<AppWidgetAttribute> widgets = new HashSet<AppWidgetAttribute>();
         if (!isSyncMode()) {
             // if not synced, delete folder directly
-            DataUtils.batchDeleteNotes(mContentResolver, ids);
+            DataUtils.batchDeleteNotes(mContentResolver, ids, widgets);
         } else {
             // in sync mode, we'll move the deleted folder into the trash folder
-            DataUtils.batchMoveToFolder(mContentResolver, ids, Notes.ID_TRASH_FOLER);
+            DataUtils.batchMoveToFolder(mContentResolver, ids, Notes.ID_TRASH_FOLER, widgets);
         }
         if (widgets != null) {
             for (AppWidgetAttribute widget : widgets) {
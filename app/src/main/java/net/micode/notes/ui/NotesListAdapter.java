@@ -18,11 +18,13 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 
+import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 
 import java.util.Collection;
@@ -41,6 +43,8 @@ public class NotesListAdapter extends CursorAdapter {
     private HashMap<Integer, Boolean> mSelectedIndex;
     private int mNotesCount;    //便签数
     private boolean mChoiceMode;   //选择模式标记
+    private HashSet<String> mPendingNumbers;   //等待查询联系人的电话号码
+    private boolean mResolvePosted;   //是否已安排批量查询联系人
  
     /*
      * 桌面widget的属性，包括编号和类型
@@ -59,6 +63,7 @@ public class NotesListAdapter extends CursorAdapter {
         mSelectedIndex = new HashMap<Integer, Boolean>();  //新建选项下标的hash表
         mContext = context;
         mNotesCount = 0;
+        mPendingNumbers = new HashSet<String>();
     }
  
     @Override
@@ -82,7 +87,41 @@ public class NotesListAdapter extends CursorAdapter {
             ((NotesListItem) view).bind(context, itemData, mChoiceMode,
                     isSelectedItem(cursor.getPosition()));
            //则新建一个项目选项并且用bind跟将view和鼠标，内容，便签数据捆绑在一起
+            if (itemData.isCallRecord() && !itemData.isCallNameResolved()) {
+                requestContact(view, itemData.getPhoneNumber());
+            }
+        }
+    }
+
+    /*
+     * 函数功能：登记需要查询联系人的电话号码
+     * 函数实现：同一轮绑定中显示出来的号码合并到一次后台查询中，查询结束后刷新列表
+     */
+    private void requestContact(View view, String phoneNumber) {
+        mPendingNumbers.add(phoneNumber);
+        if (mResolvePosted) {
+            return;
         }
+        mResolvePosted = true;
+        view.post(new Runnable() {
+            public void run() {
+                final HashSet<String> numbers = new HashSet<String>(mPendingNumbers);
+                mPendingNumbers.clear();
+                new AsyncTask<Void, Void, Void>() {
+                    @Override
+                    protected Void doInBackground(Void... unused) {
+                        Contact.resolveContacts(mContext, numbers);
+                        return null;
+                    }
+
+                    @Override
+                    protected void onPostExecute(Void result) {
+                        mResolvePosted = false;
+                        notifyDataSetChanged();
+                    }
+                }.execute();
+            }
+        });
     }
  
     /*
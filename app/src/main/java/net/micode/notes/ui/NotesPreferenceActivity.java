@@ -45,6 +45,7 @@ import android.widget.Toast;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.remote.GTaskClient;
 import net.micode.notes.gtask.remote.GTaskSyncService;
 
 
@@ -59,6 +60,10 @@ public class NotesPreferenceActivity extends PreferenceActivity {
     public static final String PREFERENCE_SYNC_ACCOUNT_NAME = "pref_key_account_name";
     //同步时间
     public static final String PREFERENCE_LAST_SYNC_TIME = "pref_last_sync_time";
+    //上次完整同步的时间，增量同步据此判断是否需要完整同步
+    public static final String PREFERENCE_LAST_FULL_SYNC_TIME = "pref_last_full_sync_time";
+    //上次完成的同步开始时本地变更日志的序号，增量同步据此判断本地是否有变化
+    public static final String PREFERENCE_LAST_SYNC_CHANGE_SEQ = "pref_last_sync_change_seq";
 
     public static final String PREFERENCE_SET_BG_COLOR_KEY = "pref_key_bg_random_appear";
     //同步密码
@@ -200,7 +205,8 @@ public class NotesPreferenceActivity extends PreferenceActivity {
             syncButton.setText(getString(R.string.preferences_button_sync_immediately));
             syncButton.setOnClickListener(new View.OnClickListener() {
                 public void onClick(View v) {
-                    GTaskSyncService.startSync(NotesPreferenceActivity.this);
+                    // 手动立即同步时进行完整同步
+                    GTaskSyncService.startSync(NotesPreferenceActivity.this, true);
                 }
             });
         }
@@ -369,7 +375,11 @@ public class NotesPreferenceActivity extends PreferenceActivity {
  
             
             setLastSyncTime(this, 0);
-          //将最后同步时间清零
+            setLastFullSyncTime(this, 0);
+            setLastSyncChangeSeq(this, 0);
+          //将最后同步时间清零，新账户的第一次同步是完整同步
+            GTaskClient.clearSession(this);
+          //旧账户保存的会话不能再使用
  
             // clean up local gtask related info
             new Thread(new Runnable() {
@@ -378,6 +388,9 @@ public class NotesPreferenceActivity extends PreferenceActivity {
                     values.put(NoteColumns.GTASK_ID, "");
                     values.put(NoteColumns.SYNC_ID, 0);
                     getContentResolver().update(Notes.CONTENT_NOTE_URI, values, null, null);
+                    // 旧账户未完成的同步不能再继续
+                    getContentResolver().call(Notes.CONTENT_NOTE_URI,
+                            Notes.METHOD_CLEAR_SYNC_CHECKPOINT, null, null);
                 }
             }).start();
             //重置当地同步任务的信息
@@ -402,8 +415,16 @@ public class NotesPreferenceActivity extends PreferenceActivity {
             editor.remove(PREFERENCE_LAST_SYNC_TIME);
             //删除当前首选项中有账户时间
         }
+        if (settings.contains(PREFERENCE_LAST_FULL_SYNC_TIME)) {
+            editor.remove(PREFERENCE_LAST_FULL_SYNC_TIME);
+        }
+        if (settings.contains(PREFERENCE_LAST_SYNC_CHANGE_SEQ)) {
+            editor.remove(PREFERENCE_LAST_SYNC_CHANGE_SEQ);
+        }
         editor.commit();
         //提交更新后的数据
+        GTaskClient.clearSession(this);
+        //删除保存的会话cookie
         
         // clean up local gtask related info
         new Thread(new Runnable() {
@@ -412,6 +433,8 @@ public class NotesPreferenceActivity extends PreferenceActivity {
                 values.put(NoteColumns.GTASK_ID, "");
                 values.put(NoteColumns.SYNC_ID, 0);
                 getContentResolver().update(Notes.CONTENT_NOTE_URI, values, null, null);
+                getContentResolver().call(Notes.CONTENT_NOTE_URI,
+                        Notes.METHOD_CLEAR_SYNC_CHECKPOINT, null, null);
             }
         }).start();
       //重置当地同步任务的信息
@@ -441,6 +464,38 @@ public class NotesPreferenceActivity extends PreferenceActivity {
                 Context.MODE_PRIVATE);
         return settings.getLong(PREFERENCE_LAST_SYNC_TIME, 0);
     }
+
+    //函数功能：设置上次完整同步的时间
+    public static void setLastFullSyncTime(Context context, long time) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putLong(PREFERENCE_LAST_FULL_SYNC_TIME, time);
+        editor.commit();
+    }
+
+    //函数功能：获取上次完整同步的时间
+    public static long getLastFullSyncTime(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        return settings.getLong(PREFERENCE_LAST_FULL_SYNC_TIME, 0);
+    }
+
+    //函数功能：设置上次完成的同步开始时的变更日志序号
+    public static void setLastSyncChangeSeq(Context context, long seq) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putLong(PREFERENCE_LAST_SYNC_CHANGE_SEQ, seq);
+        editor.commit();
+    }
+
+    //函数功能：获取上次完成的同步开始时的变更日志序号
+    public static long getLastSyncChangeSeq(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+        return settings.getLong(PREFERENCE_LAST_SYNC_CHANGE_SEQ, 0);
+    }
  
     //函数功能：接受同步信息
     private class GTaskReceiver extends BroadcastReceiver {
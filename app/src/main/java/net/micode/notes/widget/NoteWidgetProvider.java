@@ -42,7 +42,7 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
     public static final String [] PROJECTION = new String [] {  /*定义了一个字符数组类型的静态变量*/
         NoteColumns.ID,
         NoteColumns.BG_COLOR_ID,
-        NoteColumns.SNIPPET
+        NoteColumns.PREVIEW
     };
 
     public static final int COLUMN_ID           = 0;           /*便签栏编号*/
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用一个假的联系人提供者检查批量查询联系人
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ContactTest {
+    private Context mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        // 缓存是静态的，会留下上一个测试的结果
+        Field cache = Contact.class.getDeclaredField("sContactCache");
+        cache.setAccessible(true);
+        cache.set(null, null);
+        FakeContactsProvider.sNames.clear();
+        FakeContactsProvider.sQueries.clear();
+        Robolectric.setupContentProvider(FakeContactsProvider.class,
+                ContactsContract.AUTHORITY);
+    }
+
+    @Test
+    public void resolveQueriesAtMostTwentyNumbersAtOnce() {
+        List<String> numbers = new ArrayList<String>();
+        for (int i = 0; i < 45; i++) {
+            numbers.add("1380000" + (1000 + i));
+        }
+        FakeContactsProvider.sNames.put("13800001000", "Alice");
+        FakeContactsProvider.sNames.put("13800001044", "Bob");
+
+        Contact.resolveContacts(mContext, numbers);
+
+        assertEquals(3, FakeContactsProvider.sQueries.size());
+        assertEquals(20, FakeContactsProvider.sQueries.get(0).length);
+        assertEquals(20, FakeContactsProvider.sQueries.get(1).length);
+        assertEquals(5, FakeContactsProvider.sQueries.get(2).length);
+        assertEquals("Alice", Contact.getCachedContact("13800001000"));
+        assertEquals("Bob", Contact.getCachedContact("13800001044"));
+        for (String number : numbers.subList(1, 44)) {
+            assertEquals("", Contact.getCachedContact(number));
+        }
+    }
+
+    @Test
+    public void cachedMissIsNotQueriedAgain() {
+        Contact.resolveContacts(mContext, Arrays.asList("10086"));
+        assertEquals(1, FakeContactsProvider.sQueries.size());
+        assertEquals("", Contact.getCachedContact("10086"));
+
+        // 缓存的空字符串表示没有联系人，不再去查询
+        Contact.resolveContacts(mContext, Arrays.asList("10086"));
+        assertNull(Contact.getContact(mContext, "10086"));
+        assertEquals(1, FakeContactsProvider.sQueries.size());
+    }
+
+    @Test
+    public void resolveSkipsEmptyAndResolvedNumbers() {
+        FakeContactsProvider.sNames.put("10010", "Carol");
+        Contact.resolveContacts(mContext, Arrays.asList("10010"));
+
+        Contact.resolveContacts(mContext, Arrays.asList("", "10010", "10011"));
+
+        assertEquals(2, FakeContactsProvider.sQueries.size());
+        assertTrue(Arrays.equals(new String[] { "10011" }, FakeContactsProvider.sQueries.get(1)));
+        assertEquals("Carol", Contact.getCachedContact("10010"));
+    }
+
+    /**
+     * 按查询参数中的号码返回联系人，并记下每次查询的参数
+     */
+    public static class FakeContactsProvider extends ContentProvider {
+        static final HashMap<String, String> sNames = new HashMap<String, String>();
+
+        static final List<String[]> sQueries = new ArrayList<String[]>();
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            sQueries.add(selectionArgs);
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (String number : selectionArgs) {
+                String name = sNames.get(number);
+                if (name == null) {
+                    continue;
+                }
+                if (Arrays.asList(projection).contains(Phone.NUMBER)) {
+                    cursor.addRow(new Object[] { number, name });
+                } else {
+                    cursor.addRow(new Object[] { name });
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotesDatabaseUpgradeTest {
+    private static final String DB_NAME = "upgrade_test.db";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void journalRecordsMovesWithTheOriginFolder() {
+        NotesDatabaseHelper helper = open();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES (10,0,1,'Work')");
+            db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES (12,0,1,'Home')");
+            db.execSQL("INSERT INTO note(_id,parent_id,type) VALUES (11,10,0)");
+            long seq = DatabaseUtils.longForQuery(db, "SELECT MAX(seq) FROM change_log", null);
+            db.execSQL("UPDATE note SET parent_id=12 WHERE _id=11");
+
+            // the counts of both folders are updated by triggers as well
+            Cursor c = db.rawQuery("SELECT row_id,owner_id,origin_owner_id,operation"
+                    + " FROM change_log WHERE seq>? AND row_id=11 ORDER BY seq",
+                    new String[] { String.valueOf(seq) });
+            try {
+                assertEquals(1, c.getCount());
+                c.moveToFirst();
+                assertEquals(11, c.getLong(0));
+                assertEquals(12, c.getLong(1));
+                assertEquals(10, c.getLong(2));
+                assertEquals(Notes.CHANGE_MOVE, c.getInt(3));
+            } finally {
+                c.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void journalKeepsAtMostTheMaxRows() {
+        NotesDatabaseHelper helper = open();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            int count = NotesDatabaseHelper.CHANGE_LOG_MAX_ROWS + 2500;
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < count; i++) {
+                    db.execSQL("INSERT INTO change_log(target,row_id,operation) VALUES (0,1,1)");
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            long rows = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM change_log", null);
+            assertTrue(rows <= NotesDatabaseHelper.CHANGE_LOG_MAX_ROWS + 1000);
+            assertTrue(rows >= NotesDatabaseHelper.CHANGE_LOG_MAX_ROWS);
+            // the oldest kept change tells the consumers which changes they have missed
+            assertEquals(count - rows + 1, DatabaseUtils.longForQuery(db,
+                    "SELECT MIN(seq) FROM change_log", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void version12AddsTheTrimTriggerToTheJournal() {
+        NotesDatabaseHelper helper = open();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        // the journal as it was created by version 9, without the trim trigger
+        db.execSQL("DROP TRIGGER change_log_trim");
+        db.execSQL("INSERT INTO note(_id,parent_id,type) VALUES (1,0,0)");
+        db.setVersion(11);
+        helper.close();
+
+        helper = open();
+        try {
+            db = helper.getWritableDatabase();
+            assertEquals(12, db.getVersion());
+            assertEquals(9, countJournalObjects(db));
+            // the changes recorded before the upgrade are kept
+            assertEquals(1, DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM change_log WHERE row_id=1", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void searchIndexDoesNotCopyTheSnippets() {
+        NotesDatabaseHelper helper = open();
+        try {
+            assertEquals(0, countTables(helper.getReadableDatabase(), "note_fts_content"));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void version12RebuildsTheSearchIndexFromNotes() {
+        NotesDatabaseHelper helper = open();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        // the index as it was created by version 5, with its own copy of the snippet
+        db.execSQL("DROP TRIGGER insert_fts_on_insert");
+        db.execSQL("DROP TRIGGER delete_fts_on_update");
+        db.execSQL("DROP TRIGGER insert_fts_on_update");
+        db.execSQL("DROP TRIGGER delete_fts_on_delete");
+        db.execSQL("DROP TABLE note_fts");
+        db.execSQL("CREATE VIRTUAL TABLE note_fts USING fts4(body)");
+        db.execSQL("CREATE TRIGGER update_fts_on_update AFTER UPDATE OF snippet ON note BEGIN"
+                + " DELETE FROM note_fts WHERE docid=old._id;"
+                + " INSERT INTO note_fts(docid,body) VALUES (new._id,new.snippet); END");
+        db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES (100,0,0,'old note')");
+        db.setVersion(11);
+        helper.close();
+
+        helper = open();
+        try {
+            db = helper.getWritableDatabase();
+            assertEquals(12, db.getVersion());
+            assertEquals(0, countTables(db, "note_fts_content"));
+            assertEquals(100, DatabaseUtils.longForQuery(db,
+                    "SELECT docid FROM note_fts WHERE note_fts MATCH 'old'", null));
+            db.execSQL("UPDATE note SET snippet='new note' WHERE _id=100");
+            assertEquals(0, DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM note_fts WHERE note_fts MATCH 'old'", null));
+            assertEquals(100, DatabaseUtils.longForQuery(db,
+                    "SELECT docid FROM note_fts WHERE note_fts MATCH 'new'", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void version7FillsThePreviewDuringTheUpgrade() {
+        // the note and data tables as they were at version 6, without the preview column
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(DB_NAME), null);
+        db.execSQL("CREATE TABLE note(_id INTEGER PRIMARY KEY,"
+                + " parent_id INTEGER NOT NULL DEFAULT 0,"
+                + " alert_date INTEGER NOT NULL DEFAULT 0,"
+                + " bg_color_id INTEGER NOT NULL DEFAULT 0,"
+                + " created_date INTEGER NOT NULL DEFAULT 0,"
+                + " has_attachment INTEGER NOT NULL DEFAULT 0,"
+                + " modified_date INTEGER NOT NULL DEFAULT 0,"
+                + " notes_count INTEGER NOT NULL DEFAULT 0,"
+                + " snippet TEXT NOT NULL DEFAULT '',"
+                + " type INTEGER NOT NULL DEFAULT 0,"
+                + " widget_id INTEGER NOT NULL DEFAULT 0,"
+                + " widget_type INTEGER NOT NULL DEFAULT -1,"
+                + " sync_id INTEGER NOT NULL DEFAULT 0,"
+                + " local_modified INTEGER NOT NULL DEFAULT 0,"
+                + " origin_parent_id INTEGER NOT NULL DEFAULT 0,"
+                + " gtask_id TEXT NOT NULL DEFAULT '',"
+                + " version INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE TABLE data(_id INTEGER PRIMARY KEY, mime_type TEXT NOT NULL,"
+                + " note_id INTEGER NOT NULL DEFAULT 0,"
+                + " created_date INTEGER NOT NULL DEFAULT 0,"
+                + " modified_date INTEGER NOT NULL DEFAULT 0,"
+                + " content TEXT NOT NULL DEFAULT '', data1 INTEGER, data2 INTEGER,"
+                + " data3 TEXT NOT NULL DEFAULT '', data4 TEXT NOT NULL DEFAULT '',"
+                + " data5 TEXT NOT NULL DEFAULT '')");
+        db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES (1,0,0,'"
+                + Notes.TextNote.TAG_UNCHECKED + "milk\n" + Notes.TextNote.TAG_CHECKED
+                + "eggs')");
+        db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES (2,0,1,'Work')");
+        db.setVersion(6);
+        db.close();
+
+        NotesDatabaseHelper helper = open();
+        try {
+            db = helper.getWritableDatabase();
+            assertEquals(12, db.getVersion());
+            assertEquals("milk\neggs", DatabaseUtils.stringForQuery(db,
+                    "SELECT preview FROM note WHERE _id=1", null));
+            assertEquals("Work", DatabaseUtils.stringForQuery(db,
+                    "SELECT preview FROM note WHERE _id=2", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void previewFollowsTheSnippet() {
+        NotesDatabaseHelper helper = open();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.execSQL("INSERT INTO note(_id,parent_id,type) VALUES (1,0,0)");
+            assertEquals("", DatabaseUtils.stringForQuery(db,
+                    "SELECT preview FROM note WHERE _id=1", null));
+            db.execSQL("INSERT INTO data(mime_type,note_id,content) VALUES ('"
+                    + Notes.DataConstants.NOTE + "',1,'" + Notes.TextNote.TAG_CHECKED + "done')");
+            assertEquals("done", DatabaseUtils.stringForQuery(db,
+                    "SELECT preview FROM note WHERE _id=1", null));
+            db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES (2,0,1,'Home')");
+            assertEquals("Home", DatabaseUtils.stringForQuery(db,
+                    "SELECT preview FROM note WHERE _id=2", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void trashTriggerOnlyFollowsTheParentId() {
+        NotesDatabaseHelper helper = open();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master"
+                    + " WHERE name='folder_move_notes_on_trash' AND sql LIKE '%UPDATE OF parent_id%'",
+                    null));
+
+            db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES (10,0,1,'Old')");
+            db.execSQL("INSERT INTO note(_id,parent_id,type) VALUES (11,10,0)");
+            db.execSQL("UPDATE note SET parent_id=" + Notes.ID_TRASH_FOLER + " WHERE _id=10");
+            assertEquals(Notes.ID_TRASH_FOLER, DatabaseUtils.longForQuery(db,
+                    "SELECT parent_id FROM note WHERE _id=11", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    private NotesDatabaseHelper open() {
+        return new NotesDatabaseHelper(mContext, DB_NAME,
+                NotesDatabaseHelper.DEFAULT_PRAGMA_PROFILE);
+    }
+
+    private static long countTables(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE"
+                + " type='table' AND name=?", new String[] { name });
+    }
+
+    private static long countJournalObjects(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE"
+                + " name IN ('change_log','change_log_trim') OR name LIKE '%_log_on_%'", null);
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import net.micode.notes.data.Notes.ChangeColumns;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives NotesProvider through the content resolver of the application, every test starts
+ * from a new database
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NotesProviderTest {
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        // the helper is a singleton, it would keep the database of the previous test
+        Field helper = NotesDatabaseHelper.class.getDeclaredField("mInstance");
+        helper.setAccessible(true);
+        helper.set(null, null);
+        mContext.deleteDatabase("note.db");
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        mResolver = mContext.getContentResolver();
+    }
+
+    @Test
+    public void searchMatchesThePrefixOfWords() {
+        long hello = insertNote(Notes.ID_ROOT_FOLDER, "hello world");
+        long help = insertNote(Notes.ID_ROOT_FOLDER, "Help wanted");
+
+        assertEquals(set(hello, help), search("hel"));
+        assertEquals(set(hello), search("hel wor"));
+        assertEquals(set(help), search("WANTED"));
+    }
+
+    @Test
+    public void searchDoesNotMatchInsideWords() {
+        insertNote(Notes.ID_ROOT_FOLDER, "hello world");
+
+        // the index matches the beginning of words, the LIKE scan used to find these
+        assertEquals(set(), search("ello"));
+        assertEquals(set(), search("orld"));
+    }
+
+    @Test
+    public void searchFallsBackToSubstringForWordsWithoutSpaces() {
+        long note = insertNote(Notes.ID_ROOT_FOLDER, "今天下午开会");
+
+        assertEquals(set(note), search("下午"));
+    }
+
+    @Test
+    public void searchFollowsUpdatesAndDeletes() {
+        long note = insertNote(Notes.ID_ROOT_FOLDER, "apple pie");
+        long folder = insertFolder("apple recipes");
+        long other = insertNote(folder, "banana bread");
+
+        setContent(note, "cherry pie");
+        assertEquals(set(), search("apple"));
+        assertEquals(set(note), search("cherry"));
+
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, other), null, null);
+        assertEquals(set(), search("banana"));
+        assertEquals(set(note), search("pie"));
+    }
+
+    @Test
+    public void searchSkipsNotesInTrash() {
+        long note = insertNote(Notes.ID_ROOT_FOLDER, "secret plan");
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_TRASH_FOLER);
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, note), values,
+                null, null);
+
+        assertEquals(set(), search("secret"));
+    }
+
+    @Test
+    public void batchNotifiesTheFoldersOfChangedNotes() {
+        long work = insertFolder("work");
+        long home = insertFolder("home");
+        long first = insertNote(work, "");
+        long second = insertNote(home, "");
+        long third = insertNote(home, "");
+        int mark = shadowOf(mResolver).getNotifiedUris().size();
+
+        ContentValues[] values = new ContentValues[] {
+                dataValues(first, "a"), dataValues(second, "b"), dataValues(third, "c")
+        };
+        assertEquals(3, mResolver.bulkInsert(Notes.CONTENT_DATA_URI, values));
+
+        Set<Uri> notified = notifiedUrisSince(mark);
+        assertTrue(notified.contains(folderUri(work)));
+        assertTrue(notified.contains(folderUri(home)));
+        assertFalse(notified.contains(folderUri(Notes.ID_ROOT_FOLDER)));
+        assertTrue(notified.contains(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, third)));
+    }
+
+    @Test
+    public void debounceOnlyDelaysTheCallingThread() throws Exception {
+        final long synced = insertNote(Notes.ID_ROOT_FOLDER, "synced");
+        long edited = insertNote(Notes.ID_ROOT_FOLDER, "edited");
+        int mark = shadowOf(mResolver).getNotifiedUris().size();
+
+        runOnOtherThread(new Runnable() {
+            public void run() {
+                setNotifyDebounce(60 * 1000);
+                setBgColor(synced, 1);
+            }
+        });
+        setBgColor(edited, 2);
+
+        Set<Uri> notified = notifiedUrisSince(mark);
+        assertTrue(notified.contains(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, edited)));
+        assertFalse(notified.contains(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, synced)));
+
+        runOnOtherThread(new Runnable() {
+            public void run() {
+                setNotifyDebounce(0);
+            }
+        });
+        assertTrue(notifiedUrisSince(mark).contains(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, synced)));
+    }
+
+    @Test
+    public void changesAreReadSinceASequenceNumber() {
+        long folder = insertFolder("work");
+        long since = getChangeSeq().getLong(Notes.EXTRA_CHANGE_SEQ);
+        long note = insertNote(folder, "");
+        setBgColor(note, 3);
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, note), null, null);
+
+        Uri uri = Notes.CONTENT_CHANGES_URI.buildUpon()
+                .appendQueryParameter(Notes.PARAM_SINCE, String.valueOf(since)).build();
+        Cursor c = mResolver.query(uri, new String[] {
+                ChangeColumns.SEQ, ChangeColumns.ROW_ID, ChangeColumns.OWNER_ID,
+                ChangeColumns.OPERATION
+        }, ChangeColumns.TARGET + "=?", new String[] {
+                String.valueOf(Notes.CHANGE_TARGET_NOTE)
+        }, null);
+        long lastSeq = since;
+        int[] operations = new int[] {
+                Notes.CHANGE_INSERT, Notes.CHANGE_UPDATE, Notes.CHANGE_DELETE
+        };
+        try {
+            // the count of the folder is updated by triggers as well
+            int i = 0;
+            while (c.moveToNext()) {
+                assertTrue(c.getLong(0) > lastSeq);
+                lastSeq = c.getLong(0);
+                if (c.getLong(1) == note) {
+                    assertEquals(folder, c.getLong(2));
+                    assertEquals(operations[i++], c.getInt(3));
+                }
+            }
+            assertEquals(operations.length, i);
+        } finally {
+            c.close();
+        }
+
+        uri = uri.buildUpon().appendQueryParameter(Notes.PARAM_LIMIT, "1").build();
+        c = mResolver.query(uri, null, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsTheSequenceNumbers() {
+        insertNote(Notes.ID_ROOT_FOLDER, "first");
+        long latest = getChangeSeq().getLong(Notes.EXTRA_CHANGE_SEQ);
+        assertTrue(latest > 0);
+
+        Bundle extras = new Bundle();
+        extras.putLong(Notes.EXTRA_CHANGE_SEQ, latest);
+        Bundle result = mResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_COMPACT_CHANGES,
+                null, extras);
+        assertEquals(latest, result.getLong(Notes.EXTRA_CHANGE_SEQ));
+        assertEquals(latest + 1, result.getLong(Notes.EXTRA_OLDEST_CHANGE_SEQ));
+
+        // new changes continue after the compacted ones
+        insertNote(Notes.ID_ROOT_FOLDER, "");
+        result = getChangeSeq();
+        assertEquals(latest + 1, result.getLong(Notes.EXTRA_OLDEST_CHANGE_SEQ));
+        assertTrue(result.getLong(Notes.EXTRA_CHANGE_SEQ) > latest);
+    }
+
+    private Bundle getChangeSeq() {
+        return mResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_GET_CHANGE_SEQ, null, null);
+    }
+
+    private void setNotifyDebounce(long debounce) {
+        Bundle extras = new Bundle();
+        extras.putLong(Notes.EXTRA_NOTIFY_DEBOUNCE, debounce);
+        mResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_SET_NOTIFY_DEBOUNCE, null, extras);
+    }
+
+    private static void runOnOtherThread(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+
+    /**
+     * @param mark the number of notifications before the change
+     */
+    private Set<Uri> notifiedUrisSince(int mark) {
+        List<ShadowContentResolver.NotifiedUri> notified = shadowOf(mResolver).getNotifiedUris();
+        Set<Uri> uris = new HashSet<Uri>();
+        for (int i = mark; i < notified.size(); i++) {
+            uris.add(notified.get(i).uri);
+        }
+        return uris;
+    }
+
+    private static Uri folderUri(long folderId) {
+        return ContentUris.withAppendedId(Notes.CONTENT_FOLDER_URI, folderId);
+    }
+
+    private Set<Long> search(String pattern) {
+        Uri uri = Uri.parse("content://" + Notes.AUTHORITY + "/search").buildUpon()
+                .appendQueryParameter("pattern", pattern).build();
+        Set<Long> ids = new HashSet<Long>();
+        Cursor c = mResolver.query(uri, null, null, null, null);
+        assertTrue(c != null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(c.getColumnIndexOrThrow(NoteColumns.ID)));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private static Set<Long> set(long... ids) {
+        Set<Long> set = new HashSet<Long>();
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    private long insertFolder(String name) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.SNIPPET, name);
+        return ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+    }
+
+    private long insertNote(long folderId, String content) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.PARENT_ID, folderId);
+        long noteId = ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+
+        if (content.length() > 0) {
+            mResolver.insert(Notes.CONTENT_DATA_URI, dataValues(noteId, content));
+        }
+        return noteId;
+    }
+
+    private static ContentValues dataValues(long noteId, String content) {
+        ContentValues data = new ContentValues();
+        data.put(DataColumns.NOTE_ID, noteId);
+        data.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+        data.put(DataColumns.CONTENT, content);
+        return data;
+    }
+
+    private void setBgColor(long noteId, int colorId) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.BG_COLOR_ID, colorId);
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+    }
+
+    private void setContent(long noteId, String content) {
+        ContentValues data = new ContentValues();
+        data.put(DataColumns.CONTENT, content);
+        mResolver.update(Notes.CONTENT_DATA_URI, data, DataColumns.NOTE_ID + "=?",
+                new String[] { String.valueOf(noteId) });
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.NotesDatabaseHelper.PragmaProfile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(RobolectricTestRunner.class)
+public class PragmaProfileTest {
+    private static final String DB_NAME = "pragma_profile_test.db";
+
+    private Context mContext;
+
+    private NotesDatabaseHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void profileIsAppliedToTheWriter() {
+        mHelper = new NotesDatabaseHelper(mContext, DB_NAME, new PragmaProfile(true, 4096,
+                PragmaProfile.SYNCHRONOUS_NORMAL, 1 << 20));
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+
+        // a transaction pins the queries to the primary connection
+        db.beginTransaction();
+        try {
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+            assertEquals(PragmaProfile.SYNCHRONOUS_NORMAL,
+                    DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null));
+            assertEquals(-4096, DatabaseUtils.longForQuery(db, "PRAGMA cache_size", null));
+            assertEquals(1 << 20, DatabaseUtils.longForQuery(db, "PRAGMA mmap_size", null));
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Test
+    public void rollbackJournalWhenWalIsDisabled() {
+        mHelper = new NotesDatabaseHelper(mContext, DB_NAME, new PragmaProfile(false, 2048,
+                PragmaProfile.SYNCHRONOUS_FULL, 0));
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+
+        assertFalse(db.isWriteAheadLoggingEnabled());
+        assertFalse("wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db,
+                "PRAGMA journal_mode", null)));
+        assertEquals(PragmaProfile.SYNCHRONOUS_FULL,
+                DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.gtask.data.SqlDataLoader;
+import net.micode.notes.gtask.remote.GTaskManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the note list and the gtask sync selections are
+ * served by an index, a full table scan or a temporary b-tree for the order fails the test.
+ * The selections are the constants used by the callers
+ */
+@RunWith(RobolectricTestRunner.class)
+public class QueryPlanTest {
+    private static final String DB_NAME = "query_plan_test.db";
+
+    private static final String SYNC_INCREMENTAL_NOTE_SELECTION =
+            GTaskManager.SELECTION_MODIFIED_NOTES + " OR "
+            + String.format(GTaskManager.SELECTION_NOTES_IN_FOLDERS, "?,?");
+
+    private Context mContext;
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mContext.deleteDatabase(DB_NAME);
+        mHelper = new NotesDatabaseHelper(mContext, DB_NAME,
+                NotesDatabaseHelper.DEFAULT_PRAGMA_PROFILE);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void folderListUsesParentIdIndex() {
+        // the provider prepends the folder id of the uri to the selection
+        assertIndexed(TABLE.NOTE_LIST_VIEW, NotesProvider.FOLDER_SELECTION
+                + NotesProvider.parseSelection(Notes.ROOT_FOLDER_NOTES_SELECTION),
+                Notes.FOLDER_NOTES_SORT_ORDER);
+        assertIndexed(TABLE.NOTE_LIST_VIEW, NotesProvider.FOLDER_SELECTION
+                + NotesProvider.parseSelection(Notes.FOLDER_NOTES_SELECTION),
+                Notes.FOLDER_NOTES_SORT_ORDER);
+    }
+
+    @Test
+    public void syncSelectionsUseIndexes() {
+        assertIndexed(TABLE.NOTE, GTaskManager.SELECTION_TRASH_NODES, null);
+        assertIndexed(TABLE.NOTE, GTaskManager.SELECTION_OUTSIDE_TRASH,
+                NoteColumns.TYPE + " DESC");
+        assertIndexed(TABLE.NOTE, GTaskManager.SELECTION_OUTSIDE_TRASH, null);
+        assertIndexed(TABLE.NOTE, GTaskManager.SELECTION_MODIFIED_NOTES, null);
+        assertIndexed(TABLE.NOTE, SYNC_INCREMENTAL_NOTE_SELECTION, null);
+        assertIndexed(TABLE.NOTE, GTaskManager.SELECTION_DIRTY_NOTES, null);
+        assertIndexed(TABLE.NOTE, GTaskManager.SELECTION_LOCAL_FOLDERS, null);
+        assertIndexed(TABLE.NOTE, GTaskManager.SELECTION_REFRESH_SYNC_ID, null);
+    }
+
+    @Test
+    public void syncDataPreloadUsesNoteIdIndex() {
+        String order = Notes.DataColumns.NOTE_ID + "," + Notes.DataColumns.ID;
+        assertIndexed(TABLE.DATA, SqlDataLoader.buildPreloadSelection(
+                GTaskManager.SELECTION_OUTSIDE_TRASH), order);
+        assertIndexed(TABLE.DATA, SqlDataLoader.buildPreloadSelection(
+                SYNC_INCREMENTAL_NOTE_SELECTION), order);
+    }
+
+    private void assertIndexed(String table, String selection, String sortOrder) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, table, null, selection, null,
+                null, sortOrder, null);
+        ArrayList<String> plan = new ArrayList<String>();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, bindArgs(selection));
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detail));
+            }
+        } finally {
+            c.close();
+        }
+        for (String step : plan) {
+            if (step.startsWith("SCAN") || step.contains("TEMP B-TREE")) {
+                fail(sql + "\n" + plan);
+            }
+        }
+    }
+
+    private static String[] bindArgs(String selection) {
+        int count = 0;
+        for (int i = 0; i < selection.length(); i++) {
+            if (selection.charAt(i) == '?') {
+                count++;
+            }
+        }
+        String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            args[i] = "1";
+        }
+        return args;
+    }
+}
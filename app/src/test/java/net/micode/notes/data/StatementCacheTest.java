@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class StatementCacheTest {
+    private static final String DB_NAME = "statement_cache_test.db";
+
+    private Context mContext;
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    private StatementCache mCache;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mContext.deleteDatabase(DB_NAME);
+        mHelper = new NotesDatabaseHelper(mContext, DB_NAME,
+                NotesDatabaseHelper.DEFAULT_PRAGMA_PROFILE);
+        mDb = mHelper.getWritableDatabase();
+        mCache = new StatementCache(mDb);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.close();
+        mHelper.close();
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void statementIsReusedAcrossCalls() {
+        long first = insertNote("first");
+        long second = insertNote("second");
+        assertEquals(0, mCache.size());
+
+        assertEquals(1, updateSnippet(first, "changed"));
+        assertEquals(1, updateSnippet(second, "changed"));
+        assertEquals(1, mCache.size());
+        assertTrue(mCache.contains(updateSql()));
+
+        assertEquals(1, mCache.delete(TABLE.NOTE, NoteColumns.ID + "=?",
+                new String[] { String.valueOf(first) }));
+        assertEquals(2, mCache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedStatementIsEvicted() {
+        long id = insertNote("note");
+        String[] args = new String[] { String.valueOf(id) };
+        for (int i = 0; i < StatementCache.MAX_CACHED_STATEMENTS; i++) {
+            // every where clause is a different statement
+            mCache.delete(TABLE.DATA, dataWhere(i), args);
+        }
+        assertEquals(StatementCache.MAX_CACHED_STATEMENTS, mCache.size());
+
+        // using the oldest delete again makes the second one the eldest
+        mCache.delete(TABLE.DATA, dataWhere(0), args);
+        updateSnippet(id, "evicts the second delete");
+        assertEquals(StatementCache.MAX_CACHED_STATEMENTS, mCache.size());
+        assertTrue(mCache.contains(deleteSql(0)));
+        assertFalse(mCache.contains(deleteSql(1)));
+        assertTrue(mCache.contains(deleteSql(2)));
+        assertTrue(mCache.contains(updateSql()));
+    }
+
+    @Test
+    public void closedCacheStillExecutesWithoutCaching() {
+        long id = insertNote("before close");
+        mCache.close();
+        assertEquals(1, updateSnippet(id, "after close"));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void failedUpdateReturnsTheStatement() {
+        long first = insertNote("first");
+        long second = insertNote("second");
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.ID, first);
+        try {
+            mCache.update(TABLE.NOTE, null, values, NoteColumns.ID + "=?",
+                    new String[] { String.valueOf(second) });
+            fail("duplicated id should not be updated");
+        } catch (SQLiteConstraintException e) {
+            // expected
+        }
+        assertTrue(mCache.contains("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.ID
+                + "=? WHERE " + NoteColumns.ID + "=?"));
+    }
+
+    @Test
+    public void failedBindDoesNotKeepTheStatement() {
+        long id = insertNote("note");
+        String[] tooManyArgs = new String[] { String.valueOf(id), "extra" };
+        try {
+            mCache.delete(TABLE.NOTE, NoteColumns.ID + "=?", tooManyArgs);
+            fail("the extra argument should not be bound");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, mCache.size());
+
+        // the statement is compiled again and cached by the next call
+        assertEquals(1, mCache.delete(TABLE.NOTE, NoteColumns.ID + "=?",
+                new String[] { String.valueOf(id) }));
+        assertEquals(1, mCache.size());
+    }
+
+    @Test
+    public void providerUpdateIncreasesVersion() {
+        ContentResolver resolver = mContext.getContentResolver();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        Uri uri = resolver.insert(Notes.CONTENT_NOTE_URI, values);
+        long id = ContentUris.parseId(uri);
+        long version = queryVersion(resolver, id);
+
+        values.clear();
+        values.put(NoteColumns.SNIPPET, "edited");
+        assertEquals(1, resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id),
+                values, null, null));
+        assertEquals(version + 1, queryVersion(resolver, id));
+
+        // the selection form of the uri takes the same cached statement shape
+        assertEquals(1, resolver.update(Notes.CONTENT_NOTE_URI, values,
+                NoteColumns.ID + "=?", new String[] { String.valueOf(id) }));
+        assertEquals(version + 2, queryVersion(resolver, id));
+
+        // a version in the values overrides the increment
+        values.put(NoteColumns.VERSION, 100);
+        resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id), values, null,
+                null);
+        assertEquals(100, queryVersion(resolver, id));
+    }
+
+    private long insertNote(String snippet) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.SNIPPET, snippet);
+        return mDb.insert(TABLE.NOTE, null, values);
+    }
+
+    private int updateSnippet(long id, String snippet) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.SNIPPET, snippet);
+        return mCache.update(TABLE.NOTE, null, values, NoteColumns.ID + "=?",
+                new String[] { String.valueOf(id) });
+    }
+
+    private static String updateSql() {
+        return "UPDATE " + TABLE.NOTE + " SET " + NoteColumns.SNIPPET + "=? WHERE "
+                + NoteColumns.ID + "=?";
+    }
+
+    private static String dataWhere(int i) {
+        return Notes.DataColumns.NOTE_ID + "=? AND " + Notes.DataColumns.ID + "<>" + i;
+    }
+
+    private static String deleteSql(int i) {
+        return "DELETE FROM " + TABLE.DATA + " WHERE " + dataWhere(i);
+    }
+
+    private static long queryVersion(ContentResolver resolver, long id) {
+        Cursor c = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id),
+                new String[] { NoteColumns.VERSION }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.data;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 元数据包的放入、替换、移除与写出的内容一致，长度的计算与写出的便签内容的长度一致
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MetaBundleTest {
+    @Test
+    public void packsAndUnpacksMetas() throws Exception {
+        MetaBundle bundle = new MetaBundle();
+        assertTrue(bundle.isEmpty());
+        assertFalse(bundle.isDirty());
+        assertFalse(bundle.isWorthSaving());
+        assertEquals(GTaskStringUtils.META_BUNDLE_NAME, bundle.getName());
+
+        assertTrue(bundle.putMeta("g1", meta("g1", "first")));
+        assertTrue(bundle.putMeta("g2", meta("g2", "second \"quoted\" 中文")));
+        assertTrue(bundle.isDirty());
+        bundle.pack();
+        assertFalse(bundle.isDirty());
+        assertTrue(bundle.isWorthSaving());
+
+        JSONObject metas = new JSONObject(bundle.getNotes())
+                .getJSONObject(GTaskStringUtils.META_HEAD_BUNDLE);
+        assertEquals(2, metas.length());
+        assertEquals("first", metas.getJSONObject("g1").getString("content"));
+
+        MetaBundle copy = unpack("bundle_gid", bundle.getNotes());
+        assertEquals("bundle_gid", copy.getGid());
+        assertFalse(copy.isDirty());
+        assertEquals(bundle.getRelatedGids(), copy.getRelatedGids());
+        assertEquals(new JSONObject(bundle.getMeta("g2")).toString(),
+                new JSONObject(copy.getMeta("g2")).toString());
+    }
+
+    @Test
+    public void replacesAndRemovesMetas() {
+        MetaBundle bundle = new MetaBundle();
+        bundle.putMeta("g1", meta("g1", "first"));
+        bundle.pack();
+
+        // 内容相同时不需要重写
+        assertTrue(bundle.putMeta("g1", meta("g1", "first")));
+        assertFalse(bundle.isDirty());
+
+        assertTrue(bundle.putMeta("g1", meta("g1", "changed")));
+        assertTrue(bundle.isDirty());
+        bundle.pack();
+        assertTrue(bundle.getNotes().contains("changed"));
+
+        assertFalse(bundle.removeMeta("g2"));
+        assertFalse(bundle.isDirty());
+        assertTrue(bundle.removeMeta("g1"));
+        assertTrue(bundle.isDirty());
+        assertTrue(bundle.isEmpty());
+        assertNull(bundle.getMeta("g1"));
+    }
+
+    @Test
+    public void lengthMatchesPackedContent() {
+        Random random = new Random(7);
+        MetaBundle bundle = new MetaBundle();
+        LinkedHashMap<String, String> model = new LinkedHashMap<String, String>();
+        int rejected = 0;
+        for (int i = 0; i < 3000; i++) {
+            String gid = "gid_" + random.nextInt(60);
+            if (random.nextInt(4) == 0) {
+                assertEquals(model.remove(gid) != null, bundle.removeMeta(gid));
+            } else {
+                String meta = meta(gid, randomText(random, random.nextInt(600)));
+                if (bundle.putMeta(gid, meta)) {
+                    model.put(gid, meta);
+                } else {
+                    rejected++;
+                    // 只有确实放不下时才拒绝，按长度计算最多多估一个分隔符
+                    bundle.pack();
+                    int packed = bundle.getNotes().length();
+                    String old = model.get(gid);
+                    int needed = old != null ? packed - old.length() + meta.length()
+                            : packed + JSONObject.quote(gid).length() + 1 + meta.length()
+                                    + (model.isEmpty() ? 0 : 1);
+                    assertTrue(needed > MetaBundle.MAX_LENGTH - 2);
+                }
+            }
+            bundle.pack();
+            assertTrue(bundle.getNotes().length() <= MetaBundle.MAX_LENGTH);
+            assertEquals(new ArrayList<String>(model.keySet()), bundle.getRelatedGids());
+            for (Map.Entry<String, String> entry : model.entrySet()) {
+                assertEquals(entry.getValue(), bundle.getMeta(entry.getKey()));
+            }
+        }
+        assertTrue(rejected > 0);
+
+        // 重新读入后按相同的长度判断能否放入
+        MetaBundle copy = unpack("copy", bundle.getNotes());
+        for (int length = 0; length < MetaBundle.MAX_LENGTH; length += 97) {
+            String probe = meta("probe", randomText(random, length));
+            assertEquals(bundle.canHold("probe", probe), copy.canHold("probe", probe));
+        }
+    }
+
+    @Test
+    public void rejectsMetaLargerThanABundle() {
+        MetaBundle bundle = new MetaBundle();
+        String large = meta("g1", randomText(new Random(1), MetaBundle.MAX_LENGTH));
+        assertFalse(bundle.canHold("g1", large));
+        assertFalse(bundle.putMeta("g1", large));
+        assertTrue(bundle.isEmpty());
+        assertFalse(bundle.isDirty());
+    }
+
+    @Test
+    public void ignoresMalformedContent() throws Exception {
+        MetaBundle bundle = unpack("bundle_gid", "{\"meta_bundle\":[1,2]}");
+        assertTrue(bundle.isEmpty());
+        assertTrue(bundle.putMeta("g1", meta("g1", "first")));
+    }
+
+    private static MetaBundle unpack(String gid, String notes) {
+        try {
+            JSONObject js = new JSONObject();
+            js.put(GTaskStringUtils.GTASK_JSON_ID, gid);
+            js.put(GTaskStringUtils.GTASK_JSON_NAME, GTaskStringUtils.META_BUNDLE_NAME);
+            js.put(GTaskStringUtils.GTASK_JSON_NOTES, notes);
+            MetaBundle bundle = new MetaBundle();
+            bundle.setContentByRemoteJSON(js);
+            return bundle;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String meta(String gid, String content) {
+        try {
+            JSONObject meta = new JSONObject();
+            meta.put(GTaskStringUtils.META_HEAD_GTASK_ID, gid);
+            meta.put("content", content);
+            return meta.toString();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int c = random.nextInt(10);
+            sb.append(c == 0 ? '"' : c == 1 ? '中' : (char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaskList在10k和100k个子任务时按任务求位置、按gid查找和移动任务的耗时，与原来基于ArrayList的
+ * indexOf和线性查找对比。上传文件夹时每个创建动作都要求一次位置，移动任务时先删除再插入。
+ * 在JVM上运行：先编译单元测试，再以测试的classpath运行这个类的main方法
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskListBenchmark {
+    /**
+     * 预先选好的随机位置的个数，避免在测量中调用Random
+     */
+    private static final int SAMPLES = 4096;
+
+    @Param({"10000", "100000"})
+    public int children;
+
+    private TaskList mTaskList;
+
+    private ArrayList<Task> mArrayList;
+
+    private Task[] mTasks;
+
+    private String[] mGids;
+
+    private int[] mPositions;
+
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTaskList = new TaskList();
+        mArrayList = new ArrayList<Task>(children);
+        for (int i = 0; i < children; i++) {
+            Task task = new Task();
+            task.setGid("gid_" + i);
+            mTaskList.addChildTask(task);
+            mArrayList.add(task);
+        }
+
+        Random random = new Random(1);
+        mTasks = new Task[SAMPLES];
+        mGids = new String[SAMPLES];
+        mPositions = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            mTasks[i] = mArrayList.get(random.nextInt(children));
+            mGids[i] = "gid_" + random.nextInt(children);
+            mPositions[i] = random.nextInt(children);
+        }
+    }
+
+    private int next() {
+        mNext = (mNext + 1) & (SAMPLES - 1);
+        return mNext;
+    }
+
+    @Benchmark
+    public int taskListIndexOf() {
+        return mTaskList.getChildTaskIndex(mTasks[next()]);
+    }
+
+    @Benchmark
+    public int arrayListIndexOf() {
+        return mArrayList.indexOf(mTasks[next()]);
+    }
+
+    @Benchmark
+    public Task taskListFindByGid() {
+        return mTaskList.findChildTaskByGid(mGids[next()]);
+    }
+
+    @Benchmark
+    public Task arrayListFindByGid() {
+        String gid = mGids[next()];
+        for (Task task : mArrayList) {
+            if (gid.equals(task.getGid())) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public boolean taskListMove() {
+        int i = next();
+        return mTaskList.moveChildTask(mTasks[i], mPositions[i]);
+    }
+
+    @Benchmark
+    public boolean arrayListMove() {
+        int i = next();
+        Task task = mTasks[i];
+        mArrayList.remove(mArrayList.indexOf(task));
+        mArrayList.add(mPositions[i], task);
+        return true;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TaskListBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
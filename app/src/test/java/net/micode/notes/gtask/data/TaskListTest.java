@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 随机的插入、移动、删除和设置gid后，TaskList的顺序、prior sibling、parent和按gid的查找
+ * 与ArrayList模型一致，包括新任务在加入列表后才拿到gid和已有任务的gid改变的情况
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskListTest {
+    private int mNextGid;
+
+    @Test
+    public void matchesArrayListModel() {
+        for (long seed = 1; seed <= 20; seed++) {
+            runRandomOperations(new Random(seed), 1500);
+        }
+    }
+
+    @Test
+    public void newTaskIsFoundAfterItsGidIsSet() {
+        TaskList list = new TaskList();
+        Task created = new Task();
+        list.addChildTask(created);
+        assertNull(list.findChildTaskByGid("g1"));
+
+        created.setGid("g1");
+        assertSame(created, list.findChildTaskByGid("g1"));
+        assertSame(created, list.getChilTaskByGid("g1"));
+
+        // 已经在索引中的任务换了gid后，旧的gid找不到它
+        created.setGid("g2");
+        assertNull(list.findChildTaskByGid("g1"));
+        assertSame(created, list.findChildTaskByGid("g2"));
+
+        assertTrue(list.removeChildTask(created));
+        assertNull(list.findChildTaskByGid("g2"));
+        assertNull(created.getParent());
+    }
+
+    @Test
+    public void rejectsInvalidPositions() {
+        TaskList list = new TaskList();
+        Task task = new Task();
+        assertFalse(list.addChildTask(task, 1));
+        assertTrue(list.addChildTask(task));
+        assertFalse(list.addChildTask(task));
+        assertFalse(list.moveChildTask(task, 1));
+        assertFalse(list.moveChildTask(new Task(), 0));
+        assertNull(list.getChildTaskByIndex(1));
+        assertFalse(list.removeChildTask(new Task()));
+        assertEquals(1, list.getChildTaskCount());
+    }
+
+    private void runRandomOperations(Random random, int operations) {
+        TaskList list = new TaskList();
+        ArrayList<Task> model = new ArrayList<Task>();
+        for (int op = 0; op < operations; op++) {
+            int choice = random.nextInt(12);
+            if (choice < 4 || model.isEmpty()) {
+                // 新任务有一半还没有gid，和等待创建的任务一样
+                Task task = new Task();
+                if (random.nextBoolean()) {
+                    task.setGid(nextGid());
+                }
+                if (random.nextBoolean()) {
+                    assertTrue(list.addChildTask(task));
+                    model.add(task);
+                } else {
+                    int index = random.nextInt(model.size() + 1);
+                    assertTrue(list.addChildTask(task, index));
+                    model.add(index, task);
+                }
+            } else if (choice < 6) {
+                Task task = model.remove(random.nextInt(model.size()));
+                assertTrue(list.removeChildTask(task));
+                assertNull(task.getParent());
+                assertNull(task.getPriorSibling());
+            } else if (choice < 8) {
+                Task task = model.get(random.nextInt(model.size()));
+                int index = random.nextInt(model.size());
+                assertTrue(list.moveChildTask(task, index));
+                model.remove(task);
+                model.add(index, task);
+            } else if (choice < 10) {
+                // 创建动作返回后设置gid，偶尔改掉已有的gid
+                Task task = model.get(random.nextInt(model.size()));
+                if (task.getGid() == null || random.nextInt(4) == 0) {
+                    task.setGid(nextGid());
+                }
+            } else {
+                lookUpRandomGid(random, list, model);
+            }
+            verify(random, list, model);
+        }
+
+        for (Task task : model) {
+            if (task.getGid() != null) {
+                assertSame(task, list.findChildTaskByGid(task.getGid()));
+            }
+        }
+        assertEquals(model, list.getChildTaskList());
+    }
+
+    private void lookUpRandomGid(Random random, TaskList list, ArrayList<Task> model) {
+        Task task = model.get(random.nextInt(model.size()));
+        if (task.getGid() != null) {
+            assertSame(task, list.findChildTaskByGid(task.getGid()));
+        }
+        assertNull(list.findChildTaskByGid("missing" + random.nextInt(100)));
+        assertNull(list.findChildTaskByGid(null));
+    }
+
+    private static void verify(Random random, TaskList list, ArrayList<Task> model) {
+        assertEquals(model.size(), list.getChildTaskCount());
+        for (int k = 0; k < 8 && !model.isEmpty(); k++) {
+            int i = random.nextInt(model.size());
+            Task task = model.get(i);
+            assertSame(task, list.getChildTaskByIndex(i));
+            assertEquals(i, list.getChildTaskIndex(task));
+            assertSame(list, task.getParent());
+            assertSame(i == 0 ? null : model.get(i - 1), task.getPriorSibling());
+        }
+        if (random.nextInt(50) == 0) {
+            assertEquals(model, list.getChildTaskList());
+            HashSet<Task> seen = new HashSet<Task>(model);
+            assertEquals(model.size(), seen.size());
+        }
+    }
+
+    private String nextGid() {
+        return "gid_" + mNextGid++;
+    }
+}
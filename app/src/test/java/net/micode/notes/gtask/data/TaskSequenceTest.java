@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 随机的插入和删除后，TaskSequence与ArrayList模型保持一致，并且树的结构没有被破坏
+ */
+public class TaskSequenceTest {
+
+    @Test
+    public void matchesArrayListModel() {
+        for (long seed = 1; seed <= 20; seed++) {
+            runRandomOperations(new Random(seed), 2000);
+        }
+    }
+
+    @Test
+    public void emptySequence() {
+        TaskSequence sequence = new TaskSequence();
+        Task task = new Task();
+        assertEquals(0, sequence.size());
+        assertEquals(-1, sequence.indexOf(task));
+        assertEquals(-1, sequence.remove(task));
+        assertTrue(sequence.toList().isEmpty());
+        sequence.checkInvariants();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getOutOfRange() {
+        TaskSequence sequence = new TaskSequence();
+        sequence.add(0, new Task());
+        sequence.get(1);
+    }
+
+    @Test
+    public void removesInBothDirections() {
+        TaskSequence sequence = new TaskSequence();
+        ArrayList<Task> model = new ArrayList<Task>();
+        for (int i = 0; i < 1000; i++) {
+            Task task = new Task();
+            sequence.add(i, task);
+            model.add(task);
+        }
+        // 从两端交替删除，树退化时parent指针和子树大小仍然正确
+        while (!model.isEmpty()) {
+            Task first = model.remove(0);
+            assertEquals(0, sequence.remove(first));
+            if (!model.isEmpty()) {
+                Task last = model.remove(model.size() - 1);
+                assertEquals(model.size(), sequence.remove(last));
+            }
+            sequence.checkInvariants();
+            assertEquals(model, sequence.toList());
+        }
+    }
+
+    private static void runRandomOperations(Random random, int operations) {
+        TaskSequence sequence = new TaskSequence();
+        ArrayList<Task> model = new ArrayList<Task>();
+        for (int op = 0; op < operations; op++) {
+            int choice = random.nextInt(10);
+            if (choice < 5 || model.isEmpty()) {
+                int index = random.nextInt(model.size() + 1);
+                Task task = new Task();
+                sequence.add(index, task);
+                model.add(index, task);
+            } else if (choice < 8) {
+                Task task = model.get(random.nextInt(model.size()));
+                int index = model.indexOf(task);
+                assertEquals(index, sequence.remove(task));
+                model.remove(index);
+                assertFalse(sequence.contains(task));
+                assertEquals(-1, sequence.remove(task));
+            } else {
+                // 不在序列中的任务
+                assertEquals(-1, sequence.indexOf(new Task()));
+            }
+
+            sequence.checkInvariants();
+            assertEquals(model.size(), sequence.size());
+            for (int k = 0; k < 5 && !model.isEmpty(); k++) {
+                int i = random.nextInt(model.size());
+                assertSame(model.get(i), sequence.get(i));
+                assertEquals(i, sequence.indexOf(model.get(i)));
+            }
+        }
+        assertEquals(model, sequence.toList());
+        for (int i = 0; i < model.size(); i++) {
+            assertEquals(i, sequence.indexOf(model.get(i)));
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.exception.SessionRejectedException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * 进程内的GTask替身服务器，在内存中保存任务列表和任务。登录页面和获取任务列表时返回带_setup(的页面，
+ * POST时执行请求中的action_list，支持create、update、move和get_all动作
+ */
+public class FakeGTaskServer implements LocalTransport.Server {
+    /**
+     * 登录后设置的cookie的名字
+     */
+    public static final String AUTH_COOKIE = "GTL";
+
+    private final String mAuthToken;
+
+    private final long mClientVersion;
+
+    private final LinkedHashMap<String, FakeNode> mLists = new LinkedHashMap<String, FakeNode>();
+
+    private final HashMap<String, FakeNode> mTasks = new HashMap<String, FakeNode>();
+
+    private boolean mLoggedin;
+
+    private int mNextGid = 1;
+
+    private long mClock = 1000;
+
+    private int mLoginCount;
+
+    private int mPostCount;
+
+    /**
+     * 服务器上的一个任务列表或任务
+     */
+    public static class FakeNode {
+        final String gid;
+
+        String name;
+
+        String notes;
+
+        boolean deleted;
+
+        long lastModified;
+
+        /**
+         * 任务所在的列表，任务列表为null
+         */
+        FakeNode parent;
+
+        /**
+         * 任务列表中按顺序排列的任务
+         */
+        final ArrayList<FakeNode> children = new ArrayList<FakeNode>();
+
+        FakeNode(String gid, String name) {
+            this.gid = gid;
+            this.name = name;
+        }
+
+        public String getGid() {
+            return gid;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getNotes() {
+            return notes;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+    }
+
+    /**
+     * @param authToken 登录时接受的令牌
+     * @param clientVersion 登录页面中的客户端版本
+     */
+    public FakeGTaskServer(String authToken, long clientVersion) {
+        mAuthToken = authToken;
+        mClientVersion = clientVersion;
+    }
+
+    /**
+     * 在服务器上直接添加一个任务列表
+     * @param name String
+     * @return 新列表的gid
+     */
+    public synchronized String addList(String name) {
+        FakeNode list = new FakeNode(nextGid(), name);
+        list.lastModified = mClock++;
+        mLists.put(list.gid, list);
+        return list.gid;
+    }
+
+    /**
+     * 在任务列表末尾直接添加一个任务
+     * @param listGid String
+     * @param name String
+     * @return 新任务的gid
+     */
+    public synchronized String addTask(String listGid, String name) {
+        return addTask(listGid, name, null);
+    }
+
+    /**
+     * 在任务列表末尾直接添加一个带备注的任务
+     * @param listGid String
+     * @param name String
+     * @param notes String
+     * @return 新任务的gid
+     */
+    public synchronized String addTask(String listGid, String name, String notes) {
+        FakeNode list = mLists.get(listGid);
+        FakeNode task = newTask(name);
+        task.notes = notes;
+        task.parent = list;
+        list.children.add(task);
+        list.lastModified = mClock++;
+        return task.gid;
+    }
+
+    /**
+     * 在服务器上直接修改一个任务，相当于在网页上编辑
+     * @param gid String
+     * @param name String
+     */
+    public synchronized void updateTask(String gid, String name) {
+        FakeNode task = mTasks.get(gid);
+        task.name = name;
+        task.lastModified = mClock++;
+        task.parent.lastModified = task.lastModified;
+    }
+
+    /**
+     * 在服务器上直接删除一个任务，相当于在网页上删除
+     * @param gid String
+     */
+    public synchronized void deleteTask(String gid) {
+        FakeNode task = mTasks.get(gid);
+        task.deleted = true;
+        task.lastModified = mClock++;
+        task.parent.lastModified = task.lastModified;
+    }
+
+    /**
+     * @param name String
+     * @return 名字为name的任务列表，没有时返回null
+     */
+    public synchronized FakeNode getListByName(String name) {
+        for (FakeNode list : mLists.values()) {
+            if (list.name.equals(name)) {
+                return list;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 使当前会话失效，之后的请求被拒绝，直到重新登录
+     */
+    public synchronized void expireSession() {
+        mLoggedin = false;
+    }
+
+    public synchronized FakeNode getList(String gid) {
+        return mLists.get(gid);
+    }
+
+    public synchronized FakeNode getTask(String gid) {
+        return mTasks.get(gid);
+    }
+
+    /**
+     * @param listGid String
+     * @return 列表中没有删除的任务，按顺序排列
+     */
+    public synchronized ArrayList<FakeNode> getTasks(String listGid) {
+        ArrayList<FakeNode> tasks = new ArrayList<FakeNode>();
+        for (FakeNode task : mLists.get(listGid).children) {
+            if (!task.deleted) {
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    public synchronized int getListCount() {
+        return mLists.size();
+    }
+
+    public synchronized int getLoginCount() {
+        return mLoginCount;
+    }
+
+    public synchronized int getPostCount() {
+        return mPostCount;
+    }
+
+    public synchronized String onGet(String url) throws IOException {
+        int auth = url.indexOf("?auth=");
+        if (auth >= 0) {
+            if (!mAuthToken.equals(url.substring(auth + "?auth=".length()))) {
+                throw new SessionRejectedException("bad auth token");
+            }
+            mLoggedin = true;
+            mLoginCount++;
+        } else if (!mLoggedin) {
+            throw new SessionRejectedException("not logged in");
+        }
+        return renderPage();
+    }
+
+    public synchronized String onPost(String url, Map<String, String> headers, String body)
+            throws IOException {
+        if (!mLoggedin) {
+            throw new SessionRejectedException("not logged in");
+        }
+        if (!body.startsWith("r=")) {
+            throw new IOException("bad request body");
+        }
+        mPostCount++;
+        try {
+            JSONObject request = new JSONObject(URLDecoder.decode(body.substring(2), "UTF-8"));
+            JSONArray actions = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+            JSONObject response = new JSONObject();
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < actions.length(); i++) {
+                JSONObject action = actions.getJSONObject(i);
+                String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+                JSONObject result = new JSONObject();
+                result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                        action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+                if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+                    result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, create(action));
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+                    update(action);
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE.equals(type)) {
+                    move(action);
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                    response.put(GTaskStringUtils.GTASK_JSON_TASKS, renderTasks(
+                            action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID)));
+                } else {
+                    throw new IOException("unknown action " + type);
+                }
+                results.put(result);
+            }
+            response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+            return response.toString();
+        } catch (JSONException e) {
+            throw new IOException("bad request: " + e.getMessage());
+        }
+    }
+
+    public synchronized boolean hasCookie(String namePart) {
+        return mLoggedin && AUTH_COOKIE.contains(namePart);
+    }
+
+    private String create(JSONObject action) throws JSONException, IOException {
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        String name = entity.getString(GTaskStringUtils.GTASK_JSON_NAME);
+        if (GTaskStringUtils.GTASK_JSON_TYPE_GROUP.equals(
+                entity.getString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))) {
+            return addList(name);
+        }
+
+        FakeNode list = findList(action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+        FakeNode task = newTask(name);
+        task.notes = entity.optString(GTaskStringUtils.GTASK_JSON_NOTES, null);
+        task.parent = list;
+        insert(list, task, action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null),
+                action.optInt(GTaskStringUtils.GTASK_JSON_INDEX, list.children.size()));
+        list.lastModified = task.lastModified;
+        return task.gid;
+    }
+
+    private void update(JSONObject action) throws JSONException, IOException {
+        String gid = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        FakeNode node = mTasks.containsKey(gid) ? mTasks.get(gid) : findList(gid);
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        node.name = entity.optString(GTaskStringUtils.GTASK_JSON_NAME, node.name);
+        if (entity.has(GTaskStringUtils.GTASK_JSON_NOTES)) {
+            node.notes = entity.getString(GTaskStringUtils.GTASK_JSON_NOTES);
+        }
+        node.deleted = entity.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED, node.deleted);
+        node.lastModified = mClock++;
+        if (node.parent != null) {
+            node.parent.lastModified = node.lastModified;
+        }
+    }
+
+    private void move(JSONObject action) throws JSONException, IOException {
+        FakeNode task = mTasks.get(action.getString(GTaskStringUtils.GTASK_JSON_ID));
+        if (task == null) {
+            throw new IOException("move of unknown task");
+        }
+        FakeNode dest = findList(action.getString(GTaskStringUtils.GTASK_JSON_DEST_PARENT));
+        task.parent.children.remove(task);
+        task.parent.lastModified = mClock;
+        task.parent = dest;
+        // 没有prior_sibling_id时移到列表的开头
+        insert(dest, task, action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null),
+                0);
+        task.lastModified = mClock++;
+        dest.lastModified = task.lastModified;
+    }
+
+    private static void insert(FakeNode list, FakeNode task, String priorSiblingGid, int index) {
+        if (priorSiblingGid != null) {
+            for (int i = 0; i < list.children.size(); i++) {
+                if (list.children.get(i).gid.equals(priorSiblingGid)) {
+                    list.children.add(i + 1, task);
+                    return;
+                }
+            }
+        }
+        list.children.add(Math.max(0, Math.min(index, list.children.size())), task);
+    }
+
+    private FakeNode findList(String gid) throws IOException {
+        FakeNode list = mLists.get(gid);
+        if (list == null) {
+            throw new IOException("unknown list " + gid);
+        }
+        return list;
+    }
+
+    private FakeNode newTask(String name) {
+        FakeNode task = new FakeNode(nextGid(), name);
+        task.lastModified = mClock++;
+        mTasks.put(task.gid, task);
+        return task;
+    }
+
+    private String nextGid() {
+        return "gid_" + mNextGid++;
+    }
+
+    private String renderPage() throws IOException {
+        try {
+            JSONArray lists = new JSONArray();
+            for (FakeNode list : mLists.values()) {
+                lists.put(renderNode(list));
+            }
+            JSONObject t = new JSONObject();
+            t.put(GTaskStringUtils.GTASK_JSON_LISTS, lists);
+            JSONObject setup = new JSONObject();
+            setup.put("v", mClientVersion);
+            setup.put("t", t);
+            return "<html><head><script>var _x = 1;</script></head><body><script>_setup("
+                    + setup.toString() + ");</script></body></html>";
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private JSONArray renderTasks(String listGid) throws JSONException, IOException {
+        JSONArray tasks = new JSONArray();
+        for (FakeNode task : findList(listGid).children) {
+            if (!task.deleted) {
+                tasks.put(renderNode(task));
+            }
+        }
+        return tasks;
+    }
+
+    private static JSONObject renderNode(FakeNode node) throws JSONException {
+        JSONObject js = new JSONObject();
+        js.put(GTaskStringUtils.GTASK_JSON_ID, node.gid);
+        js.put(GTaskStringUtils.GTASK_JSON_NAME, node.name);
+        if (node.notes != null) {
+            js.put(GTaskStringUtils.GTASK_JSON_NOTES, node.notes);
+        }
+        js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, node.lastModified);
+        js.put(GTaskStringUtils.GTASK_JSON_DELETED, node.deleted);
+        return js;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.app.Activity;
+import android.content.Context;
+
+import net.micode.notes.gtask.data.RemoteNode;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 通过LocalTransport和进程内的替身服务器驱动GTaskClient，覆盖登录、创建、更新、移动和获取任务
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GTaskClientTest {
+    private static final String ACCOUNT_NAME = "tester@gmail.com";
+
+    private static final String AUTH_TOKEN = "token-1";
+
+    private static final long CLIENT_VERSION = 42;
+
+    private Context mContext;
+
+    private Activity mActivity;
+
+    private FakeGTaskServer mServer;
+
+    private LocalTransport mTransport;
+
+    private GTaskClient mClient;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        Account account = new Account(ACCOUNT_NAME, "com.google");
+        AccountManager accountManager = AccountManager.get(mContext);
+        shadowOf(accountManager).addAccount(account);
+        accountManager.setAuthToken(account, "goanna_mobile", AUTH_TOKEN);
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit()
+                .putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT_NAME)
+                .commit();
+        GTaskClient.clearSession(mContext);
+        mActivity = Robolectric.buildActivity(Activity.class).setup().get();
+
+        mServer = new FakeGTaskServer(AUTH_TOKEN, CLIENT_VERSION);
+        mTransport = new LocalTransport(mServer);
+        // GTaskClient是单例，每个测试换上新的传输层并清空队列
+        mClient = GTaskClient.getInstance();
+        mClient.setTransport(mTransport);
+        mClient.resetUpdateArray();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.setRetryPolicy(new RetryPolicy());
+        mClient.resetUpdateArray();
+        mClient.setTransport(null);
+    }
+
+    @Test
+    public void loginReadsSetupPageAndListsTaskLists() throws Exception {
+        String listGid = mServer.addList("[MIUI_Notes]Default");
+        mServer.addTask(listGid, "existing");
+
+        assertTrue(mClient.login(mActivity));
+        assertEquals(1, mServer.getLoginCount());
+        assertEquals(ACCOUNT_NAME, mClient.getSyncAccount().name);
+
+        ArrayList<RemoteNode> lists = mClient.getTaskLists();
+        assertEquals(1, lists.size());
+        assertEquals(listGid, lists.get(0).getGid());
+        assertEquals("[MIUI_Notes]Default", lists.get(0).getName());
+
+        ArrayList<RemoteNode> tasks = mClient.fetchTaskList(listGid);
+        assertEquals(1, tasks.size());
+        assertEquals("existing", tasks.get(0).getName());
+
+        // 已经登录时不再请求登录页面
+        assertTrue(mClient.login(mActivity));
+        assertEquals(1, mServer.getLoginCount());
+    }
+
+    @Test
+    public void loginFailsWithUnknownToken() {
+        mServer = new FakeGTaskServer("other-token", CLIENT_VERSION);
+        mClient.setTransport(new LocalTransport(mServer));
+
+        assertFalse(mClient.login(mActivity));
+        assertEquals(0, mServer.getLoginCount());
+    }
+
+    @Test
+    public void createUpdateAndFetchInBatches() throws Exception {
+        assertTrue(mClient.login(mActivity));
+        mTransport.resetStats();
+
+        TaskList list = new TaskList();
+        list.setName("[MIUI_Notes]Work");
+        mClient.createTaskList(list);
+        mClient.commitUpdate();
+        assertNotNull(list.getGid());
+        assertEquals("[MIUI_Notes]Work", mServer.getList(list.getGid()).getName());
+        assertEquals(1, mServer.getPostCount());
+
+        final int count = 25;
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < count; i++) {
+            Task task = new Task();
+            task.setName("note " + i);
+            list.addChildTask(task);
+            mClient.createTask(task);
+            tasks.add(task);
+        }
+        mClient.commitUpdate();
+
+        // 每个请求最多10个动作
+        assertEquals(1 + 3, mServer.getPostCount());
+        HashSet<String> gids = new HashSet<String>();
+        for (Task task : tasks) {
+            assertNotNull(task.getGid());
+            gids.add(task.getGid());
+        }
+        assertEquals(count, gids.size());
+
+        ArrayList<RemoteNode> remote = mClient.fetchTaskList(list.getGid());
+        assertEquals(count, remote.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(tasks.get(i).getGid(), remote.get(i).getGid());
+            assertEquals("note " + i, remote.get(i).getName());
+        }
+
+        tasks.get(3).setName("renamed");
+        mClient.addUpdateNode(tasks.get(3));
+        mClient.deleteNode(tasks.get(4));
+        mClient.commitUpdate();
+
+        assertEquals("renamed", mServer.getTask(tasks.get(3).getGid()).getName());
+        assertTrue(mServer.getTask(tasks.get(4).getGid()).isDeleted());
+        assertEquals(count - 1, mClient.fetchTaskList(list.getGid()).size());
+
+        assertEquals(mServer.getPostCount(), mTransport.getRequestCount());
+        assertTrue(mTransport.getSentBytes() > 0);
+        assertTrue(mTransport.getReceivedChars() > 0);
+        System.out.println("GTaskClientTest: " + mTransport.getRequestCount() + " requests, "
+                + mTransport.getSentBytes() + " bytes sent, "
+                + mTransport.getReceivedChars() + " chars received");
+    }
+
+    @Test
+    public void moveTaskBetweenLists() throws Exception {
+        String fromGid = mServer.addList("[MIUI_Notes]From");
+        String toGid = mServer.addList("[MIUI_Notes]To");
+        assertTrue(mClient.login(mActivity));
+
+        TaskList from = new TaskList();
+        from.setGid(fromGid);
+        TaskList to = new TaskList();
+        to.setGid(toGid);
+        Task task = new Task();
+        task.setGid(mServer.addTask(fromGid, "moving"));
+        from.addChildTask(task);
+
+        from.removeChildTask(task);
+        to.addChildTask(task);
+        mClient.moveTask(task, from, to);
+        mClient.commitUpdate();
+
+        assertEquals(0, mServer.getTasks(fromGid).size());
+        assertEquals(1, mServer.getTasks(toGid).size());
+        assertEquals(task.getGid(), mServer.getTasks(toGid).get(0).getGid());
+    }
+
+    @Test
+    public void rejectedSessionLogsInAgain() throws Exception {
+        String listGid = mServer.addList("[MIUI_Notes]Default");
+        assertTrue(mClient.login(mActivity));
+        assertEquals(1, mServer.getLoginCount());
+
+        mServer.expireSession();
+        assertEquals(0, mClient.fetchTaskList(listGid).size());
+        assertEquals(2, mServer.getLoginCount());
+
+        mServer.expireSession();
+        assertEquals(1, mClient.getTaskLists().size());
+        assertEquals(3, mServer.getLoginCount());
+    }
+
+    @Test
+    public void reloginDoesNotNeedTheActivity() throws Exception {
+        String listGid = mServer.addList("[MIUI_Notes]Default");
+        ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class)
+                .setup();
+        assertTrue(mClient.login(controller.get()));
+        // 发起同步的Activity已经销毁，重新登录只用Application Context
+        controller.pause().stop().destroy();
+
+        mServer.expireSession();
+        assertEquals(0, mClient.fetchTaskList(listGid).size());
+        assertEquals(2, mServer.getLoginCount());
+    }
+
+    @Test
+    public void lostResponseDoesNotCreateTheTaskTwice() throws Exception {
+        String listGid = mServer.addList("[MIUI_Notes]Work");
+        String webGid = mServer.addTask(listGid, "same");
+        CutResponseTransport transport = new CutResponseTransport(mServer);
+        mClient.setTransport(transport);
+        mClient.setRetryPolicy(new RetryPolicy(4, 1, 1, 1000));
+        assertTrue(mClient.login(mActivity));
+
+        TaskList list = new TaskList();
+        list.setGid(listGid);
+        Task task = new Task();
+        task.setName("same");
+        list.addChildTask(task);
+        mClient.createTask(task);
+        transport.cutNextPost(0);
+        try {
+            mClient.commitUpdate();
+            fail("the create may have been applied, it must not be sent again");
+        } catch (NetworkFailureException e) {
+            // expected
+        }
+
+        // 服务器已经创建了任务但响应完全丢失，不重发创建动作，也不认领内容相同的已有任务
+        assertNull(task.getGid());
+        assertEquals(1, mServer.getPostCount());
+        assertEquals(2, mServer.getTasks(listGid).size());
+        assertNotNull(mServer.getTask(webGid));
+        assertFalse(mClient.hasPendingUpdate());
+    }
+
+    @Test
+    public void returnedResultsAreAdoptedWhenTheRestIsLost() throws Exception {
+        String listGid = mServer.addList("[MIUI_Notes]Work");
+        CutResponseTransport transport = new CutResponseTransport(mServer);
+        mClient.setTransport(transport);
+        mClient.setRetryPolicy(new RetryPolicy(4, 1, 1, 1000));
+        assertTrue(mClient.login(mActivity));
+
+        TaskList list = new TaskList();
+        list.setGid(listGid);
+        Task first = new Task();
+        first.setName("same");
+        list.addChildTask(first);
+        Task second = new Task();
+        second.setName("same");
+        list.addChildTask(second);
+        mClient.createTask(first);
+        mClient.createTask(second);
+        transport.cutNextPost(1);
+        try {
+            mClient.commitUpdate();
+            fail("the second create may have been applied, it must not be sent again");
+        } catch (NetworkFailureException e) {
+            // expected
+        }
+
+        // 第一个结果已经读到并采用，第二个创建动作不重发，服务器上每个任务只有一个
+        ArrayList<FakeGTaskServer.FakeNode> tasks = mServer.getTasks(listGid);
+        assertEquals(2, tasks.size());
+        assertEquals(tasks.get(0).getGid(), first.getGid());
+        assertNull(second.getGid());
+        assertEquals(1, mServer.getPostCount());
+    }
+
+    @Test
+    public void responseLostAfterTheResultsIsNotResent() throws Exception {
+        String listGid = mServer.addList("[MIUI_Notes]Work");
+        CutResponseTransport transport = new CutResponseTransport(mServer);
+        mClient.setTransport(transport);
+        mClient.setRetryPolicy(new RetryPolicy(4, 1, 1, 1000));
+        assertTrue(mClient.login(mActivity));
+
+        TaskList list = new TaskList();
+        list.setGid(listGid);
+        Task task = new Task();
+        task.setName("created");
+        list.addChildTask(task);
+        mClient.createTask(task);
+        transport.cutNextPost(1);
+        mClient.commitUpdate();
+
+        // 创建的结果在断开前已经读到，不用再发送
+        assertEquals(1, mServer.getTasks(listGid).size());
+        assertEquals(mServer.getTasks(listGid).get(0).getGid(), task.getGid());
+    }
+
+    /**
+     * 服务器执行请求后只返回响应中的前几个结果，然后连接断开
+     */
+    private static class CutResponseTransport extends LocalTransport {
+        private int mCutNextPost = -1;
+
+        CutResponseTransport(Server server) {
+            super(server);
+        }
+
+        /**
+         * 下一个请求的响应在第results个结果之后断开
+         */
+        void cutNextPost(int results) {
+            mCutNextPost = results;
+        }
+
+        @Override
+        public Reader post(String url, Map<String, String> headers, byte[] body)
+                throws IOException {
+            Reader in = super.post(url, headers, body);
+            if (mCutNextPost < 0) {
+                return in;
+            }
+            StringBuilder content = new StringBuilder();
+            for (int c = in.read(); c >= 0; c = in.read()) {
+                content.append((char) c);
+            }
+            int end = content.indexOf("[") + 1;
+            for (int i = 0; i < mCutNextPost; i++) {
+                end = content.indexOf("}", end) + 1;
+            }
+            mCutNextPost = -1;
+            return new FilterReader(new StringReader(content.substring(0, end))) {
+                @Override
+                public int read() throws IOException {
+                    int c = super.read();
+                    if (c < 0) {
+                        throw new SocketException("Connection reset");
+                    }
+                    return c;
+                }
+
+                @Override
+                public int read(char[] buffer, int offset, int count) throws IOException {
+                    int n = super.read(buffer, offset, count);
+                    if (n < 0) {
+                        throw new SocketException("Connection reset");
+                    }
+                    return n;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.util.MalformedJsonException;
+
+import net.micode.notes.gtask.data.RemoteNode;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * GTaskJsonCodec的解码结果与页面和响应的内容一致，编码的字符与URLEncoder的结果相同
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GTaskJsonCodecTest {
+
+    @Test
+    public void readsClientVersionAfterPartialMarkers() throws IOException {
+        String page = "<script>var _s = '_setu'; __setup;</script><script>_setup("
+                + "{\"a\":{\"b\":[1,2]},\"v\":1234567890123,\"t\":{}})</script>";
+        assertEquals(1234567890123L, GTaskJsonCodec.readClientVersion(new StringReader(page)));
+    }
+
+    @Test
+    public void failsWithoutSetupData() throws IOException {
+        try {
+            GTaskJsonCodec.readClientVersion(new StringReader("<html>login</html>"));
+            fail("page without _setup( should fail");
+        } catch (MalformedJsonException e) {
+            // expected
+        }
+        try {
+            GTaskJsonCodec.readClientVersion(new StringReader("_setup({\"t\":{}})"));
+            fail("page without client version should fail");
+        } catch (MalformedJsonException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readsTaskListsInPageOrder() throws IOException {
+        String page = "x _setup({v:3,t:{user:{id:'u'},lists:["
+                + "{id:'l2',name:'[MIUI_Notes]B',last_modified:20},"
+                + "{id:'l1',name:'[MIUI_Notes]A',last_modified:10,extra:{k:[null]}}"
+                + "]}}) y";
+        ArrayList<RemoteNode> lists = GTaskJsonCodec.readTaskLists(new StringReader(page));
+        assertEquals(2, lists.size());
+        assertEquals("l2", lists.get(0).getGid());
+        assertEquals("[MIUI_Notes]B", lists.get(0).getName());
+        assertEquals(20, lists.get(0).getLastModified());
+        assertEquals("l1", lists.get(1).getGid());
+        assertSame("l1", lists.get(1).getGid());
+    }
+
+    @Test
+    public void rejectsTaskListWithoutNameOrId() throws IOException {
+        try {
+            GTaskJsonCodec.readTaskLists(new StringReader("_setup({t:{lists:[{id:'l'}]}})"));
+            fail("list without name should fail");
+        } catch (MalformedJsonException e) {
+            // expected
+        }
+        try {
+            GTaskJsonCodec.readTaskLists(new StringReader("_setup({t:{lists:[{name:'n'}]}})"));
+            fail("list without id should fail");
+        } catch (MalformedJsonException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readsTaskFields() throws IOException {
+        String response = "{\"latest_sync_point\":5,\"tasks\":["
+                + "{\"id\":\"t1\",\"name\":\"first\",\"notes\":\"n\",\"last_modified\":7,"
+                + "\"deleted\":false,\"completed\":true,\"child_entity\":[{\"id\":\"x\"}]},"
+                + "{\"id\":\"t2\",\"name\":null,\"notes\":null,\"deleted\":true}]}";
+        ArrayList<RemoteNode> tasks = GTaskJsonCodec.readTasks(new StringReader(response));
+        assertEquals(2, tasks.size());
+
+        RemoteNode first = tasks.get(0);
+        assertEquals("t1", first.getGid());
+        assertEquals("first", first.getName());
+        assertEquals("n", first.getNotes());
+        assertEquals(7, first.getLastModified());
+        assertTrue(first.hasDeleted());
+        assertFalse(first.getDeleted());
+        assertTrue(first.getCompleted());
+
+        // null字段视为没有出现
+        RemoteNode second = tasks.get(1);
+        assertFalse(second.hasName());
+        assertFalse(second.hasNotes());
+        assertFalse(second.hasLastModified());
+        assertNull(second.getName());
+        assertTrue(second.getDeleted());
+    }
+
+    @Test
+    public void readsNewIds() throws IOException {
+        String response = "{\"results\":[{\"action_id\":3,\"new_id\":\"g3\"},"
+                + "{\"action_id\":4},{\"new_id\":\"g5\",\"action_id\":null},"
+                + "{\"action_id\":6,\"new_id\":null}]}";
+        ArrayList<GTaskJsonCodec.NewId> newIds =
+                GTaskJsonCodec.readNewIds(new StringReader(response));
+        assertEquals(2, newIds.size());
+        assertEquals(3, newIds.get(0).actionId);
+        assertEquals("g3", newIds.get(0).gid);
+        assertEquals(-1, newIds.get(1).actionId);
+        assertEquals("g5", newIds.get(1).gid);
+
+        try {
+            GTaskJsonCodec.readNewIds(new StringReader("{\"tasks\":[]}"));
+            fail("response without results should fail");
+        } catch (MalformedJsonException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void keepsNewIdsDecodedBeforeTheResponseBreaks() {
+        String response = "{\"results\":[{\"action_id\":3,\"new_id\":\"g3\"},"
+                + "{\"action_id\":4,\"new_id\":\"g4\"},{\"action_id\":5,\"new";
+        ArrayList<GTaskJsonCodec.NewId> newIds = new ArrayList<GTaskJsonCodec.NewId>();
+        try {
+            GTaskJsonCodec.readNewIds(new StringReader(response), newIds);
+            fail("truncated response should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        // 只保留完整解码的结果
+        assertEquals(2, newIds.size());
+        assertEquals(3, newIds.get(0).actionId);
+        assertEquals("g3", newIds.get(0).gid);
+        assertEquals(4, newIds.get(1).actionId);
+        assertEquals("g4", newIds.get(1).gid);
+    }
+
+    @Test
+    public void encodesRequestLikeUrlEncoder() throws Exception {
+        JSONObject entity = new JSONObject();
+        entity.put("name", "a b+c&d=e/f?g%h 中文 😀 \"q\" \\ \n");
+        entity.put("notes", JSONObject.NULL);
+        entity.put("deleted", false);
+        JSONObject action = new JSONObject();
+        action.put("action_type", "update");
+        action.put("action_id", 12);
+        action.put("id", "gid.1-2_3*");
+        action.put("entity_delta", entity);
+        JSONArray actionList = new JSONArray();
+        actionList.put(action);
+        actionList.put(new JSONArray().put(1.5).put(-2));
+
+        byte[] body = GTaskJsonCodec.encodeRequest(actionList, 99);
+        String encoded = new String(body, "US-ASCII");
+        assertTrue(encoded.startsWith("r="));
+
+        JSONObject expected = new JSONObject();
+        expected.put("action_list", actionList);
+        expected.put("client_version", 99);
+        JSONObject decoded = new JSONObject(URLDecoder.decode(encoded.substring(2), "UTF-8"));
+        assertEquals(expected.toString(), decoded.toString());
+        // 与URLEncoder一样只保留字母、数字和.-*_，空格编码为+
+        assertTrue(encoded.substring(2).matches("[A-Za-z0-9.*_+%-]*"));
+        assertTrue(encoded.contains(URLEncoder.encode("g%h 中文 😀", "UTF-8")));
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() throws Exception {
+        JSONObject action = new JSONObject();
+        action.put("name", "x\ud83dy\ude00");
+        byte[] body = GTaskJsonCodec.encodeRequest(new JSONArray().put(action), 1);
+        JSONObject decoded = new JSONObject(URLDecoder.decode(
+                new String(body, "US-ASCII").substring(2), "UTF-8"));
+        assertEquals("x?y?", decoded.getJSONArray("action_list").getJSONObject(0)
+                .getString("name"));
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.app.Activity;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.gtask.data.MetaBundle;
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 用本地的便签数据库和进程内的替身服务器运行完整的同步，检查同步计划中各类动作的数量和
+ * 执行后两边的数据
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GTaskManagerSyncTest {
+    private static final String ACCOUNT_NAME = "tester@gmail.com";
+
+    private static final String AUTH_TOKEN = "token-1";
+
+    private Context mContext;
+
+    private Activity mActivity;
+
+    private FakeGTaskServer mServer;
+
+    private GTaskManager mManager;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        // 数据库帮助类是单例，不清掉的话会沿用上一个测试打开的数据库
+        Field helper = Class.forName("net.micode.notes.data.NotesDatabaseHelper")
+                .getDeclaredField("mInstance");
+        helper.setAccessible(true);
+        helper.set(null, null);
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        Account account = new Account(ACCOUNT_NAME, "com.google");
+        AccountManager accountManager = AccountManager.get(mContext);
+        shadowOf(accountManager).addAccount(account);
+        accountManager.setAuthToken(account, "goanna_mobile", AUTH_TOKEN);
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit()
+                .putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT_NAME)
+                .commit();
+        GTaskClient.clearSession(mContext);
+        mActivity = Robolectric.buildActivity(Activity.class).setup().get();
+
+        mServer = new FakeGTaskServer(AUTH_TOKEN, 1);
+        GTaskClient.getInstance().setTransport(new LocalTransport(mServer));
+        mManager = GTaskManager.getInstance();
+        mManager.setActivityContext(mActivity);
+        mManager.setConcurrentFetch(true);
+        mManager.setDryRun(false);
+    }
+
+    @After
+    public void tearDown() {
+        GTaskClient.getInstance().resetUpdateArray();
+        GTaskClient.getInstance().setTransport(null);
+        mManager.setDryRun(false);
+        mManager.setActivityContext(null);
+    }
+
+    @Test
+    public void dryRunPlansWithoutChangingAnything() {
+        long folder = insertFolder("Work");
+        insertNote(folder, "first");
+        insertNote(folder, "second");
+        insertNote(Notes.ID_ROOT_FOLDER, "third");
+
+        mManager.setDryRun(true);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        SyncPlan plan = mManager.getLastPlan();
+        assertNotNull(plan);
+        // Work、默认文件夹和通话记录文件夹，以及三个便签
+        assertEquals(6, plan.getCount(Node.SYNC_ACTION_ADD_REMOTE));
+        assertEquals(6, plan.size());
+        assertEquals(0, mServer.getListCount());
+        assertEquals(0, mServer.getPostCount());
+        assertNull(getGid(folder));
+    }
+
+    @Test
+    public void firstSyncUploadsFoldersAndNotes() {
+        long folder = insertFolder("Work");
+        long first = insertNote(folder, "first");
+        long second = insertNote(folder, "second");
+        long third = insertNote(Notes.ID_ROOT_FOLDER, "third");
+
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(6, mManager.getLastPlan().getCount(Node.SYNC_ACTION_ADD_REMOTE));
+
+        FakeGTaskServer.FakeNode work = mServer.getListByName("[MIUI_Notes]Work");
+        assertNotNull(work);
+        assertEquals(getGid(folder), work.getGid());
+        ArrayList<FakeGTaskServer.FakeNode> tasks = mServer.getTasks(work.getGid());
+        assertEquals(2, tasks.size());
+        assertEquals(getGid(first), findTask(tasks, "first").getGid());
+        assertEquals(getGid(second), findTask(tasks, "second").getGid());
+
+        FakeGTaskServer.FakeNode root = mServer.getListByName("[MIUI_Notes]Default");
+        assertNotNull(root);
+        assertEquals(getGid(third), findTask(mServer.getTasks(root.getGid()), "third").getGid());
+        assertNotNull(mServer.getListByName("[MIUI_Notes]Call_Note"));
+        assertNotNull(mServer.getListByName("[MIUI_Notes]METADATA"));
+
+        // 没有变化时不再有同步动作，完整同步和增量同步都一样
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mManager.getLastPlan().size());
+        mManager.requestFullSync();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mManager.getLastPlan().size());
+    }
+
+    @Test
+    public void remoteChangesArePulled() {
+        long folder = insertFolder("Work");
+        long first = insertNote(folder, "first");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        String workGid = getGid(folder);
+        mServer.updateTask(getGid(first), "first edited on the web");
+        mServer.addTask(workGid, "added on the web");
+
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        SyncPlan plan = mManager.getLastPlan();
+        // 列表中的任务有变化时列表本身的修改时间也会变，所以文件夹也要更新
+        assertEquals(2, plan.getCount(Node.SYNC_ACTION_UPDATE_LOCAL));
+        assertEquals(1, plan.getCount(Node.SYNC_ACTION_ADD_LOCAL));
+        assertEquals(3, plan.size());
+
+        assertEquals("first edited on the web", getContent(first));
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                new String[] { NoteColumns.ID }, NoteColumns.PARENT_ID + "=? AND "
+                        + NoteColumns.ID + "<>?",
+                new String[] { String.valueOf(folder), String.valueOf(first) }, null);
+        try {
+            assertEquals(1, c.getCount());
+            c.moveToFirst();
+            assertEquals("added on the web", getContent(c.getLong(0)));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void localChangesArePushedInLanes() {
+        pushLocalChanges();
+    }
+
+    @Test
+    public void localChangesArePushedSequentially() {
+        mManager.setConcurrentFetch(false);
+        pushLocalChanges();
+    }
+
+    private void pushLocalChanges() {
+        long work = insertFolder("Work");
+        long home = insertFolder("Home");
+        long edited = insertNote(work, "edited");
+        long moved = insertNote(work, "moved");
+        long deleted = insertNote(home, "deleted");
+        for (int i = 0; i < 12; i++) {
+            insertNote(i % 2 == 0 ? work : home, "note " + i);
+        }
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        // 远端删除后本地废纸篓中的便签也会被删掉，先记下它的gid
+        String deletedGid = getGid(deleted);
+
+        setContent(edited, "edited locally");
+        updateNote(moved, NoteColumns.PARENT_ID, home);
+        updateNote(deleted, NoteColumns.PARENT_ID, Notes.ID_TRASH_FOLER);
+        long added = insertNote(home, "added locally");
+
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        SyncPlan plan = mManager.getLastPlan();
+        assertEquals(2, plan.getCount(Node.SYNC_ACTION_UPDATE_REMOTE));
+        assertEquals(1, plan.getCount(Node.SYNC_ACTION_DEL_REMOTE));
+        assertEquals(1, plan.getCount(Node.SYNC_ACTION_ADD_REMOTE));
+        assertEquals(4, plan.size());
+
+        assertEquals("edited locally", mServer.getTask(getGid(edited)).getName());
+        assertTrue(mServer.getTask(deletedGid).isDeleted());
+        ArrayList<FakeGTaskServer.FakeNode> homeTasks = mServer.getTasks(getGid(home));
+        assertNotNull(findTask(homeTasks, "moved"));
+        assertNotNull(findTask(homeTasks, "added locally"));
+        assertEquals(getGid(added), findTask(homeTasks, "added locally").getGid());
+        assertNull(findTask(mServer.getTasks(getGid(work)), "moved"));
+        assertEquals(1 + 6, mServer.getTasks(getGid(work)).size());
+        assertEquals(2 + 6, homeTasks.size());
+
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mManager.getLastPlan().size());
+    }
+
+    @Test
+    public void finishedSyncCompactsTheChangeJournal() {
+        long folder = insertFolder("Work");
+        insertNote(folder, "first");
+        long before = getChangeSeq().getLong(Notes.EXTRA_CHANGE_SEQ);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        // 同步前的变化都已处理并删除，剩下的是同步自己写入的gid
+        assertEquals(before, NotesPreferenceActivity.getLastSyncChangeSeq(mContext));
+        assertEquals(before + 1, getChangeSeq().getLong(Notes.EXTRA_OLDEST_CHANGE_SEQ));
+    }
+
+    @Test
+    public void editAfterUnchangedSyncIsPushed() {
+        long folder = insertFolder("Work");
+        long note = insertNote(folder, "first");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        // 两边都没有变化的同步之后，变更日志记下的位置就是最新的，下次同步不用查询本地修改
+        assertEquals(getChangeSeq().getLong(Notes.EXTRA_CHANGE_SEQ),
+                NotesPreferenceActivity.getLastSyncChangeSeq(mContext));
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mManager.getLastPlan().size());
+
+        setContent(note, "edited locally");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(1, mManager.getLastPlan().getCount(Node.SYNC_ACTION_UPDATE_REMOTE));
+        assertEquals("edited locally", mServer.getTask(getGid(note)).getName());
+    }
+
+    @Test
+    public void legacyMetasAreMigratedIntoBundles() throws Exception {
+        long folder = insertFolder("Work");
+        long kept = insertNote(folder, "kept");
+        long other = insertNote(folder, "other");
+        long removed = insertNote(folder, "removed on the web");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        String metaListGid = mServer.getListByName("[MIUI_Notes]METADATA").getGid();
+        JSONObject bundled = readBundledMetas(metaListGid);
+        assertEquals(3, bundled.length());
+
+        // 换成之前版本写入的格式：每个便签一个单独的元数据
+        for (FakeGTaskServer.FakeNode task : mServer.getTasks(metaListGid)) {
+            mServer.deleteTask(task.getGid());
+        }
+        Iterator<String> gids = bundled.keys();
+        while (gids.hasNext()) {
+            String gid = gids.next();
+            mServer.addTask(metaListGid, GTaskStringUtils.META_NOTE_NAME,
+                    bundled.getJSONObject(gid).toString());
+        }
+        String removedGid = getGid(removed);
+        mServer.deleteTask(removedGid);
+
+        mManager.requestFullSync();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(1, mManager.getLastPlan().getCount(Node.SYNC_ACTION_DEL_LOCAL));
+
+        // 还存在的便签的元数据都放入了包中，远端删除的便签的元数据不再保留
+        JSONObject migrated = readBundledMetas(metaListGid);
+        assertEquals(2, migrated.length());
+        assertEquals(bundled.getJSONObject(getGid(kept)).toString(),
+                migrated.getJSONObject(getGid(kept)).toString());
+        assertEquals(bundled.getJSONObject(getGid(other)).toString(),
+                migrated.getJSONObject(getGid(other)).toString());
+        for (FakeGTaskServer.FakeNode task : mServer.getTasks(metaListGid)) {
+            assertEquals(GTaskStringUtils.META_BUNDLE_NAME, task.getName());
+        }
+
+        mManager.requestFullSync();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mManager.getLastPlan().size());
+        assertEquals(2, readBundledMetas(metaListGid).length());
+    }
+
+    @Test
+    public void newerLegacyMetaWinsOverTheBundle() throws Exception {
+        long folder = insertFolder("Work");
+        long note = insertNote(folder, "colored");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        String gid = getGid(note);
+        String metaListGid = mServer.getListByName("[MIUI_Notes]METADATA").getGid();
+
+        // 之前版本的客户端修改了背景色，并在包之后写入了单独的元数据
+        JSONObject meta = readBundledMetas(metaListGid).getJSONObject(gid);
+        JSONObject noteMeta = meta.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+        int color = (noteMeta.getInt(NoteColumns.BG_COLOR_ID) + 1) % 5;
+        noteMeta.put(NoteColumns.BG_COLOR_ID, color);
+        mServer.addTask(metaListGid, GTaskStringUtils.META_NOTE_NAME, meta.toString());
+        mServer.updateTask(gid, "colored elsewhere");
+
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        // 便签和它所在的文件夹
+        assertEquals(2, mManager.getLastPlan().getCount(Node.SYNC_ACTION_UPDATE_LOCAL));
+        assertEquals("colored elsewhere", getContent(note));
+        assertEquals(color, getNoteLong(note, NoteColumns.BG_COLOR_ID));
+
+        // 完整同步把单独的元数据迁移回包中
+        mManager.requestFullSync();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        ArrayList<FakeGTaskServer.FakeNode> metas = mServer.getTasks(metaListGid);
+        assertEquals(1, metas.size());
+        assertEquals(GTaskStringUtils.META_BUNDLE_NAME, metas.get(0).getName());
+        assertEquals(color, readBundledMetas(metaListGid).getJSONObject(gid)
+                .getJSONObject(GTaskStringUtils.META_HEAD_NOTE).getInt(NoteColumns.BG_COLOR_ID));
+    }
+
+    @Test
+    public void largeNotesKeepTheirOwnMeta() throws Exception {
+        long folder = insertFolder("Work");
+        StringBuilder content = new StringBuilder();
+        while (content.length() <= MetaBundle.MAX_LENGTH) {
+            content.append("a long note ");
+        }
+        long large = insertNote(folder, content.toString());
+        long small = insertNote(folder, "small");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        String metaListGid = mServer.getListByName("[MIUI_Notes]METADATA").getGid();
+        JSONObject bundled = readBundledMetas(metaListGid);
+        assertEquals(1, bundled.length());
+        assertTrue(bundled.has(getGid(small)));
+        int single = 0;
+        for (FakeGTaskServer.FakeNode task : mServer.getTasks(metaListGid)) {
+            if (GTaskStringUtils.META_NOTE_NAME.equals(task.getName())) {
+                assertEquals(getGid(large), new JSONObject(task.getNotes())
+                        .getString(GTaskStringUtils.META_HEAD_GTASK_ID));
+                single++;
+            }
+        }
+        assertEquals(1, single);
+
+        // 完整同步时放不进包的元数据保持原样
+        mManager.requestFullSync();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mManager.getLastPlan().size());
+        assertEquals(2, mServer.getTasks(metaListGid).size());
+    }
+
+    private Bundle getChangeSeq() {
+        return mContext.getContentResolver().call(Notes.CONTENT_NOTE_URI,
+                Notes.METHOD_GET_CHANGE_SEQ, null, null);
+    }
+
+    private int sync() {
+        int result = mManager.sync(mContext, new GTaskASyncTask(mContext, null));
+        shadowOf(Looper.getMainLooper()).idle();
+        return result;
+    }
+
+    private static FakeGTaskServer.FakeNode findTask(ArrayList<FakeGTaskServer.FakeNode> tasks,
+            String name) {
+        for (FakeGTaskServer.FakeNode task : tasks) {
+            if (task.getName().equals(name)) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private String getGid(long noteId) {
+        Cursor c = mContext.getContentResolver().query(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),
+                new String[] { NoteColumns.GTASK_ID }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            String gid = c.getString(0);
+            return TextUtils.isEmpty(gid) ? null : gid;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 合并元数据列表中所有元数据包的内容
+     * @return 便签的gid到元数据的映射
+     */
+    private JSONObject readBundledMetas(String metaListGid) throws Exception {
+        JSONObject metas = new JSONObject();
+        for (FakeGTaskServer.FakeNode task : mServer.getTasks(metaListGid)) {
+            if (!GTaskStringUtils.META_BUNDLE_NAME.equals(task.getName())) {
+                continue;
+            }
+            JSONObject bundle = new JSONObject(task.getNotes())
+                    .getJSONObject(GTaskStringUtils.META_HEAD_BUNDLE);
+            Iterator<String> gids = bundle.keys();
+            while (gids.hasNext()) {
+                String gid = gids.next();
+                assertFalse(metas.has(gid));
+                metas.put(gid, bundle.getJSONObject(gid));
+            }
+        }
+        return metas;
+    }
+
+    private long getNoteLong(long noteId, String column) {
+        Cursor c = mContext.getContentResolver().query(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),
+                new String[] { column }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private String getContent(long noteId) {
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
+                new String[] { DataColumns.CONTENT }, DataColumns.NOTE_ID + "=? AND "
+                        + DataColumns.MIME_TYPE + "=?",
+                new String[] { String.valueOf(noteId), TextNote.CONTENT_ITEM_TYPE }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private void setContent(long noteId, String content) {
+        ContentValues data = new ContentValues();
+        data.put(DataColumns.CONTENT, content);
+        mContext.getContentResolver().update(Notes.CONTENT_DATA_URI, data,
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?",
+                new String[] { String.valueOf(noteId), TextNote.CONTENT_ITEM_TYPE });
+        updateNote(noteId, NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+    }
+
+    private void updateNote(long noteId, String column, long value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        mContext.getContentResolver().update(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values, null, null);
+    }
+
+    private long insertFolder(String name) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.SNIPPET, name);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        return ContentUris.parseId(mContext.getContentResolver().insert(
+                Notes.CONTENT_NOTE_URI, values));
+    }
+
+    private long insertNote(long folderId, String content) {
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.PARENT_ID, folderId);
+        values.put(NoteColumns.CREATED_DATE, now);
+        values.put(NoteColumns.MODIFIED_DATE, now);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        long noteId = ContentUris.parseId(mContext.getContentResolver().insert(
+                Notes.CONTENT_NOTE_URI, values));
+
+        ContentValues data = new ContentValues();
+        data.put(DataColumns.NOTE_ID, noteId);
+        data.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
+        data.put(DataColumns.CONTENT, content);
+        assertNotNull(mContext.getContentResolver().insert(Notes.CONTENT_DATA_URI, data));
+        return noteId;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.util.MalformedJsonException;
+
+import net.micode.notes.gtask.exception.HttpStatusException;
+import net.micode.notes.gtask.exception.SessionRejectedException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class RetryPolicyTest {
+    @Test
+    public void classifiesTransientErrors() {
+        assertTrue(RetryPolicy.isTransient(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isTransient(new SocketException("Connection reset")));
+        assertTrue(RetryPolicy.isTransient(new ConnectException()));
+        assertTrue(RetryPolicy.isTransient(new UnknownHostException()));
+        assertTrue(RetryPolicy.isTransient(new HttpStatusException(500)));
+        assertTrue(RetryPolicy.isTransient(new HttpStatusException(503)));
+        assertTrue(RetryPolicy.isTransient(new HttpStatusException(429)));
+        assertTrue(RetryPolicy.isTransient(new HttpStatusException(408)));
+
+        // 重试也不会改变结果的错误
+        assertFalse(RetryPolicy.isTransient(new HttpStatusException(400)));
+        assertFalse(RetryPolicy.isTransient(new HttpStatusException(404)));
+        assertFalse(RetryPolicy.isTransient(new SessionRejectedException("rejected")));
+        assertFalse(RetryPolicy.isTransient(new MalformedJsonException("bad json")));
+        assertFalse(RetryPolicy.isTransient(new SSLHandshakeException("bad certificate")));
+        assertFalse(RetryPolicy.isTransient(new MalformedURLException()));
+        assertFalse(RetryPolicy.isTransient(new ProtocolException()));
+    }
+
+    @Test
+    public void classifiesErrorsThatMayHaveBeenApplied() {
+        // 连接没有建立或者服务器拒绝处理
+        assertFalse(RetryPolicy.mayHaveBeenApplied(new ConnectException()));
+        assertFalse(RetryPolicy.mayHaveBeenApplied(new UnknownHostException()));
+        assertFalse(RetryPolicy.mayHaveBeenApplied(new NoRouteToHostException()));
+        assertFalse(RetryPolicy.mayHaveBeenApplied(new HttpStatusException(503)));
+        assertFalse(RetryPolicy.mayHaveBeenApplied(new HttpStatusException(429)));
+
+        // 请求发出后响应丢失
+        assertTrue(RetryPolicy.mayHaveBeenApplied(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.mayHaveBeenApplied(new SocketException("Connection reset")));
+        assertTrue(RetryPolicy.mayHaveBeenApplied(new IOException()));
+        assertTrue(RetryPolicy.mayHaveBeenApplied(new HttpStatusException(500)));
+        assertTrue(RetryPolicy.mayHaveBeenApplied(new HttpStatusException(502)));
+    }
+
+    @Test
+    public void delaysStayUnderTheExponentialCeiling() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, Long.MAX_VALUE);
+        long[] ceilings = { 100, 200, 400, 800, 1000, 1000, 1000 };
+        for (int attempt = 1; attempt <= ceilings.length; attempt++) {
+            long max = 0;
+            for (int i = 0; i < 2000; i++) {
+                long delay = policy.nextDelay(attempt);
+                assertTrue(delay >= 0 && delay < ceilings[attempt - 1]);
+                max = Math.max(max, delay);
+            }
+            // 抖动覆盖整个区间
+            assertTrue(max >= ceilings[attempt - 1] * 9 / 10);
+        }
+        // 很大的尝试次数不会因为移位溢出
+        long delay = policy.nextDelay(100);
+        assertTrue(delay >= 0 && delay < 1000);
+    }
+
+    @Test
+    public void stopsAfterTheLastAttempt() {
+        RetryPolicy policy = new RetryPolicy(3, 0, 0, 1000);
+        policy.startSync();
+        IOException e = new SocketTimeoutException();
+        assertTrue(policy.retry(e, 1));
+        assertTrue(policy.retry(e, 2));
+        assertFalse(policy.retry(e, 3));
+        // 不是暂时性的错误不重试
+        assertFalse(policy.retry(new HttpStatusException(404), 1));
+    }
+
+    @Test
+    public void stopsWhenTheSyncBudgetIsUsedUp() {
+        RetryPolicy policy = fixedDelay(Integer.MAX_VALUE, 10, 25);
+        policy.startSync();
+        IOException e = new SocketTimeoutException();
+        // 每次等10毫秒，预算只够两次
+        assertTrue(policy.retry(e, 1));
+        assertTrue(policy.retry(e, 2));
+        assertFalse(policy.retry(e, 3));
+
+        // 新的同步重新计算预算
+        policy.startSync();
+        assertTrue(policy.retry(e, 1));
+    }
+
+    @Test
+    public void cancelStopsRetrying() {
+        RetryPolicy policy = fixedDelay(4, 0, 1000);
+        policy.startSync();
+        IOException e = new SocketTimeoutException();
+        assertTrue(policy.retry(e, 1));
+        policy.cancel();
+        assertFalse(policy.retry(e, 1));
+        policy.startSync();
+        assertTrue(policy.retry(e, 1));
+    }
+
+    @Test
+    public void cancelWakesUpAWaitingRetry() throws Exception {
+        final RetryPolicy policy = fixedDelay(4, 60000, Long.MAX_VALUE);
+        policy.startSync();
+        final boolean[] result = new boolean[] { true };
+        Thread thread = new Thread() {
+            public void run() {
+                result[0] = policy.retry(new SocketTimeoutException(), 1);
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        policy.cancel();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertFalse(result[0]);
+    }
+
+    /**
+     * 每次重试前等待固定时间的重试策略
+     */
+    private static RetryPolicy fixedDelay(int maxAttempts, final long delay, long syncBudget) {
+        return new RetryPolicy(maxAttempts, delay, delay, syncBudget) {
+            @Override
+            long nextDelay(int attempt) {
+                return delay;
+            }
+        };
+    }
+}
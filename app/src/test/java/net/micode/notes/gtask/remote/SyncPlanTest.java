@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SyncPlanTest {
+    @Test
+    public void actionsKeepTheirStageAndOrder() {
+        SyncPlan plan = new SyncPlan();
+        SyncPlan.Action folder = action(Node.SYNC_ACTION_ADD_REMOTE, 1);
+        SyncPlan.Action first = action(Node.SYNC_ACTION_UPDATE_REMOTE, 2);
+        SyncPlan.Action second = action(Node.SYNC_ACTION_ADD_REMOTE, 3);
+        SyncPlan.Action trash = action(Node.SYNC_ACTION_DEL_REMOTE, 4);
+        plan.add(SyncPlan.STAGE_NOTE, first);
+        plan.add(SyncPlan.STAGE_FOLDER, folder);
+        plan.add(SyncPlan.STAGE_NOTE, second);
+        plan.add(SyncPlan.STAGE_TRASH, trash);
+
+        assertEquals(1, plan.getStage(SyncPlan.STAGE_TRASH).size());
+        assertSame(trash, plan.getStage(SyncPlan.STAGE_TRASH).get(0));
+        assertEquals(1, plan.getStage(SyncPlan.STAGE_FOLDER).size());
+        assertSame(folder, plan.getStage(SyncPlan.STAGE_FOLDER).get(0));
+        // 同一阶段按加入的顺序执行
+        assertEquals(2, plan.getStage(SyncPlan.STAGE_NOTE).size());
+        assertSame(first, plan.getStage(SyncPlan.STAGE_NOTE).get(0));
+        assertSame(second, plan.getStage(SyncPlan.STAGE_NOTE).get(1));
+        assertEquals(0, plan.getStage(SyncPlan.STAGE_ADD_LOCAL).size());
+        assertEquals(4, plan.size());
+    }
+
+    @Test
+    public void countsActionsByType() {
+        SyncPlan plan = new SyncPlan();
+        assertEquals(0, plan.size());
+        plan.add(SyncPlan.STAGE_NOTE, action(Node.SYNC_ACTION_ADD_REMOTE, 1));
+        plan.add(SyncPlan.STAGE_NOTE, action(Node.SYNC_ACTION_ADD_REMOTE, 2));
+        plan.add(SyncPlan.STAGE_ADD_LOCAL, action(Node.SYNC_ACTION_ADD_LOCAL, 0));
+        plan.add(SyncPlan.STAGE_NOTE, action(Node.SYNC_ACTION_UPDATE_CONFLICT, 3));
+
+        assertEquals(2, plan.getCount(Node.SYNC_ACTION_ADD_REMOTE));
+        assertEquals(1, plan.getCount(Node.SYNC_ACTION_ADD_LOCAL));
+        assertEquals(1, plan.getCount(Node.SYNC_ACTION_UPDATE_CONFLICT));
+        assertEquals(0, plan.getCount(Node.SYNC_ACTION_DEL_LOCAL));
+        // 不认识的类型数量为0
+        assertEquals(0, plan.getCount(-1));
+        assertEquals(0, plan.getCount(100));
+        assertEquals("SyncPlan{add_remote=2, add_local=1, del_remote=0, del_local=0, "
+                + "update_remote=0, update_local=0, update_conflict=1}", plan.toString());
+    }
+
+    @Test
+    public void rejectsUnknownActionTypes() {
+        SyncPlan plan = new SyncPlan();
+        for (int type : new int[] { Node.SYNC_ACTION_NONE, Node.SYNC_ACTION_ERROR, 100 }) {
+            try {
+                plan.add(SyncPlan.STAGE_NOTE, action(type, 1));
+                fail("type " + type + " should be rejected");
+            } catch (ActionFailureException e) {
+                // 预期的异常
+            }
+        }
+        assertEquals(0, plan.size());
+    }
+
+    private static SyncPlan.Action action(int type, long noteId) {
+        return new SyncPlan.Action(type, null, noteId, noteId == 0 ? null : "gid-" + noteId,
+                0, null);
+    }
+}
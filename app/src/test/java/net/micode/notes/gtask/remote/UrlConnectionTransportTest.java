@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.micode.notes.gtask.exception.HttpStatusException;
+import net.micode.notes.gtask.exception.SessionRejectedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 在本机端口上启动一个小的http服务器，检查UrlConnectionTransport的解压、cookie和错误状态的处理
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UrlConnectionTransportTest {
+    private static final String PAGE = "<html><script>_setup({\"v\":7,\"t\":{\"lists\":[]}})"
+            + "</script></html>";
+
+    private HttpServer mHttpServer;
+
+    private String mBaseUrl;
+
+    private UrlConnectionTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mHttpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mHttpServer.createContext("/gzip", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+                gzip.write(PAGE.getBytes("UTF-8"));
+                gzip.close();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                respond(exchange, 200, bytes.toByteArray());
+            }
+        });
+        mHttpServer.createContext("/deflate", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                // http的deflate是带zlib头的格式
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DeflaterOutputStream deflate = new DeflaterOutputStream(bytes);
+                deflate.write(PAGE.getBytes("UTF-8"));
+                deflate.close();
+                exchange.getResponseHeaders().add("Content-Encoding", "deflate");
+                respond(exchange, 200, bytes.toByteArray());
+            }
+        });
+        mHttpServer.createContext("/login", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Set-Cookie",
+                        "GTL=abc; Path=/; Expires=Fri, 01 Jan 2100 00:00:00 GMT");
+                exchange.getResponseHeaders().add("Location", "/page");
+                respond(exchange, 302, new byte[0]);
+            }
+        });
+        mHttpServer.createContext("/page", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+                if (cookie == null || !cookie.contains("GTL=abc")) {
+                    respond(exchange, 401, new byte[0]);
+                    return;
+                }
+                respond(exchange, 200, PAGE.getBytes("UTF-8"));
+            }
+        });
+        mHttpServer.createContext("/echo", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, readAll(exchange.getRequestBody()));
+            }
+        });
+        mHttpServer.createContext("/loop", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Location", "/loop");
+                respond(exchange, 302, new byte[0]);
+            }
+        });
+        mHttpServer.createContext("/forbidden", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 403, new byte[0]);
+            }
+        });
+        mHttpServer.createContext("/error", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 503, new byte[0]);
+            }
+        });
+        mHttpServer.start();
+        mBaseUrl = "http://127.0.0.1:" + mHttpServer.getAddress().getPort();
+        mTransport = new UrlConnectionTransport(2000, 2000, false);
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.close();
+        mHttpServer.stop(0);
+    }
+
+    @Test
+    public void decodesGzipResponse() throws IOException {
+        assertEquals(7, GTaskJsonCodec.readClientVersion(mTransport.get(mBaseUrl + "/gzip")));
+    }
+
+    @Test
+    public void decodesZlibDeflateResponse() throws IOException {
+        assertEquals(PAGE, readAll(mTransport.get(mBaseUrl + "/deflate")));
+    }
+
+    @Test
+    public void followsRedirectAndKeepsCookies() throws IOException {
+        assertFalse(mTransport.hasCookie("GTL"));
+        assertEquals(PAGE, readAll(mTransport.get(mBaseUrl + "/login")));
+        assertTrue(mTransport.hasCookie("GTL"));
+        assertTrue(mTransport.getCookieExpiry() < Long.MAX_VALUE);
+
+        // 新的会话丢弃之前的cookie
+        mTransport.open();
+        assertFalse(mTransport.hasCookie("GTL"));
+        assertNull(mTransport.exportCookies());
+        try {
+            mTransport.get(mBaseUrl + "/page");
+            fail("request without the cookie should be rejected");
+        } catch (SessionRejectedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void postsBody() throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
+        assertEquals("r=%7B%7D", readAll(mTransport.post(mBaseUrl + "/echo", headers,
+                "r=%7B%7D".getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void stopsFollowingRedirectLoop() throws IOException {
+        try {
+            mTransport.get(mBaseUrl + "/loop");
+            fail("redirect loop should fail");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void redirectOfPostRejectsSession() throws IOException {
+        try {
+            mTransport.post(mBaseUrl + "/loop", null, new byte[0]);
+            fail("redirected post should be rejected");
+        } catch (SessionRejectedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void mapsErrorStatuses() throws IOException {
+        try {
+            mTransport.get(mBaseUrl + "/forbidden");
+            fail("403 should reject the session");
+        } catch (SessionRejectedException e) {
+            // expected
+        }
+        try {
+            mTransport.get(mBaseUrl + "/error");
+            fail("503 should fail");
+        } catch (HttpStatusException e) {
+            assertEquals(503, e.getStatus());
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body)
+            throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    private static String readAll(Reader in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            sb.append(buffer, 0, n);
+        }
+        in.close();
+        return sb.toString();
+    }
+}
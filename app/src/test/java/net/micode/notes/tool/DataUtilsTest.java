@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.tool;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesProvider;
+import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过provider的call方法批量删除和移动便签，id数超过一条语句的上限时分成多条语句
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DataUtilsTest {
+    /**
+     * 超过NotesProvider中每条语句的id上限500
+     */
+    private static final int NOTE_COUNT = 1200;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        // 数据库帮助类是单例，不清掉的话会沿用上一个测试打开的数据库
+        Field helper = Class.forName("net.micode.notes.data.NotesDatabaseHelper")
+                .getDeclaredField("mInstance");
+        helper.setAccessible(true);
+        helper.set(null, null);
+        context.deleteDatabase("note.db");
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        mResolver = context.getContentResolver();
+    }
+
+    @Test
+    public void deleteSpansSeveralStatements() {
+        long folder = insertFolder("Work");
+        HashSet<Long> ids = insertNotes(folder, NOTE_COUNT);
+        long kept = insertNote(folder);
+        // 系统文件夹不能被删除
+        ids.add((long) Notes.ID_CALL_RECORD_FOLDER);
+
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, ids));
+        assertEquals(1, countNotes(NoteColumns.PARENT_ID + "=" + folder));
+        assertTrue(exists(kept));
+        assertTrue(exists(Notes.ID_CALL_RECORD_FOLDER));
+    }
+
+    @Test
+    public void deleteBySyncIdSet() {
+        HashSet<Long> notes = insertNotes(Notes.ID_ROOT_FOLDER, NOTE_COUNT);
+        LongHashSet ids = new LongHashSet();
+        for (long id : notes) {
+            ids.add(id);
+        }
+
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, ids));
+        assertEquals(0, countNotes(NoteColumns.TYPE + "=" + Notes.TYPE_NOTE));
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, new LongHashSet()));
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, (LongHashSet) null));
+    }
+
+    @Test
+    public void deleteNothingFails() {
+        HashSet<Long> ids = new HashSet<Long>();
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, ids));
+        ids.add(12345L);
+        assertFalse(DataUtils.batchDeleteNotes(mResolver, ids));
+    }
+
+    @Test
+    public void moveRecordsTheOriginFolder() {
+        long work = insertFolder("Work");
+        long home = insertFolder("Home");
+        HashSet<Long> ids = insertNotes(work, NOTE_COUNT);
+        long kept = insertNote(work);
+        clearLocalModified();
+
+        assertTrue(DataUtils.batchMoveToFolder(mResolver, ids, home));
+        assertEquals(NOTE_COUNT, countNotes(NoteColumns.PARENT_ID + "=" + home + " AND "
+                + NoteColumns.ORIGIN_PARENT_ID + "=" + work + " AND "
+                + NoteColumns.LOCAL_MODIFIED + "=1 AND " + NoteColumns.VERSION + "=1"));
+        assertEquals(1, countNotes(NoteColumns.PARENT_ID + "=" + work));
+        assertEquals(0, countNotes(NoteColumns.ID + "=" + kept + " AND "
+                + NoteColumns.LOCAL_MODIFIED + "=1"));
+    }
+
+    @Test
+    public void deleteCollectsTheWidgetsOfFolderNotes() {
+        long folder = insertFolder("Work");
+        long inFolder = insertNote(folder);
+        long single = insertNote(Notes.ID_ROOT_FOLDER);
+        insertNote(Notes.ID_ROOT_FOLDER);
+        setWidget(inFolder, 7, Notes.TYPE_WIDGET_2X);
+        setWidget(single, 8, Notes.TYPE_WIDGET_4X);
+
+        HashSet<Long> ids = new HashSet<Long>();
+        ids.add(folder);
+        ids.add(single);
+        HashSet<AppWidgetAttribute> widgets = new HashSet<AppWidgetAttribute>();
+        assertTrue(DataUtils.batchDeleteNotes(mResolver, ids, widgets));
+
+        assertEquals(2, widgets.size());
+        assertTrue(hasWidget(widgets, 7, Notes.TYPE_WIDGET_2X));
+        assertTrue(hasWidget(widgets, 8, Notes.TYPE_WIDGET_4X));
+        assertFalse(exists(inFolder));
+    }
+
+    @Test
+    public void moveCollectsTheWidgetsOfMovedNotes() {
+        long work = insertFolder("Work");
+        long home = insertFolder("Home");
+        HashSet<Long> ids = insertNotes(work, NOTE_COUNT);
+        long withWidget = insertNote(work);
+        insertNote(work);
+        setWidget(withWidget, 9, Notes.TYPE_WIDGET_2X);
+        ids.add(withWidget);
+
+        HashSet<AppWidgetAttribute> widgets = new HashSet<AppWidgetAttribute>();
+        assertTrue(DataUtils.batchMoveToFolder(mResolver, ids, home, widgets));
+        assertEquals(1, widgets.size());
+        assertTrue(hasWidget(widgets, 9, Notes.TYPE_WIDGET_2X));
+    }
+
+    private static boolean hasWidget(HashSet<AppWidgetAttribute> widgets, int widgetId,
+            int widgetType) {
+        for (AppWidgetAttribute widget : widgets) {
+            if (widget.widgetId == widgetId && widget.widgetType == widgetType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setWidget(long noteId, int widgetId, int widgetType) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.WIDGET_ID, widgetId);
+        values.put(NoteColumns.WIDGET_TYPE, widgetType);
+        mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), values,
+                null, null);
+    }
+
+    private void clearLocalModified() {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.LOCAL_MODIFIED, 0);
+        values.put(NoteColumns.VERSION, 0);
+        mResolver.update(Notes.CONTENT_NOTE_URI, values, null, null);
+    }
+
+    private boolean exists(long noteId) {
+        return countNotes(NoteColumns.ID + "=" + noteId) == 1;
+    }
+
+    private int countNotes(String selection) {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] { NoteColumns.ID },
+                selection, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private long insertFolder(String name) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.SNIPPET, name);
+        return ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+    }
+
+    private long insertNote(long folderId) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.PARENT_ID, folderId);
+        return ContentUris.parseId(mResolver.insert(Notes.CONTENT_NOTE_URI, values));
+    }
+
+    private HashSet<Long> insertNotes(long folderId, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+            values[i].put(NoteColumns.PARENT_ID, folderId);
+        }
+        assertEquals(count, mResolver.bulkInsert(Notes.CONTENT_NOTE_URI, values));
+
+        HashSet<Long> ids = new HashSet<Long>();
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] { NoteColumns.ID },
+                NoteColumns.PARENT_ID + "=? AND " + NoteColumns.TYPE + "=?", new String[] {
+                        String.valueOf(folderId), String.valueOf(Notes.TYPE_NOTE)
+                }, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(count, ids.size());
+        return ids;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.tool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * 测量GTaskManager的id映射在每1万和10万个便签时占用的堆：原来的HashMap<String, Long>、
+ * HashMap<Long, String>和HashSet<Long>，与StringLongHashMap、LongHashMap和LongHashSet对比。
+ * gid字符串两种方式都要保存，预先创建好不计入结果。在JVM上运行：先编译单元测试，再以测试的
+ * classpath运行这个类的main方法，最好加上-Xmx1g以免测量中途扩大堆
+ */
+public class IdMapHeapMeasurement {
+    /**
+     * 每次测量同时保留的副本数，用来摊薄gc后剩余垃圾带来的误差
+     */
+    private static final int COPIES = 20;
+
+    public static void main(String[] args) {
+        for (int notes : new int[] { 10000, 100000 }) {
+            String[] gids = new String[notes];
+            for (int i = 0; i < notes; i++) {
+                gids[i] = "gid_" + Long.toString(1000000007L * i, 36);
+            }
+            // 先各运行一次，排除类加载的影响
+            measure(gids, true, 1);
+            measure(gids, false, 1);
+            long boxed = measure(gids, true, COPIES);
+            long primitive = measure(gids, false, COPIES);
+            System.out.println(notes + " notes: boxed " + boxed + " bytes, primitive "
+                    + primitive + " bytes, " + (boxed * 10000L / notes) + " / "
+                    + (primitive * 10000L / notes) + " bytes per 10k notes");
+        }
+    }
+
+    /**
+     * @return 一份id映射平均占用的字节数
+     */
+    private static long measure(String[] gids, boolean boxed, int copies) {
+        ArrayList<Object> retained = new ArrayList<Object>(copies);
+        long before = usedHeap();
+        for (int c = 0; c < copies; c++) {
+            retained.add(boxed ? buildBoxed(gids) : buildPrimitive(gids));
+        }
+        long after = usedHeap();
+        if (retained.size() != copies) {
+            throw new IllegalStateException();
+        }
+        return (after - before) / copies;
+    }
+
+    private static Object[] buildBoxed(String[] gids) {
+        HashMap<String, Long> gidToNid = new HashMap<String, Long>();
+        HashMap<Long, String> nidToGid = new HashMap<Long, String>();
+        HashSet<Long> localDeleteIds = new HashSet<Long>();
+        for (int i = 0; i < gids.length; i++) {
+            // 便签id从查询结果中读出，每次装箱都是新的Long
+            long nid = 1000 + i;
+            gidToNid.put(gids[i], Long.valueOf(nid));
+            nidToGid.put(Long.valueOf(nid), gids[i]);
+            localDeleteIds.add(Long.valueOf(nid));
+        }
+        return new Object[] { gidToNid, nidToGid, localDeleteIds };
+    }
+
+    private static Object[] buildPrimitive(String[] gids) {
+        StringLongHashMap gidToNid = new StringLongHashMap();
+        LongHashMap<String> nidToGid = new LongHashMap<String>();
+        LongHashSet localDeleteIds = new LongHashSet();
+        for (int i = 0; i < gids.length; i++) {
+            long nid = 1000 + i;
+            gidToNid.put(gids[i], nid);
+            nidToGid.put(nid, gids[i]);
+            localDeleteIds.add(nid);
+        }
+        return new Object[] { gidToNid, nidToGid, localDeleteIds };
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // gc后的占用不再下降时才算稳定
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used) {
+                return Math.min(used, current);
+            }
+            used = current;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.tool;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * LongHashMap与HashMap<Long, V>在随机操作下结果相同
+ */
+public class LongHashMapTest {
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(2);
+        for (int round = 0; round < 5; round++) {
+            long range = round == 4 ? Long.MAX_VALUE : 64L << (round * 4);
+            compare(random, range, 200000);
+        }
+    }
+
+    @Test
+    public void backwardShiftKeepsCollidingKeysReachable() {
+        // 两条相邻的探测链交错在一起，删除时只能回移不会越过自己的槽的键值对
+        long[] first = LongHashSetTest.collidingKeys(14, 16, 4);
+        long[] second = LongHashSetTest.collidingKeys(15, 16, 4);
+        LongHashMap<String> map = new LongHashMap<String>();
+        HashMap<Long, String> model = new HashMap<Long, String>();
+        for (int i = 0; i < 4; i++) {
+            map.put(first[i], "a" + i);
+            model.put(first[i], "a" + i);
+            map.put(second[i], "b" + i);
+            model.put(second[i], "b" + i);
+        }
+        long[] all = { first[0], second[1], first[2], second[3], first[1], second[0],
+                first[3], second[2] };
+        for (long key : all) {
+            assertEquals(model.remove(key), map.remove(key));
+            for (long k : all) {
+                assertEquals(model.get(k), map.get(k));
+            }
+        }
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void anyLongIsAKey() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        map.put(Long.MIN_VALUE, "min");
+        map.put(0, "zero");
+        map.put(-2, "call");
+        assertEquals("min", map.get(Long.MIN_VALUE));
+        assertEquals("zero", map.get(0));
+        assertEquals("call", map.put(-2, "call2"));
+        assertEquals(3, map.size());
+        assertEquals("min", map.remove(Long.MIN_VALUE));
+        assertFalse(map.containsKey(Long.MIN_VALUE));
+        assertNull(map.remove(Long.MIN_VALUE));
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+    }
+
+    @Test
+    public void rejectsNullValue() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        try {
+            map.put(1, null);
+            fail("null value should be rejected");
+        } catch (NullPointerException e) {
+            // expected
+        }
+        assertTrue(map.isEmpty());
+    }
+
+    private static void compare(Random random, long range, int operations) {
+        LongHashMap<Long> map = new LongHashMap<Long>(random.nextInt(64));
+        HashMap<Long, Long> model = new HashMap<Long, Long>();
+        for (int op = 0; op < operations; op++) {
+            long key = LongHashSetTest.randomKey(random, range);
+            int choice = random.nextInt(10);
+            if (choice < 5) {
+                Long value = random.nextLong();
+                assertEquals(model.put(key, value), map.put(key, value));
+            } else if (choice < 8) {
+                assertEquals(model.remove(key), map.remove(key));
+            } else {
+                assertEquals(model.get(key), map.get(key));
+                assertEquals(model.containsKey(key), map.containsKey(key));
+            }
+            assertEquals(model.size(), map.size());
+        }
+        for (Long key : model.keySet()) {
+            assertEquals(model.get(key), map.get(key));
+        }
+    }
+}
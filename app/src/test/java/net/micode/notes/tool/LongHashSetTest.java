@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.tool;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LongHashSet与HashSet<Long>在随机操作下结果相同，包括同一个槽上的长探测链被回移删除和
+ * 作为空槽标记的Long.MIN_VALUE
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void matchesHashSet() {
+        Random random = new Random(1);
+        for (int round = 0; round < 5; round++) {
+            // 键的范围小时添加和删除会经常碰到已有的键
+            long range = round == 4 ? Long.MAX_VALUE : 64L << (round * 4);
+            compare(random, range, 200000);
+        }
+    }
+
+    @Test
+    public void backwardShiftKeepsCollidingKeysReachable() {
+        // 默认容量16，11个键时还不会扩容
+        long[] keys = collidingKeys(0, 16, 11);
+        LongHashSet set = new LongHashSet();
+        for (long key : keys) {
+            assertTrue(set.add(key));
+        }
+        // 删除链头、链中和链尾后，其余的键仍然能找到
+        int[] order = { 0, 5, 10, 1, 9, 6, 2, 8, 3, 7, 4 };
+        HashSet<Long> model = new HashSet<Long>();
+        for (long key : keys) {
+            model.add(key);
+        }
+        for (int i : order) {
+            assertTrue(set.remove(keys[i]));
+            model.remove(keys[i]);
+            for (long key : keys) {
+                assertEquals(model.contains(key), set.contains(key));
+            }
+            assertEquals(model.size(), set.size());
+        }
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void minValueIsAnOrdinaryElement() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertFalse(set.remove(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertFalse(set.add(Long.MIN_VALUE));
+        assertTrue(set.add(0));
+        assertTrue(set.add(-1));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(Long.MIN_VALUE));
+
+        long[] array = set.toArray();
+        Arrays.sort(array);
+        assertArrayEquals(new long[] { Long.MIN_VALUE, -1, 0 }, array);
+
+        assertTrue(set.remove(Long.MIN_VALUE));
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertEquals(2, set.size());
+
+        set.add(Long.MIN_VALUE);
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertFalse(set.contains(0));
+    }
+
+    private static void compare(Random random, long range, int operations) {
+        LongHashSet set = new LongHashSet(random.nextInt(64));
+        HashSet<Long> model = new HashSet<Long>();
+        for (int op = 0; op < operations; op++) {
+            long key = randomKey(random, range);
+            int choice = random.nextInt(10);
+            if (choice < 5) {
+                assertEquals(model.add(key), set.add(key));
+            } else if (choice < 9) {
+                assertEquals(model.remove(key), set.remove(key));
+            } else {
+                assertEquals(model.contains(key), set.contains(key));
+            }
+            assertEquals(model.size(), set.size());
+            if (op % 10000 == 0) {
+                assertSameElements(model, set);
+            }
+            if (op == operations / 2) {
+                set.clear();
+                model.clear();
+            }
+        }
+        assertSameElements(model, set);
+    }
+
+    private static void assertSameElements(HashSet<Long> model, LongHashSet set) {
+        long[] array = set.toArray();
+        assertEquals(model.size(), array.length);
+        HashSet<Long> elements = new HashSet<Long>();
+        for (long key : array) {
+            assertTrue(model.contains(key));
+            elements.add(key);
+        }
+        assertEquals(model, elements);
+    }
+
+    /**
+     * 在[-range, range)中取键，偶尔取边界值
+     */
+    static long randomKey(Random random, long range) {
+        switch (random.nextInt(50)) {
+            case 0:
+                return Long.MIN_VALUE;
+            case 1:
+                return Long.MAX_VALUE;
+            case 2:
+                return 0;
+            default:
+                if (range == Long.MAX_VALUE) {
+                    return random.nextLong();
+                }
+                return (long) (random.nextDouble() * 2 * range) - range;
+        }
+    }
+
+    /**
+     * 找出count个在容量为capacity的表中落到同一个槽的键
+     */
+    static long[] collidingKeys(int slot, int capacity, int count) {
+        long[] keys = new long[count];
+        int n = 0;
+        for (long key = 1; n < count; key++) {
+            if ((LongHashMap.mix(key) & (capacity - 1)) == slot) {
+                keys[n++] = key;
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.tool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * StringLongHashMap与HashMap<String, Long>在随机操作下结果相同，包括hashCode相同的键
+ */
+public class StringLongHashMapTest {
+    private static final long MISSING = Long.MIN_VALUE;
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(3);
+        for (int keys : new int[] { 16, 1000, 100000 }) {
+            compare(random, keys, 200000);
+        }
+    }
+
+    @Test
+    public void backwardShiftWithEqualHashCodes() {
+        // "Aa"和"BB"的hashCode相同，由它们拼成的键都落在同一个槽
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 64; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int bit = 0; bit < 6; bit++) {
+                sb.append((i & (1 << bit)) != 0 ? "Aa" : "BB");
+            }
+            keys.add(sb.toString());
+        }
+        StringLongHashMap map = new StringLongHashMap();
+        HashMap<String, Long> model = new HashMap<String, Long>();
+        for (int i = 0; i < keys.size(); i++) {
+            map.put(keys.get(i), i);
+            model.put(keys.get(i), (long) i);
+        }
+        Random random = new Random(4);
+        while (!model.isEmpty()) {
+            String key = keys.get(random.nextInt(keys.size()));
+            assertEquals(model.remove(key) != null, map.remove(key));
+            for (String k : keys) {
+                assertEquals(model.containsKey(k) ? model.get(k) : MISSING, map.get(k, MISSING));
+            }
+            assertEquals(model.size(), map.size());
+        }
+    }
+
+    @Test
+    public void nullKey() {
+        StringLongHashMap map = new StringLongHashMap();
+        assertFalse(map.containsKey(null));
+        assertFalse(map.remove(null));
+        assertEquals(7, map.get(null, 7));
+        try {
+            map.put(null, 1);
+            fail("null key should be rejected");
+        } catch (NullPointerException e) {
+            // expected
+        }
+        map.put("gid", Long.MIN_VALUE);
+        assertTrue(map.containsKey("gid"));
+        assertEquals(Long.MIN_VALUE, map.get("gid", 0));
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    private static void compare(Random random, int keyCount, int operations) {
+        StringLongHashMap map = new StringLongHashMap(random.nextInt(64));
+        HashMap<String, Long> model = new HashMap<String, Long>();
+        for (int op = 0; op < operations; op++) {
+            // 每次新建字符串，键按equals而不是引用比较
+            String key = new String("gid_" + random.nextInt(keyCount));
+            int choice = random.nextInt(10);
+            if (choice < 5) {
+                long value = random.nextLong();
+                map.put(key, value);
+                model.put(key, value);
+            } else if (choice < 8) {
+                assertEquals(model.remove(key) != null, map.remove(key));
+            } else {
+                assertEquals(model.containsKey(key), map.containsKey(key));
+                assertEquals(model.containsKey(key) ? model.get(key) : MISSING,
+                        map.get(key, MISSING));
+            }
+            assertEquals(model.size(), map.size());
+        }
+        for (String key : model.keySet()) {
+            assertEquals((long) model.get(key), map.get(key, MISSING));
+        }
+    }
+}